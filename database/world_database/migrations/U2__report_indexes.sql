@@ -0,0 +1,21 @@
+-- Undoes version 2: drops the report indexes so the database matches world.sql again.
+-- Used by the query benchmark to measure the reports before and after the migration.
+
+USE `world`;
+
+ALTER TABLE `country`
+  DROP INDEX `idx_country_population`,
+  DROP INDEX `idx_country_continent_population`,
+  DROP INDEX `idx_country_region_population`,
+  DROP INDEX `idx_country_name`;
+
+ALTER TABLE `city`
+  DROP INDEX `idx_city_population`,
+  DROP INDEX `idx_city_country_population`,
+  DROP INDEX `idx_city_district_population`,
+  DROP INDEX `idx_city_name`;
+
+ALTER TABLE `countrylanguage`
+  DROP INDEX `idx_countrylanguage_language`;
+
+DELETE FROM `schema_version` WHERE `Version` = 2;
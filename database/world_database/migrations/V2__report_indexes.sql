@@ -0,0 +1,45 @@
+-- Version 2: indexes for the report queries
+--
+-- world.sql (version 1) only has primary keys and the CountryCode keys, so every area filter and every
+-- ORDER BY population DESC in the DAO is a full scan followed by a filesort.  Each index below is
+-- named after the filter it serves, with population last and descending so rows come back already
+-- sorted.  The city indexes also carry every city column the reports select, so the top N city
+-- reports are read from the index alone and stop after N entries.
+--
+-- Run once against a database built from world.sql.  The database Dockerfile applies it on startup.
+
+USE `world`;
+
+CREATE TABLE IF NOT EXISTS `schema_version` (
+  `Version` int NOT NULL,
+  `Description` varchar(100) NOT NULL,
+  `AppliedAt` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`Version`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+INSERT IGNORE INTO `schema_version` (`Version`, `Description`) VALUES (1, 'world.sql baseline');
+
+-- Country reports (1.x, 2.x, 7.x, 8.1-8.4): world, continent and region rankings and totals, and
+-- country name lookups
+ALTER TABLE `country`
+  ADD INDEX `idx_country_population` (`Population` DESC),
+  ADD INDEX `idx_country_continent_population` (`Continent`, `Population` DESC),
+  ADD INDEX `idx_country_region_population` (`Region`, `Population` DESC),
+  ADD INDEX `idx_country_name` (`Name`);
+
+-- City reports (3.x, 4.x, 7.x, 8.5, 8.6)
+--   world rankings: read in population order, covering
+--   continent, region and country rankings and residence totals: joined from country by code, covering
+--   district rankings and totals: covering
+--   city name totals: covering
+ALTER TABLE `city`
+  ADD INDEX `idx_city_population` (`Population` DESC, `Name`, `District`, `CountryCode`),
+  ADD INDEX `idx_city_country_population` (`CountryCode`, `Population` DESC, `Name`, `District`),
+  ADD INDEX `idx_city_district_population` (`District`, `Population` DESC, `Name`, `CountryCode`),
+  ADD INDEX `idx_city_name` (`Name`, `Population`);
+
+-- Language report (9.1): the five languages are looked up directly, covering
+ALTER TABLE `countrylanguage`
+  ADD INDEX `idx_countrylanguage_language` (`Language`, `CountryCode`, `Percentage`);
+
+INSERT INTO `schema_version` (`Version`, `Description`) VALUES (2, 'report indexes');
@@ -0,0 +1,45 @@
+#!/usr/bin/env bash
+# Measures requests per second against a running report server (java -jar SemGroupProject.jar
+# localhost:33061 --serve) with 1, 8 and 64 clients sending requests at once, then prints the server's
+# per-endpoint latencies.
+# Usage: scripts/load-test.sh [server url] [requests per level]
+set -euo pipefail
+
+URL=${1:-http://localhost:8080}
+REQUESTS=${2:-2000}
+# Each curl process sends this many requests over one connection
+BATCH=25
+
+# A mix of small and large reports
+PATHS=(
+    "/countries/top?area=world&n=10"
+    "/cities/top?area=continent&name=Europe&n=20"
+    "/cities?area=district&name=Scotland"
+    "/capitals?area=region&name=Caribbean"
+    "/residence?area=country&name=China"
+    "/population?area=continent&name=Asia"
+    "/languages"
+)
+
+# curl's -o only applies to one URL, so every URL is given its own
+urls()
+{
+    for ((i = 0; i < REQUESTS; i++)); do
+        printf -- "-o\n/dev/null\n%s\n" "$URL${PATHS[i % ${#PATHS[@]}]}"
+    done
+}
+
+printf "%-8s | %9s | %9s | %10s | %s\n" "Clients" "Requests" "Seconds" "Req/second" "Failed"
+for CLIENTS in 1 8 64; do
+    START=$(date +%s.%N)
+    CODES=$(urls | xargs -P "$CLIENTS" -n $((BATCH * 3)) curl -s -w "%{http_code}\n")
+    END=$(date +%s.%N)
+    FAILED=$(echo "$CODES" | grep -vc '^200$' || true)
+    echo "$START $END" | awk -v clients="$CLIENTS" -v requests="$REQUESTS" -v failed="$FAILED" \
+        '{ seconds = $2 - $1; printf "%-8s | %9d | %9.2f | %10.1f | %s\n", clients, requests, seconds, requests / seconds, failed }'
+done
+
+echo
+echo "Server latencies:"
+curl -s "$URL/stats"
+echo
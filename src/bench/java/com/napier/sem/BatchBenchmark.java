@@ -0,0 +1,165 @@
+package com.napier.sem;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Measures the wall-clock time of a dashboard, every report for one continent, run three ways: one
+ * report after another, in parallel through AsyncDAO, and as one batch sent in a single round trip.
+ * By default queries run on a LatencyInjectedConnection at several round trip times, so the cost of the
+ * round trips themselves is measured; pass a database location to run them against MySQL instead.
+ * Usage: BatchBenchmark [simulated|location] [iterations] [output file]
+ */
+public class BatchBenchmark
+{
+    // Every report for Europe, one per use case
+    private static final List<ReportRequest> DASHBOARD = Arrays.asList(
+            new ReportRequest(1, App.CONTINENT, "Europe", 0),
+            new ReportRequest(2, App.CONTINENT, "Europe", 10),
+            new ReportRequest(3, App.CONTINENT, "Europe", 0),
+            new ReportRequest(4, App.CONTINENT, "Europe", 10),
+            new ReportRequest(5, App.CONTINENT, "Europe", 0),
+            new ReportRequest(6, App.CONTINENT, "Europe", 10),
+            new ReportRequest(7, App.CONTINENT, "Europe", 0),
+            new ReportRequest(8, App.CONTINENT, "Europe", 0),
+            new ReportRequest(9, null, null, 0));
+
+    // Simulated round trip times, in microseconds
+    private static final long[] LATENCIES = {200, 1_000, 5_000};
+    // Rows returned by each simulated query
+    private static final int ROWS = 50;
+    // Dashboards run before timing starts
+    private static final int WARM_UP_RUNS = 50;
+
+    public static void main(String[] args) throws Exception
+    {
+        String location = (args.length > 0) ? args[0] : "simulated";
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 30;
+        Path output = Paths.get((args.length > 2) ? args[2] : "target/benchmarks/batch.txt");
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Batch benchmark, %d reports per dashboard, %d timed runs, times in microseconds",
+                DASHBOARD.size(), iterations));
+        lines.add(String.format("%-12s | %-28s | %9s | %9s | %7s", "Round trip", "Model", "median", "p95", "speedup"));
+
+        if (location.equals("simulated"))
+        {
+            // The simulated server needs to know which rows each query returns
+            Map<String, String> recordTypes = new HashMap<>();
+            DAO builder = new DAO(null);
+            for (ReportRequest request : DASHBOARD)
+            {
+                ReportQuery query = builder.buildQuery(request);
+                recordTypes.put(query.getStatement(), query.getRecordType());
+            }
+
+            for (long latencyMicros : LATENCIES)
+            {
+                lines.add(App.HORIZONTAL_LINE);
+                try (ConnectionPool pool = createPool(() ->
+                        new LatencyInjectedConnection(latencyMicros, recordTypes::get, ROWS).getConnection()))
+                {
+                    // The simulated server takes several statements in one call on any connection
+                    measure(String.format("%.1fms", latencyMicros / 1000.0), pool, pool, iterations, lines);
+                }
+            }
+        }
+        else
+        {
+            lines.add(App.HORIZONTAL_LINE);
+            try (ConnectionPool pool = createPool(() -> App.openConnection(location));
+                 ConnectionPool batchPool = App.createBatchPool(location))
+            {
+                measure("MySQL", pool, batchPool, iterations, lines);
+            }
+        }
+
+        if (output.getParent() != null) Files.createDirectories(output.getParent());
+        Files.write(output, lines, StandardCharsets.UTF_8);
+        System.out.println("Written to " + output);
+    }
+
+    private static ConnectionPool createPool(ConnectionPool.ConnectionFactory factory)
+    {
+        return new ConnectionPool(factory,
+                App.POOL_MIN_SIZE,
+                App.POOL_MAX_SIZE,
+                App.POOL_IDLE_TIMEOUT_MILLIS,
+                App.POOL_BORROW_TIMEOUT_MILLIS,
+                App.POOL_LEAK_THRESHOLD_MILLIS);
+    }
+
+    /**
+     * Times the dashboard run each way and adds a line for each to the report.  Batches are sent on the
+     * batch pool's connections.
+     */
+    private static void measure(String roundTrip, ConnectionPool pool, ConnectionPool batchPool, int iterations,
+                                List<String> lines)
+    {
+        DAO dao = DAO.pooled(pool, batchPool);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        AsyncDAO async = new AsyncDAO(dao, executor);
+
+        long[] sequential = time(iterations, () -> {
+            List<List<Record>> results = new ArrayList<>();
+            for (ReportRequest request : DASHBOARD) results.add(dao.execute(request));
+            return results;
+        });
+        long[] parallel = time(iterations, () -> {
+            List<CompletableFuture<List<Record>>> futures = new ArrayList<>();
+            for (ReportRequest request : DASHBOARD) futures.add(async.execute(request));
+            List<List<Record>> results = new ArrayList<>();
+            for (CompletableFuture<List<Record>> future : futures) results.add(future.join());
+            return results;
+        });
+        long[] batch = time(iterations, () -> dao.executeBatch(DASHBOARD));
+        executor.shutdown();
+
+        long baseline = median(sequential);
+        lines.add(line(roundTrip, "one after another", sequential, baseline));
+        lines.add(line(roundTrip, "in parallel, " + App.POOL_MAX_SIZE + " connections", parallel, baseline));
+        lines.add(line(roundTrip, "one batch", batch, baseline));
+        lines.subList(lines.size() - 3, lines.size()).forEach(System.out::println);
+    }
+
+    /**
+     * Runs the dashboard a number of times, checking every report came back.
+     * @return The sorted run times in nanoseconds
+     */
+    private static long[] time(int iterations, Supplier<List<List<Record>>> dashboard)
+    {
+        for (int run = 0; run < WARM_UP_RUNS; run++) dashboard.get();
+
+        long[] nanos = new long[iterations];
+        for (int run = 0; run < iterations; run++)
+        {
+            long start = System.nanoTime();
+            List<List<Record>> results = dashboard.get();
+            nanos[run] = System.nanoTime() - start;
+            if (results.contains(null)) throw new IllegalStateException("A report in the dashboard failed");
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private static long median(long[] sortedNanos) { return sortedNanos[sortedNanos.length / 2] / 1000; }
+
+    private static String line(String roundTrip, String model, long[] sortedNanos, long baseline)
+    {
+        long median = median(sortedNanos);
+        long p95 = sortedNanos[(int) Math.ceil(sortedNanos.length * 0.95) - 1] / 1000;
+        return String.format("%-12s | %-28s | %,9d | %,9d | %6.1fx",
+                roundTrip, model, median, p95, (double) baseline / Math.max(1, median));
+    }
+}
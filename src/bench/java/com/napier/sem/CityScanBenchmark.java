@@ -0,0 +1,117 @@
+package com.napier.sem;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Times the CityStore's filtered count and sum, as a plain loop and with the Vector API, on synthetic
+ * city tables of increasing size.  The columns are generated already encoded, shaped like the world
+ * database: 239 countries over 7 continents, about three cities to a district.  Three filters are run:
+ *   district  - equal to one district, matching a handful of cities
+ *   country   - equal to one country, matching about 1 in 239 cities
+ *   continent - one of the continent's countries, looked up per city, matching about 1 in 7 cities
+ * The vectorised scans are only run when the JVM was started with --add-modules jdk.incubator.vector:
+ * fully vectorised, and CityScan.best, which only vectorises the in-set filter.
+ * Usage: CityScanBenchmark [cities...], 1,000,000 and 10,000,000 cities by default
+ */
+public class CityScanBenchmark
+{
+    private static final int COUNTRIES = 239;
+    private static final int CONTINENTS = 7;
+    private static final int CITIES_PER_DISTRICT = 3;
+    // Timed scans for each filter, after the warm up
+    private static final int RUNS = 15;
+    private static final int WARM_UP_RUNS = 50;
+
+    public static void main(String[] args) throws Exception
+    {
+        long[] sizes = (args.length > 0)
+                ? Arrays.stream(args).mapToLong(Long::parseLong).toArray()
+                : new long[] {1_000_000, 10_000_000};
+        Path output = Paths.get("target/benchmarks/city-scan.txt");
+
+        List<CityScan> scans = new ArrayList<>();
+        scans.add(new CityScan.Scalar());
+        CityScan vector = CityScan.vector();
+        if (vector != null)
+        {
+            scans.add(vector);
+            scans.add(CityScan.best());
+        }
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("City scan benchmark, median of %d scans, %s", RUNS,
+                (scans.size() > 1) ? "Vector API available" : "Vector API not available, start with --add-modules jdk.incubator.vector"));
+        lines.add(String.format("%-12s | %-10s | %-18s | %9s | %12s | %7s",
+                "Cities", "Filter", "Scan", "ms", "M cities/s", "speedup"));
+
+        for (long size : sizes)
+        {
+            if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("At most " + Integer.MAX_VALUE + " cities");
+            int cities = (int) size;
+
+            // Columns are generated from a fixed seed so every run scans the same table
+            SplittableRandom random = new SplittableRandom(42);
+            int[] country = new int[cities];
+            int[] district = new int[cities];
+            long[] population = new long[cities];
+            for (int i = 0; i < cities; i++)
+            {
+                country[i] = random.nextInt(COUNTRIES);
+                district[i] = random.nextInt(Math.max(1, cities / CITIES_PER_DISTRICT));
+                population[i] = 1_000 + random.nextInt(10_000_000);
+            }
+            int[] inContinent = new int[COUNTRIES];
+            for (int code = 0; code < COUNTRIES; code++) inContinent[code] = (code % CONTINENTS == 0) ? 1 : 0;
+
+            lines.add(App.HORIZONTAL_LINE);
+            String[] filters = {"district", "country", "continent"};
+            for (String filter : filters)
+            {
+                double scalarMillis = 0;
+                long[] expected = null;
+                for (CityScan scan : scans)
+                {
+                    long[] nanos = new long[RUNS];
+                    long[] result = null;
+                    for (int run = -WARM_UP_RUNS; run < RUNS; run++)
+                    {
+                        long start = System.nanoTime();
+                        switch (filter)
+                        {
+                            case "district":
+                                result = scan.sumWhere(district, district[cities / 2], population, cities);
+                                break;
+                            case "country":
+                                result = scan.sumWhere(country, 17, population, cities);
+                                break;
+                            default:
+                                result = scan.sumWhereIn(country, inContinent, population, cities);
+                                break;
+                        }
+                        if (run >= 0) nanos[run] = System.nanoTime() - start;
+                    }
+                    if (expected == null) expected = result;
+                    else if (!Arrays.equals(expected, result)) throw new IllegalStateException(scan.getName() + " gave a different answer");
+
+                    Arrays.sort(nanos);
+                    double millis = nanos[RUNS / 2] / 1e6;
+                    if (scalarMillis == 0) scalarMillis = millis;
+                    lines.add(String.format("%,12d | %-10s | %-18s | %9.2f | %,12.0f | %6.1fx",
+                            cities, filter, scan.getName(), millis, cities / millis / 1e3, scalarMillis / millis));
+                    System.out.println(lines.get(lines.size() - 1));
+                }
+            }
+        }
+
+        if (output.getParent() != null) Files.createDirectories(output.getParent());
+        Files.write(output, lines, StandardCharsets.UTF_8);
+        System.out.println("Written to " + output);
+    }
+}
@@ -0,0 +1,99 @@
+package com.napier.sem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the DAO running reports against a local world database, both as plain SQL through
+ * executeStatement and as parameterised SQL through executePreparedStatement.  The database location is
+ * read from the benchmark.location system property, localhost:33061 by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaoBenchmark
+{
+    // The query id, area filter, area name and n of each report benchmarked
+    @Param({"1|continent|Europe|0", "2|world||10", "3|country|Japan|0", "4|world||10",
+            "6|region|Caribbean|5", "7|continent|Asia|0", "8|district|Scotland|0", "9|||0"})
+    public String report;
+
+    private Connection connection;
+    private DAO dao;
+    private ReportQuery query;
+    private String plainStatement;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException
+    {
+        connection = App.openConnection(System.getProperty("benchmark.location", "localhost:33061"));
+        dao = new DAO(connection);
+
+        String[] parts = report.split("\\|", -1);
+        ReportRequest request = new ReportRequest(Integer.parseInt(parts[0]),
+                parts[1].isEmpty() ? null : parts[1],
+                parts[1].isEmpty() ? null : parts[2],
+                Integer.parseInt(parts[3]));
+        query = dao.buildQuery(request);
+        plainStatement = inline(query);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        App.disconnect(connection);
+    }
+
+    /**
+     * Writes the query's parameters into its SQL, giving the plain statement executeStatement runs.
+     */
+    private static String inline(ReportQuery query)
+    {
+        StringBuilder statement = new StringBuilder();
+        Object[] parameters = query.getParameters();
+        int parameter = 0;
+        for (char c : query.getStatement().toCharArray())
+        {
+            if (c != '?')
+            {
+                statement.append(c);
+                continue;
+            }
+            Object value = parameters[parameter++];
+            if (value instanceof Integer) statement.append(value);
+            else statement.append('\'').append(value.toString().replace("'", "''")).append('\'');
+        }
+        return statement.toString();
+    }
+
+    @Benchmark
+    public List<Record> executeStatement()
+    {
+        return dao.executeStatement(plainStatement, query.getRecordType());
+    }
+
+    @Benchmark
+    public List<Record> executePreparedStatement()
+    {
+        return dao.executePreparedStatement(query.getStatement(), query.getRecordType(), query.getParameters());
+    }
+}
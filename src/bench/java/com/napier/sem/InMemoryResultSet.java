@@ -0,0 +1,168 @@
+package com.napier.sem;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A forward-only ResultSet held in memory, so Record mapping and rendering can be benchmarked without
+ * MySQL.  Only the getters Record uses are supported.  The same rows can be read again after reset.
+ */
+public class InMemoryResultSet implements InvocationHandler
+{
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final List<Object[]> rows;
+    private final ResultSet resultSet;
+    private int row = -1;
+    private boolean wasNull;
+
+    /**
+     * @param columnLabels The column labels, in the order values appear in each row.
+     * @param rows The rows, each holding a value for every column.
+     */
+    public InMemoryResultSet(String[] columnLabels, List<Object[]> rows)
+    {
+        for (int i = 0; i < columnLabels.length; i++) columns.put(columnLabels[i].toLowerCase(), i);
+        this.rows = rows;
+        resultSet = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[] {ResultSet.class}, this);
+    }
+
+    /**
+     * @return The result set, positioned before the first row.
+     */
+    public ResultSet getResultSet() { return resultSet; }
+
+    /**
+     * Moves the cursor back before the first row.
+     */
+    public void reset() { row = -1; }
+
+    public int size() { return rows.size(); }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws SQLException
+    {
+        switch (method.getName())
+        {
+            case "next":
+                return ++row < rows.size();
+            case "close":
+                return null;
+            case "isClosed":
+                return false;
+            case "wasNull":
+                return wasNull;
+            case "getString":
+                Object text = value(args[0]);
+                return (text == null) ? null : text.toString();
+            case "getLong":
+                Object number = value(args[0]);
+                return (number == null) ? 0L : ((Number) number).longValue();
+            case "getInt":
+                Object integer = value(args[0]);
+                return (integer == null) ? 0 : ((Number) integer).intValue();
+            case "getDouble":
+                Object decimal = value(args[0]);
+                return (decimal == null) ? 0.0 : ((Number) decimal).doubleValue();
+            case "getObject":
+                return value(args[0]);
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InMemoryResultSet(" + rows.size() + " rows)";
+            default:
+                throw new UnsupportedOperationException(method.getName() + " is not supported");
+        }
+    }
+
+    private Object value(Object column) throws SQLException
+    {
+        if (row < 0 || row >= rows.size()) throw new SQLException("The cursor is not on a row");
+
+        Integer index = (column instanceof Integer) ? (Integer) column - 1 : columns.get(column.toString());
+        if (index == null) index = columns.get(column.toString().toLowerCase());
+        if (index == null) throw new SQLException("Column '" + column + "' not found");
+
+        Object value = rows.get(row)[index];
+        wasNull = (value == null);
+        return value;
+    }
+
+    /**
+     * Builds rows shaped like the result of the report query for a record type, with the columns in the
+     * order the DAO selects them.  Values come from a seeded Random, so every run maps and renders the
+     * same rows.
+     * @param recordType The type of record the rows are for (country, city etc.).
+     * @param count The number of rows.
+     * @return A result set holding the rows.
+     */
+    public static InMemoryResultSet forRecordType(String recordType, int count)
+    {
+        Random random = new Random(42);
+        List<Object[]> rows = new ArrayList<>(count);
+        String[] columnLabels;
+        switch (recordType)
+        {
+            case App.COUNTRY:
+                columnLabels = new String[] {"code", "name", "continent", "region", "population", "capital"};
+                for (int i = 0; i < count; i++)
+                {
+                    rows.add(new Object[] {"C" + i, "Country " + i, "Europe", "Western Europe",
+                            (long) random.nextInt(1_300_000_000), "Capital " + i});
+                }
+                break;
+            case App.CAPITAL_CITY:
+                columnLabels = new String[] {"name", "population", "region", "continent", "country"};
+                for (int i = 0; i < count; i++)
+                {
+                    rows.add(new Object[] {"Capital " + i, (long) random.nextInt(20_000_000), "Western Europe",
+                            "Europe", "Country " + i});
+                }
+                break;
+            case App.CITY:
+                columnLabels = new String[] {"name", "district", "population", "country"};
+                for (int i = 0; i < count; i++)
+                {
+                    rows.add(new Object[] {"City " + i, "District " + i, (long) random.nextInt(10_000_000),
+                            "Country " + i});
+                }
+                break;
+            case App.RESIDENCE_REPORT:
+                columnLabels = new String[] {"name", "totalPopulation", "populationInCities", "populationNotInCities"};
+                for (int i = 0; i < count; i++)
+                {
+                    long total = 1 + random.nextInt(1_300_000_000);
+                    long inCities = (long) (total * random.nextDouble());
+                    rows.add(new Object[] {"Area " + i, total, inCities, total - inCities});
+                }
+                break;
+            case App.LANGUAGE:
+                columnLabels = new String[] {"name", "speakers", "percentage"};
+                for (int i = 0; i < count; i++)
+                {
+                    rows.add(new Object[] {"Language " + i, random.nextInt(1_000_000_000), random.nextInt(100)});
+                }
+                break;
+            case App.POPULATION:
+                columnLabels = new String[] {"name", "population"};
+                for (int i = 0; i < count; i++)
+                {
+                    rows.add(new Object[] {"Area " + i, (long) random.nextInt(1_300_000_000)});
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown record type: " + recordType);
+        }
+        return new InMemoryResultSet(columnLabels, rows);
+    }
+}
@@ -0,0 +1,141 @@
+package com.napier.sem;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A Connection which stands in for MySQL over a network: every call to the server blocks for a fixed
+ * time, as if waiting on the round trip, then returns in-memory rows.  A multi-statement call costs one
+ * round trip and returns a result set per statement.  It lets the threading and round trip behaviour of
+ * the DAO be benchmarked without a database.  Only what the DAO uses is supported.
+ */
+public class LatencyInjectedConnection implements InvocationHandler
+{
+    private final long latencyNanos;
+    private final Function<String, String> recordTypeOf;
+    private final int rows;
+    private final Connection connection;
+
+    /**
+     * @param latencyMicros How long each call to the server blocks for, in microseconds.
+     * @param recordType The type of record every query returns rows for.
+     * @param rows The number of rows every query returns.
+     */
+    public LatencyInjectedConnection(long latencyMicros, String recordType, int rows)
+    {
+        this(latencyMicros, sql -> recordType, rows);
+    }
+
+    /**
+     * @param latencyMicros How long each call to the server blocks for, in microseconds.
+     * @param recordTypeOf Gives the type of record a query returns rows for from its SQL.
+     * @param rows The number of rows every query returns.
+     */
+    public LatencyInjectedConnection(long latencyMicros, Function<String, String> recordTypeOf, int rows)
+    {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.recordTypeOf = recordTypeOf;
+        this.rows = rows;
+        connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, this);
+    }
+
+    /**
+     * @return The connection.
+     */
+    public Connection getConnection() { return connection; }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+    {
+        switch (method.getName())
+        {
+            case "prepareStatement":
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                        new Class<?>[] {PreparedStatement.class}, new StatementHandler((String) args[0]));
+            case "isValid":
+                return true;
+            case "isClosed":
+                return false;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "LatencyInjectedConnection(" + TimeUnit.NANOSECONDS.toMicros(latencyNanos) + " microseconds)";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Blocks for the round trip time, the way a thread blocks reading from the server's socket.
+     */
+    void waitForServer() throws SQLException
+    {
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(latencyNanos);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the server", e);
+        }
+    }
+
+    /**
+     * Answers the calls made on one prepared statement.
+     */
+    private class StatementHandler implements InvocationHandler
+    {
+        private final String sql;
+        private final List<ResultSet> results = new ArrayList<>();
+        private int current;
+
+        StatementHandler(String sql) { this.sql = sql; }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException
+        {
+            switch (method.getName())
+            {
+                case "executeQuery":
+                    waitForServer();
+                    return resultFor(sql);
+                case "execute":
+                    // Every statement in a multi-statement call is answered in the one round trip
+                    waitForServer();
+                    results.clear();
+                    current = 0;
+                    for (String statement : sql.split(DAO.BATCH_SEPARATOR)) results.add(resultFor(statement));
+                    return true;
+                case "getResultSet":
+                    return (current < results.size()) ? results.get(current) : null;
+                case "getMoreResults":
+                    return ++current < results.size();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    // Binding parameters, setting the fetch size and closing do nothing
+                    return null;
+            }
+        }
+
+        private ResultSet resultFor(String statement)
+        {
+            return InMemoryResultSet.forRecordType(recordTypeOf.apply(statement), rows).getResultSet();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.napier.sem;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the EXPLAIN plan and latency of every DAO report query before and after a schema migration.
+ * The undo script is run first so the "before" figures are taken without the migration, then the
+ * migration is applied and the same queries are measured again.  The two runs are written side by side
+ * to the output file.
+ * Usage: QueryBenchmark [location] [undo script] [migration script] [output file] [iterations]
+ */
+public class QueryBenchmark
+{
+    // One request for every report and area filter the DAO supports
+    private static final List<ReportRequest> REQUESTS = Arrays.asList(
+            new ReportRequest(1, App.WORLD, "", 0),
+            new ReportRequest(1, App.CONTINENT, "Europe", 0),
+            new ReportRequest(1, App.REGION, "Caribbean", 0),
+            new ReportRequest(2, App.WORLD, "", 10),
+            new ReportRequest(2, App.CONTINENT, "Asia", 10),
+            new ReportRequest(2, App.REGION, "Western Europe", 5),
+            new ReportRequest(3, App.WORLD, "", 0),
+            new ReportRequest(3, App.CONTINENT, "South America", 0),
+            new ReportRequest(3, App.REGION, "Eastern Asia", 0),
+            new ReportRequest(3, App.COUNTRY, "Japan", 0),
+            new ReportRequest(3, App.DISTRICT, "California", 0),
+            new ReportRequest(4, App.WORLD, "", 10),
+            new ReportRequest(4, App.CONTINENT, "Africa", 10),
+            new ReportRequest(4, App.REGION, "Southern Europe", 10),
+            new ReportRequest(4, App.COUNTRY, "Brazil", 10),
+            new ReportRequest(4, App.DISTRICT, "Texas", 5),
+            new ReportRequest(5, App.WORLD, "", 0),
+            new ReportRequest(5, App.CONTINENT, "Oceania", 0),
+            new ReportRequest(5, App.REGION, "Middle East", 0),
+            new ReportRequest(6, App.WORLD, "", 10),
+            new ReportRequest(6, App.CONTINENT, "Europe", 10),
+            new ReportRequest(6, App.REGION, "Caribbean", 5),
+            new ReportRequest(7, App.CONTINENT, "Asia", 0),
+            new ReportRequest(7, App.REGION, "Central America", 0),
+            new ReportRequest(7, App.COUNTRY, "China", 0),
+            new ReportRequest(8, App.WORLD, "", 0),
+            new ReportRequest(8, App.CONTINENT, "North America", 0),
+            new ReportRequest(8, App.REGION, "Nordic Countries", 0),
+            new ReportRequest(8, App.COUNTRY, "India", 0),
+            new ReportRequest(8, App.DISTRICT, "Scotland", 0),
+            new ReportRequest(8, App.CITY, "Edinburgh", 0),
+            new ReportRequest(9, null, null, 0));
+
+    // Runs of each query before timing starts
+    private static final int WARM_UP_RUNS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        String location = (args.length > 0) ? args[0] : "localhost:33061";
+        Path undoScript = Paths.get((args.length > 1) ? args[1] :
+                "database/world_database/migrations/U2__report_indexes.sql");
+        Path migrationScript = Paths.get((args.length > 2) ? args[2] :
+                "database/world_database/migrations/V2__report_indexes.sql");
+        Path output = Paths.get((args.length > 3) ? args[3] : "target/benchmarks/report-indexes.txt");
+        int iterations = (args.length > 4) ? Integer.parseInt(args[4]) : 50;
+
+        try (Connection connection = App.openConnection(location))
+        {
+            DAO dao = new DAO(connection);
+
+            System.out.println("Removing " + migrationScript.getFileName());
+            runScript(connection, undoScript);
+            Map<ReportRequest, Measurement> before = measure(connection, dao, iterations);
+
+            System.out.println("Applying " + migrationScript.getFileName());
+            runScript(connection, migrationScript);
+            Map<ReportRequest, Measurement> after = measure(connection, dao, iterations);
+
+            List<String> lines = report(before, after, iterations);
+            if (output.getParent() != null) Files.createDirectories(output.getParent());
+            Files.write(output, lines, StandardCharsets.UTF_8);
+            lines.forEach(System.out::println);
+            System.out.println("Written to " + output);
+        }
+    }
+
+    /**
+     * Runs each statement in an SQL script.  Statements which fail are reported and skipped, so an undo
+     * script can be run against a database the migration was never applied to.
+     * @param connection The connection to run the script on.
+     * @param script The path of the script.
+     * @throws IOException if the script can't be read
+     */
+    static void runScript(Connection connection, Path script) throws IOException
+    {
+        StringBuilder sql = new StringBuilder();
+        for (String line : Files.readAllLines(script, StandardCharsets.UTF_8))
+        {
+            if (!line.trim().startsWith("--")) sql.append(line).append('\n');
+        }
+
+        for (String statementString : sql.toString().split(";"))
+        {
+            if (statementString.trim().isEmpty()) continue;
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute(statementString);
+            }
+            catch (SQLException e)
+            {
+                System.out.println("Skipped statement in " + script.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Explains and times every request.
+     * @return The measurement for each request, in request order.
+     */
+    private static Map<ReportRequest, Measurement> measure(Connection connection, DAO dao, int iterations)
+            throws SQLException
+    {
+        Map<ReportRequest, Measurement> measurements = new LinkedHashMap<>();
+        for (ReportRequest request : REQUESTS)
+        {
+            ReportQuery query = dao.buildQuery(request);
+            List<String> plan = explain(connection, query);
+
+            for (int run = 0; run < WARM_UP_RUNS; run++) dao.execute(request);
+            long[] nanos = new long[iterations];
+            int rows = 0;
+            for (int run = 0; run < iterations; run++)
+            {
+                long start = System.nanoTime();
+                List<Record> records = dao.execute(request);
+                nanos[run] = System.nanoTime() - start;
+                rows = (records == null) ? -1 : records.size();
+            }
+            Arrays.sort(nanos);
+            measurements.put(request, new Measurement(plan, rows, nanos));
+        }
+        return measurements;
+    }
+
+    /**
+     * Gets the EXPLAIN plan of a query, one line per table accessed.
+     */
+    private static List<String> explain(Connection connection, ReportQuery query) throws SQLException
+    {
+        List<String> plan = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + query.getStatement()))
+        {
+            DAO.bindParameters(statement, query.getParameters());
+            try (ResultSet result = statement.executeQuery())
+            {
+                while (result.next())
+                {
+                    plan.add(String.format("%-12s type=%-7s key=%-34s rows=%-6s %s",
+                            result.getString("table"),
+                            result.getString("type"),
+                            result.getString("key"),
+                            result.getString("rows"),
+                            result.getString("Extra")));
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Lays the before and after measurements out side by side.
+     */
+    private static List<String> report(Map<ReportRequest, Measurement> before,
+                                       Map<ReportRequest, Measurement> after,
+                                       int iterations)
+    {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Report query benchmark, %d timed runs per query, latencies in microseconds", iterations));
+        for (ReportRequest request : REQUESTS)
+        {
+            Measurement was = before.get(request);
+            Measurement now = after.get(request);
+            lines.add(App.HORIZONTAL_LINE);
+            lines.add(request.toString());
+            lines.add(String.format("  before | rows %d | median %,d | p95 %,d", was.rows, was.median(), was.p95()));
+            was.plan.forEach(step -> lines.add("           " + step));
+            lines.add(String.format("  after  | rows %d | median %,d | p95 %,d | %.1fx",
+                    now.rows, now.median(), now.p95(), (double) was.median() / Math.max(1, now.median())));
+            now.plan.forEach(step -> lines.add("           " + step));
+        }
+        return lines;
+    }
+
+    /**
+     * The plan, row count and sorted run times of one query
+     */
+    private static class Measurement
+    {
+        private final List<String> plan;
+        private final int rows;
+        private final long[] sortedNanos;
+
+        Measurement(List<String> plan, int rows, long[] sortedNanos)
+        {
+            this.plan = plan;
+            this.rows = rows;
+            this.sortedNanos = sortedNanos;
+        }
+
+        long median() { return sortedNanos[sortedNanos.length / 2] / 1000; }
+        long p95() { return sortedNanos[(int) Math.ceil(sortedNanos.length * 0.95) - 1] / 1000; }
+    }
+}
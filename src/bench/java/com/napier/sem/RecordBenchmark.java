@@ -0,0 +1,112 @@
+package com.napier.sem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks mapping result rows to Records, rendering Records with toString and printing a report with
+ * UserPrompt.showRecords, for each record type.  Rows come from an InMemoryResultSet, so no database is
+ * needed.  Each operation handles a whole report of rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBenchmark
+{
+    @Param({App.COUNTRY, App.CAPITAL_CITY, App.CITY, App.RESIDENCE_REPORT, App.LANGUAGE, App.POPULATION})
+    public String recordType;
+
+    // Roughly the size of the all cities in a continent report
+    @Param({"1000"})
+    public int rows;
+
+    private InMemoryResultSet resultSet;
+    private List<Record> records;
+    private UserPrompt prompt;
+    private PrintStream standardOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException
+    {
+        resultSet = InMemoryResultSet.forRecordType(recordType, rows);
+        records = map(resultSet, recordType);
+        prompt = new UserPrompt(null);
+
+        // showRecords prints to System.out, which would otherwise flood the benchmark output
+        standardOut = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b) { }
+
+            @Override
+            public void write(byte[] b, int off, int len) { }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        System.setOut(standardOut);
+    }
+
+    private static List<Record> map(InMemoryResultSet resultSet, String recordType) throws SQLException
+    {
+        resultSet.reset();
+        ResultSet result = resultSet.getResultSet();
+        List<Record> records = new ArrayList<>(resultSet.size());
+        while (result.next()) records.add(new Record(result, recordType));
+        return records;
+    }
+
+    // Record(ResultSet, recordType) for every row of a report
+    @Benchmark
+    public List<Record> mapRecords() throws SQLException
+    {
+        return map(resultSet, recordType);
+    }
+
+    // Record.toString for every record of a report
+    @Benchmark
+    public void renderRecords(Blackhole blackhole)
+    {
+        for (Record record : records) blackhole.consume(record.toString());
+    }
+
+    // UserPrompt.showRecords for a whole report, printed to a discarding stream
+    @Benchmark
+    public void showRecords()
+    {
+        prompt.showRecords(records);
+    }
+
+    // The way showRecords printed before ReportRenderer, one println per record, as a baseline
+    @Benchmark
+    public void printlnRecords()
+    {
+        for (Record record : records) System.out.println(record);
+    }
+}
@@ -0,0 +1,63 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Measures how much heap each report row keeps alive, for the wide record (WideRecord, every field for
+ * every type) and for Record with its typed row.  Rows are read from an InMemoryResultSet, so both
+ * layouts point at the same strings and only the record objects themselves are counted.
+ * Usage: RecordFootprint [rows]
+ * Run with a fixed heap, e.g. -Xms1g -Xmx1g, so the collector doesn't resize the heap between readings.
+ */
+public class RecordFootprint
+{
+    private static final String[] RECORD_TYPES = {
+            App.COUNTRY, App.CAPITAL_CITY, App.CITY, App.RESIDENCE_REPORT, App.LANGUAGE, App.POPULATION};
+
+    public static void main(String[] args) throws SQLException
+    {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 200_000;
+
+        System.out.println(String.format("%-17s | %12s | %12s", "Record type", "Wide (B/row)", "Typed (B/row)"));
+        for (String recordType : RECORD_TYPES)
+        {
+            InMemoryResultSet resultSet = InMemoryResultSet.forRecordType(recordType, rows);
+            double wide = bytesPerRow(resultSet, recordType, true);
+            double typed = bytesPerRow(resultSet, recordType, false);
+            System.out.println(String.format("%-17s | %12.1f | %12.1f", recordType, wide, typed));
+        }
+    }
+
+    /**
+     * Reads every row of the result set into records, then works out how much heap is freed when the
+     * records are dropped.  Both readings are taken straight after a collection, with the rest of the
+     * heap unchanged.
+     */
+    private static double bytesPerRow(InMemoryResultSet resultSet, String recordType, boolean wide)
+            throws SQLException
+    {
+        Object[] records = new Object[resultSet.size()];
+        int count = records.length;
+
+        resultSet.reset();
+        ResultSet result = resultSet.getResultSet();
+        for (int row = 0; result.next(); row++)
+        {
+            records[row] = wide ? new WideRecord(result, recordType) : new Record(result, recordType);
+        }
+
+        long held = usedHeap();
+        Arrays.fill(records, null);
+        long released = usedHeap();
+        return (double) (held - released) / count;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,143 @@
+package com.napier.sem;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Compares throughput and tail latency of report requests run on a fixed pool of platform threads
+ * against the DAO's virtual thread mode, at increasing numbers of requests in flight.  Every request at
+ * a level is submitted at once and its latency is measured from submission to completion, so time spent
+ * queueing for a thread or a connection is counted.
+ * Virtual threads are also run against a plain pooled DAO, without the query permits.  Virtual threads
+ * waiting inside the connection pool's lock pin their carrier threads, and once every carrier is pinned
+ * the threads holding connections can't run to give them back.  That run has its own pool with a short
+ * borrow timeout, so it shows up as failed requests rather than hanging the benchmark.
+ * By default queries run on a LatencyInjectedConnection, so only the threading model is measured; pass a
+ * database location to run them against MySQL instead.
+ * Usage: ThreadModelBenchmark [simulated|location] [query latency µs] [platform threads] [output file]
+ */
+public class ThreadModelBenchmark
+{
+    // Requests in flight at each level
+    private static final int[] CONCURRENCY = {64, 1_000, 10_000};
+    // Report run by every request, the top 10 cities in a continent
+    private static final ReportRequest REQUEST = new ReportRequest(4, App.CONTINENT, "Asia", 10);
+    // Requests run before timing starts
+    private static final int WARM_UP_REQUESTS = 2_000;
+    // Borrow timeout of the pool used without query permits
+    private static final long UNLIMITED_BORROW_TIMEOUT_MILLIS = 1_000;
+
+    public static void main(String[] args) throws Exception
+    {
+        String location = (args.length > 0) ? args[0] : "simulated";
+        long latencyMicros = (args.length > 1) ? Long.parseLong(args[1]) : 2_000;
+        int platformThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        Path output = Paths.get((args.length > 3) ? args[3] : "target/benchmarks/thread-model.txt");
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Thread model benchmark against %s, %s, pool of %d connections, latencies in microseconds",
+                location,
+                location.equals("simulated") ? String.format("%.1fms per query", latencyMicros / 1000.0) : "MySQL",
+                App.POOL_MAX_SIZE));
+        lines.add(String.format("%-28s | %9s | %10s | %9s | %9s | %9s",
+                "Model", "In flight", "Req/second", "p50", "p99", "max"));
+
+        try (ConnectionPool pool = createPool(location, latencyMicros, App.POOL_BORROW_TIMEOUT_MILLIS);
+             ConnectionPool unlimitedPool = createPool(location, latencyMicros, UNLIMITED_BORROW_TIMEOUT_MILLIS))
+        {
+            DAO pooledDao = DAO.pooled(pool);
+            DAO virtualDao = DAO.onVirtualThreads(pool);
+            DAO unlimitedDao = DAO.pooled(unlimitedPool);
+
+            for (int concurrency : CONCURRENCY)
+            {
+                lines.add(App.HORIZONTAL_LINE);
+
+                ExecutorService platform = Executors.newFixedThreadPool(platformThreads);
+                lines.add(run(platformThreads + " platform threads", concurrency,
+                        request -> CompletableFuture.supplyAsync(() -> pooledDao.execute(request), platform)));
+                platform.shutdown();
+
+                lines.add(run("virtual threads", concurrency, virtualDao::submit));
+
+                ExecutorService unlimited = Executors.newVirtualThreadPerTaskExecutor();
+                lines.add(run("virtual threads, no permits", concurrency,
+                        request -> CompletableFuture.supplyAsync(() -> unlimitedDao.execute(request), unlimited)));
+                unlimited.shutdown();
+
+                System.out.println(lines.get(lines.size() - 3));
+                System.out.println(lines.get(lines.size() - 2));
+                System.out.println(lines.get(lines.size() - 1));
+            }
+        }
+
+        if (output.getParent() != null) Files.createDirectories(output.getParent());
+        Files.write(output, lines, StandardCharsets.UTF_8);
+        System.out.println("Written to " + output);
+    }
+
+    private static ConnectionPool createPool(String location, long latencyMicros, long borrowTimeoutMillis)
+    {
+        ConnectionPool.ConnectionFactory factory = location.equals("simulated")
+                ? () -> new LatencyInjectedConnection(latencyMicros, App.CITY, 10).getConnection()
+                : () -> App.openConnection(location);
+
+        return new ConnectionPool(factory,
+                App.POOL_MIN_SIZE,
+                App.POOL_MAX_SIZE,
+                App.POOL_IDLE_TIMEOUT_MILLIS,
+                borrowTimeoutMillis,
+                App.POOL_LEAK_THRESHOLD_MILLIS);
+    }
+
+    /**
+     * Warms up, then submits a number of requests at once and waits for them all.
+     * @param model The name of the threading model.
+     * @param concurrency The number of requests submitted at once.
+     * @param submit Starts a request without waiting for it.
+     * @return A line of the report
+     */
+    private static String run(String model, int concurrency,
+                              Function<ReportRequest, CompletableFuture<List<Record>>> submit)
+    {
+        List<CompletableFuture<List<Record>>> warmUp = new ArrayList<>();
+        for (int i = 0; i < WARM_UP_REQUESTS; i++) warmUp.add(submit.apply(REQUEST));
+        warmUp.forEach(CompletableFuture::join);
+
+        long[] nanos = new long[concurrency];
+        List<CompletableFuture<List<Record>>> results = new ArrayList<>(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++)
+        {
+            long submitted = System.nanoTime();
+            int request = i;
+            results.add(submit.apply(REQUEST).whenComplete((records, e) ->
+                    nanos[request] = System.nanoTime() - submitted));
+        }
+        int failed = 0;
+        for (CompletableFuture<List<Record>> result : results)
+        {
+            if (result.join() == null) failed++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(nanos);
+        return String.format("%-28s | %,9d | %,10.0f | %,9d | %,9d | %,9d%s",
+                model,
+                concurrency,
+                concurrency / (elapsed / 1e9),
+                nanos[concurrency / 2] / 1000,
+                nanos[(int) Math.ceil(concurrency * 0.99) - 1] / 1000,
+                nanos[concurrency - 1] / 1000,
+                (failed > 0) ? " | " + failed + " failed" : "");
+    }
+}
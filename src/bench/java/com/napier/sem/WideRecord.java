@@ -0,0 +1,173 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The wide Record as it was before each record type got its own row class, kept as the baseline for
+ * RecordFootprint.  Every record carries every field, whatever its type, and columns are read by label.
+ * Class representing a database record which could be one of:
+ *   - Country
+ *   - City
+ *   - Capital City
+ *   - Residence Report
+ *   - Population
+ *   - Language
+ * The type is denoted by the recordType field.
+ * The possible fields consist of:
+ *   countryCode, name, continent, region, country,
+ *   district, capital, population, speakers, percentage,
+ *   populationLivingInCities, percentageLivingInCities,
+ *   populationNotLivingInCities, percentageNotLivingInCities
+ */
+public class WideRecord
+{
+    // Private properties
+    private String countryCode;
+    private String name;
+    private String continent;
+    private String region;
+    private String country;
+    private String district;
+    private String capital;
+    private long population;
+    private long speakers;
+    private Integer percentage;
+    private long populationLivingInCities;
+    private double percentageLivingInCities;
+    private long populationNotLivingInCities;
+    private double percentageNotLivingInCities;
+    private final String recordType;
+
+    /**
+     * Takes the result of an SQL query for a country or city extracts
+     * the data we need and stores it in the class properties
+     * @param result The result of a query that returns country records
+     * @throws SQLException if a record can't be constructed due to a missing field
+     */
+    public WideRecord(ResultSet result, String recordType) throws SQLException
+    {
+        this.recordType = recordType;
+
+        if (result == null) return;
+
+        switch (recordType)
+        {
+            case App.COUNTRY:
+                countryCode = result.getString("code");
+                name = result.getString("name");
+                continent = result.getString("continent");
+                region = result.getString("region");
+                population = result.getLong("population");
+                capital = result.getString("capital");
+                break;
+            case App.CAPITAL_CITY:
+                name = result.getString("name");
+                country = result.getString("country");
+                region = result.getString("region");
+                continent = result.getString("continent");
+                population = result.getLong("population");
+                break;
+            case App.CITY:
+                name = result.getString("name");
+                country = result.getString("country");
+                district = result.getString("district");
+                population = result.getLong("population");
+                break;
+            case App.RESIDENCE_REPORT:
+                name = result.getString("name");
+                population = result.getLong("totalPopulation");
+                populationLivingInCities = result.getLong("populationInCities");
+                percentageLivingInCities = (double) populationLivingInCities / (double) population * 100;
+                populationNotLivingInCities = result.getLong("populationNotInCities");
+                percentageNotLivingInCities = (double) populationNotLivingInCities / (double) population * 100;
+                break;
+            case App.LANGUAGE:
+                name = result.getString("name");
+                speakers = result.getInt("speakers");
+                percentage = result.getInt("percentage");
+                break;
+            case App.POPULATION:
+                name = result.getString("name");
+                population = result.getLong("population");
+                break;
+            default:
+        }
+    }
+
+    public String getName() { return this.name; }
+    public String getContinent() { return this.continent; }
+    public String getCountry() { return this.country; }
+    public long getPopulation() { return this.population; }
+    public long getSpeakers() { return this.speakers; }
+    public long getPopulationLivingInCities() { return this.populationLivingInCities; }
+    public long getPopulationNotLivingInCities() { return this.populationNotLivingInCities; }
+
+    /**
+     * Formats the country data in a consistent, readable manner
+     * @return A string representing a country record
+     */
+    @Override
+    public String toString()
+    {
+        String recordString = "Record.toString failed";
+        switch (this.recordType)
+        {
+            case App.COUNTRY:
+                recordString = String.format(App.HORIZONTAL_LINE + "\n" +
+                                "Country code: %s | Name: %s | Continent: %s\n" +
+                                "Region: %s | Population: %,d | Capital: %s",
+                        this.countryCode,
+                        this.name,
+                        this.continent,
+                        this.region,
+                        this.population,
+                        this.capital);
+                break;
+            case App.CAPITAL_CITY:
+                recordString =  String.format(App.HORIZONTAL_LINE + "\n" +
+                                "Name: %s | Country: %s | Population: %,d",
+                        this.name,
+                        this.country,
+                        this.population);
+                break;
+            case App.CITY:
+                recordString = String.format(App.HORIZONTAL_LINE + "\n" +
+                                "Name: %s |  Country: %s \n" +
+                                "District: %s |  Population: %,d",
+                        this.name,
+                        this.country,
+                        this.district,
+                        this.population);
+                break;
+            case App.RESIDENCE_REPORT:
+                recordString = String.format(App.HORIZONTAL_LINE + "\n" +
+                                "Area: %s | Total population: %,d\n" +
+                                "Population living in Cities: %,d (%.2f%%)\n" +
+                                "Population not living in Cities: %,d (%.2f%%)",
+                        this.name,
+                        this.population,
+                        this.populationLivingInCities,
+                        this.percentageLivingInCities,
+                        this.populationNotLivingInCities,
+                        this.percentageNotLivingInCities);
+                break;
+            case App.LANGUAGE:
+                recordString = String.format(App.HORIZONTAL_LINE + "\n" +
+                                "Language: %s |  Speakers: %,d | %% of world's population: %d%%",
+                        this.name,
+                        this.speakers,
+                        this.percentage);
+                break;
+            case App.POPULATION:
+                recordString = String.format(App.HORIZONTAL_LINE + "\n" +
+                                "Area: %s |  Population: %,d",
+                        this.name,
+                        this.population);
+                break;
+            default:
+                return null;
+        }
+        return recordString;
+    }
+}
@@ -0,0 +1,68 @@
+package com.napier.sem;
+
+import java.util.List;
+
+/**
+ * A report source which handles every report through execute.  Each report method just builds the
+ * matching ReportRequest, so sources which wrap another source (caching, for example) only need to
+ * implement execute.
+ */
+public abstract class AbstractReportSource implements ReportSource
+{
+    @Override
+    public abstract List<Record> execute(ReportRequest request);
+
+    @Override
+    public List<Record> allCountriesIn(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(1, areaFilter, areaName, 0));
+    }
+
+    @Override
+    public List<Record> topNCountriesIn(String areaFilter, String areaName, Integer n)
+    {
+        return execute(new ReportRequest(2, areaFilter, areaName, n));
+    }
+
+    @Override
+    public List<Record> allCitiesIn(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(3, areaFilter, areaName, 0));
+    }
+
+    @Override
+    public List<Record> topNCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        return execute(new ReportRequest(4, areaFilter, areaName, n));
+    }
+
+    @Override
+    public List<Record> allCapitalCitiesIn(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(5, areaFilter, areaName, 0));
+    }
+
+    @Override
+    public List<Record> topNCapitalCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        return execute(new ReportRequest(6, areaFilter, areaName, n));
+    }
+
+    @Override
+    public List<Record> populationLivingInAndNotInCities(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(7, areaFilter, areaName, 0));
+    }
+
+    @Override
+    public List<Record> populationOf(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(8, areaFilter, areaName, 0));
+    }
+
+    @Override
+    public List<Record> languageReport()
+    {
+        return execute(new ReportRequest(9, null, null, 0));
+    }
+}
@@ -1,7 +1,14 @@
 package com.napier.sem;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The app class connects to the world database and presents a command line interface which allows
@@ -26,47 +33,532 @@ public class App
             "------------------------------------------------------------";
     // Database driver path
     static final String DATABASE_DRIVER = "com.mysql.cj.jdbc.Driver";
+    // Connection properties: prepare statements on the server and cache them on each connection so
+    // repeated reports skip parsing and planning, and read streamed reports through a server-side cursor.
+    static final String CONNECTION_PROPERTIES = "allowPublicKeyRetrieval=true&useSSL=false" +
+            "&useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=64&prepStmtCacheSqlLimit=4096" +
+            "&useCursorFetch=true";
+    // Batch connections also allow multi-statement calls, so a batch of reports runs in one round trip.
+    // The driver prepares those on the client and escapes their parameters itself.  Only batches use
+    // these connections, so no other SQL can run more than one statement.
+    static final String BATCH_CONNECTION_PROPERTIES = CONNECTION_PROPERTIES + "&allowMultiQueries=true";
 
-    // Connection to MySQL database
-    public static Connection connection;
+    // Connection pool settings
+    static final int POOL_MIN_SIZE = 1;
+    static final int POOL_MAX_SIZE = 8;
+    static final long POOL_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    static final long POOL_BORROW_TIMEOUT_MILLIS = 30 * 1000;
+    static final long POOL_LEAK_THRESHOLD_MILLIS = 60 * 1000;
+    // Starting with -Dsem.pool.leakDebugging=true reports leaks with the stack which borrowed the connection
+    static final String POOL_LEAK_DEBUGGING_PROPERTY = "sem.pool.leakDebugging";
+
+    // Report cache settings
+    static final int CACHE_MAX_ENTRIES = 512;
+    static final long CACHE_TIME_TO_LIVE_MILLIS = 10 * 60 * 1000;
+
+    // Passing this option answers reports from an in-memory snapshot of the database instead of MySQL
+    static final String SNAPSHOT_OPTION = "--snapshot";
+
+    // Passing this option serves reports over HTTP instead of the command line, --serve=9090 picks the port
+    static final String SERVER_OPTION = "--serve";
+    static final int SERVER_PORT = 8080;
+    // Turns off Nagle's algorithm in the JDK's HTTP server
+    static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+    // Requests waiting for a server thread before the server stops accepting connections
+    static final int SERVER_QUEUE_CAPACITY = 256;
+    // Passing this option with --serve handles requests on virtual threads, with only as many reports
+    // at the database at once as the pool has connections and the rest waiting without a platform thread
+    static final String VIRTUAL_THREADS_OPTION = "--virtual-threads";
+    // Requests handled at once on virtual threads
+    static final int SERVER_VIRTUAL_THREADS = 1024;
+
+    // Passing --batch=file runs every report in the file and writes each to a file in the batch output
+    // directory, which --batch-output=directory changes
+    static final String BATCH_OPTION = "--batch";
+    static final String BATCH_OUTPUT_OPTION = "--batch-output";
+    static final String BATCH_OUTPUT_DIRECTORY = "batch-output";
+    // Reports of a batch file sent to the database in one call
+    static final int BATCH_REPORTS_PER_CALL = 8;
+
+    // Passing --precompute=file writes every report for every area to a report store instead of running
+    // any, and --store=file answers reports from a store written that way instead of MySQL
+    static final String PRECOMPUTE_OPTION = "--precompute";
+    static final String STORE_OPTION = "--store";
+
+    // Passing --snapshot-file=file answers reports from a snapshot saved in the file, so the app starts
+    // without waiting for the database.  If the file can't be read the snapshot is loaded from the
+    // database and saved there for next time.
+    static final String SNAPSHOT_FILE_OPTION = "--snapshot-file";
+
+    // Passing --synthetic=scale answers reports from a generated world that many times the size of the
+    // real one, without connecting to the database.  --seed=n picks a different world of the same size.
+    static final String SYNTHETIC_OPTION = "--synthetic";
+    static final String SEED_OPTION = "--seed";
+    static final long SYNTHETIC_SEED = 42;
+
+    // Passing this option serves the app's metrics to Prometheus, --metrics=9405 picks the port
+    static final String METRICS_OPTION = "--metrics";
+    static final int METRICS_PORT = 9404;
+
+    // Passing --slow-queries=millis writes every report which takes at least that long to the slow query
+    // log, with its plan, and --slow-query-log=file changes where the log is written
+    static final String SLOW_QUERIES_OPTION = "--slow-queries";
+    static final String SLOW_QUERY_LOG_OPTION = "--slow-query-log";
+    static final String SLOW_QUERY_LOG_FILE = "slow-queries.log";
+    static final long SLOW_QUERY_LOG_MAX_BYTES = 10 * 1024 * 1024;
+    static final int SLOW_QUERY_LOG_FILES = 5;
+
+    // Attempts made by connect, and those which failed and were retried
+    static final AtomicLong CONNECT_ATTEMPTS = new AtomicLong();
+    static final AtomicLong CONNECT_FAILURES = new AtomicLong();
+
+    // Pool of connections to the MySQL database
+    public static ConnectionPool pool;
+    // Pool of connections which allow multi-statement calls, only used to send batches of reports
+    static ConnectionPool batchPool;
+
+    // Server for the app's metrics, null unless asked for
+    static MetricsServer metricsServer;
+
+    // Log of slow reports, null unless asked for
+    static SlowQueryLog slowQueryLog;
 
     /**
      * Connects to the database and presents the command line interface to the user.
      * @param args The first argument will be used as the database location for the app to try and connect to.
+     *             It can be followed by --snapshot to answer reports from memory rather than MySQL,
+     *             --serve to serve reports over HTTP rather than the command line, --batch=file to run
+     *             a file of reports without a console, --precompute=file to write every report to a store
+     *             and --store=file to answer reports from that store.  --virtual-threads with --serve
+     *             handles requests on virtual threads.  --snapshot-file=file answers reports
+     *             from a saved snapshot without connecting to the database, saving one first if needed.
+     *             --synthetic=scale answers reports from a generated world instead of the database.
+     *             --metrics serves the app's metrics to Prometheus, at --metrics=port if given.
+     *             --slow-queries=millis logs reports slower than that, with their plans.
      */
     public static void main(String[] args) {
 
-        // Connect to database
-        if (args.length < 1)
+        String location = (args.length < 1) ? "localhost:33061" : args[0];
+        boolean virtualThreads = Arrays.asList(args).contains(VIRTUAL_THREADS_OPTION);
+
+        // Publish the DAO's query latencies as MBeans, for JConsole or any other JMX client
+        DAO.getMetrics().publish(ManagementFactory.getPlatformMBeanServer());
+
+        // Answer reports from a saved snapshot if there is one, or a generated world if asked for one,
+        // without waiting for the database
+        String snapshotFile = optionValue(args, SNAPSHOT_FILE_OPTION);
+        WorldSnapshot saved = (snapshotFile == null)
+                ? generateSnapshot(optionValue(args, SYNTHETIC_OPTION), optionValue(args, SEED_OPTION))
+                : readSnapshotFile(Paths.get(snapshotFile));
+
+        if (saved == null)
         {
-            connection = connect("localhost:33061", DATABASE_DRIVER, false);
+            // Connect to database, this waits for the database to come up
+            Connection connection = connect(location, DATABASE_DRIVER, false);
+
+            if (connection == null)
+            {
+                System.out.println("No database connection found");
+                return;
+            }
+
+            // Hand the first connection to the pool, further connections are opened as they're needed
+            pool = createPool(location);
+            pool.adopt(connection);
+            batchPool = createBatchPool(location);
         }
-        else
+
+        // Create instance of the database access object, with a cache in front of it and identical
+        // reports which miss the cache together read only once
+        ReportSource dao;
+        CachingReportSource cache = null;
+        CoalescingReportSource coalescing = null;
+        if (saved == null)
         {
-            connection = connect(args[0], DATABASE_DRIVER, false);
+            coalescing = new CoalescingReportSource(virtualThreads
+                    ? DAO.onVirtualThreads(pool, batchPool)
+                    : DAO.pooled(pool, batchPool));
+            cache = new CachingReportSource(coalescing, CACHE_MAX_ENTRIES, CACHE_TIME_TO_LIVE_MILLIS);
+            dao = cache;
         }
+        else dao = new SnapshotReportSource(saved);
 
-        // Create instance of the database access object
-        DAO dao = new DAO(connection);
+        // Log slow reports with their plans if asked to
+        startSlowQueryLog(optionValue(args, SLOW_QUERIES_OPTION), optionValue(args, SLOW_QUERY_LOG_OPTION));
 
-        UserPrompt prompt = new UserPrompt(dao);
+        // Serve metrics to Prometheus if asked to, until the app stops
+        int metricsPort = portOption(args, METRICS_OPTION, METRICS_PORT);
+        if (metricsPort >= 0) startMetricsServer(metricsPort, cache, coalescing);
 
-        if (connection != null)
+        // Precompute every report if asked to, then stop
+        String precomputeFile = optionValue(args, PRECOMPUTE_OPTION);
+        if (precomputeFile != null)
+        {
+            CatalogueJob job = new CatalogueJob((saved == null) ? () -> WorldSnapshot.load(pool) : () -> saved,
+                    Paths.get(precomputeFile));
+            CatalogueJob.Summary summary = job.run();
+            if (summary != null) System.out.println(summary);
+            shutdown();
+            return;
+        }
+
+        // Load the tables into memory if asked to, or to save them, the DAO is kept if they can't be loaded
+        if (saved == null && (snapshotFile != null || Arrays.asList(args).contains(SNAPSHOT_OPTION)))
+        {
+            SnapshotReportSource snapshot = new SnapshotReportSource(() -> WorldSnapshot.load(pool));
+            if (snapshot.refresh())
+            {
+                dao = snapshot;
+                if (snapshotFile != null) saveSnapshotFile(snapshot.getSnapshot(), Paths.get(snapshotFile));
+            }
+            else System.out.println("Could not load snapshot, reports will be run against the database");
+        }
+
+        // Answer reports from a precomputed store if asked to, the DAO is kept if it can't be opened
+        String storeFile = optionValue(args, STORE_OPTION);
+        if (storeFile != null)
         {
             try
             {
-                prompt.start();
+                dao = ReportStore.open(Paths.get(storeFile));
             }
-            catch (NoSuchElementException e)
+            catch (IOException e)
             {
-                System.out.println(App.HORIZONTAL_LINE + "\nNo console detected, running example query");
-                for (Record record: dao.topNCountriesIn(App.REGION, "Caribbean", 5)) System.out.println(record);
+                System.out.println("Could not open " + storeFile + ", reports will be run against the database");
+                System.out.println(e.getMessage());
             }
         }
-        else System.out.println("No database connection found");
+
+        // Serve reports over HTTP if asked to, the server runs until the app is stopped
+        int port = serverPort(args);
+        if (port >= 0)
+        {
+            serve(dao, port, virtualThreads);
+            return;
+        }
+
+        // Run a file of reports if asked to, rather than prompting for them
+        String batchFile = optionValue(args, BATCH_OPTION);
+        if (batchFile != null)
+        {
+            String outputDirectory = optionValue(args, BATCH_OUTPUT_OPTION);
+            BatchRunner runner = new BatchRunner(dao,
+                    Paths.get((outputDirectory == null) ? BATCH_OUTPUT_DIRECTORY : outputDirectory),
+                    POOL_MAX_SIZE, BATCH_REPORTS_PER_CALL);
+            BatchRunner.Summary summary = runner.run(Paths.get(batchFile));
+            if (summary != null) System.out.println(summary);
+            shutdown();
+            return;
+        }
+
+        UserPrompt prompt = new UserPrompt(dao);
+
+        try
+        {
+            prompt.start();
+        }
+        catch (NoSuchElementException e)
+        {
+            System.out.println(App.HORIZONTAL_LINE + "\nNo console detected, running example query");
+            for (Record record: dao.topNCountriesIn(App.REGION, "Caribbean", 5)) System.out.println(record);
+        }
 
         // Disconnect from database
-        disconnect(connection);
+        shutdown();
+    }
+
+    /**
+     * Finds the server option in the arguments.
+     * @param args The app's arguments.
+     * @return The port given with --serve=port, the default port for --serve, or -1 if the option isn't there
+     */
+    static int serverPort(String[] args)
+    {
+        return portOption(args, SERVER_OPTION, SERVER_PORT);
+    }
+
+    /**
+     * Finds an option which takes an optional port in the arguments.
+     * @param args The app's arguments.
+     * @param option The option, e.g. "--serve".
+     * @param defaultPort The port used when the option has no port, or a bad one.
+     * @return The port given with option=port, the default port for the option alone, or -1 if the option
+     *         isn't there
+     */
+    static int portOption(String[] args, String option, int defaultPort)
+    {
+        for (String arg : args)
+        {
+            if (arg.equals(option)) return defaultPort;
+            if (arg.startsWith(option + "="))
+            {
+                try
+                {
+                    return Integer.parseInt(arg.substring(option.length() + 1));
+                }
+                catch (NumberFormatException e)
+                {
+                    System.out.println("Bad port for " + option + ", using " + defaultPort);
+                    return defaultPort;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the value of an option given as option=value in the arguments.
+     * @param args The app's arguments.
+     * @param option The option, e.g. "--batch".
+     * @return The option's value, or null if it isn't there or has no value
+     */
+    static String optionValue(String[] args, String option)
+    {
+        for (String arg : args)
+        {
+            if (arg != null && arg.startsWith(option + "=") && arg.length() > option.length() + 1)
+            {
+                return arg.substring(option.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts the report server, with one thread per pooled connection, or many more virtual threads.  The
+     * server and the pool are closed when the app is stopped.
+     * @param dao The report source shared by every request.
+     * @param port The port to listen on.
+     * @param virtualThreads true to handle requests on virtual threads.
+     */
+    static void serve(ReportSource dao, int port, boolean virtualThreads)
+    {
+        // The JDK's server writes the headers and body separately, so with Nagle's algorithm on every
+        // keep-alive request waits out the client's delayed ACK (~40ms).  It's read once, when the first
+        // server is created, so it has to be set before then, unless it was given on the command line.
+        if (System.getProperty(NODELAY_PROPERTY) == null) System.setProperty(NODELAY_PROPERTY, "true");
+
+        ReportServer server;
+        try
+        {
+            server = new ReportServer(dao, port, virtualThreads ? SERVER_VIRTUAL_THREADS : POOL_MAX_SIZE,
+                    SERVER_QUEUE_CAPACITY, virtualThreads);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not start the report server on port " + port);
+            System.out.println(e.getMessage());
+            shutdown();
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            System.out.println(server.statsJson());
+            shutdown();
+        }));
+        server.start();
+        System.out.println("Serving reports on http://localhost:" + server.getPort() + "/");
+    }
+
+    /**
+     * Reads a saved snapshot, timing how long it takes.
+     * @param file The snapshot file.
+     * @return The snapshot, or null if there's no file or it can't be read
+     */
+    static WorldSnapshot readSnapshotFile(Path file)
+    {
+        if (!Files.exists(file)) return null;
+
+        long start = System.nanoTime();
+        try
+        {
+            WorldSnapshot snapshot = WorldSnapshotFile.read(file);
+            System.out.printf("Loaded snapshot from %s in %.1fms%n", file, (System.nanoTime() - start) / 1e6);
+            return snapshot;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read snapshot from " + file + ", it will be loaded from the database");
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Generates a synthetic world, timing how long it takes.
+     * @param scale The --synthetic option's value, how many times the size of the real world.
+     * @param seed The --seed option's value, or null for the default seed.
+     * @return The snapshot, or null if no scale was given or it isn't valid
+     */
+    static WorldSnapshot generateSnapshot(String scale, String seed)
+    {
+        if (scale == null) return null;
+
+        long start = System.nanoTime();
+        try
+        {
+            WorldGenerator generator = new WorldGenerator(Integer.parseInt(scale),
+                    (seed == null) ? SYNTHETIC_SEED : Long.parseLong(seed));
+            WorldSnapshot snapshot = generator.snapshot();
+            System.out.printf("Generated a world of %,d cities in %.1fms%n", snapshot.cityCount,
+                    (System.nanoTime() - start) / 1e6);
+            return snapshot;
+        }
+        catch (IllegalArgumentException e)
+        {
+            // NumberFormatException is an IllegalArgumentException too
+            System.out.println("Could not generate a world, reports will be run against the database");
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Saves a snapshot so the next start can read it instead of the database.
+     * @param snapshot The snapshot to save.
+     * @param file The file to save it to.
+     */
+    static void saveSnapshotFile(WorldSnapshot snapshot, Path file)
+    {
+        try
+        {
+            long bytes = WorldSnapshotFile.write(snapshot, file);
+            System.out.printf("Saved snapshot to %s (%,d bytes)%n", file, bytes);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not save snapshot to " + file);
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Starts the metrics server, reading the DAO's query metrics, the pool and the report sources given.
+     * It's closed with the pool when the app stops.
+     * @param port The port to listen on.
+     * @param cache The report cache, or null if reports aren't cached.
+     * @param coalescing The coalescing report source, or null if reports aren't read from the database.
+     */
+    static void startMetricsServer(int port, CachingReportSource cache, CoalescingReportSource coalescing)
+    {
+        try
+        {
+            metricsServer = new MetricsServer(port, DAO.getMetrics(), pool, cache, coalescing);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not start the metrics server on port " + port);
+            System.out.println(e.getMessage());
+            return;
+        }
+        metricsServer.start();
+        System.out.println("Serving metrics on http://localhost:" + metricsServer.getPort() + MetricsServer.PATH);
+    }
+
+    /**
+     * Starts logging the reports which take longer than a threshold.  Plans are fetched from the pool, so
+     * reports answered without the database are logged without them.
+     * @param threshold The --slow-queries option's value, in milliseconds, or null not to log.
+     * @param file The --slow-query-log option's value, or null for the default file.
+     */
+    static void startSlowQueryLog(String threshold, String file)
+    {
+        if (threshold == null) return;
+
+        try
+        {
+            slowQueryLog = new SlowQueryLog(Long.parseLong(threshold),
+                    Paths.get((file == null) ? SLOW_QUERY_LOG_FILE : file),
+                    SLOW_QUERY_LOG_MAX_BYTES, SLOW_QUERY_LOG_FILES, pool);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // NumberFormatException is an IllegalArgumentException too
+            System.out.println("Could not start the slow query log, slow reports won't be logged");
+            System.out.println(e.getMessage());
+            return;
+        }
+        DAO.setSlowQueryLog(slowQueryLog);
+        System.out.println("Logging reports slower than " + threshold + "ms to "
+                + ((file == null) ? SLOW_QUERY_LOG_FILE : file));
+    }
+
+    /**
+     * Closes the slow query log, the connection pools and the metrics server, if the app started them.
+     * The log is written out first, as it needs the pool for the plans of any slow reports left.
+     */
+    static void shutdown()
+    {
+        if (metricsServer != null) metricsServer.close();
+        if (slowQueryLog != null)
+        {
+            DAO.setSlowQueryLog(null);
+            slowQueryLog.close();
+        }
+        if (pool != null) pool.close();
+        if (batchPool != null) batchPool.close();
+    }
+
+    /**
+     * Creates a connection pool for the database at the given location using the app's pool settings.
+     * @param location The string representing the location of the database.
+     * @return A connection pool, which opens connections as they're needed.
+     */
+    public static ConnectionPool createPool(String location)
+    {
+        ConnectionPool created = new ConnectionPool(() -> openConnection(location),
+                POOL_MIN_SIZE,
+                POOL_MAX_SIZE,
+                POOL_IDLE_TIMEOUT_MILLIS,
+                POOL_BORROW_TIMEOUT_MILLIS,
+                POOL_LEAK_THRESHOLD_MILLIS);
+        created.setLeakDebugging(Boolean.getBoolean(POOL_LEAK_DEBUGGING_PROPERTY));
+        return created;
+    }
+
+    /**
+     * Creates a pool of connections which allow multi-statement calls, for sending batches of reports.
+     * It keeps no connections open when there are no batches to send.
+     * @param location The string representing the location of the database.
+     * @return A connection pool, which opens connections as they're needed.
+     */
+    public static ConnectionPool createBatchPool(String location)
+    {
+        ConnectionPool created = new ConnectionPool(() -> openBatchConnection(location),
+                0,
+                POOL_MAX_SIZE,
+                POOL_IDLE_TIMEOUT_MILLIS,
+                POOL_BORROW_TIMEOUT_MILLIS,
+                POOL_LEAK_THRESHOLD_MILLIS);
+        created.setLeakDebugging(Boolean.getBoolean(POOL_LEAK_DEBUGGING_PROPERTY));
+        return created;
+    }
+
+    /**
+     * Opens a single connection to the world database, without any retries.
+     * @param location The string representing the location of the database.
+     * @return A database connection object
+     * @throws SQLException if the database can't be reached
+     */
+    static Connection openConnection(String location) throws SQLException
+    {
+        return DriverManager.getConnection("jdbc:mysql://" + location + "/world?" + CONNECTION_PROPERTIES,
+                "root",
+                "example");
+    }
+
+    /**
+     * Opens a single connection to the world database which allows multi-statement calls, for batches.
+     * @param location The string representing the location of the database.
+     * @return A database connection object
+     * @throws SQLException if the database can't be reached
+     */
+    static Connection openBatchConnection(String location) throws SQLException
+    {
+        return DriverManager.getConnection("jdbc:mysql://" + location + "/world?" + BATCH_CONNECTION_PROPERTIES,
+                "root",
+                "example");
     }
 
     /**
@@ -98,14 +590,14 @@ public class App
                 if (location == null) { return null; }
 
                 // Connect to database
-                Connection connection = DriverManager.getConnection("jdbc:mysql://" + location + "/world?allowPublicKeyRetrieval=true&useSSL=false",
-                        "root",
-                        "example");
+                CONNECT_ATTEMPTS.incrementAndGet();
+                Connection connection = openConnection(location);
                 System.out.println("Successfully connected");
                 return connection;
             }
             catch (SQLException e)
             {
+                CONNECT_FAILURES.incrementAndGet();
                 System.out.println("Failed to connect to database attempt " + i);
                 System.out.println(e.getMessage());
             }
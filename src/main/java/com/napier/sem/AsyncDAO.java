@@ -0,0 +1,143 @@
+package com.napier.sem;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs DAO reports without blocking the caller.  Every report method returns a CompletableFuture, so a
+ * caller which needs several reports can start them all and join them, paying for the slowest query
+ * rather than the sum of them:
+ *     CompletableFuture.allOf(async.populationOf(...), async.topNCitiesIn(...), ...).join();
+ * Cancelling a future, or it timing out through orTimeout or the facade's own timeout, cancels the
+ * JDBC statement so the database stops running the query.  A report which hasn't started is never run.
+ * Like the DAO, a future holds an empty list if the arguments were invalid and null if the query failed.
+ */
+public class AsyncDAO
+{
+    private final DAO dao;
+    private final Executor executor;
+    private final long timeoutMillis;
+
+    /**
+     * @param dao The DAO the reports are run on, pooled so they can run at once.
+     * @param executor Runs each report, for example Executors.newVirtualThreadPerTaskExecutor().
+     */
+    public AsyncDAO(DAO dao, Executor executor)
+    {
+        this(dao, executor, 0);
+    }
+
+    /**
+     * @param dao The DAO the reports are run on, pooled so they can run at once.
+     * @param executor Runs each report, for example Executors.newVirtualThreadPerTaskExecutor().
+     * @param timeoutMillis How long a report can take before it's cancelled, 0 for no limit.
+     */
+    public AsyncDAO(DAO dao, Executor executor, long timeoutMillis)
+    {
+        if (dao == null || executor == null) throw new IllegalArgumentException("A DAO and executor are required");
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Timeout can't be negative");
+
+        this.dao = dao;
+        this.executor = executor;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts a report on the executor.
+     * @param request The report to run.
+     * @return The report's records once it has run.  The future fails with a TimeoutException if the
+     *         report takes longer than the timeout.
+     */
+    public CompletableFuture<List<Record>> execute(ReportRequest request)
+    {
+        QueryHandle handle = new QueryHandle();
+        CompletableFuture<List<Record>> result = new CompletableFuture<>();
+
+        // Cancellation and timeouts both complete the future early, and either way the query is stopped
+        result.whenComplete((records, e) -> {
+            Throwable cause = (e instanceof CompletionException) ? e.getCause() : e;
+            if (cause instanceof CancellationException || cause instanceof TimeoutException) handle.cancel();
+        });
+        if (timeoutMillis > 0) result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            executor.execute(() -> {
+                if (result.isDone()) return;
+                try
+                {
+                    result.complete(dao.execute(request, handle));
+                }
+                catch (RuntimeException e)
+                {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // Use cases 1.1-1.3
+    public CompletableFuture<List<Record>> allCountriesIn(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(1, areaFilter, areaName, 0));
+    }
+
+    // Use cases 2.1-2.3
+    public CompletableFuture<List<Record>> topNCountriesIn(String areaFilter, String areaName, Integer n)
+    {
+        return execute(new ReportRequest(2, areaFilter, areaName, n));
+    }
+
+    // Use cases 3.1-3.5
+    public CompletableFuture<List<Record>> allCitiesIn(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(3, areaFilter, areaName, 0));
+    }
+
+    // Use cases 4.1-4.5
+    public CompletableFuture<List<Record>> topNCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        return execute(new ReportRequest(4, areaFilter, areaName, n));
+    }
+
+    // Use cases 5.1-5.3
+    public CompletableFuture<List<Record>> allCapitalCitiesIn(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(5, areaFilter, areaName, 0));
+    }
+
+    // Use cases 6.1-6.3
+    public CompletableFuture<List<Record>> topNCapitalCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        return execute(new ReportRequest(6, areaFilter, areaName, n));
+    }
+
+    // Use cases 7.1-7.3
+    public CompletableFuture<List<Record>> populationLivingInAndNotInCities(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(7, areaFilter, areaName, 0));
+    }
+
+    // Use cases 8.1-8.6
+    public CompletableFuture<List<Record>> populationOf(String areaFilter, String areaName)
+    {
+        return execute(new ReportRequest(8, areaFilter, areaName, 0));
+    }
+
+    // Use case 9.1
+    public CompletableFuture<List<Record>> languageReport()
+    {
+        return execute(new ReportRequest(9, null, null, 0));
+    }
+}
@@ -0,0 +1,360 @@
+package com.napier.sem;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs a file of reports without a console, for nightly jobs.  Each line of the file is one report,
+ * with the same choices as the command line prompt, separated by "|":
+ *     queryId | area filter | area name | n
+ * for example "4 | continent | Europe | 10" for the top 10 cities in Europe.  The area name isn't needed
+ * for the world and n is only needed for top N reports, so "9" and "1 | world" are complete lines.
+ * Blank lines and lines starting with # are skipped.
+ * Reports run in parallel on a fixed number of workers.  Consecutive lines can be read together, a few
+ * reports at a time, with ReportSource.executeBatch, which the DAO sends to the database in one call.
+ * When reports are run one at a time they're streamed instead.  Each is written to its own file in the
+ * output directory, laid out as it would be in the console, through a buffered file channel.  A summary
+ * of throughput and latency is printed once every report has run.
+ */
+public class BatchRunner
+{
+    // Separates the fields of a report line
+    static final String FIELD_SEPARATOR = "\\|";
+    // Bytes buffered before they are written to a report's file
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final ReportSource source;
+    private final Path outputDirectory;
+    private final int workers;
+    private final int reportsPerCall;
+
+    /**
+     * Creates a runner which streams each report on its own.
+     * @param source The source every report is read from, shared by all workers.
+     * @param outputDirectory The directory the report files are written to, created if it doesn't exist.
+     * @param workers The number of reports run at once, usually the connection pool's size.
+     */
+    public BatchRunner(ReportSource source, Path outputDirectory, int workers)
+    {
+        this(source, outputDirectory, workers, 1);
+    }
+
+    /**
+     * @param source The source every report is read from, shared by all workers.
+     * @param outputDirectory The directory the report files are written to, created if it doesn't exist.
+     * @param workers The number of batches run at once, usually the connection pool's size.
+     * @param reportsPerCall The number of consecutive reports read in one batch, 1 streams each report.
+     */
+    public BatchRunner(ReportSource source, Path outputDirectory, int workers, int reportsPerCall)
+    {
+        if (workers < 1) throw new IllegalArgumentException("At least one worker is needed");
+        if (reportsPerCall < 1) throw new IllegalArgumentException("At least one report is needed per call");
+
+        this.source = source;
+        this.outputDirectory = outputDirectory;
+        this.workers = workers;
+        this.reportsPerCall = reportsPerCall;
+    }
+
+    /**
+     * Reads a file of reports and runs them.
+     * @param specFile The file, one report per line.
+     * @return A summary of the run, or null if the file couldn't be read or the output directory created
+     */
+    public Summary run(Path specFile)
+    {
+        try
+        {
+            return run(Files.readAllLines(specFile, StandardCharsets.UTF_8));
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read " + specFile);
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Runs a list of report lines.  Lines which can't be parsed are reported and skipped.
+     * @param lines The report lines, as they would appear in a file.
+     * @return A summary of the run, or null if the output directory couldn't be created
+     */
+    public Summary run(List<String> lines)
+    {
+        try
+        {
+            Files.createDirectories(outputDirectory);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not create " + outputDirectory);
+            System.out.println(e.getMessage());
+            return null;
+        }
+
+        Summary summary = new Summary();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<?>> running = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+        List<ReportRequest> requests = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < lines.size(); i++)
+        {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            int lineNumber = i + 1;
+            ReportRequest request;
+            try
+            {
+                request = parseLine(line);
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.out.println("Line " + lineNumber + " skipped: " + e.getMessage());
+                summary.skipped.incrementAndGet();
+                continue;
+            }
+            lineNumbers.add(lineNumber);
+            requests.add(request);
+            if (requests.size() == reportsPerCall)
+            {
+                running.add(submit(executor, lineNumbers, requests, summary));
+                lineNumbers = new ArrayList<>();
+                requests = new ArrayList<>();
+            }
+        }
+        if (!requests.isEmpty()) running.add(submit(executor, lineNumbers, requests, summary));
+
+        for (Future<?> report : running)
+        {
+            try
+            {
+                report.get();
+            }
+            catch (Exception e)
+            {
+                summary.failed.incrementAndGet();
+            }
+        }
+        executor.shutdown();
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Hands a group of reports to a worker, which streams a report on its own or reads a group as a batch.
+     */
+    private Future<?> submit(ExecutorService executor, List<Integer> lineNumbers, List<ReportRequest> requests,
+                             Summary summary)
+    {
+        if (requests.size() == 1)
+        {
+            ReportRequest request = requests.get(0);
+            return executor.submit(() -> writeReport(lineNumbers.get(0), request, summary, System.nanoTime(),
+                    consumer -> source.forEachRecord(request, consumer)));
+        }
+        return executor.submit(() -> runBatch(lineNumbers, requests, summary));
+    }
+
+    /**
+     * Reads several reports in one batch and writes each to its file.  Each report's latency counts the
+     * whole batch read and writing its own file.
+     */
+    private void runBatch(List<Integer> lineNumbers, List<ReportRequest> requests, Summary summary)
+    {
+        long start = System.nanoTime();
+        List<List<Record>> results;
+        try
+        {
+            results = source.executeBatch(requests);
+        }
+        catch (RuntimeException e)
+        {
+            System.out.println("Batch of lines " + lineNumbers.get(0) + " to "
+                    + lineNumbers.get(lineNumbers.size() - 1) + " failed");
+            System.out.println(e.getMessage());
+            results = Collections.nCopies(requests.size(), null);
+        }
+        long readNanos = System.nanoTime() - start;
+
+        for (int i = 0; i < requests.size(); i++)
+        {
+            List<Record> records = results.get(i);
+            writeReport(lineNumbers.get(i), requests.get(i), summary, System.nanoTime() - readNanos, consumer -> {
+                if (records == null) return -1;
+                records.forEach(consumer);
+                return records.size();
+            });
+        }
+    }
+
+    /**
+     * Writes one report to its file.  The report's latency is recorded even if reading it throws, which
+     * the caller counts as a failure.
+     * @param start When the report started being read, for its latency.
+     * @param reader Hands each of the report's records to a consumer, giving the number of records or -1
+     *               if the report couldn't be run.
+     */
+    private void writeReport(int lineNumber, ReportRequest request, Summary summary, long start,
+                             ToLongFunction<Consumer<Record>> reader)
+    {
+        Path file = outputDirectory.resolve(fileName(lineNumber, request));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             PrintStream out = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                     FILE_BUFFER_SIZE), false, StandardCharsets.UTF_8))
+        {
+            out.println(request);
+            ReportRenderer renderer = new ReportRenderer(out, request);
+            long count = reader.applyAsLong(renderer::render);
+            renderer.flush();
+            if (count < 0) out.println("Could not run the query");
+            else if (count == 0) out.println("Your query had no results");
+            out.flush();
+
+            // PrintStream swallows write errors, so a full disk only shows up here
+            if (out.checkError())
+            {
+                System.out.println("Could not write " + file);
+                summary.failed.incrementAndGet();
+            }
+            else if (count < 0)
+            {
+                summary.failed.incrementAndGet();
+            }
+            else
+            {
+                summary.succeeded.incrementAndGet();
+                summary.records.add(count);
+                summary.bytes.add(channel.size());
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not write " + file);
+            System.out.println(e.getMessage());
+            summary.failed.incrementAndGet();
+        }
+        finally
+        {
+            summary.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Parses one report line.
+     * @param line The line, without comments or surrounding whitespace.
+     * @return The request
+     * @throws IllegalArgumentException if the line isn't a valid report
+     */
+    static ReportRequest parseLine(String line)
+    {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        int queryId;
+        try
+        {
+            queryId = Integer.parseInt(fields[0].trim());
+        }
+        catch (NumberFormatException e)
+        {
+            queryId = 0;
+        }
+        if (queryId < 1 || queryId > 9) throw new IllegalArgumentException("the report must be a number from 1 to 9");
+        if (fields.length > 4) throw new IllegalArgumentException("too many fields");
+
+        // Check the rest of the line the same way the report server checks its query parameters
+        Map<String, String> parameters = new HashMap<>();
+        if (fields.length > 1) parameters.put("area", fields[1].trim().toLowerCase(Locale.ROOT));
+        if (fields.length > 2) parameters.put("name", fields[2].trim());
+        if (fields.length > 3) parameters.put("n", fields[3].trim());
+        return ReportServer.parseRequest(queryId, parameters);
+    }
+
+    /**
+     * Names a report's file after its line and request, e.g. "0004-4-continent-europe-10.txt", so every
+     * file in a run has a different name.
+     */
+    static String fileName(int lineNumber, ReportRequest request)
+    {
+        StringBuilder name = new StringBuilder(String.format("%04d-%d", lineNumber, request.getQueryId()));
+        if (request.getAreaFilter() != null) name.append('-').append(request.getAreaFilter());
+        if (request.getAreaName() != null && !request.getAreaName().isEmpty())
+        {
+            name.append('-').append(request.getAreaName());
+        }
+        if (request.getN() > 0) name.append('-').append(request.getN());
+
+        // Accents are dropped and anything else outside ASCII letters and digits becomes a dash, so the
+        // name is valid whatever encoding the file system uses
+        String ascii = Normalizer.normalize(name, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return ascii.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "-") + ".txt";
+    }
+
+    /**
+     * Counts and timings from a batch run.
+     */
+    public static class Summary
+    {
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final LongAdder records = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long elapsedNanos;
+
+        public int getSucceeded() { return succeeded.get(); }
+        public int getFailed() { return failed.get(); }
+        public int getSkipped() { return skipped.get(); }
+        public long getRecords() { return records.sum(); }
+        public long getBytes() { return bytes.sum(); }
+        public LatencyHistogram getLatency() { return latency; }
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        /**
+         * @return Reports run per second, counting failed reports.
+         */
+        public double getReportsPerSecond()
+        {
+            return (elapsedNanos == 0) ? 0 : (succeeded.get() + failed.get()) / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(App.HORIZONTAL_LINE + "\n" +
+                            "Reports: %,d written | %,d failed | %,d skipped\n" +
+                            "Records: %,d | Written: %,d bytes | Time: %.2fs | %,.1f reports/second\n" +
+                            "Latency per report: p50 %.3fms | p95 %.3fms | p99 %.3fms | max %.3fms",
+                    getSucceeded(), getFailed(), getSkipped(),
+                    getRecords(), getBytes(), elapsedNanos / 1e9, getReportsPerSecond(),
+                    latency.getPercentileNanos(50) / 1e6,
+                    latency.getPercentileNanos(95) / 1e6,
+                    latency.getPercentileNanos(99) / 1e6,
+                    latency.getMaxNanos() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package com.napier.sem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the results of another report source, usually the DAO, so repeated reports don't go back to
+ * the database.  Results are keyed by the report, area filter, normalised area name and n, and the
+ * cache holds at most maxEntries results, evicting the least recently used first.  Each result expires
+ * timeToLiveMillis after it was read.
+ * Cached lists can't be modified, so the same list can safely be handed to several callers at once.
+ * Failed reports (null results) are never cached.
+ * Top N reports are prefixes of the full ranking for the same area, so once the full ranking, or a top
+ * N report with a larger N, is cached a top N report is answered as a view of the cached list, without
+ * copying it or going to the delegate.  Top N countries are the exception: they leave out countries
+ * whose capital is in another country, which the full country list keeps and its records can't show,
+ * so they're only derived from a top N countries report with a larger N.
+ * Streamed reports are only cached up to MAX_STREAMED_ROWS records, so streaming a large report doesn't
+ * hold all of it in memory.
+ */
+public class CachingReportSource extends AbstractReportSource
+{
+    // Streamed reports with more records than this aren't cached, a little over the world's cities
+    static final int MAX_STREAMED_ROWS = 5000;
+
+    private final ReportSource delegate;
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final LongSupplier clock;
+
+    // Cached results in least recently used order, guarded by this
+    private final LinkedHashMap<ReportRequest, CacheEntry> entries;
+
+    // The Ns of the cached top N reports for each area, keyed by the area's full ranking, guarded by this
+    private final Map<ReportRequest, TreeSet<Integer>> topNIndex = new HashMap<>();
+
+    // Statistics, guarded by this
+    private long hitCount;
+    private long derivedHitCount;
+    private long missCount;
+    private long evictionCount;
+    private long expiredCount;
+
+    /**
+     * @param delegate The report source results are read from when they aren't cached.
+     * @param maxEntries The most results the cache will hold.
+     * @param timeToLiveMillis How long a result is served from the cache before it's read again.
+     */
+    public CachingReportSource(ReportSource delegate, int maxEntries, long timeToLiveMillis)
+    {
+        this(delegate, maxEntries, timeToLiveMillis, System::nanoTime);
+    }
+
+    // Lets tests control time
+    CachingReportSource(ReportSource delegate, int maxEntries, long timeToLiveMillis, LongSupplier clock)
+    {
+        if (maxEntries < 1) throw new IllegalArgumentException("The cache must be able to hold at least 1 entry");
+
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        this.clock = clock;
+        this.entries = new LinkedHashMap<ReportRequest, CacheEntry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ReportRequest, CacheEntry> eldest)
+            {
+                if (size() <= CachingReportSource.this.maxEntries) return false;
+                unindex(eldest.getKey());
+                evictionCount++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Builds the key a request is cached under.  Parts of the request the report doesn't use are
+     * cleared, and the area name is normalised the way the database compares names, so requests which
+     * are bound to give the same result share an entry.
+     * @param request The report request.
+     * @return The cache key for the request.
+     */
+    static ReportRequest cacheKey(ReportRequest request)
+    {
+        int queryId = request.getQueryId();
+        if (queryId == 9) return new ReportRequest(queryId, null, null, 0);
+
+        String areaFilter = request.getAreaFilter();
+        String areaName = request.getAreaName();
+        if (App.WORLD.equals(areaFilter) && areaName != null) areaName = "";
+        else if (areaName != null) areaName = WorldSnapshot.normalise(areaName);
+
+        return new ReportRequest(queryId, areaFilter, areaName, isTopN(queryId) ? request.getN() : 0);
+    }
+
+    /**
+     * @param queryId The id of a report.
+     * @return Whether the report is a top N report (2, 4 or 6).
+     */
+    private static boolean isTopN(int queryId)
+    {
+        return queryId == 2 || queryId == 4 || queryId == 6;
+    }
+
+    /**
+     * Gets the key of the full ranking a top N report is a prefix of, e.g. allCitiesIn for topNCitiesIn.
+     * @param key The cache key of a top N report.
+     * @return The cache key of the full ranking for the same area.
+     */
+    private static ReportRequest rankingKey(ReportRequest key)
+    {
+        return new ReportRequest(key.getQueryId() - 1, key.getAreaFilter(), key.getAreaName(), 0);
+    }
+
+    /**
+     * Gets a report from the cache, or reads it from the delegate and caches it.
+     * @param request The report to run.
+     * @return An unmodifiable list of the report's records, or null if the delegate failed
+     */
+    @Override
+    public List<Record> execute(ReportRequest request)
+    {
+        ReportRequest key = cacheKey(request);
+        List<Record> cachedRecords = lookup(key);
+        if (cachedRecords != null) return cachedRecords;
+
+        // Read the report without holding the lock, so other reports can be served in the meantime
+        List<Record> records = delegate.execute(request);
+        if (records == null) return null;
+
+        return store(key, records);
+    }
+
+    /**
+     * Looks a report up in the cache, counting a hit or a miss.  A top N report which isn't cached itself
+     * is derived from a cached ranking for the same area if there is one.
+     * @param key The cache key of the report.
+     * @return The cached records, or null if the report isn't cached
+     */
+    private synchronized List<Record> lookup(ReportRequest key)
+    {
+        List<Record> records = cached(key);
+        if (records != null)
+        {
+            hitCount++;
+            return records;
+        }
+
+        if (isTopN(key.getQueryId()) && key.getN() > 0)
+        {
+            records = derive(key);
+            if (records != null)
+            {
+                derivedHitCount++;
+                return records;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Gets a report from the cache if it's there and hasn't expired.  Expired reports are removed.
+     * @param key The cache key of the report.
+     * @return The cached records, or null if the report isn't cached
+     */
+    private List<Record> cached(ReportRequest key)
+    {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) return null;
+
+        if (clock.getAsLong() - entry.expiresAt < 0) return entry.records;
+
+        removeEntry(key);
+        expiredCount++;
+        return null;
+    }
+
+    /**
+     * Derives a top N report from the cached full ranking for its area, or from a cached top N report for
+     * the same area which holds at least N records or is shorter than its own N (so holds the whole
+     * ranking).  Top N countries are only derived from another top N countries report.
+     * @param key The cache key of the top N report.
+     * @return A view of the first N records of the cached ranking, or null if no ranking is cached
+     */
+    private List<Record> derive(ReportRequest key)
+    {
+        int n = key.getN();
+        ReportRequest rankingKey = rankingKey(key);
+
+        // Top N countries also need the capital to be in the country, which the full list doesn't check
+        List<Record> ranking = (key.getQueryId() == 2) ? null : cached(rankingKey);
+        if (ranking != null)
+        {
+            // Top N cities and capital cities leave out cities without a population, which are always
+            // at the end of the ranking
+            int end = 0;
+            while (end < n && end < ranking.size() && ranking.get(end).getPopulation() > 0) end++;
+            return ranking.subList(0, end);
+        }
+
+        TreeSet<Integer> cachedNs = topNIndex.get(rankingKey);
+        if (cachedNs == null) return null;
+
+        // Copy the Ns, since looking a report up can remove it from the index if it has expired
+        for (Integer cachedN : new ArrayList<>(cachedNs))
+        {
+            List<Record> topN = cached(new ReportRequest(key.getQueryId(), key.getAreaFilter(),
+                    key.getAreaName(), cachedN));
+            if (topN != null && (cachedN >= n || topN.size() < cachedN))
+            {
+                return topN.subList(0, Math.min(n, topN.size()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a report to the cache, evicting the least recently used report if the cache is full.
+     * @param key The cache key of the report.
+     * @param records The report's records.
+     * @return The unmodifiable copy of the records which was cached
+     */
+    private List<Record> store(ReportRequest key, List<Record> records)
+    {
+        List<Record> cached = Collections.unmodifiableList(new ArrayList<>(records));
+        synchronized (this)
+        {
+            entries.put(key, new CacheEntry(cached, clock.getAsLong() + timeToLiveNanos));
+            if (isTopN(key.getQueryId()))
+            {
+                topNIndex.computeIfAbsent(rankingKey(key), rankingKey -> new TreeSet<>()).add(key.getN());
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Removes a report from the cache and from the top N index.
+     * @param key The cache key of the report.
+     */
+    private void removeEntry(ReportRequest key)
+    {
+        if (entries.remove(key) != null) unindex(key);
+    }
+
+    /**
+     * Removes a top N report from the top N index, once it has left the cache.
+     * @param key The cache key of the report.
+     */
+    private void unindex(ReportRequest key)
+    {
+        if (!isTopN(key.getQueryId())) return;
+
+        ReportRequest rankingKey = rankingKey(key);
+        TreeSet<Integer> cachedNs = topNIndex.get(rankingKey);
+        if (cachedNs == null) return;
+
+        cachedNs.remove(key.getN());
+        if (cachedNs.isEmpty()) topNIndex.remove(rankingKey);
+    }
+
+    /**
+     * Hands each record of a report to the consumer.  Cached reports are read from the cache, otherwise
+     * the report is streamed from the delegate, each record handed over as it arrives, and copied for the
+     * cache as it goes.  Once a report passes MAX_STREAMED_ROWS records the copy is dropped and the report
+     * isn't cached, so memory doesn't grow with the size of the report.
+     * @param request The report to run.
+     * @param consumer Called once for each record, in report order.
+     * @return The number of records, or -1 if the report couldn't be run.
+     */
+    @Override
+    public long forEachRecord(ReportRequest request, Consumer<Record> consumer)
+    {
+        ReportRequest key = cacheKey(request);
+        List<Record> cachedRecords = lookup(key);
+        if (cachedRecords != null)
+        {
+            cachedRecords.forEach(consumer);
+            return cachedRecords.size();
+        }
+
+        ArrayList<Record> records = new ArrayList<>();
+        boolean[] tooLarge = new boolean[1];
+        long count = delegate.forEachRecord(request, record -> {
+            if (!tooLarge[0])
+            {
+                records.add(record);
+                if (records.size() > MAX_STREAMED_ROWS)
+                {
+                    tooLarge[0] = true;
+                    records.clear();
+                    records.trimToSize();
+                }
+            }
+            consumer.accept(record);
+        });
+        if (count >= 0 && !tooLarge[0]) store(key, records);
+        return count;
+    }
+
+    /**
+     * Runs several reports, answering those which are cached from the cache and sending only the rest to
+     * the delegate, in one batch.  The reports read are cached.
+     * @param requests The reports to run.
+     * @return The records in each report, in request order, with null for a report which failed.
+     */
+    @Override
+    public List<List<Record>> executeBatch(List<ReportRequest> requests)
+    {
+        List<List<Record>> results = new ArrayList<>(Collections.nCopies(requests.size(), (List<Record>) null));
+        List<Integer> missed = new ArrayList<>();
+        List<ReportRequest> misses = new ArrayList<>();
+        List<ReportRequest> missKeys = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++)
+        {
+            ReportRequest key = cacheKey(requests.get(i));
+            List<Record> cachedRecords = lookup(key);
+            if (cachedRecords != null)
+            {
+                results.set(i, cachedRecords);
+                continue;
+            }
+            missed.add(i);
+            misses.add(requests.get(i));
+            missKeys.add(key);
+        }
+        if (misses.isEmpty()) return results;
+
+        List<List<Record>> read = delegate.executeBatch(misses);
+        for (int i = 0; i < misses.size(); i++)
+        {
+            List<Record> records = read.get(i);
+            if (records != null) results.set(missed.get(i), store(missKeys.get(i), records));
+        }
+        return results;
+    }
+
+    /**
+     * Removes a single report from the cache, so the next request for it goes to the delegate.
+     * @param request The report to remove.
+     */
+    public synchronized void invalidate(ReportRequest request)
+    {
+        removeEntry(cacheKey(request));
+    }
+
+    /**
+     * Removes every report from the cache, for example after the world data has changed.
+     */
+    public synchronized void invalidateAll()
+    {
+        entries.clear();
+        topNIndex.clear();
+    }
+
+    /**
+     * Removes every expired report from the cache.  Expired reports are otherwise only removed when
+     * they're next requested or pushed out by newer reports.
+     * @return The number of reports removed.
+     */
+    public synchronized int removeExpired()
+    {
+        long now = clock.getAsLong();
+        int removed = 0;
+        for (Iterator<Map.Entry<ReportRequest, CacheEntry>> iterator = entries.entrySet().iterator();
+             iterator.hasNext(); )
+        {
+            Map.Entry<ReportRequest, CacheEntry> entry = iterator.next();
+            if (now - entry.getValue().expiresAt >= 0)
+            {
+                iterator.remove();
+                unindex(entry.getKey());
+                removed++;
+            }
+        }
+        expiredCount += removed;
+        return removed;
+    }
+
+    public synchronized int size() { return entries.size(); }
+    public synchronized long getHitCount() { return hitCount; }
+    public synchronized long getDerivedHitCount() { return derivedHitCount; }
+    public synchronized long getMissCount() { return missCount; }
+    public synchronized long getEvictionCount() { return evictionCount; }
+    public synchronized long getExpiredCount() { return expiredCount; }
+
+    /**
+     * @return The fraction of requests which were served from the cache, exactly or derived, from 0 to 1.
+     */
+    public synchronized double getHitRate()
+    {
+        long hits = hitCount + derivedHitCount;
+        long requests = hits + missCount;
+        return (requests == 0) ? 0.0 : (double) hits / requests;
+    }
+
+    /**
+     * Formats the cache statistics in a consistent, readable manner
+     * @return A string summarising the cache's size and hit counters
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("Report cache | Entries: %d of %d | Hits: %,d exact, %,d derived | Misses: %,d | " +
+                        "Hit rate: %.1f%%\n" +
+                        "Evicted: %,d | Expired: %,d",
+                entries.size(),
+                maxEntries,
+                hitCount,
+                derivedHitCount,
+                missCount,
+                getHitRate() * 100,
+                evictionCount,
+                expiredCount);
+    }
+
+    /**
+     * A cached result and the time, in nanoseconds from the clock, it stops being served
+     */
+    private static class CacheEntry
+    {
+        private final List<Record> records;
+        private final long expiresAt;
+
+        CacheEntry(List<Record> records, long expiresAt)
+        {
+            this.records = records;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the capital city reports (use cases 5 and 6)
+ */
+public final class CapitalRow extends ReportRow
+{
+    private final String name;
+    private final String country;
+    private final String region;
+    private final String continent;
+    private final long population;
+
+    public CapitalRow(String name, String country, String region, String continent, long population)
+    {
+        this.name = name;
+        this.country = country;
+        this.region = region;
+        this.continent = continent;
+        this.population = population;
+    }
+
+    /**
+     * Reads a row selected as name, population, region, continent, country.
+     * @param result The result, positioned on a row.
+     * @return The row
+     * @throws SQLException if a column can't be read
+     */
+    static CapitalRow map(ResultSet result) throws SQLException
+    {
+        return new CapitalRow(result.getString(1),
+                result.getString(5),
+                result.getString(3),
+                result.getString(4),
+                result.getLong(2));
+    }
+
+    @Override
+    public String getRecordType() { return App.CAPITAL_CITY; }
+
+    @Override
+    public String getName() { return name; }
+    @Override
+    public String getCountry() { return country; }
+    public String getRegion() { return region; }
+    @Override
+    public String getContinent() { return continent; }
+    @Override
+    public long getPopulation() { return population; }
+
+    /**
+     * Formats the capital city data in a consistent, readable manner
+     * @return A string representing a capital city record
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(App.HORIZONTAL_LINE + "\n" +
+                        "Name: %s | Country: %s | Population: %,d",
+                name,
+                country,
+                population);
+    }
+}
@@ -0,0 +1,108 @@
+package com.napier.sem;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Precomputes every report for every area and writes them to a ReportStore, so they can be published
+ * or served without the database.  The job runs in three timed phases:
+ *   load  - reads the country, city and countrylanguage tables, one scan each
+ *   build - works out every report for every area from the tables in memory
+ *   write - writes the reports and their index to the store
+ */
+public class CatalogueJob
+{
+    private final Callable<WorldSnapshot> loader;
+    private final Path storeFile;
+
+    /**
+     * @param loader Reads the tables, e.g. () -> WorldSnapshot.load(pool).
+     * @param storeFile The file the store is written to.
+     */
+    public CatalogueJob(Callable<WorldSnapshot> loader, Path storeFile)
+    {
+        this.loader = loader;
+        this.storeFile = storeFile;
+    }
+
+    /**
+     * Runs every phase of the job.
+     * @return A summary of the run, or null if the tables couldn't be read or the store written
+     */
+    public Summary run()
+    {
+        Summary summary = new Summary();
+        long start = System.nanoTime();
+        try
+        {
+            long phaseStart = System.nanoTime();
+            WorldSnapshot snapshot = loader.call();
+            if (snapshot == null) return null;
+            phaseStart = summary.endPhase("load", phaseStart);
+
+            ReportCatalogue catalogue = ReportCatalogue.build(snapshot);
+            phaseStart = summary.endPhase("build", phaseStart);
+
+            summary.bytes = ReportStore.write(catalogue, storeFile);
+            summary.endPhase("write", phaseStart);
+
+            summary.reports = catalogue.getReportCount();
+            summary.areas = catalogue.getAreaCount();
+            summary.records = catalogue.getRecordCount();
+        }
+        catch (Exception e)
+        {
+            System.out.println("Could not precompute the reports");
+            System.out.println(e.getMessage());
+            return null;
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Counts and timings from a run of the job.
+     */
+    public static class Summary
+    {
+        // How long each phase took, in the order they ran
+        private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+        private int reports;
+        private int areas;
+        private long records;
+        private long bytes;
+        private long elapsedNanos;
+
+        private long endPhase(String phase, long phaseStart)
+        {
+            long now = System.nanoTime();
+            phaseNanos.put(phase, now - phaseStart);
+            return now;
+        }
+
+        public Map<String, Long> getPhaseNanos() { return Collections.unmodifiableMap(phaseNanos); }
+        public int getReports() { return reports; }
+        public int getAreas() { return areas; }
+        public long getRecords() { return records; }
+        public long getBytes() { return bytes; }
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder phases = new StringBuilder();
+            for (Map.Entry<String, Long> phase : phaseNanos.entrySet())
+            {
+                if (phases.length() > 0) phases.append(" | ");
+                phases.append(String.format("%s %.1fms", phase.getKey(), phase.getValue() / 1e6));
+            }
+            return String.format(App.HORIZONTAL_LINE + "\n" +
+                            "Reports: %,d for %,d areas | Records: %,d | Written: %,d bytes\n" +
+                            "Time: %.1fms | %s",
+                    reports, areas, records, bytes, elapsedNanos / 1e6, phases);
+        }
+    }
+}
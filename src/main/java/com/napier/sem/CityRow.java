@@ -0,0 +1,64 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the city reports (use cases 3 and 4)
+ */
+public final class CityRow extends ReportRow
+{
+    private final String name;
+    private final String country;
+    private final String district;
+    private final long population;
+
+    public CityRow(String name, String country, String district, long population)
+    {
+        this.name = name;
+        this.country = country;
+        this.district = district;
+        this.population = population;
+    }
+
+    /**
+     * Reads a row selected as name, district, population, country.
+     * @param result The result, positioned on a row.
+     * @return The row
+     * @throws SQLException if a column can't be read
+     */
+    static CityRow map(ResultSet result) throws SQLException
+    {
+        return new CityRow(result.getString(1),
+                result.getString(4),
+                result.getString(2),
+                result.getLong(3));
+    }
+
+    @Override
+    public String getRecordType() { return App.CITY; }
+
+    @Override
+    public String getName() { return name; }
+    @Override
+    public String getCountry() { return country; }
+    public String getDistrict() { return district; }
+    @Override
+    public long getPopulation() { return population; }
+
+    /**
+     * Formats the city data in a consistent, readable manner
+     * @return A string representing a city record
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(App.HORIZONTAL_LINE + "\n" +
+                        "Name: %s |  Country: %s \n" +
+                        "District: %s |  Population: %,d",
+                name,
+                country,
+                district,
+                population);
+    }
+}
@@ -0,0 +1,131 @@
+package com.napier.sem;
+
+/**
+ * Filtered count and sum over the columns of a CityStore.  Each scan picks out the cities whose code in
+ * one column matches, and counts them and sums their population.
+ * There are two implementations: Scalar, a plain loop, and VectorCityScan, which uses the JDK Vector API.
+ * The Vector API is an incubator module, so VectorCityScan is only loaded when the JVM is started with
+ * --add-modules jdk.incubator.vector, otherwise best falls back to Scalar.  Even then it's only used for
+ * sumWhereIn, the one scan it measures faster on, see VectorisedInSet.
+ */
+interface CityScan
+{
+    // Name of the module holding the Vector API
+    String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * Counts the cities with a given code in a column and sums their population.
+     * @param column A dictionary-encoded column, one code per city.
+     * @param code The code to match.
+     * @param population The population column.
+     * @param size The number of cities, the columns may be longer.
+     * @return {count, population}
+     */
+    long[] sumWhere(int[] column, int code, long[] population, int size);
+
+    /**
+     * Counts the cities whose code in a column is one of a set and sums their population.
+     * @param column A dictionary-encoded column, one code per city.
+     * @param inSet Non-zero at every code in the set, with an entry for every code in the column.
+     * @param population The population column.
+     * @param size The number of cities, the columns may be longer.
+     * @return {count, population}
+     */
+    long[] sumWhereIn(int[] column, int[] inSet, long[] population, int size);
+
+    /**
+     * @return A name for the scan, for benchmarks and logs.
+     */
+    String getName();
+
+    /**
+     * @return The scalar scan, with sumWhereIn vectorised if the Vector API is available.
+     */
+    static CityScan best()
+    {
+        CityScan vector = vector();
+        return (vector == null) ? new Scalar() : new VectorisedInSet(vector);
+    }
+
+    /**
+     * @return The fully vectorised scan, or null if the JVM wasn't started with the Vector API
+     */
+    static CityScan vector()
+    {
+        // VectorCityScan can't even be loaded without the module, so it's only referred to once it's found
+        if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) return null;
+        return new VectorCityScan();
+    }
+
+    /**
+     * The scans as plain loops, for JVMs started without the Vector API.
+     */
+    final class Scalar implements CityScan
+    {
+        @Override
+        public long[] sumWhere(int[] column, int code, long[] population, int size)
+        {
+            long count = 0;
+            long sum = 0;
+            for (int i = 0; i < size; i++)
+            {
+                if (column[i] == code)
+                {
+                    count++;
+                    sum += population[i];
+                }
+            }
+            return new long[] {count, sum};
+        }
+
+        @Override
+        public long[] sumWhereIn(int[] column, int[] inSet, long[] population, int size)
+        {
+            long count = 0;
+            long sum = 0;
+            for (int i = 0; i < size; i++)
+            {
+                if (inSet[column[i]] != 0)
+                {
+                    count++;
+                    sum += population[i];
+                }
+            }
+            return new long[] {count, sum};
+        }
+
+        @Override
+        public String getName() { return "scalar"; }
+    }
+
+    /**
+     * The scalar scan for sumWhere and the vectorised one for sumWhereIn.  A single code rarely matches,
+     * so sumWhere is bound by reading the codes and the plain loop keeps up with the vectors.  Looking
+     * every code up in a set is where the vectors pull ahead.
+     */
+    final class VectorisedInSet implements CityScan
+    {
+        private final CityScan scalar = new Scalar();
+        private final CityScan vector;
+
+        /**
+         * @param vector The vectorised scan sumWhereIn is handed to.
+         */
+        VectorisedInSet(CityScan vector) { this.vector = vector; }
+
+        @Override
+        public long[] sumWhere(int[] column, int code, long[] population, int size)
+        {
+            return scalar.sumWhere(column, code, population, size);
+        }
+
+        @Override
+        public long[] sumWhereIn(int[] column, int[] inSet, long[] population, int size)
+        {
+            return vector.sumWhereIn(column, inSet, population, size);
+        }
+
+        @Override
+        public String getName() { return "scalar, vector in-set"; }
+    }
+}
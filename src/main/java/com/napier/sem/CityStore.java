@@ -0,0 +1,405 @@
+package com.napier.sem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory, column by column copy of the city table, for filtering and summing cities at scale.
+ * The country code, district and name columns are dictionary-encoded, each value replaced by a code
+ * shared by every name the database would treat as equal, so a filter on any of them is a scan of one
+ * int column.  Populations are kept in a long column alongside.  The country table is kept too, indexed
+ * by the same country codes, for the totals which come from it.
+ * Filtered counts and sums are done by a CityScan, vectorised when the JVM has the Vector API.
+ * Only cities in a known country are stored, as the SQL joins the city table onto the country table.
+ */
+public class CityStore
+{
+    private final CityScan scan;
+
+    // City columns, one entry per city
+    private final int size;
+    private final int[] countryColumn;
+    private final int[] districtColumn;
+    private final int[] nameColumn;
+    private final long[] population;
+
+    // Country table, indexed by country code
+    private final long[] countryPopulation;
+    private final int[] countryContinent;
+    private final int[] countryRegion;
+    private final int[] countryName;
+
+    private final Dictionary districts;
+    private final Dictionary cityNames;
+    private final Dictionary continents;
+    private final Dictionary regions;
+    private final Dictionary countryNames;
+
+    private CityStore(Builder builder, CityScan scan)
+    {
+        this.scan = scan;
+        size = builder.size;
+        countryColumn = Arrays.copyOf(builder.countryColumn, size);
+        districtColumn = Arrays.copyOf(builder.districtColumn, size);
+        nameColumn = Arrays.copyOf(builder.nameColumn, size);
+        population = Arrays.copyOf(builder.population, size);
+
+        int countries = builder.countryCodes.size();
+        countryPopulation = Arrays.copyOf(builder.countryPopulation, countries);
+        countryContinent = Arrays.copyOf(builder.countryContinent, countries);
+        countryRegion = Arrays.copyOf(builder.countryRegion, countries);
+        countryName = Arrays.copyOf(builder.countryName, countries);
+
+        districts = builder.districts;
+        cityNames = builder.cityNames;
+        continents = builder.continents;
+        regions = builder.regions;
+        countryNames = builder.countryNames;
+    }
+
+    /**
+     * Copies a store with a new population column, sharing everything else.
+     */
+    private CityStore(CityStore base, long[] population)
+    {
+        scan = base.scan;
+        size = base.size;
+        countryColumn = base.countryColumn;
+        districtColumn = base.districtColumn;
+        nameColumn = base.nameColumn;
+        this.population = population;
+        countryPopulation = base.countryPopulation;
+        countryContinent = base.countryContinent;
+        countryRegion = base.countryRegion;
+        countryName = base.countryName;
+        districts = base.districts;
+        cityNames = base.cityNames;
+        continents = base.continents;
+        regions = base.regions;
+        countryNames = base.countryNames;
+    }
+
+    /**
+     * Copies the city and country tables out of a snapshot, in table order.
+     * @param snapshot The snapshot to copy.
+     * @return The store, using the best scan this JVM supports
+     */
+    public static CityStore from(WorldSnapshot snapshot)
+    {
+        return from(snapshot, CityScan.best());
+    }
+
+    /**
+     * Copies the city and country tables out of a snapshot, in table order.
+     * @param snapshot The snapshot to copy.
+     * @param scan The scan the store filters with.
+     * @return The store
+     */
+    public static CityStore from(WorldSnapshot snapshot, CityScan scan)
+    {
+        Builder builder = new Builder();
+        for (int country = 0; country < snapshot.countryCount; country++)
+        {
+            builder.addCountry(snapshot.string(snapshot.countryCode[country]),
+                    snapshot.string(snapshot.countryName[country]),
+                    snapshot.string(snapshot.countryContinent[country]),
+                    snapshot.string(snapshot.countryRegion[country]),
+                    snapshot.countryPopulation[country]);
+        }
+        for (int city = 0; city < snapshot.cityCount; city++)
+        {
+            int country = snapshot.cityCountry[city];
+            if (country < 0) continue;
+            builder.addCity(snapshot.string(snapshot.cityName[city]),
+                    snapshot.string(snapshot.countryCode[country]),
+                    snapshot.string(snapshot.cityDistrict[city]),
+                    snapshot.cityPopulation[city]);
+        }
+        return builder.build(scan);
+    }
+
+    public int getCityCount() { return size; }
+
+    /**
+     * Copies the store with one city's population changed, leaving this one as it is.
+     * @param row The city's row in the store, its place among the stored cities in table order.
+     * @param newPopulation The city's new population.
+     * @return The new store, sharing every column but the population with this one
+     */
+    CityStore withPopulation(int row, long newPopulation)
+    {
+        long[] populations = Arrays.copyOf(population, size);
+        populations[row] = newPopulation;
+        return new CityStore(this, populations);
+    }
+
+    /**
+     * @return The scan the store filters with.
+     */
+    public CityScan getScan() { return scan; }
+
+    /**
+     * Use cases 8.1-8.6
+     * Works out the population of an area.  Populations of the world, continents, regions and countries
+     * come from the country table, those of districts and cities are summed from the city table.
+     * @param areaFilter The type of area (world, continent, region, country, district or city).
+     * @param areaName The name of the area, ignored for the world.
+     * @return The population record for the area, or null if there is no such area
+     */
+    public Record populationOf(String areaFilter, String areaName)
+    {
+        if (App.WORLD.equals(areaFilter))
+        {
+            long total = 0;
+            for (long countryTotal : countryPopulation) total += countryTotal;
+            return new Record(App.WORLD, total);
+        }
+
+        Dictionary dictionary = cityDictionary(areaFilter);
+        if (dictionary != null)
+        {
+            int code = dictionary.find(areaName);
+            if (code < 0) return null;
+            int[] column = App.DISTRICT.equals(areaFilter) ? districtColumn : nameColumn;
+            return new Record(dictionary.name(code), scan.sumWhere(column, code, population, size)[1]);
+        }
+
+        int[] inArea = countriesIn(areaFilter, areaName);
+        if (inArea == null) return null;
+
+        long total = 0;
+        for (int country = 0; country < inArea.length; country++)
+        {
+            if (inArea[country] != 0) total += countryPopulation[country];
+        }
+        dictionary = countryDictionary(areaFilter);
+        return new Record(dictionary.name(dictionary.find(areaName)), total);
+    }
+
+    /**
+     * Use cases 7.1-7.3
+     * Works out how much of an area's population lives in cities.  The total comes from the country
+     * table and the population in cities from a scan of the city table.
+     * @param areaFilter The type of area (continent, region or country).
+     * @param areaName The name of the area.
+     * @return The residence record for the area, or null if there is no such area
+     */
+    public Record populationLivingInAndNotInCities(String areaFilter, String areaName)
+    {
+        int[] inArea = countriesIn(areaFilter, areaName);
+        if (inArea == null) return null;
+
+        long total = 0;
+        int matches = 0;
+        int onlyMatch = -1;
+        for (int country = 0; country < inArea.length; country++)
+        {
+            if (inArea[country] == 0) continue;
+            total += countryPopulation[country];
+            matches++;
+            onlyMatch = country;
+        }
+
+        // One country can be matched on its code alone, several need a lookup per city
+        long[] inCities = (matches == 1)
+                ? scan.sumWhere(countryColumn, onlyMatch, population, size)
+                : scan.sumWhereIn(countryColumn, inArea, population, size);
+        long cityPopulation = inCities[1];
+
+        // The population in cities is NULL in SQL when the area has no cities, which makes both figures 0
+        long populationNotInCities = (inCities[0] == 0) ? 0 : total - cityPopulation;
+        Dictionary dictionary = countryDictionary(areaFilter);
+        return new Record(dictionary.name(dictionary.find(areaName)),
+                total,
+                cityPopulation,
+                (double) cityPopulation / (double) total * 100,
+                populationNotInCities,
+                (double) populationNotInCities / (double) total * 100);
+    }
+
+    /**
+     * Marks the countries in an area.
+     * @return Non-zero at the code of every country in the area, or null if there's no such area
+     */
+    private int[] countriesIn(String areaFilter, String areaName)
+    {
+        Dictionary dictionary = countryDictionary(areaFilter);
+        if (dictionary == null) return null;
+        int code = dictionary.find(areaName);
+        if (code < 0) return null;
+
+        int[] column;
+        switch (areaFilter)
+        {
+            case App.CONTINENT:
+                column = countryContinent;
+                break;
+            case App.REGION:
+                column = countryRegion;
+                break;
+            default:
+                column = countryName;
+                break;
+        }
+        int[] inArea = new int[column.length];
+        for (int country = 0; country < column.length; country++)
+        {
+            inArea[country] = (column[country] == code) ? 1 : 0;
+        }
+        return inArea;
+    }
+
+    private Dictionary countryDictionary(String areaFilter)
+    {
+        if (areaFilter == null) return null;
+        switch (areaFilter)
+        {
+            case App.CONTINENT:
+                return continents;
+            case App.REGION:
+                return regions;
+            case App.COUNTRY:
+                return countryNames;
+            default:
+                return null;
+        }
+    }
+
+    private Dictionary cityDictionary(String areaFilter)
+    {
+        if (App.DISTRICT.equals(areaFilter)) return districts;
+        if (App.CITY.equals(areaFilter)) return cityNames;
+        return null;
+    }
+
+    /**
+     * Encodes the values of a column.  Values the database would treat as equal share a code, and each
+     * code is named after the first value seen with it, as the SQL names an area after the first row.
+     */
+    static class Dictionary
+    {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        int encode(String value)
+        {
+            return codes.computeIfAbsent(WorldSnapshot.normalise(value), key -> {
+                names.add(value);
+                return names.size() - 1;
+            });
+        }
+
+        /**
+         * @return The code for a name, or -1 if no value matches it.
+         */
+        int find(String value)
+        {
+            if (value == null) return -1;
+            return codes.getOrDefault(WorldSnapshot.normalise(value), -1);
+        }
+
+        String name(int code) { return names.get(code); }
+
+        int size() { return names.size(); }
+    }
+
+    /**
+     * Collects countries and cities a row at a time.  Countries must be added before their cities.
+     */
+    public static class Builder
+    {
+        private final Dictionary countryCodes = new Dictionary();
+        private final Dictionary districts = new Dictionary();
+        private final Dictionary cityNames = new Dictionary();
+        private final Dictionary continents = new Dictionary();
+        private final Dictionary regions = new Dictionary();
+        private final Dictionary countryNames = new Dictionary();
+
+        private long[] countryPopulation = new long[16];
+        private int[] countryContinent = new int[16];
+        private int[] countryRegion = new int[16];
+        private int[] countryName = new int[16];
+
+        private int size;
+        private int[] countryColumn;
+        private int[] districtColumn;
+        private int[] nameColumn;
+        private long[] population;
+
+        public Builder() { this(16); }
+
+        /**
+         * @param expectedCities The number of cities expected, so large stores aren't resized as they grow.
+         */
+        public Builder(int expectedCities)
+        {
+            int capacity = Math.max(expectedCities, 16);
+            countryColumn = new int[capacity];
+            districtColumn = new int[capacity];
+            nameColumn = new int[capacity];
+            population = new long[capacity];
+        }
+
+        /**
+         * Adds a row of the country table.  A country whose code has been added already is ignored.
+         */
+        public Builder addCountry(String code, String name, String continent, String region, long population)
+        {
+            int before = countryCodes.size();
+            int country = countryCodes.encode(code);
+            if (country < before) return this;
+
+            if (country == countryPopulation.length)
+            {
+                int capacity = country * 2;
+                countryPopulation = Arrays.copyOf(countryPopulation, capacity);
+                countryContinent = Arrays.copyOf(countryContinent, capacity);
+                countryRegion = Arrays.copyOf(countryRegion, capacity);
+                countryName = Arrays.copyOf(countryName, capacity);
+            }
+            countryPopulation[country] = population;
+            countryContinent[country] = continents.encode(continent);
+            countryRegion[country] = regions.encode(region);
+            countryName[country] = countryNames.encode(name);
+            return this;
+        }
+
+        /**
+         * Adds a row of the city table.  A city in a country which hasn't been added is left out.
+         */
+        public Builder addCity(String name, String countryCode, String district, long population)
+        {
+            int country = countryCodes.find(countryCode);
+            if (country < 0) return this;
+
+            if (size == countryColumn.length)
+            {
+                int capacity = size * 2;
+                countryColumn = Arrays.copyOf(countryColumn, capacity);
+                districtColumn = Arrays.copyOf(districtColumn, capacity);
+                nameColumn = Arrays.copyOf(nameColumn, capacity);
+                this.population = Arrays.copyOf(this.population, capacity);
+            }
+            countryColumn[size] = country;
+            districtColumn[size] = districts.encode(district);
+            nameColumn[size] = cityNames.encode(name);
+            this.population[size] = population;
+            size++;
+            return this;
+        }
+
+        /**
+         * @return The store, using the best scan this JVM supports.
+         */
+        public CityStore build() { return build(CityScan.best()); }
+
+        /**
+         * @param scan The scan the store filters with.
+         * @return The store.
+         */
+        public CityStore build(CityScan scan) { return new CityStore(this, scan); }
+    }
+}
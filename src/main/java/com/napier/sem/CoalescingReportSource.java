@@ -0,0 +1,252 @@
+package com.napier.sem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs identical reports requested at the same time only once.  The first caller for a report reads it
+ * from the delegate, usually the DAO, and every caller asking for the same report while it's being read
+ * waits for that result instead of sending its own query.  Reports are matched on the same key as the
+ * cache: the report, area filter, normalised area name and n.
+ * Nothing is kept once a report has been read, so this sits between the cache and the DAO and only
+ * saves queries for reports which miss the cache together.  A failed report (null, or an exception
+ * from the delegate) reaches every caller waiting for it, and the next request for it is read again.
+ * Results are shared between callers, so they're handed out as lists which can't be modified.
+ */
+public class CoalescingReportSource extends AbstractReportSource
+{
+    private final ReportSource delegate;
+
+    // Reports being read, each completed with its records once the first caller has read them
+    private final ConcurrentHashMap<ReportRequest, CompletableFuture<List<Record>>> inFlight = new ConcurrentHashMap<>();
+
+    // Statistics
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * @param delegate The report source reports are read from.
+     */
+    public CoalescingReportSource(ReportSource delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Reads a report from the delegate, or waits for it if another caller is already reading it.
+     * @param request The report to run.
+     * @return An unmodifiable list of the report's records, or null if the delegate failed
+     */
+    @Override
+    public List<Record> execute(ReportRequest request)
+    {
+        ReportRequest key = CachingReportSource.cacheKey(request);
+        CompletableFuture<List<Record>> flight = new CompletableFuture<>();
+        CompletableFuture<List<Record>> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null)
+        {
+            coalescedCount.incrementAndGet();
+            return await(leader);
+        }
+
+        executedCount.incrementAndGet();
+        List<Record> records;
+        try
+        {
+            records = delegate.execute(request);
+        }
+        catch (RuntimeException | Error e)
+        {
+            land(key, flight, null, e);
+            throw e;
+        }
+        return land(key, flight, records, null);
+    }
+
+    /**
+     * Streams a report from the delegate, handing each record to the consumer as it arrives and copying
+     * it for any callers who ask for the report in the meantime.  If the consumer throws, it isn't called
+     * again but the report is still read to the end and shared, so the callers waiting get it and only
+     * this caller sees the exception, once the report has been read.
+     * If another caller is already reading the report, its records are handed over once it's been read.
+     * @param request The report to run.
+     * @param consumer Called once for each record, in report order.
+     * @return The number of records, or -1 if the report couldn't be run.
+     */
+    @Override
+    public long forEachRecord(ReportRequest request, Consumer<Record> consumer)
+    {
+        ReportRequest key = CachingReportSource.cacheKey(request);
+        CompletableFuture<List<Record>> flight = new CompletableFuture<>();
+        CompletableFuture<List<Record>> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null)
+        {
+            coalescedCount.incrementAndGet();
+            List<Record> records = await(leader);
+            if (records == null) return -1;
+
+            records.forEach(consumer);
+            return records.size();
+        }
+
+        executedCount.incrementAndGet();
+        List<Record> records = new ArrayList<>();
+        // The first exception the consumer threw, kept until the waiting callers have the report
+        Throwable[] consumerFailure = new Throwable[1];
+        long count;
+        try
+        {
+            count = delegate.forEachRecord(request, record -> {
+                records.add(record);
+                if (consumerFailure[0] != null) return;
+                try
+                {
+                    consumer.accept(record);
+                }
+                catch (RuntimeException | Error e)
+                {
+                    consumerFailure[0] = e;
+                }
+            });
+        }
+        catch (RuntimeException | Error e)
+        {
+            land(key, flight, null, e);
+            throw e;
+        }
+        land(key, flight, (count < 0) ? null : records, null);
+
+        Throwable failure = consumerFailure[0];
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        return count;
+    }
+
+    /**
+     * Runs several reports in one batch from the delegate, leaving out any which another caller is
+     * already reading, or which appear earlier in the batch, and waiting for those instead.
+     * @param requests The reports to run.
+     * @return The records in each report, in request order, with null for a report which failed.
+     */
+    @Override
+    public List<List<Record>> executeBatch(List<ReportRequest> requests)
+    {
+        List<CompletableFuture<List<Record>>> flights = new ArrayList<>(requests.size());
+        List<ReportRequest> led = new ArrayList<>();
+        List<ReportRequest> ledKeys = new ArrayList<>();
+        List<CompletableFuture<List<Record>>> ledFlights = new ArrayList<>();
+        for (ReportRequest request : requests)
+        {
+            ReportRequest key = CachingReportSource.cacheKey(request);
+            CompletableFuture<List<Record>> flight = new CompletableFuture<>();
+            CompletableFuture<List<Record>> leader = inFlight.putIfAbsent(key, flight);
+            if (leader != null)
+            {
+                coalescedCount.incrementAndGet();
+                flights.add(leader);
+                continue;
+            }
+            led.add(request);
+            ledKeys.add(key);
+            ledFlights.add(flight);
+            flights.add(flight);
+        }
+
+        if (!led.isEmpty())
+        {
+            executedCount.addAndGet(led.size());
+            List<List<Record>> results;
+            try
+            {
+                results = delegate.executeBatch(led);
+            }
+            catch (RuntimeException | Error e)
+            {
+                for (int i = 0; i < led.size(); i++) land(ledKeys.get(i), ledFlights.get(i), null, e);
+                throw e;
+            }
+            for (int i = 0; i < led.size(); i++) land(ledKeys.get(i), ledFlights.get(i), results.get(i), null);
+        }
+
+        List<List<Record>> results = new ArrayList<>(requests.size());
+        for (CompletableFuture<List<Record>> flight : flights) results.add(await(flight));
+        return results;
+    }
+
+    /**
+     * Finishes reading a report: later requests for it are read again, and the callers waiting for it
+     * are handed its records or the failure.
+     * @param key The key the report is in flight under.
+     * @param flight The report's future.
+     * @param records The records read, or null if the report failed.
+     * @param failure The exception the delegate threw, or null if it returned.
+     * @return The records as shared with the waiting callers
+     */
+    private List<Record> land(ReportRequest key, CompletableFuture<List<Record>> flight, List<Record> records,
+                              Throwable failure)
+    {
+        // Removed first, so a caller arriving from now on reads the report again rather than reusing it
+        inFlight.remove(key, flight);
+        if (failure != null)
+        {
+            flight.completeExceptionally(failure);
+            return null;
+        }
+        List<Record> shared = (records == null) ? null : Collections.unmodifiableList(records);
+        flight.complete(shared);
+        return shared;
+    }
+
+    /**
+     * Waits for a report another caller is reading.
+     * @param flight The report's future.
+     * @return The report's records, or null if it failed
+     */
+    private static List<Record> await(CompletableFuture<List<Record>> flight)
+    {
+        try
+        {
+            return flight.join();
+        }
+        catch (CompletionException e)
+        {
+            // Rethrow what the delegate threw, as if this caller had read the report itself
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of reports read from the delegate.
+     */
+    public long getExecutedCount() { return executedCount.get(); }
+
+    /**
+     * @return The number of reports which waited for another caller's read instead, the queries saved.
+     */
+    public long getCoalescedCount() { return coalescedCount.get(); }
+
+    /**
+     * @return The number of reports being read right now.
+     */
+    public int getInFlightCount() { return inFlight.size(); }
+
+    /**
+     * Formats the coalescing statistics in a consistent, readable manner
+     * @return A string summarising how many reports were read and how many queries were saved
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("Report coalescing | Executed: %,d | Coalesced: %,d | In flight: %d",
+                getExecutedCount(), getCoalescedCount(), getInFlightCount());
+    }
+}
@@ -0,0 +1,524 @@
+package com.napier.sem;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of connections to the world database.  Connections are borrowed for the length of a
+ * single query and released straight afterwards, so several reports can run against the database at
+ * the same time.  The pool:
+ *   - never opens more than maxSize connections, and callers wait up to borrowTimeoutMillis for one
+ *   - checks connections which have sat idle for a while are still alive before handing them out
+ *   - closes connections which have sat idle for longer than idleTimeoutMillis, down to minSize
+ *   - reports connections which have been borrowed for longer than leakThresholdMillis, with the stack
+ *     they were borrowed from if leak debugging is on
+ * Counters for saturation and time spent waiting are kept so the pool can be sized under load.
+ */
+public class ConnectionPool implements AutoCloseable
+{
+    /**
+     * Opens a new physical connection to the database for the pool.
+     */
+    public interface ConnectionFactory
+    {
+        Connection create() throws SQLException;
+    }
+
+    // Seconds given to Connection.isValid when checking an idle connection on borrow
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    // Connections idle for less than this are handed out without a round trip to check them
+    static final long DEFAULT_VALIDATION_IDLE_MILLIS = 5 * 1000;
+
+    // Configuration
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final long leakThresholdMillis;
+    private volatile long validationIdleMillis = DEFAULT_VALIDATION_IDLE_MILLIS;
+    // Capturing the borrow site walks the stack, so it's only done when debugging a leak
+    private volatile boolean leakDebugging;
+
+    // Pool state, guarded by this
+    private final Deque<IdleConnection> idle = new ArrayDeque<>();
+    private final Map<Connection, Lease> borrowed = new IdentityHashMap<>();
+    private int totalConnections;
+    private boolean closed;
+
+    // Statistics, guarded by this
+    private long borrowCount;
+    private long waitCount;
+    private long timeoutCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long evictionCount;
+    private long invalidCount;
+    private long leakCount;
+    private int peakActive;
+
+    private final ScheduledExecutorService housekeeper;
+
+    /**
+     * Creates a pool which opens its connections with the given factory.
+     * @param factory Used to open a new connection whenever the pool needs one.
+     * @param minSize The number of connections kept open even when they are idle.
+     * @param maxSize The largest number of connections the pool will ever have open.
+     * @param idleTimeoutMillis How long a connection can sit idle before it is closed.
+     * @param borrowTimeoutMillis How long borrow waits for a free connection before giving up.
+     * @param leakThresholdMillis How long a connection can be borrowed before it's reported as a leak.
+     */
+    public ConnectionPool(ConnectionFactory factory,
+                          int minSize,
+                          int maxSize,
+                          long idleTimeoutMillis,
+                          long borrowTimeoutMillis,
+                          long leakThresholdMillis)
+    {
+        if (factory == null) throw new IllegalArgumentException("A connection factory is required");
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+        {
+            throw new IllegalArgumentException("Pool sizes must satisfy 0 <= minSize <= maxSize and maxSize >= 1");
+        }
+
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+
+        // A single daemon thread handles idle eviction, leak detection and topping the pool up to minSize
+        housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, Math.min(idleTimeoutMillis, leakThresholdMillis) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a connection which is already open to the pool's idle connections.  This lets the connection
+     * App.connect waited for at start up be reused rather than thrown away.
+     * @param connection An open connection which the pool will now own.
+     */
+    public synchronized void adopt(Connection connection)
+    {
+        if (connection == null) return;
+        if (closed || totalConnections >= maxSize)
+        {
+            closeQuietly(connection);
+            return;
+        }
+        totalConnections++;
+        // Nothing is known about how long it has been open, so it's checked the first time it's borrowed
+        idle.addFirst(new IdleConnection(connection, System.currentTimeMillis(), true));
+        notifyAll();
+    }
+
+    /**
+     * Sets how long a connection can sit idle before it's checked with a round trip to the database when
+     * it's borrowed.  Connections used more recently than this are assumed to still be alive.
+     * @param validationIdleMillis The idle time, 0 checks every connection on every borrow.
+     */
+    public void setValidationIdleMillis(long validationIdleMillis)
+    {
+        if (validationIdleMillis < 0) throw new IllegalArgumentException("Validation idle time can't be negative");
+        this.validationIdleMillis = validationIdleMillis;
+    }
+
+    /**
+     * Turns recording where each connection was borrowed on or off, so a leak is reported with the stack
+     * which borrowed it.  This walks the stack on every borrow, so it's off by default.
+     * @param leakDebugging true to record borrow sites.
+     */
+    public void setLeakDebugging(boolean leakDebugging) { this.leakDebugging = leakDebugging; }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if none are idle and the pool isn't full.
+     * If the pool is full this waits for a connection to be released.  Every connection borrowed must be
+     * given back with release.
+     * @return A validated connection to the database.
+     * @throws SQLTimeoutException if no connection became free within the borrow timeout.
+     * @throws SQLException if the pool is closed or a new connection could not be opened.
+     */
+    public Connection borrow() throws SQLException
+    {
+        Connection connection = borrow(borrowTimeoutMillis);
+        if (connection != null) return connection;
+
+        synchronized (this) { timeoutCount++; }
+        throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis +
+                "ms waiting for a database connection");
+    }
+
+    /**
+     * Borrows a connection if one becomes free within a short wait, for work which can go without one
+     * rather than hold up the queries waiting on the pool.  Giving up isn't counted as a timeout.  A
+     * connection borrowed must be given back with release.
+     * @param timeoutMillis How long to wait for a connection, 0 only takes one which is free now.
+     * @return A validated connection to the database, or null if none became free in time.
+     * @throws SQLException if the pool is closed or a new connection could not be opened.
+     */
+    public Connection tryBorrow(long timeoutMillis) throws SQLException
+    {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Timeout can't be negative");
+        return borrow(timeoutMillis);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the timeout for one if the pool is full.
+     * @return A validated connection, or null if none became free in time
+     */
+    private Connection borrow(long timeoutMillis) throws SQLException
+    {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean waited = false;
+
+        while (true)
+        {
+            IdleConnection candidate = null;
+            synchronized (this)
+            {
+                if (closed) throw new SQLException("Connection pool is closed");
+
+                if (!idle.isEmpty())
+                {
+                    candidate = idle.pollFirst();
+                }
+                else if (totalConnections < maxSize)
+                {
+                    // Reserve the slot now, the connection itself is opened outside the lock
+                    totalConnections++;
+                }
+                else
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return null;
+                    waited = true;
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection", e);
+                    }
+                    continue;
+                }
+            }
+
+            Connection connection;
+            if (candidate == null)
+            {
+                try
+                {
+                    connection = factory.create();
+                }
+                catch (SQLException | RuntimeException e)
+                {
+                    discardSlot();
+                    throw e;
+                }
+            }
+            else
+            {
+                connection = candidate.connection;
+                boolean check = candidate.unchecked
+                        || System.currentTimeMillis() - candidate.idleSince >= validationIdleMillis;
+                if (check && !isValid(connection))
+                {
+                    synchronized (this) { invalidCount++; }
+                    closeQuietly(connection);
+                    discardSlot();
+                    continue;
+                }
+            }
+
+            return lease(connection, System.nanoTime() - start, waited);
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool so it can be used by another query.
+     * Connections the pool doesn't recognise are ignored.
+     * @param connection The connection returned by borrow.
+     */
+    public void release(Connection connection)
+    {
+        if (connection == null) return;
+
+        boolean closeConnection = false;
+        synchronized (this)
+        {
+            if (borrowed.remove(connection) == null) return;
+
+            if (closed)
+            {
+                totalConnections--;
+                closeConnection = true;
+            }
+            else
+            {
+                idle.addFirst(new IdleConnection(connection, System.currentTimeMillis(), false));
+            }
+            notifyAll();
+        }
+        if (closeConnection) closeQuietly(connection);
+    }
+
+    /**
+     * Removes a borrowed connection from the pool and closes it.  Used when a query fails in a way
+     * that suggests the connection itself is broken.
+     * @param connection The connection returned by borrow.
+     */
+    public void invalidate(Connection connection)
+    {
+        if (connection == null) return;
+
+        synchronized (this)
+        {
+            if (borrowed.remove(connection) == null) return;
+            invalidCount++;
+            totalConnections--;
+            notifyAll();
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * Closes every idle connection and stops the pool handing out new ones.  Connections which are still
+     * borrowed are closed as they are released.
+     */
+    @Override
+    public void close()
+    {
+        Deque<IdleConnection> toClose;
+        synchronized (this)
+        {
+            if (closed) return;
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            totalConnections -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        housekeeper.shutdownNow();
+        for (IdleConnection idleConnection : toClose) closeQuietly(idleConnection.connection);
+    }
+
+    private Connection lease(Connection connection, long waitNanos, boolean waited)
+    {
+        // Captured outside the lock, as it's the slow part
+        Throwable borrowSite = (leakDebugging && leakThresholdMillis > 0)
+                ? new Throwable("Connection borrowed here")
+                : null;
+
+        synchronized (this)
+        {
+            borrowed.put(connection, new Lease(System.currentTimeMillis(), Thread.currentThread().getName(),
+                    borrowSite));
+            borrowCount++;
+            if (waited) waitCount++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            peakActive = Math.max(peakActive, borrowed.size());
+        }
+        return connection;
+    }
+
+    private synchronized void discardSlot()
+    {
+        totalConnections--;
+        notifyAll();
+    }
+
+    /**
+     * Runs periodically on the housekeeper thread.  Closes connections that have been idle for too long,
+     * reports borrowed connections which look like they have leaked, and opens connections until the pool
+     * holds at least minSize.
+     */
+    private void housekeep()
+    {
+        Deque<Connection> expired = new ArrayDeque<>();
+        int missing;
+        long now = System.currentTimeMillis();
+
+        synchronized (this)
+        {
+            if (closed) return;
+
+            // The oldest idle connections are at the back of the deque
+            Iterator<IdleConnection> oldestFirst = idle.descendingIterator();
+            while (oldestFirst.hasNext() && totalConnections > minSize)
+            {
+                IdleConnection idleConnection = oldestFirst.next();
+                if (now - idleConnection.idleSince < idleTimeoutMillis) break;
+                oldestFirst.remove();
+                totalConnections--;
+                evictionCount++;
+                expired.add(idleConnection.connection);
+            }
+
+            if (leakThresholdMillis > 0)
+            {
+                for (Lease lease : borrowed.values())
+                {
+                    if (!lease.reported && now - lease.borrowedAt > leakThresholdMillis)
+                    {
+                        lease.reported = true;
+                        leakCount++;
+                        System.out.printf("Possible connection leak: connection borrowed by thread %s " +
+                                "has not been released after %dms%n", lease.threadName, now - lease.borrowedAt);
+                        if (lease.borrowSite != null) lease.borrowSite.printStackTrace(System.out);
+                    }
+                }
+            }
+
+            missing = minSize - totalConnections;
+            totalConnections += Math.max(0, missing);
+        }
+
+        for (Connection connection : expired) closeQuietly(connection);
+
+        for (int i = 0; i < missing; i++)
+        {
+            try
+            {
+                Connection connection = factory.create();
+                synchronized (this)
+                {
+                    if (closed)
+                    {
+                        totalConnections--;
+                        closeQuietly(connection);
+                        continue;
+                    }
+                    idle.addLast(new IdleConnection(connection, System.currentTimeMillis(), false));
+                    notifyAll();
+                }
+            }
+            catch (SQLException | RuntimeException e)
+            {
+                discardSlot();
+                System.out.println("Connection pool could not open a connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isValid(Connection connection)
+    {
+        try
+        {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        }
+        catch (SQLException e)
+        {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection connection)
+    {
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            System.out.println("Error closing pooled connection to database");
+        }
+    }
+
+    public int getMinSize() { return minSize; }
+    public int getMaxSize() { return maxSize; }
+    public synchronized int getActiveConnections() { return borrowed.size(); }
+    public synchronized int getIdleConnections() { return idle.size(); }
+    public synchronized int getTotalConnections() { return totalConnections; }
+    public synchronized int getPeakActiveConnections() { return peakActive; }
+    public synchronized long getBorrowCount() { return borrowCount; }
+    public synchronized long getWaitCount() { return waitCount; }
+    public synchronized long getTimeoutCount() { return timeoutCount; }
+    public synchronized long getEvictionCount() { return evictionCount; }
+    public synchronized long getInvalidCount() { return invalidCount; }
+    public synchronized long getLeakCount() { return leakCount; }
+    public synchronized long getTotalWaitNanos() { return totalWaitNanos; }
+    public synchronized long getMaxWaitNanos() { return maxWaitNanos; }
+
+    /**
+     * @return The fraction of the pool's maximum size which is currently borrowed, from 0 to 1.
+     */
+    public synchronized double getSaturation() { return (double) borrowed.size() / maxSize; }
+
+    /**
+     * Formats the pool statistics in a consistent, readable manner
+     * @return A string summarising the pool's size and wait time counters
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("Connection pool | Active: %d | Idle: %d | Max: %d | Peak active: %d\n" +
+                        "Borrows: %,d | Waited: %,d | Timed out: %,d | Mean wait: %.3fms | Max wait: %.3fms\n" +
+                        "Evicted: %,d | Invalid: %,d | Leaks: %,d",
+                borrowed.size(),
+                idle.size(),
+                maxSize,
+                peakActive,
+                borrowCount,
+                waitCount,
+                timeoutCount,
+                (borrowCount == 0) ? 0.0 : totalWaitNanos / 1e6 / borrowCount,
+                maxWaitNanos / 1e6,
+                evictionCount,
+                invalidCount,
+                leakCount);
+    }
+
+    /**
+     * A connection sitting in the pool, the time it was last returned and whether it has to be checked
+     * before it's handed out whatever its idle time
+     */
+    private static class IdleConnection
+    {
+        private final Connection connection;
+        private final long idleSince;
+        private final boolean unchecked;
+
+        IdleConnection(Connection connection, long idleSince, boolean unchecked)
+        {
+            this.connection = connection;
+            this.idleSince = idleSince;
+            this.unchecked = unchecked;
+        }
+    }
+
+    /**
+     * Who borrowed a connection and when, used for leak detection
+     */
+    private static class Lease
+    {
+        private final long borrowedAt;
+        private final String threadName;
+        private final Throwable borrowSite;
+        private boolean reported;
+
+        Lease(long borrowedAt, String threadName, Throwable borrowSite)
+        {
+            this.borrowedAt = borrowedAt;
+            this.threadName = threadName;
+            this.borrowSite = borrowSite;
+        }
+    }
+}
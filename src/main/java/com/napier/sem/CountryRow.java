@@ -0,0 +1,74 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the country reports (use cases 1 and 2)
+ */
+public final class CountryRow extends ReportRow
+{
+    private final String countryCode;
+    private final String name;
+    private final String continent;
+    private final String region;
+    private final long population;
+    private final String capital;
+
+    public CountryRow(String countryCode, String name, String continent, String region, long population, String capital)
+    {
+        this.countryCode = countryCode;
+        this.name = name;
+        this.continent = continent;
+        this.region = region;
+        this.population = population;
+        this.capital = capital;
+    }
+
+    /**
+     * Reads a row selected as code, name, continent, region, population, capital.
+     * @param result The result, positioned on a row.
+     * @return The row
+     * @throws SQLException if a column can't be read
+     */
+    static CountryRow map(ResultSet result) throws SQLException
+    {
+        return new CountryRow(result.getString(1),
+                result.getString(2),
+                result.getString(3),
+                result.getString(4),
+                result.getLong(5),
+                result.getString(6));
+    }
+
+    @Override
+    public String getRecordType() { return App.COUNTRY; }
+
+    public String getCountryCode() { return countryCode; }
+    @Override
+    public String getName() { return name; }
+    @Override
+    public String getContinent() { return continent; }
+    public String getRegion() { return region; }
+    @Override
+    public long getPopulation() { return population; }
+    public String getCapital() { return capital; }
+
+    /**
+     * Formats the country data in a consistent, readable manner
+     * @return A string representing a country record
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(App.HORIZONTAL_LINE + "\n" +
+                        "Country code: %s | Name: %s | Continent: %s\n" +
+                        "Region: %s | Population: %,d | Capital: %s",
+                countryCode,
+                name,
+                continent,
+                region,
+                population,
+                capital);
+    }
+}
@@ -1,95 +1,826 @@
 package com.napier.sem;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
  * The Data Access Object (DAO) is used for querying the database and returning
  * the results in a usable manner.
  */
-public class DAO
+public class DAO implements ReportSource
 {
+    // Area filters accepted by each kind of report
+    static final List<String> COUNTRY_AREA_FILTERS = Collections.unmodifiableList(
+            Arrays.asList(App.WORLD, App.CONTINENT, App.REGION));
+    static final List<String> CITY_AREA_FILTERS = Collections.unmodifiableList(
+            Arrays.asList(App.WORLD, App.CONTINENT, App.REGION, App.COUNTRY, App.DISTRICT));
+    static final List<String> RESIDENCE_AREA_FILTERS = Collections.unmodifiableList(
+            Arrays.asList(App.CONTINENT, App.REGION, App.COUNTRY));
+    static final List<String> POPULATION_AREA_FILTERS = Collections.unmodifiableList(
+            Arrays.asList(App.WORLD, App.CONTINENT, App.REGION, App.COUNTRY, App.DISTRICT, App.CITY));
+
+    // Rows fetched per round trip when a report is streamed
+    static final int DEFAULT_FETCH_SIZE = 500;
+
+    // Put between the queries of a batch sent in one call
+    static final String BATCH_SEPARATOR = ";\n";
+
+    // The parameterised SQL for every report shape, shared by all DAOs
+    private static final StatementRegistry statements = new StatementRegistry();
+
+    // Latencies and row counts for every report shape, shared by all DAOs
+    private static final QueryMetrics metrics = new QueryMetrics();
+
+    // Use case a batch of reports sent in one call is recorded under
+    static final String BATCH_USE_CASE = "batch";
+
+    // Only one row in this many has its mapping timed, the rest are assumed to take as long
+    static final int MAPPING_SAMPLE_INTERVAL = 64;
+
+    // Reports slower than its threshold are written here with their plans, null when not logging
+    private static volatile SlowQueryLog slowQueryLog;
+
     // Private properties
     private final Connection connection;
+    private final ConnectionPool pool;
+    // Connections which allow multi-statement calls, for batches, null to run batches a report at a time
+    private final ConnectionPool batchPool;
+    // Limits the queries running at once to the pool's size in virtual thread mode, null otherwise
+    private final Semaphore queryPermits;
+    // Runs the requests given to submit
+    private final Executor executor;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
 
-    public DAO(Connection connection) { this.connection = connection; }
+    /**
+     * Creates a DAO which runs every query on the one connection it is given.
+     * @param connection The connection to the world database, may be null.
+     */
+    public DAO(Connection connection)
+    {
+        this.connection = connection;
+        this.pool = null;
+        this.batchPool = null;
+        this.queryPermits = null;
+        this.executor = Runnable::run;
+    }
+
+    private DAO(ConnectionPool pool, ConnectionPool batchPool, Semaphore queryPermits, Executor executor)
+    {
+        this.connection = null;
+        this.pool = pool;
+        this.batchPool = batchPool;
+        this.queryPermits = queryPermits;
+        this.executor = executor;
+    }
 
     /**
-     * Generates a valid condition for use with our SQL queries
-     * @param areaFilter The geographical category by which we'll be filtering
-     * @param areaName The name of the location which will be used
-     * @return The where condition string
+     * Creates a DAO which borrows a connection from the pool for each query, so several queries
+     * can run at once.  Batches are run one report at a time, since the pool's connections don't allow
+     * several statements in one call.
+     * @param pool The pool connections will be borrowed from.
+     * @return A DAO backed by the connection pool.
+     */
+    public static DAO pooled(ConnectionPool pool) { return new DAO(pool, null, null, Runnable::run); }
+
+    /**
+     * Creates a pooled DAO which sends each batch of reports in one multi-statement call, on a
+     * connection from a pool of its own.  Only the batch pool's connections need allowMultiQueries, so
+     * no other query can run more than one statement.
+     * @param pool The pool connections for single reports will be borrowed from.
+     * @param batchPool The pool connections for batches will be borrowed from.
+     * @return A DAO backed by the connection pools.
      */
-    public static String getWhereCondition(String areaFilter, String areaName)
+    public static DAO pooled(ConnectionPool pool, ConnectionPool batchPool)
     {
-        String whereCondition;
+        return new DAO(pool, batchPool, null, Runnable::run);
+    }
+
+    /**
+     * Creates a pooled DAO which runs each submitted request on its own virtual thread, so thousands of
+     * requests can wait on the database without a platform thread each.  Only as many queries as the pool
+     * has connections are let through at once, the rest queue on a fair semaphore.  This keeps waiting
+     * virtual threads out of the pool's lock, where they would pin their carrier threads.
+     * @param pool The pool connections will be borrowed from.
+     * @return A DAO backed by the connection pool which runs submitted requests on virtual threads.
+     */
+    public static DAO onVirtualThreads(ConnectionPool pool) { return onVirtualThreads(pool, null); }
+
+    /**
+     * Creates a DAO which runs submitted requests on virtual threads, as onVirtualThreads(pool) does, and
+     * sends batches of reports on connections from a pool of their own, as pooled(pool, batchPool) does.
+     * @param pool The pool connections for single reports will be borrowed from.
+     * @param batchPool The pool connections for batches will be borrowed from, or null to run each
+     *                  report in a batch on its own.
+     * @return A DAO backed by the connection pools which runs submitted requests on virtual threads.
+     */
+    public static DAO onVirtualThreads(ConnectionPool pool, ConnectionPool batchPool)
+    {
+        return new DAO(pool, batchPool, new Semaphore(pool.getMaxSize(), true),
+                Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Runs a report without blocking the caller.  In virtual thread mode it runs on a new virtual
+     * thread, otherwise it runs on the calling thread and the future is already complete.
+     * @param request The report to run.
+     * @return The report's records, which are null if the query failed
+     */
+    public CompletableFuture<List<Record>> submit(ReportRequest request)
+    {
+        return CompletableFuture.supplyAsync(() -> execute(request), executor);
+    }
+
+    /**
+     * @return true if submitted requests run on virtual threads.
+     */
+    public boolean isOnVirtualThreads() { return queryPermits != null; }
+
+    /**
+     * @return The number of requests waiting for a query permit, 0 unless in virtual thread mode.
+     */
+    public int getQueuedQueries() { return (queryPermits == null) ? 0 : queryPermits.getQueueLength(); }
+
+    /**
+     * @return The latencies and row counts of every report shape run by any DAO.
+     */
+    public static QueryMetrics getMetrics() { return metrics; }
+
+    /**
+     * Logs every report any DAO runs which is slower than the log's threshold.
+     * @param log The slow query log, or null to stop logging.
+     */
+    public static void setSlowQueryLog(SlowQueryLog log) { slowQueryLog = log; }
+
+    /**
+     * Gets the connection the next query should run on, either from the pool or the single connection.
+     * In virtual thread mode this waits for a query permit first.
+     * @return A connection to the database, or null if there is none.
+     */
+    private Connection borrowConnection()
+    {
+        if (pool == null) return connection;
+
+        if (queryPermits != null)
+        {
+            try
+            {
+                queryPermits.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                System.out.println("Interrupted while waiting to run a query");
+                return null;
+            }
+        }
+
+        try
+        {
+            return pool.borrow();
+        }
+        catch (SQLException e)
+        {
+            if (queryPermits != null) queryPermits.release();
+            System.out.println("Could not get a database connection");
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool once a query has finished with it.
+     * @param borrowed The connection returned by borrowConnection.
+     */
+    private void releaseConnection(Connection borrowed)
+    {
+        if (pool == null) return;
+
+        pool.release(borrowed);
+        if (queryPermits != null) queryPermits.release();
+    }
 
+    /**
+     * Borrows the connection a batch is sent on from the batch pool.
+     * @return A connection which allows multi-statement calls, or null if none could be borrowed.
+     */
+    private Connection borrowBatchConnection()
+    {
+        try
+        {
+            return batchPool.borrow();
+        }
+        catch (SQLException e)
+        {
+            System.out.println("Could not get a database connection for a batch");
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gives a connection back once a batch has finished with it.
+     * @param borrowed The connection returned by borrowBatchConnection.
+     */
+    private void releaseBatchConnection(Connection borrowed)
+    {
+        batchPool.release(borrowed);
+    }
+
+    /**
+     * Generates a where condition with a placeholder in place of the area name, so the name can be bound
+     * to a prepared statement rather than spliced into the SQL.
+     * @param areaFilter The geographical category by which we'll be filtering
+     * @param areaName The name of the location which will be used, only checked for null
+     * @return The parameterised where condition string, or null if the arguments are invalid
+     */
+    public static String getParameterisedWhereCondition(String areaFilter, String areaName)
+    {
         if (areaName == null || areaFilter == null) { return null; }
 
         switch (areaFilter)
         {
             case App.WORLD:
-                whereCondition = "country.code LIKE '%'\n";
-                break;
+                return "country.code LIKE '%'\n";
             case App.CONTINENT:
-                whereCondition = "country.continent = '" + areaName + "'\n";
-                break;
+                return "country.continent = ?\n";
             case App.REGION:
-                whereCondition = "country.region = '" + areaName + "'\n";
-                break;
+                return "country.region = ?\n";
             case App.COUNTRY:
-                whereCondition = "country.name = '" + areaName + "'\n";
-                break;
+                return "country.name = ?\n";
             case App.DISTRICT:
-                whereCondition = "city.district = '" + areaName + "'\n";
-                break;
+                return "city.district = ?\n";
             case App.CITY:
-                whereCondition = "city.name = '" + areaName + "'\n";
-                break;
+                return "city.name = ?\n";
             default:
                 return null;
         }
-        return whereCondition;
     }
 
     /**
      * This takes an SQL query in the form of a string and executes it against
-     * the database.  It will return a list of Record objects.
+     * the database.  It will return a list of Record objects.  Columns are read by position, so they
+     * must be selected in the same order as the report queries for the record type.
      * @param statementString The SQL statement to be executed.
      * @param recordType The type of record that the query will return (country, city, capital city etc.).
      * @return An ArrayList of country objects
      */
     public List<Record> executeStatement(String statementString, String recordType)
+    {
+        return executePreparedStatement(statementString, recordType);
+    }
+
+    /**
+     * This takes a parameterised SQL query and the values for its placeholders, binds them and executes
+     * the query against the database.  It will return a list of Record objects.
+     * @param statementString The SQL statement to be executed, with a ? for each parameter.
+     * @param recordType The type of record that the query will return (country, city, capital city etc.).
+     * @param parameters The values bound to the placeholders, in order.
+     * @return An ArrayList of record objects, or null if the query failed
+     */
+    public List<Record> executePreparedStatement(String statementString, String recordType, Object... parameters)
     {
         ArrayList<Record> records = new ArrayList<>();
+        long count = forEachRecord(new ReportQuery(statementString, recordType, parameters), records::add, 0, null);
+        return (count < 0) ? null : records;
+    }
 
-        if (connection == null) return null;
+    /**
+     * Runs a report query and reads every result into a list.
+     * @param query The query built by one of the report methods, null if the arguments were invalid.
+     * @return An ArrayList of record objects, empty if the query was invalid or null if it failed
+     */
+    private List<Record> executeQuery(ReportQuery query)
+    {
+        if (query == null) return new ArrayList<>();
 
-        try
+        ArrayList<Record> records = new ArrayList<>();
+        long count = forEachRecord(query, records::add, 0, null);
+        return (count < 0) ? null : records;
+    }
+
+    /**
+     * Builds the query for a report request.
+     * @param request The report to build the query for.
+     * @return The query, or null if the request is invalid
+     */
+    ReportQuery buildQuery(ReportRequest request)
+    {
+        String areaFilter = request.getAreaFilter();
+        String areaName = request.getAreaName();
+        int n = request.getN();
+
+        switch (request.getQueryId())
+        {
+            case (1):
+                return allCountriesInQuery(areaFilter, areaName);
+            case (2):
+                return topNCountriesInQuery(areaFilter, areaName, n);
+            case (3):
+                return allCitiesInQuery(areaFilter, areaName);
+            case (4):
+                return topNCitiesInQuery(areaFilter, areaName, n);
+            case (5):
+                return allCapitalCitiesInQuery(areaFilter, areaName);
+            case (6):
+                return topNCapitalCitiesInQuery(areaFilter, areaName, n);
+            case (7):
+                return populationLivingInAndNotInCitiesQuery(areaFilter, areaName);
+            case (8):
+                return populationOfQuery(areaFilter, areaName);
+            case (9):
+                return languageReportQuery();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Sets how many rows are fetched from the database at a time when a report is streamed.  Streamed
+     * reports read through a server-side cursor, so memory use depends on this rather than the size of
+     * the report.
+     * @param fetchSize The number of rows fetched per round trip, must be at least 1.
+     */
+    public void setFetchSize(int fetchSize)
+    {
+        if (fetchSize < 1) throw new IllegalArgumentException("Fetch size must be at least 1");
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() { return fetchSize; }
+
+    /**
+     * Runs a report and hands each record to the consumer as soon as its row is read, so the whole report
+     * is never held in memory.  The statement, result set and connection are closed before this returns.
+     * @param request The report to run.
+     * @param consumer Called once for each record, in report order.
+     * @return The number of records read, 0 if the request was invalid or -1 if the query failed.
+     */
+    @Override
+    public long forEachRecord(ReportRequest request, Consumer<Record> consumer)
+    {
+        ReportQuery query = buildQuery(request);
+        if (query == null) return (request.getQueryId() >= 1 && request.getQueryId() <= 9) ? 0 : -1;
+
+        return forEachRecord(query, consumer, fetchSize, null);
+    }
+
+    /**
+     * Runs a report which can be cancelled from another thread through its handle.
+     * @param request The report to run.
+     * @param handle Cancels the report's statement.
+     * @return The records in the report, empty if the request was invalid or null if the report doesn't
+     *         exist, failed or was cancelled
+     */
+    List<Record> execute(ReportRequest request, QueryHandle handle)
+    {
+        ReportQuery query = buildQuery(request);
+        if (query == null) return (request.getQueryId() >= 1 && request.getQueryId() <= 9) ? new ArrayList<>() : null;
+
+        ArrayList<Record> records = new ArrayList<>();
+        long count = forEachRecord(query, records::add, 0, handle);
+        return (count < 0) ? null : records;
+    }
+
+    /**
+     * Runs several reports in one round trip to the database.  Their queries are sent as one
+     * multi-statement call, which needs allowMultiQueries on the connection, and each result set is read
+     * back into its own report.  The call is only sent on a connection from the batch pool, a DAO without
+     * one runs the reports one after another, as its connections don't allow several statements in one
+     * call.  Invalid requests aren't sent.  If a query fails,
+     * MySQL doesn't run the queries after it, so those reports are null along with the failed one.
+     * @param requests The reports to run.
+     * @return The records in each report in request order, empty if the request was invalid or null if
+     *         the report doesn't exist or its query failed
+     */
+    @Override
+    public List<List<Record>> executeBatch(List<ReportRequest> requests)
+    {
+        List<List<Record>> results = new ArrayList<>(Collections.nCopies(requests.size(), (List<Record>) null));
+        List<Integer> sent = new ArrayList<>();
+        List<ReportQuery> queries = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++)
         {
-            // Create the SQL statement object for sending statements to the database
-            Statement statement = connection.createStatement();
-            // Execute the query
-            ResultSet resultSet = statement.executeQuery(statementString);
-            // Create Country object and add it to the list for each result in the query
-            while (resultSet.next())
+            ReportRequest request = requests.get(i);
+            ReportQuery query = buildQuery(request);
+            if (query == null)
             {
-                if (resultSet.getString("name") != null) records.add(new Record(resultSet, recordType));
+                if (request.getQueryId() >= 1 && request.getQueryId() <= 9) results.set(i, new ArrayList<>());
+                continue;
+            }
+            sent.add(i);
+            queries.add(query);
+        }
+        if (queries.isEmpty()) return results;
+        if (queries.size() == 1 || batchPool == null)
+        {
+            for (int i = 0; i < queries.size(); i++) results.set(sent.get(i), executeQuery(queries.get(i)));
+            return results;
+        }
+
+        // Join the queries into one call, with their parameters in the same order
+        StringBuilder statementString = new StringBuilder();
+        List<Object> parameters = new ArrayList<>();
+        for (ReportQuery query : queries)
+        {
+            if (statementString.length() > 0) statementString.append(BATCH_SEPARATOR);
+            statementString.append(query.getStatement());
+            parameters.addAll(Arrays.asList(query.getParameters()));
+        }
+
+        // A batch is recorded as a whole, mapping isn't timed apart from fetching
+        QueryStats stats = metrics.get(BATCH_USE_CASE, null);
+        long start = System.nanoTime();
+
+        Connection borrowed = borrowBatchConnection();
+        if (borrowed == null)
+        {
+            stats.recordError();
+            return results;
+        }
+
+        int current = 0;
+        long rows = 0;
+        try (PreparedStatement statement = borrowed.prepareStatement(statementString.toString()))
+        {
+            bindParameters(statement, parameters.toArray());
+            QueryExecuteEvent executeEvent = new QueryExecuteEvent();
+            executeEvent.begin();
+            long executeStart = System.nanoTime();
+            boolean hasResultSet = statement.execute();
+            long readStart = System.nanoTime();
+            commit(executeEvent, stats, statementString.toString(), parameters.size());
+            ResultFetchEvent fetchEvent = new ResultFetchEvent();
+            fetchEvent.begin();
+
+            // Each query gives one result set, read them back in the order they were sent
+            for (; current < queries.size(); current++)
+            {
+                if (!hasResultSet) throw new SQLException("Expected a result set for query " + (current + 1));
+
+                String recordType = queries.get(current).getRecordType();
+                ArrayList<Record> records = new ArrayList<>();
+                try (ResultSet resultSet = statement.getResultSet())
+                {
+                    while (resultSet.next())
+                    {
+                        if (resultSet.getString("name") == null) continue;
+                        records.add(new Record(resultSet, recordType));
+                    }
+                }
+                results.set(sent.get(current), records);
+                rows += records.size();
+                hasResultSet = statement.getMoreResults();
+            }
+            long end = System.nanoTime();
+            stats.record(end - start, readStart - executeStart, end - readStart, 0, rows);
+            if (fetchEvent.shouldCommit())
+            {
+                fetchEvent.useCase = stats.getUseCase();
+                fetchEvent.areaFilter = stats.getAreaFilter();
+                fetchEvent.rowCount = rows;
+                fetchEvent.commit();
+            }
+        }
+        catch (SQLException e)
+        {
+            stats.recordError();
+            System.out.println("Batch query " + (current + 1) + " of " + queries.size() + " failed");
+            System.out.println(e.getMessage());
+        }
+        finally
+        {
+            releaseBatchConnection(borrowed);
+        }
+        return results;
+    }
+
+    /**
+     * Executes a query and hands each record to the consumer as its row is read.
+     * @param query The query to execute.
+     * @param consumer Called once for each record.
+     * @param rowsPerFetch The fetch size, 0 reads the whole result in one go.
+     * @param handle Cancels the query from another thread, may be null.
+     * @return The number of records read, or -1 if the query failed or was cancelled
+     */
+    private long forEachRecord(ReportQuery query, Consumer<Record> consumer, int rowsPerFetch, QueryHandle handle)
+    {
+        String recordType = query.getRecordType();
+        QueryStats stats = metrics.get(query.getUseCase(), query.getAreaFilter());
+        long start = System.nanoTime();
+
+        Connection borrowed = borrowConnection();
+        if (borrowed == null)
+        {
+            stats.recordError();
+            return -1;
+        }
+
+        long count = 0;
+        long executeNanos;
+        long readNanos;
+        long sampledNanos = 0;
+        long sampledRows = 0;
+        // Prepare the SQL statement, the driver hands back a cached one if this connection has seen it before
+        try (PreparedStatement statement = borrowed.prepareStatement(query.getStatement(),
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+        {
+            if (handle != null && !handle.start(statement)) return -1;
+            bindParameters(statement, query.getParameters());
+            statement.setFetchSize(rowsPerFetch);
+            // Cancelling a statement which isn't running yet does nothing, so a cancel since start is
+            // checked again here rather than letting the query run to the end
+            if (handle != null && handle.isCancelled()) return -1;
+
+            // Execute the query and create a Record for each result
+            QueryExecuteEvent executeEvent = new QueryExecuteEvent();
+            executeEvent.begin();
+            long executeStart = System.nanoTime();
+            try (ResultSet resultSet = statement.executeQuery())
+            {
+                long readStart = System.nanoTime();
+                executeNanos = readStart - executeStart;
+                commit(executeEvent, stats, query.getStatement(), query.getParameterCount());
+
+                ResultFetchEvent fetchEvent = new ResultFetchEvent();
+                fetchEvent.begin();
+                while (resultSet.next())
+                {
+                    if (resultSet.getString("name") == null) continue;
+                    if (count % MAPPING_SAMPLE_INTERVAL == 0)
+                    {
+                        RecordMappingEvent mappingEvent = new RecordMappingEvent();
+                        mappingEvent.begin();
+                        long mappingStart = System.nanoTime();
+                        Record record = new Record(resultSet, recordType);
+                        sampledNanos += System.nanoTime() - mappingStart;
+                        sampledRows++;
+                        if (mappingEvent.shouldCommit())
+                        {
+                            mappingEvent.useCase = stats.getUseCase();
+                            mappingEvent.areaFilter = stats.getAreaFilter();
+                            mappingEvent.recordType = recordType;
+                            mappingEvent.rowsRepresented = MAPPING_SAMPLE_INTERVAL;
+                            mappingEvent.commit();
+                        }
+                        consumer.accept(record);
+                    }
+                    else consumer.accept(new Record(resultSet, recordType));
+                    count++;
+                }
+                readNanos = System.nanoTime() - readStart;
+                if (fetchEvent.shouldCommit())
+                {
+                    fetchEvent.useCase = stats.getUseCase();
+                    fetchEvent.areaFilter = stats.getAreaFilter();
+                    fetchEvent.rowCount = count;
+                    fetchEvent.streamed = rowsPerFetch > 0;
+                    fetchEvent.commit();
+                }
             }
         }
         catch (SQLException e)
         {
+            // A cancelled query fails on purpose, so it isn't reported
+            if (handle != null && handle.isCancelled()) return -1;
+            stats.recordError();
             System.out.println(recordType + " query failed");
             System.out.println(e.getMessage());
-            return null;
+            return -1;
+        }
+        finally
+        {
+            if (handle != null) handle.finish();
+            releaseConnection(borrowed);
+        }
+
+        record(query, stats, start, executeNanos, readNanos, sampledNanos, sampledRows, count);
+        return count;
+    }
+
+    /**
+     * Records a finished query's timings in its stats and hands it to the slow query log.  Streamed reports
+     * hand each record on as it's read, so fetching includes the consumer's time.
+     * @param query The query run.
+     * @param stats The stats for the query's report.
+     * @param start When the query started, from System.nanoTime, before borrowing a connection.
+     * @param executeNanos Running the statement.
+     * @param readNanos Reading the rows, including building the records.
+     * @param sampledNanos Building the records whose mapping was timed.
+     * @param sampledRows The number of records whose mapping was timed.
+     * @param count The number of records read.
+     */
+    private static void record(ReportQuery query, QueryStats stats, long start, long executeNanos, long readNanos,
+                               long sampledNanos, long sampledRows, long count)
+    {
+        long mappingNanos = (sampledRows == 0) ? 0 : sampledNanos * count / sampledRows;
+        long totalNanos = System.nanoTime() - start;
+        long fetchNanos = Math.max(0, readNanos - mappingNanos);
+        stats.record(totalNanos, executeNanos, fetchNanos, mappingNanos, count);
+        SlowQueryLog log = slowQueryLog;
+        if (log != null) log.record(query, totalNanos, executeNanos, fetchNanos, mappingNanos, count);
+    }
+
+    /**
+     * Commits a query execute event if the flight recorder wants it, only filling it in if so.
+     */
+    private static void commit(QueryExecuteEvent event, QueryStats stats, String sql, int parameterCount)
+    {
+        if (!event.shouldCommit()) return;
+        event.useCase = stats.getUseCase();
+        event.areaFilter = stats.getAreaFilter();
+        event.sql = sql;
+        event.parameterCount = parameterCount;
+        event.commit();
+    }
+
+    /**
+     * Runs a report and returns its records as a stream which reads rows from the database as it's
+     * consumed.  The stream holds a connection open until it's closed, so it must be used in a
+     * try-with-resources block.  The report is recorded in the metrics and slow query log like any other
+     * when the stream is closed, with the rows read up to then.
+     * @param request The report to run.
+     * @return A stream of the report's records, empty if the request was invalid
+     * @throws SQLException if the query can't be run
+     */
+    public Stream<Record> streamRecords(ReportRequest request) throws SQLException
+    {
+        ReportQuery query = buildQuery(request);
+        if (query == null) return Stream.empty();
+
+        String recordType = query.getRecordType();
+        QueryStats stats = metrics.get(query.getUseCase(), query.getAreaFilter());
+        long start = System.nanoTime();
+
+        Connection borrowed = borrowConnection();
+        if (borrowed == null)
+        {
+            stats.recordError();
+            throw new SQLException("No database connection available");
+        }
+
+        PreparedStatement statement = null;
+        ResultSet resultSet;
+        long executeNanos;
+        try
+        {
+            statement = borrowed.prepareStatement(query.getStatement(),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            bindParameters(statement, query.getParameters());
+            statement.setFetchSize(fetchSize);
+
+            QueryExecuteEvent executeEvent = new QueryExecuteEvent();
+            executeEvent.begin();
+            long executeStart = System.nanoTime();
+            resultSet = statement.executeQuery();
+            executeNanos = System.nanoTime() - executeStart;
+            commit(executeEvent, stats, query.getStatement(), query.getParameterCount());
+        }
+        catch (SQLException e)
+        {
+            stats.recordError();
+            closeQuietly(statement);
+            releaseConnection(borrowed);
+            throw e;
+        }
+
+        PreparedStatement openStatement = statement;
+        ResultFetchEvent fetchEvent = new ResultFetchEvent();
+        fetchEvent.begin();
+        long readStart = System.nanoTime();
+        // Only touched by the thread consuming the stream
+        long[] count = new long[1];
+        long[] sampledNanos = new long[1];
+        long[] sampledRows = new long[1];
+        boolean[] failed = new boolean[1];
+        Spliterator<Record> rows = new Spliterators.AbstractSpliterator<Record>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL)
+        {
+            @Override
+            public boolean tryAdvance(Consumer<? super Record> action)
+            {
+                try
+                {
+                    while (resultSet.next())
+                    {
+                        if (resultSet.getString("name") == null) continue;
+                        Record record;
+                        if (count[0] % MAPPING_SAMPLE_INTERVAL == 0)
+                        {
+                            RecordMappingEvent mappingEvent = new RecordMappingEvent();
+                            mappingEvent.begin();
+                            long mappingStart = System.nanoTime();
+                            record = new Record(resultSet, recordType);
+                            sampledNanos[0] += System.nanoTime() - mappingStart;
+                            sampledRows[0]++;
+                            if (mappingEvent.shouldCommit())
+                            {
+                                mappingEvent.useCase = stats.getUseCase();
+                                mappingEvent.areaFilter = stats.getAreaFilter();
+                                mappingEvent.recordType = recordType;
+                                mappingEvent.rowsRepresented = MAPPING_SAMPLE_INTERVAL;
+                                mappingEvent.commit();
+                            }
+                        }
+                        else record = new Record(resultSet, recordType);
+                        count[0]++;
+                        action.accept(record);
+                        return true;
+                    }
+                    return false;
+                }
+                catch (SQLException e)
+                {
+                    failed[0] = true;
+                    throw new IllegalStateException(recordType + " query failed", e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(rows, false).onClose(() -> {
+            long readNanos = System.nanoTime() - readStart;
+            closeQuietly(resultSet);
+            closeQuietly(openStatement);
+            releaseConnection(borrowed);
+
+            if (failed[0])
+            {
+                stats.recordError();
+                return;
+            }
+            if (fetchEvent.shouldCommit())
+            {
+                fetchEvent.useCase = stats.getUseCase();
+                fetchEvent.areaFilter = stats.getAreaFilter();
+                fetchEvent.rowCount = count[0];
+                fetchEvent.streamed = true;
+                fetchEvent.commit();
+            }
+            record(query, stats, start, executeNanos, readNanos, sampledNanos[0], sampledRows[0], count[0]);
+        });
+    }
+
+    private static void closeQuietly(AutoCloseable resource)
+    {
+        if (resource == null) return;
+        try
+        {
+            resource.close();
+        }
+        catch (Exception e)
+        {
+            System.out.println("Error closing query resources");
+        }
+    }
+
+    /**
+     * Binds each parameter to its placeholder in the statement.
+     * @param statement The prepared statement.
+     * @param parameters The values to bind, either Strings or Integers.
+     * @throws SQLException if a parameter can't be bound
+     */
+    static void bindParameters(PreparedStatement statement, Object[] parameters) throws SQLException
+    {
+        for (int i = 0; i < parameters.length; i++)
+        {
+            if (parameters[i] instanceof Integer) statement.setInt(i + 1, (Integer) parameters[i]);
+            else statement.setString(i + 1, (String) parameters[i]);
         }
-        return records;
+    }
+
+    /**
+     * Builds the list of values for a report's placeholders.  The area name is repeated once for each
+     * time the where condition appears in the query, and isn't needed at all for the world.
+     * @param areaFilter The area filter the report is run with.
+     * @param areaName The name of the area.
+     * @param whereConditionCount The number of times the where condition appears in the query.
+     * @param n The limit for top N queries, or null if the query has no limit.
+     * @return The parameters in the order their placeholders appear.
+     */
+    static Object[] areaParameters(String areaFilter, String areaName, int whereConditionCount, Integer n)
+    {
+        ArrayList<Object> parameters = new ArrayList<>();
+        if (!App.WORLD.equals(areaFilter))
+        {
+            for (int i = 0; i < whereConditionCount; i++) parameters.add(areaName);
+        }
+        if (n != null) parameters.add(n);
+        return parameters.toArray();
     }
 
     /**
@@ -101,11 +832,11 @@ public class DAO
      * @param n The value of n, if the query takes an n
      * @return True if the query will result in an invalid SQL statement, otherwise false
      */
-    public boolean queryInvalid(String queryName,
-                                String whereCondition,
-                                String areaFilter,
-                                List<String> validAreaFilters,
-                                int n)
+    public static boolean queryInvalid(String queryName,
+                                       String whereCondition,
+                                       String areaFilter,
+                                       List<String> validAreaFilters,
+                                       int n)
     {
         if (whereCondition == null || n < 1)
         {
@@ -127,16 +858,26 @@ public class DAO
      * @param areaName The name of the area you want to get countries from.
      * @return An ordered list of countries sorted by descending population
      */
+    @Override
     public List<Record> allCountriesIn(String areaFilter, String areaName)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.WORLD, App.CONTINENT, App.REGION));
+        return executeQuery(allCountriesInQuery(areaFilter, areaName));
+    }
+
+    /**
+     * Builds the query for allCountriesIn.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery allCountriesInQuery(String areaFilter, String areaName)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("allCountriesIn", whereCondition,
-                areaFilter, validAreaFilters, 1)) return new ArrayList<>();
+                areaFilter, COUNTRY_AREA_FILTERS, 1)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT code,\n" +
+        // Get the SQL query for this area filter
+        String statementString = statements.get("allCountriesIn", areaFilter, whereCondition,
+                where -> "SELECT code,\n" +
                 "country.name,\n" +
                 "continent,\n" +
                 "region,\n" +
@@ -144,10 +885,11 @@ public class DAO
                 "city.name AS capital\n" +
                 "FROM country\n" +
                 "    JOIN city ON country.capital = city.id\n" +
-                "WHERE " + whereCondition +
-                "ORDER BY country.population DESC";
+                "WHERE " + where +
+                "ORDER BY country.population DESC");
 
-        return executeStatement(statementString, App.COUNTRY);
+        return new ReportQuery("allCountriesIn", areaFilter, statementString, App.COUNTRY,
+                areaParameters(areaFilter, areaName, 1, null));
     }
 
     /**
@@ -158,16 +900,26 @@ public class DAO
      * @param n The maximum number of results shown.
      * @return An ordered list of countries sorted by descending population.
      */
+    @Override
     public List<Record> topNCountriesIn(String areaFilter, String areaName, Integer n)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.WORLD, App.CONTINENT, App.REGION));
+        return executeQuery(topNCountriesInQuery(areaFilter, areaName, n));
+    }
+
+    /**
+     * Builds the query for topNCountriesIn.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery topNCountriesInQuery(String areaFilter, String areaName, Integer n)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("topNCountriesIn", whereCondition,
-                areaFilter, validAreaFilters, n)) return new ArrayList<>();
+                areaFilter, COUNTRY_AREA_FILTERS, n)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT country.code,\n" +
+        // Get the SQL query for this area filter
+        String statementString = statements.get("topNCountriesIn", areaFilter, whereCondition,
+                where -> "SELECT country.code,\n" +
                 "country.name,\n" +
                 "continent,\n" +
                 "region,\n" +
@@ -176,10 +928,12 @@ public class DAO
                 "FROM country\n" +
                 "    JOIN city ON country.code = city.countrycode\n" +
                 "    AND country.capital = city.id\n" +
-                "WHERE " + whereCondition +
+                "WHERE " + where +
                 "ORDER BY population DESC\n" +
-                "LIMIT " + n;
-        return executeStatement(statementString, App.COUNTRY);
+                "LIMIT ?");
+
+        return new ReportQuery("topNCountriesIn", areaFilter, statementString, App.COUNTRY,
+                areaParameters(areaFilter, areaName, 1, n));
     }
 
     /**
@@ -189,23 +943,33 @@ public class DAO
      * @param areaName The name of the area you want to get cities from.
      * @return An ordered list of cities sorted by descending population
      */
+    @Override
     public List<Record> allCitiesIn(String areaFilter, String areaName)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.WORLD, App.CONTINENT, App.REGION,
-                App.COUNTRY, App.DISTRICT));
+        return executeQuery(allCitiesInQuery(areaFilter, areaName));
+    }
+
+    /**
+     * Builds the query for allCitiesIn.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery allCitiesInQuery(String areaFilter, String areaName)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("allCitiesIn", whereCondition,
-                areaFilter, validAreaFilters, 1)) return new ArrayList<>();
+                areaFilter, CITY_AREA_FILTERS, 1)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT city.name, district, city.population, country.name AS country\n" +
+        // Get the SQL query for this area filter
+        String statementString = statements.get("allCitiesIn", areaFilter, whereCondition,
+                where -> "SELECT city.name, district, city.population, country.name AS country\n" +
                 "FROM city\n" +
                 "    JOIN country ON city.countrycode = country.code\n" +
-                "WHERE " + whereCondition +
-                "ORDER BY city.population DESC;";
+                "WHERE " + where +
+                "ORDER BY city.population DESC");
 
-        return executeStatement(statementString, App.CITY);
+        return new ReportQuery("allCitiesIn", areaFilter, statementString, App.CITY,
+                areaParameters(areaFilter, areaName, 1, null));
     }
 
     /**
@@ -216,25 +980,35 @@ public class DAO
      * @param n The maximum number of results shown.
      * @return An ordered list of cities sorted by descending population.
      */
+    @Override
     public List<Record> topNCitiesIn(String areaFilter, String areaName, Integer n)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.WORLD, App.CONTINENT, App.REGION,
-                App.COUNTRY, App.DISTRICT));
+        return executeQuery(topNCitiesInQuery(areaFilter, areaName, n));
+    }
+
+    /**
+     * Builds the query for topNCitiesIn.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery topNCitiesInQuery(String areaFilter, String areaName, Integer n)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("topNCitiesIn", whereCondition,
-                areaFilter, validAreaFilters, n)) return new ArrayList<>();
+                areaFilter, CITY_AREA_FILTERS, n)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT city.name, district, city.population, country.name AS country\n" +
+        // Get the SQL query for this area filter
+        String statementString = statements.get("topNCitiesIn", areaFilter, whereCondition,
+                where -> "SELECT city.name, district, city.population, country.name AS country\n" +
                 "FROM city\n" +
                 "    JOIN country ON city.countrycode = country.code\n" +
                 "WHERE city.population > 0 \n" +
-                "AND " + whereCondition +
+                "AND " + where +
                 "ORDER BY city.population DESC \n" +
-                "LIMIT " + n;
+                "LIMIT ?");
 
-        return executeStatement(statementString, App.CITY);
+        return new ReportQuery("topNCitiesIn", areaFilter, statementString, App.CITY,
+                areaParameters(areaFilter, areaName, 1, n));
     }
 
     /**
@@ -244,16 +1018,26 @@ public class DAO
      * @param areaName The name of the area you want to get capital cities from.
      * @return An ordered list of capital cities sorted by descending population
      */
+    @Override
     public List<Record> allCapitalCitiesIn(String areaFilter, String areaName)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.WORLD, App.CONTINENT, App.REGION));
+        return executeQuery(allCapitalCitiesInQuery(areaFilter, areaName));
+    }
+
+    /**
+     * Builds the query for allCapitalCitiesIn.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery allCapitalCitiesInQuery(String areaFilter, String areaName)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("allCapitalCitiesIn", whereCondition,
-                areaFilter, validAreaFilters, 1)) return new ArrayList<>();
+                areaFilter, COUNTRY_AREA_FILTERS, 1)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT city.name,\n" +
+        // Get the SQL query for this area filter
+        String statementString = statements.get("allCapitalCitiesIn", areaFilter, whereCondition,
+                where -> "SELECT city.name,\n" +
                 "city.population,\n" +
                 "country.region,\n" +
                 "country.continent,\n" +
@@ -261,10 +1045,11 @@ public class DAO
                 "FROM city\n" +
                 "    JOIN country ON city.countrycode = country.code\n" +
                 "WHERE city.id = country.capital \n" +
-                "AND " + whereCondition +
-                "ORDER BY city.population DESC";
+                "AND " + where +
+                "ORDER BY city.population DESC");
 
-        return executeStatement(statementString, App.CAPITAL_CITY);
+        return new ReportQuery("allCapitalCitiesIn", areaFilter, statementString, App.CAPITAL_CITY,
+                areaParameters(areaFilter, areaName, 1, null));
     }
 
     /**
@@ -275,16 +1060,26 @@ public class DAO
      * @param n The maximum number of results shown.
      * @return An ordered list of capital cities in a specific area sorted by descending population.
      */
+    @Override
     public List<Record> topNCapitalCitiesIn(String areaFilter, String areaName, Integer n)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.WORLD, App.CONTINENT, App.REGION));
+        return executeQuery(topNCapitalCitiesInQuery(areaFilter, areaName, n));
+    }
+
+    /**
+     * Builds the query for topNCapitalCitiesIn.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery topNCapitalCitiesInQuery(String areaFilter, String areaName, Integer n)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("topNCapitalCitiesIn", whereCondition,
-                areaFilter, validAreaFilters, n)) return new ArrayList<>();
+                areaFilter, COUNTRY_AREA_FILTERS, n)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT city.name,\n" +
+        // Get the SQL query for this area filter
+        String statementString = statements.get("topNCapitalCitiesIn", areaFilter, whereCondition,
+                where -> "SELECT city.name,\n" +
                 "city.population,\n" +
                 "country.region,\n" +
                 "country.continent,\n" +
@@ -293,11 +1088,12 @@ public class DAO
                 "JOIN country ON city.countrycode = country.code\n" +
                 "AND city.id = country.capital \n" +
                 "WHERE city.population > 0 \n" +
-                "AND " + whereCondition +
+                "AND " + where +
                 "ORDER BY city.population DESC\n" +
-                "LIMIT " + n;
+                "LIMIT ?");
 
-        return executeStatement(statementString, App.CAPITAL_CITY);
+        return new ReportQuery("topNCapitalCitiesIn", areaFilter, statementString, App.CAPITAL_CITY,
+                areaParameters(areaFilter, areaName, 1, n));
     }
 
     /**
@@ -308,29 +1104,40 @@ public class DAO
      * @param areaName The name of the area you want to get the residence report from.
      * @return The report as the only item in an array.
      */
+    @Override
     public List<Record> populationLivingInAndNotInCities(String areaFilter, String areaName)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.CONTINENT, App.REGION, App.COUNTRY));
+        return executeQuery(populationLivingInAndNotInCitiesQuery(areaFilter, areaName));
+    }
+
+    /**
+     * Builds the query for populationLivingInAndNotInCities.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery populationLivingInAndNotInCitiesQuery(String areaFilter, String areaName)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("populationLivingInAndNotInCities", whereCondition,
-                areaFilter, validAreaFilters, 1)) return new ArrayList<>();
+                areaFilter, RESIDENCE_AREA_FILTERS, 1)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT name,\n" +
+        // Get the SQL query for this area filter, the where condition appears in both sub-queries
+        String statementString = statements.get("populationLivingInAndNotInCities", areaFilter, whereCondition,
+                where -> "SELECT name,\n" +
                 "totalPopulation,\n" +
                 "populationInCities,\n" +
                 "(totalPopulation - populationInCities) AS populationNotInCities\n" +
-                "FROM (SELECT " + whereCondition.split("\\s+")[0] + " AS name,\n" +
+                "FROM (SELECT " + where.split("\\s+")[0] + " AS name,\n" +
                 "SUM(population) AS totalPopulation\n" +
                 "    FROM country\n" +
-                "    WHERE " + whereCondition + ") t,\n" +
+                "    WHERE " + where + ") t,\n" +
                 "    (SELECT SUM(city.population) AS populationInCities\n" +
                 "    FROM city\n" +
                 "        JOIN country ON city.countrycode = country.code\n" +
-                "    WHERE " + whereCondition + ") c";
+                "    WHERE " + where + ") c");
 
-        return executeStatement(statementString, App.RESIDENCE_REPORT);
+        return new ReportQuery("populationLivingInAndNotInCities", areaFilter, statementString,
+                App.RESIDENCE_REPORT, areaParameters(areaFilter, areaName, 2, null));
     }
 
     /**
@@ -340,25 +1147,35 @@ public class DAO
      * @param areaName The name of the area of which you want to get the population.
      * @return The population of the specified area.
      */
+    @Override
     public List<Record> populationOf(String areaFilter, String areaName)
     {
-        String whereCondition = getWhereCondition(areaFilter, areaName);
-        ArrayList<String> validAreaFilters = new ArrayList<>(Arrays.asList(App.WORLD, App.CONTINENT, App.REGION,
-                App.COUNTRY, App.DISTRICT, App.CITY));
+        return executeQuery(populationOfQuery(areaFilter, areaName));
+    }
+
+    /**
+     * Builds the query for populationOf.
+     * @return The query, or null if the arguments are invalid
+     */
+    private ReportQuery populationOfQuery(String areaFilter, String areaName)
+    {
+        String whereCondition = getParameterisedWhereCondition(areaFilter, areaName);
 
         if (queryInvalid("populationOf", whereCondition,
-                areaFilter, validAreaFilters, 1)) return new ArrayList<>();
+                areaFilter, POPULATION_AREA_FILTERS, 1)) return null;
 
-        // Define the SQL query as a string
-        String statementString = "SELECT " +
-                ((areaFilter.equals(App.WORLD)) ? "'world'" : whereCondition.split("\\s+")[0]) +
+        // Get the SQL query for this area filter
+        String statementString = statements.get("populationOf", areaFilter, whereCondition,
+                where -> "SELECT " +
+                ((areaFilter.equals(App.WORLD)) ? "'world'" : where.split("\\s+")[0]) +
                 " AS name,\n" +
-                "SUM(" + whereCondition.split("\\.")[0] + ".population) AS population\n" +
+                "SUM(" + where.split("\\.")[0] + ".population) AS population\n" +
                 "FROM country\n" +
-                (("city".equals(whereCondition.split("\\.")[0])) ? "JOIN city ON countryCode = code\n" : "") +
-                "WHERE " + whereCondition;
+                (("city".equals(where.split("\\.")[0])) ? "JOIN city ON countryCode = code\n" : "") +
+                "WHERE " + where);
 
-        return executeStatement(statementString, App.POPULATION);
+        return new ReportQuery("populationOf", areaFilter, statementString, App.POPULATION,
+                areaParameters(areaFilter, areaName, 1, null));
     }
 
     /**
@@ -366,10 +1183,21 @@ public class DAO
      * Constructs an SQL query to find the number of people who speak Chinese, English, Hindi, Spanish or Arabic.
      * @return An ordered list of languages spoken in the world sorted by the number of speakers.
      */
+    @Override
     public List<Record> languageReport()
     {
-        // Define the SQL query as a string
-        String statementString = "WITH x AS (SELECT SUM(population) AS world_population FROM country)\n" +
+        return executeQuery(languageReportQuery());
+    }
+
+    /**
+     * Builds the query for languageReport.
+     * @return The query
+     */
+    private ReportQuery languageReportQuery()
+    {
+        // Get the SQL query, this report has no area filter
+        String statementString = statements.get("languageReport", App.WORLD, null,
+                where -> "WITH x AS (SELECT SUM(population) AS world_population FROM country)\n" +
                 "SELECT `language` AS name, speakers, ((speakers / world_population) * 100) AS percentage\n" +
                 "FROM x, (\n" +
                 "    SELECT `language`,\n" +
@@ -381,8 +1209,8 @@ public class DAO
                 "    OR countrylanguage.language = 'Spanish' OR countrylanguage.language = 'Hindi' " +
                 "    OR countrylanguage.language = 'Arabic'\n" +
                 "    GROUP BY `language`\n" +
-                "    ORDER BY speakers DESC) AS language_info";
+                "    ORDER BY speakers DESC) AS language_info");
 
-        return executeStatement(statementString, App.LANGUAGE);
+        return new ReportQuery("languageReport", null, statementString, App.LANGUAGE);
     }
 }
@@ -0,0 +1,57 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the language report (use case 9)
+ */
+public final class LanguageRow extends ReportRow
+{
+    private final String name;
+    private final long speakers;
+    private final int percentage;
+
+    public LanguageRow(String name, long speakers, int percentage)
+    {
+        this.name = name;
+        this.speakers = speakers;
+        this.percentage = percentage;
+    }
+
+    /**
+     * Reads a row selected as name, speakers, percentage.
+     * @param result The result, positioned on a row.
+     * @return The row
+     * @throws SQLException if a column can't be read
+     */
+    static LanguageRow map(ResultSet result) throws SQLException
+    {
+        return new LanguageRow(result.getString(1),
+                result.getLong(2),
+                result.getInt(3));
+    }
+
+    @Override
+    public String getRecordType() { return App.LANGUAGE; }
+
+    @Override
+    public String getName() { return name; }
+    @Override
+    public long getSpeakers() { return speakers; }
+    public int getPercentage() { return percentage; }
+
+    /**
+     * Formats the language data in a consistent, readable manner
+     * @return A string representing a language record
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(App.HORIZONTAL_LINE + "\n" +
+                        "Language: %s |  Speakers: %,d | %% of world's population: %d%%",
+                name,
+                speakers,
+                percentage);
+    }
+}
@@ -0,0 +1,137 @@
+package com.napier.sem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long requests take, in buckets that double in width (under 1µs, under 2µs, under 4µs and
+ * so on), so recording a latency is a couple of atomic adds and percentiles can be read at any time.
+ * Each bucket is split into 16 sub-buckets of equal width, and latencies under 16µs get a sub-bucket
+ * per microsecond.  Percentiles are the upper bound of the sub-bucket they fall in, so they're at most
+ * 1/16 (6.25%) above the true value.  The doubling buckets are kept for exporting, they're the sums of
+ * their sub-buckets.
+ */
+public class LatencyHistogram
+{
+    // Bucket i counts latencies below 2^i microseconds, the last bucket counts everything longer
+    static final int BUCKETS = 40;
+    // Sub-buckets per bucket, a power of two
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Below SUB_BUCKETS microseconds there's a sub-bucket per microsecond, after that SUB_BUCKETS per bucket
+    static final int SLOTS = SUB_BUCKETS + (BUCKETS - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records one latency.
+     * @param nanos How long the request took, in nanoseconds.
+     */
+    public void record(long nanos)
+    {
+        slots.incrementAndGet(slot(Math.max(0, nanos / 1000)));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() { return count.sum(); }
+    public long getMaxNanos() { return maxNanos.get(); }
+    public long getTotalNanos() { return totalNanos.sum(); }
+
+    /**
+     * @param bucket The bucket, from 0 to BUCKETS - 1.
+     * @return The number of latencies recorded in the bucket, those below its upper bound and at least
+     *         the previous bucket's.
+     */
+    public long getBucketCount(int bucket)
+    {
+        long sum = 0;
+        for (int i = firstSlot(bucket), end = firstSlot(bucket + 1); i < end; i++) sum += slots.get(i);
+        return sum;
+    }
+
+    /**
+     * @param bucket The bucket, from 0 to BUCKETS - 2, the last bucket has no upper bound.
+     * @return The latency the bucket's counts are below, in nanoseconds.
+     */
+    static long bucketUpperBoundNanos(int bucket) { return (1L << bucket) * 1000; }
+
+    /**
+     * @param micros A latency in microseconds, not negative.
+     * @return The sub-bucket the latency is counted in
+     */
+    static int slot(long micros)
+    {
+        if (micros < SUB_BUCKETS) return (int) micros;
+
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKETS) return SLOTS - 1;
+        // The top SUB_BUCKET_BITS bits below the leading one pick the sub-bucket
+        int shift = bucket - SUB_BUCKET_BITS - 1;
+        return shift * SUB_BUCKETS + (int) (micros >> shift);
+    }
+
+    /**
+     * @param bucket The bucket, from 0 to BUCKETS.
+     * @return The first sub-bucket of the bucket, SLOTS for BUCKETS
+     */
+    static int firstSlot(int bucket)
+    {
+        if (bucket == 0) return 0;
+        if (bucket <= SUB_BUCKET_BITS) return 1 << (bucket - 1);
+        return SUB_BUCKETS + (bucket - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+    }
+
+    /**
+     * @param slot The sub-bucket, from 0 to SLOTS - 1.
+     * @return The latency the sub-bucket's counts are below, in nanoseconds.
+     */
+    static long slotUpperBoundNanos(int slot)
+    {
+        if (slot < SUB_BUCKETS) return (slot + 1) * 1000L;
+        int shift = (slot - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (slot - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) * 1000;
+    }
+
+    /**
+     * @return The mean latency in nanoseconds, 0 if nothing has been recorded.
+     */
+    public long getMeanNanos()
+    {
+        long requests = count.sum();
+        return (requests == 0) ? 0 : totalNanos.sum() / requests;
+    }
+
+    /**
+     * Gets an upper bound for a percentile of the recorded latencies.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The upper bound of the sub-bucket the percentile falls in, in nanoseconds, 0 if nothing has
+     *         been recorded.
+     */
+    public long getPercentileNanos(double percentile)
+    {
+        long[] counts = new long[SLOTS];
+        long total = 0;
+        for (int i = 0; i < SLOTS; i++)
+        {
+            counts[i] = slots.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < firstSlot(BUCKETS - 1); i++)
+        {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) return Math.min(slotUpperBoundNanos(i), maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+}
@@ -0,0 +1,341 @@
+package com.napier.sem;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the app's runtime metrics in the Prometheus text format at GET /metrics, for dashboards.
+ * It covers the DAO's queries by report and area filter (counts, errors, rows mapped into records, a
+ * latency histogram and the time spent in each phase), the connection pool, the retries made connecting
+ * to the database, the report cache, coalesced reports and the JVM's allocations.
+ * Everything exported is a counter or gauge kept as the app runs, so a scrape reads a fixed number of
+ * values however many queries have been run.  Query series are kept per report and area filter, of
+ * which there are a few dozen, never per area name.
+ */
+public final class MetricsServer implements AutoCloseable
+{
+    static final String PATH = "/metrics";
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    static final String PREFIX = "world_report_";
+
+    // The histogram's doubling buckets rather than its sub-buckets, upper bounds from 2^4 to 2^25
+    // microseconds (16us to about 34s), everything below the first is counted in it and everything above
+    // the last only in +Inf
+    static final int FIRST_BUCKET = 4;
+    static final int LAST_BUCKET = 25;
+    private static final String[] BUCKET_BOUNDS = new String[LAST_BUCKET + 1];
+    static
+    {
+        for (int bucket = FIRST_BUCKET; bucket <= LAST_BUCKET; bucket++)
+        {
+            BUCKET_BOUNDS[bucket] = String.format(Locale.ROOT, "%.6f",
+                    LatencyHistogram.bucketUpperBoundNanos(bucket) / 1e9);
+        }
+    }
+
+    private final QueryMetrics queries;
+    private final ConnectionPool pool;
+    private final CachingReportSource cache;
+    private final CoalescingReportSource coalescing;
+    private final com.sun.management.ThreadMXBean threads;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a server, which doesn't accept requests until it's started.  Any source of metrics the app
+     * isn't using can be null, and is left out.
+     * @param port The port to listen on, 0 for any free port.
+     * @param queries The DAO's query metrics, usually DAO.getMetrics().
+     * @param pool The connection pool.
+     * @param cache The report cache.
+     * @param coalescing The source coalescing reports which miss the cache.
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsServer(int port, QueryMetrics queries, ConnectionPool pool, CachingReportSource cache,
+                         CoalescingReportSource coalescing) throws IOException
+    {
+        this.queries = queries;
+        this.pool = pool;
+        this.cache = cache;
+        this.coalescing = coalescing;
+
+        // Allocations are only counted by HotSpot's thread bean, and only when it's enabled
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = null;
+        if (threadBean instanceof com.sun.management.ThreadMXBean)
+        {
+            allocations = (com.sun.management.ThreadMXBean) threadBean;
+            if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled())
+            {
+                allocations = null;
+            }
+        }
+        threads = allocations;
+
+        // One thread is plenty for a scrape every few seconds
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handleScrape);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() { server.start(); }
+
+    /**
+     * @return The port the server is listening on.
+     */
+    public int getPort() { return server.getAddress().getPort(); }
+
+    /**
+     * Stops accepting requests and stops the thread.
+     */
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * Answers a scrape with every metric.
+     */
+    private void handleScrape(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            int status;
+            byte[] body;
+            if (!exchange.getRequestURI().getPath().equals(PATH))
+            {
+                status = 404;
+                body = "No such page\n".getBytes(StandardCharsets.UTF_8);
+            }
+            else if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                status = 405;
+                body = "Only GET is supported\n".getBytes(StandardCharsets.UTF_8);
+            }
+            else
+            {
+                status = 200;
+                body = scrape().getBytes(StandardCharsets.UTF_8);
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads every metric.
+     * @return The metrics in the Prometheus text format
+     */
+    synchronized String scrape()
+    {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        writeQueries(out);
+        writeConnections(out);
+        writeReportSources(out);
+        writeJvm(out);
+        return out.toString();
+    }
+
+    private void writeQueries(StringBuilder out)
+    {
+        if (queries == null) return;
+        List<QueryStats> all = queries.getAll();
+
+        header(out, "query_duration_seconds", "histogram",
+                "Time from borrowing a connection to handing over the last record");
+        for (QueryStats stats : all)
+        {
+            String labels = queryLabels(stats);
+            LatencyHistogram latency = stats.getLatency();
+            long cumulative = 0;
+            for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++)
+            {
+                cumulative += latency.getBucketCount(bucket);
+                if (bucket >= FIRST_BUCKET && bucket <= LAST_BUCKET)
+                {
+                    sample(out, "query_duration_seconds_bucket",
+                            labels + ",le=\"" + BUCKET_BOUNDS[bucket] + "\"", cumulative);
+                }
+            }
+            // The count is the buckets' total, so it agrees with +Inf while queries are being recorded
+            sample(out, "query_duration_seconds_bucket", labels + ",le=\"+Inf\"", cumulative);
+            sample(out, "query_duration_seconds_sum", labels, latency.getTotalNanos() / 1e9);
+            sample(out, "query_duration_seconds_count", labels, cumulative);
+        }
+
+        header(out, "query_phase_seconds_total", "counter",
+                "Time spent executing statements, fetching rows and mapping them into records");
+        for (QueryStats stats : all)
+        {
+            String labels = queryLabels(stats);
+            sample(out, "query_phase_seconds_total", labels + ",phase=\"execute\"",
+                    stats.getExecuteLatency().getTotalNanos() / 1e9);
+            sample(out, "query_phase_seconds_total", labels + ",phase=\"fetch\"",
+                    stats.getFetchLatency().getTotalNanos() / 1e9);
+            sample(out, "query_phase_seconds_total", labels + ",phase=\"mapping\"",
+                    stats.getMappingLatency().getTotalNanos() / 1e9);
+        }
+
+        header(out, "query_errors_total", "counter", "Queries which failed");
+        for (QueryStats stats : all)
+        {
+            sample(out, "query_errors_total", queryLabels(stats), stats.getErrorCount());
+        }
+
+        header(out, "rows_mapped_total", "counter", "Rows mapped into records");
+        for (QueryStats stats : all)
+        {
+            sample(out, "rows_mapped_total", queryLabels(stats), stats.getRowCount());
+        }
+    }
+
+    private void writeConnections(StringBuilder out)
+    {
+        header(out, "connect_attempts_total", "counter", "Attempts made to connect to the database on start up");
+        sample(out, "connect_attempts_total", null, App.CONNECT_ATTEMPTS.get());
+        header(out, "connect_retries_total", "counter", "Attempts to connect to the database which failed and were retried");
+        sample(out, "connect_retries_total", null, App.CONNECT_FAILURES.get());
+
+        if (pool == null) return;
+
+        header(out, "pool_connections", "gauge", "Pooled connections by state");
+        sample(out, "pool_connections", "state=\"active\"", pool.getActiveConnections());
+        sample(out, "pool_connections", "state=\"idle\"", pool.getIdleConnections());
+        header(out, "pool_max_connections", "gauge", "The most connections the pool will open");
+        sample(out, "pool_max_connections", null, pool.getMaxSize());
+        header(out, "pool_peak_active_connections", "gauge", "The most connections borrowed at once");
+        sample(out, "pool_peak_active_connections", null, pool.getPeakActiveConnections());
+        header(out, "pool_borrows_total", "counter", "Connections borrowed");
+        sample(out, "pool_borrows_total", null, pool.getBorrowCount());
+        header(out, "pool_waits_total", "counter", "Borrows which waited for a connection");
+        sample(out, "pool_waits_total", null, pool.getWaitCount());
+        header(out, "pool_wait_seconds_total", "counter", "Time spent waiting for a connection");
+        sample(out, "pool_wait_seconds_total", null, pool.getTotalWaitNanos() / 1e9);
+        header(out, "pool_timeouts_total", "counter", "Borrows which gave up waiting for a connection");
+        sample(out, "pool_timeouts_total", null, pool.getTimeoutCount());
+        header(out, "pool_evictions_total", "counter", "Idle connections closed");
+        sample(out, "pool_evictions_total", null, pool.getEvictionCount());
+        header(out, "pool_invalid_total", "counter", "Connections closed because they failed validation");
+        sample(out, "pool_invalid_total", null, pool.getInvalidCount());
+        header(out, "pool_leaks_total", "counter", "Connections held longer than the leak threshold");
+        sample(out, "pool_leaks_total", null, pool.getLeakCount());
+    }
+
+    private void writeReportSources(StringBuilder out)
+    {
+        if (cache != null)
+        {
+            header(out, "cache_entries", "gauge", "Reports in the cache");
+            sample(out, "cache_entries", null, cache.size());
+            header(out, "cache_requests_total", "counter", "Reports asked of the cache, by how they were answered");
+            sample(out, "cache_requests_total", "result=\"hit\"", cache.getHitCount());
+            sample(out, "cache_requests_total", "result=\"derived\"", cache.getDerivedHitCount());
+            sample(out, "cache_requests_total", "result=\"miss\"", cache.getMissCount());
+            header(out, "cache_evictions_total", "counter", "Reports evicted from the cache, or expired");
+            sample(out, "cache_evictions_total", "reason=\"size\"", cache.getEvictionCount());
+            sample(out, "cache_evictions_total", "reason=\"expired\"", cache.getExpiredCount());
+        }
+        if (coalescing != null)
+        {
+            header(out, "coalesced_reports_total", "counter", "Reports which waited for an identical report being read");
+            sample(out, "coalesced_reports_total", null, coalescing.getCoalescedCount());
+            header(out, "reports_in_flight", "gauge", "Reports being read from the database");
+            sample(out, "reports_in_flight", null, coalescing.getInFlightCount());
+        }
+    }
+
+    private void writeJvm(StringBuilder out)
+    {
+        long allocated = allocatedBytes();
+        if (allocated < 0) return;
+
+        // Only the counter is kept, the rate is rate() in PromQL so any number of scrapers can read it
+        header(out, "jvm_allocated_bytes_total", "counter", "Bytes allocated on the heap by every thread");
+        sample(out, "jvm_allocated_bytes_total", null, allocated);
+    }
+
+    /**
+     * @return The bytes every thread has allocated since the JVM started, or -1 if it isn't counted
+     */
+    private long allocatedBytes()
+    {
+        return (threads == null) ? -1 : threads.getTotalThreadAllocatedBytes();
+    }
+
+    private static String queryLabels(QueryStats stats)
+    {
+        return "use_case=\"" + escape(stats.getUseCase()) + "\",area_filter=\"" + escape(stats.getAreaFilter()) + "\"";
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help)
+    {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value)
+    {
+        sampleName(out, name, labels).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value)
+    {
+        sampleName(out, name, labels).append(value).append('\n');
+    }
+
+    private static StringBuilder sampleName(StringBuilder out, String name, String labels)
+    {
+        out.append(PREFIX).append(name);
+        if (labels != null) out.append('{').append(labels).append('}');
+        return out.append(' ');
+    }
+
+    /**
+     * Escapes a label value: backslashes, quotes and new lines are written with a backslash.
+     */
+    static String escape(String value)
+    {
+        if (value == null) return "";
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\') escaped.append("\\\\");
+            else if (c == '"') escaped.append("\\\"");
+            else if (c == '\n') escaped.append("\\n");
+            else escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,202 @@
+package com.napier.sem;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pre-computed population totals for every area in the world, arranged as a tree of
+ * world → continent → region → country → district → city.  Every node holds the total population of its
+ * area and the population living in its cities, so the population and residence reports are a single
+ * lookup instead of a scan of the country and city tables.
+ * Areas are looked up by filter and name, with names compared the way the database compares them.  Where
+ * two nodes share a name (e.g. districts called "Buenos Aires" in different countries) they share the
+ * totals for that name, as the SQL sums over every row with the name.
+ * When one city's population changes only the nodes on the path from that city to the world are updated.
+ */
+public class PopulationRollup
+{
+    private final Node world;
+
+    // The totals for each area, by area filter and then normalised area name
+    private final Map<String, Map<String, Totals>> areas = new HashMap<>();
+
+    // The city nodes, by city ID
+    private final Map<Integer, Node> cities = new HashMap<>();
+
+    /**
+     * Builds the tree from a snapshot.  Countries are added before cities, in table order, so each area
+     * is named after the first row the SQL would find for it.  Cities without a country are left out, as
+     * the SQL only counts cities which join onto a country.
+     * @param snapshot The snapshot to total up.
+     */
+    PopulationRollup(WorldSnapshot snapshot)
+    {
+        world = new Node(null, totals(App.WORLD, App.WORLD));
+
+        Node[] countries = new Node[snapshot.countryCount];
+        for (int country = 0; country < snapshot.countryCount; country++)
+        {
+            Node continent = world.child(App.CONTINENT, snapshot.string(snapshot.countryContinent[country]), this);
+            Node region = continent.child(App.REGION, snapshot.string(snapshot.countryRegion[country]), this);
+            countries[country] = region.child(App.COUNTRY, snapshot.string(snapshot.countryName[country]), this);
+
+            // Total population comes from the country table
+            long population = snapshot.countryPopulation[country];
+            for (Node node = countries[country]; node != null; node = node.parent) node.addPopulation(population);
+        }
+
+        for (int city = 0; city < snapshot.cityCount; city++)
+        {
+            int country = snapshot.cityCountry[city];
+            if (country < 0) continue;
+
+            Node district = countries[country].child(App.DISTRICT, snapshot.string(snapshot.cityDistrict[city]), this);
+            Node node = new Node(district, totals(App.CITY, snapshot.string(snapshot.cityName[city])));
+            cities.put(snapshot.cityId[city], node);
+
+            // District and city populations come from the city table
+            int population = snapshot.cityPopulation[city];
+            node.addPopulation(population);
+            district.addPopulation(population);
+            for (Node area = node; area != null; area = area.parent) area.addCity(population);
+        }
+    }
+
+    /**
+     * Gets the totals for an area name, creating them the first time the name is seen.
+     * @param areaFilter The type of area.
+     * @param name The name of the area.
+     * @return The totals shared by every area of this type with this name.
+     */
+    private Totals totals(String areaFilter, String name)
+    {
+        return areas.computeIfAbsent(areaFilter, filter -> new HashMap<>())
+                .computeIfAbsent(WorldSnapshot.normalise(name), key -> new Totals(name));
+    }
+
+    /**
+     * Use cases 8.1-8.6
+     * Looks up the population of an area.
+     * @param areaFilter The type of area (world, continent, region, country, district or city).
+     * @param areaName The name of the area, ignored for the world.
+     * @return The population record for the area, or null if there is no such area.
+     */
+    public synchronized Record populationOf(String areaFilter, String areaName)
+    {
+        Totals totals = App.WORLD.equals(areaFilter) ? world.totals : find(areaFilter, areaName);
+        if (totals == null) return null;
+        return new Record(totals.name, totals.population);
+    }
+
+    /**
+     * Use cases 7.1-7.3
+     * Looks up the population of an area living in and not in cities.
+     * @param areaFilter The type of area (continent, region or country).
+     * @param areaName The name of the area.
+     * @return The residence record for the area, or null if there is no such area.
+     */
+    public synchronized Record populationLivingInAndNotInCities(String areaFilter, String areaName)
+    {
+        Totals totals = find(areaFilter, areaName);
+        if (totals == null) return null;
+
+        // The population in cities is NULL in SQL when the area has no cities, which makes both figures 0
+        long populationNotInCities = (totals.cityCount == 0) ? 0 : totals.population - totals.cityPopulation;
+        return new Record(totals.name,
+                totals.population,
+                totals.cityPopulation,
+                (double) totals.cityPopulation / (double) totals.population * 100,
+                populationNotInCities,
+                (double) populationNotInCities / (double) totals.population * 100);
+    }
+
+    private Totals find(String areaFilter, String areaName)
+    {
+        Map<String, Totals> named = areas.get(areaFilter);
+        if (named == null || areaName == null) return null;
+        return named.get(WorldSnapshot.normalise(areaName));
+    }
+
+    /**
+     * Changes the population of a single city, updating only the city's own node and its ancestors.
+     * Called by WorldSnapshot.withCityPopulation, which keeps the snapshot's columns in step.
+     * @param cityId The database ID of the city.
+     * @param population The city's new population.
+     * @return False if the city isn't in the tree.
+     */
+    synchronized boolean updateCityPopulation(int cityId, int population)
+    {
+        Node city = cities.get(cityId);
+        if (city == null) return false;
+
+        long change = population - city.population;
+        if (change == 0) return true;
+
+        // Cities and districts are totalled from the city table, so their own population changes too
+        city.addPopulation(change);
+        city.parent.addPopulation(change);
+        for (Node area = city; area != null; area = area.parent) area.addCityPopulation(change);
+        return true;
+    }
+
+    /**
+     * The totals for one area name
+     */
+    private static class Totals
+    {
+        private final String name;
+        private long population;
+        private long cityPopulation;
+        private int cityCount;
+
+        Totals(String name) { this.name = name; }
+    }
+
+    /**
+     * A node in the tree.  The node's own figures are kept alongside the totals for its name, so the
+     * tree is correct even where names are shared.
+     */
+    private static class Node
+    {
+        private final Node parent;
+        private final Totals totals;
+        private final Map<String, Node> children = new HashMap<>();
+        private long population;
+        private long cityPopulation;
+        private int cityCount;
+
+        Node(Node parent, Totals totals)
+        {
+            this.parent = parent;
+            this.totals = totals;
+        }
+
+        /**
+         * Gets a child node by name, adding it if it doesn't exist yet.
+         */
+        Node child(String areaFilter, String name, PopulationRollup rollup)
+        {
+            return children.computeIfAbsent(WorldSnapshot.normalise(name),
+                    key -> new Node(this, rollup.totals(areaFilter, name)));
+        }
+
+        void addPopulation(long change)
+        {
+            population += change;
+            totals.population += change;
+        }
+
+        void addCity(long population)
+        {
+            cityCount++;
+            totals.cityCount++;
+            addCityPopulation(population);
+        }
+
+        void addCityPopulation(long change)
+        {
+            cityPopulation += change;
+            totals.cityPopulation += change;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The row of a population report (use case 8)
+ */
+public final class PopulationRow extends ReportRow
+{
+    private final String name;
+    private final long population;
+
+    public PopulationRow(String name, long population)
+    {
+        this.name = name;
+        this.population = population;
+    }
+
+    /**
+     * Reads a row selected as name, population.
+     * @param result The result, positioned on a row.
+     * @return The row
+     * @throws SQLException if a column can't be read
+     */
+    static PopulationRow map(ResultSet result) throws SQLException
+    {
+        return new PopulationRow(result.getString(1), result.getLong(2));
+    }
+
+    @Override
+    public String getRecordType() { return App.POPULATION; }
+
+    @Override
+    public String getName() { return name; }
+    @Override
+    public long getPopulation() { return population; }
+
+    /**
+     * Formats the population data in a consistent, readable manner
+     * @return A string representing a population record
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(App.HORIZONTAL_LINE + "\n" +
+                        "Area: %s |  Population: %,d",
+                name,
+                population);
+    }
+}
@@ -0,0 +1,22 @@
+package com.napier.sem;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Running a report's statement on the database, until the first rows are back.
+ */
+@Name("com.napier.sem.QueryExecute")
+@Label("Query Execute")
+@Description("A report query being executed by the database")
+class QueryExecuteEvent extends ReportEvent
+{
+    @Label("SQL")
+    @Description("The parameterised SQL, the same for every report of this shape")
+    String sql;
+
+    @Label("Parameters")
+    @Description("The number of values bound to the SQL")
+    int parameterCount;
+}
@@ -0,0 +1,58 @@
+package com.napier.sem;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Lets a query running on another thread be cancelled.  The DAO registers the statement it's running
+ * with the handle, and cancel calls Statement.cancel on it so the database stops working on the query
+ * straight away.  A handle cancelled before its query starts stops the query from being run at all.
+ */
+public class QueryHandle
+{
+    // Guarded by this
+    private Statement statement;
+    private boolean cancelled;
+
+    /**
+     * Registers the statement a query is about to run on.
+     * @param statement The statement.
+     * @return false if the handle has already been cancelled, in which case the query shouldn't be run
+     */
+    synchronized boolean start(Statement statement)
+    {
+        if (cancelled) return false;
+        this.statement = statement;
+        return true;
+    }
+
+    /**
+     * Unregisters the statement once its query has finished, so it's never cancelled after being closed.
+     * This must be called before the statement's connection is released, as it waits for a cancel in
+     * progress to finish.
+     */
+    synchronized void finish() { statement = null; }
+
+    /**
+     * Cancels the query, if it's running, and stops it from being run if it hasn't started.
+     */
+    public synchronized void cancel()
+    {
+        cancelled = true;
+        if (statement == null) return;
+
+        // Cancelled under the lock, so finish can't let the connection go back to the pool first.  MySQL
+        // cancels with KILL QUERY on the connection's id, which would stop whichever report uses it next.
+        try
+        {
+            statement.cancel();
+        }
+        catch (SQLException e)
+        {
+            System.out.println("Could not cancel query");
+            System.out.println(e.getMessage());
+        }
+    }
+
+    public synchronized boolean isCancelled() { return cancelled; }
+}
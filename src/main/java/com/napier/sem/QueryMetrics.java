@@ -0,0 +1,100 @@
+package com.napier.sem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps a QueryStats for every report and area filter the DAO has run, created the first time each is
+ * run.  Once published to an MBean server every QueryStats is registered as an MBean named
+ * com.napier.sem:type=Query,useCase=[report],areaFilter=[filter], so they can be read with JConsole or
+ * any other JMX client.
+ */
+public class QueryMetrics
+{
+    static final String DOMAIN = "com.napier.sem";
+    // Area filter recorded for reports which don't take one
+    static final String NO_AREA_FILTER = "none";
+
+    // Stats by use case, then by area filter
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, QueryStats>> stats = new ConcurrentHashMap<>();
+
+    // The server stats are registered with, null until published
+    private volatile MBeanServer server;
+
+    /**
+     * Gets the stats for a report and area filter, creating them the first time.
+     * @param useCase The report, e.g. "topNCitiesIn".
+     * @param areaFilter The area filter, null if the report takes none.
+     * @return The stats.
+     */
+    public QueryStats get(String useCase, String areaFilter)
+    {
+        String filter = (areaFilter == null) ? NO_AREA_FILTER : areaFilter;
+        ConcurrentHashMap<String, QueryStats> byFilter = stats.get(useCase);
+        if (byFilter == null) byFilter = stats.computeIfAbsent(useCase, key -> new ConcurrentHashMap<>());
+
+        QueryStats found = byFilter.get(filter);
+        if (found != null) return found;
+
+        QueryStats created = new QueryStats(useCase, filter);
+        found = byFilter.putIfAbsent(filter, created);
+        if (found != null) return found;
+
+        MBeanServer current = server;
+        if (current != null) register(current, created);
+        return created;
+    }
+
+    /**
+     * @return The stats for every report and area filter run so far.
+     */
+    public List<QueryStats> getAll()
+    {
+        List<QueryStats> all = new ArrayList<>();
+        for (ConcurrentHashMap<String, QueryStats> byFilter : stats.values()) all.addAll(byFilter.values());
+        return all;
+    }
+
+    /**
+     * Registers every stats as an MBean, now and as they're created.
+     * @param server The MBean server, usually ManagementFactory.getPlatformMBeanServer().
+     */
+    public void publish(MBeanServer server)
+    {
+        this.server = server;
+        for (QueryStats queryStats : getAll()) register(server, queryStats);
+    }
+
+    /**
+     * @return The name a report and area filter's stats are registered under.
+     * @throws JMException if the names can't be used in an ObjectName.
+     */
+    static ObjectName objectName(String useCase, String areaFilter) throws JMException
+    {
+        return new ObjectName(DOMAIN + ":type=Query,useCase=" + useCase
+                + ",areaFilter=" + areaFilter);
+    }
+
+    private static void register(MBeanServer server, QueryStats queryStats)
+    {
+        try
+        {
+            server.registerMBean(queryStats, objectName(queryStats.getUseCase(), queryStats.getAreaFilter()));
+        }
+        catch (InstanceAlreadyExistsException e)
+        {
+            // Registered by publish and get at the same time, or by another DAO's metrics
+        }
+        catch (JMException e)
+        {
+            System.out.println("Could not publish query stats for " + queryStats.getUseCase());
+            System.out.println(e.getMessage());
+        }
+    }
+}
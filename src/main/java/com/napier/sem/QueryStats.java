@@ -0,0 +1,116 @@
+package com.napier.sem;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, row counts and errors for one report run with one area filter, e.g. topNCitiesIn for a
+ * continent.  Each query's time is split into executing the statement, fetching its rows and mapping
+ * them into records, each with its own histogram.  Recording a query is a few atomic adds.
+ */
+public class QueryStats implements QueryStatsMBean
+{
+    private final String useCase;
+    private final String areaFilter;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram execute = new LatencyHistogram();
+    private final LatencyHistogram fetch = new LatencyHistogram();
+    private final LatencyHistogram mapping = new LatencyHistogram();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    QueryStats(String useCase, String areaFilter)
+    {
+        this.useCase = useCase;
+        this.areaFilter = areaFilter;
+    }
+
+    /**
+     * Records a query which succeeded.
+     * @param totalNanos The whole query, from borrowing a connection to handing over the last row.
+     * @param executeNanos Running the statement.
+     * @param fetchNanos Reading the rows, less mappingNanos.
+     * @param mappingNanos Building records from the rows.
+     * @param rowCount The number of records the query gave.
+     */
+    public void record(long totalNanos, long executeNanos, long fetchNanos, long mappingNanos, long rowCount)
+    {
+        latency.record(totalNanos);
+        execute.record(executeNanos);
+        fetch.record(fetchNanos);
+        mapping.record(mappingNanos);
+        rows.add(rowCount);
+    }
+
+    /**
+     * Records a query which failed.
+     */
+    public void recordError()
+    {
+        errors.increment();
+    }
+
+    @Override
+    public String getUseCase() { return useCase; }
+    @Override
+    public String getAreaFilter() { return areaFilter; }
+
+    @Override
+    public long getCount() { return latency.getCount(); }
+    @Override
+    public long getErrorCount() { return errors.sum(); }
+    @Override
+    public long getRowCount() { return rows.sum(); }
+
+    @Override
+    public long getMeanMicros() { return latency.getMeanNanos() / 1000; }
+    @Override
+    public long getP50Micros() { return latency.getPercentileNanos(50) / 1000; }
+    @Override
+    public long getP90Micros() { return latency.getPercentileNanos(90) / 1000; }
+    @Override
+    public long getP99Micros() { return latency.getPercentileNanos(99) / 1000; }
+    @Override
+    public long getMaxMicros() { return latency.getMaxNanos() / 1000; }
+
+    @Override
+    public long getExecuteMeanMicros() { return execute.getMeanNanos() / 1000; }
+    @Override
+    public long getExecuteP99Micros() { return execute.getPercentileNanos(99) / 1000; }
+    @Override
+    public long getFetchMeanMicros() { return fetch.getMeanNanos() / 1000; }
+    @Override
+    public long getFetchP99Micros() { return fetch.getPercentileNanos(99) / 1000; }
+    @Override
+    public long getMappingMeanMicros() { return mapping.getMeanNanos() / 1000; }
+    @Override
+    public long getMappingP99Micros() { return mapping.getPercentileNanos(99) / 1000; }
+
+    /**
+     * @return The whole query's latencies, for percentiles in other units.
+     */
+    public LatencyHistogram getLatency() { return latency; }
+
+    /**
+     * @return The time spent executing statements, fetching rows and mapping them into records.
+     */
+    public LatencyHistogram getExecuteLatency() { return execute; }
+    public LatencyHistogram getFetchLatency() { return fetch; }
+    public LatencyHistogram getMappingLatency() { return mapping; }
+
+    /**
+     * Formats the statistics in a consistent, readable manner
+     * @return A string summarising the use case's queries
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("%s | %s | Queries: %,d | Errors: %,d | Rows: %,d | " +
+                        "p50 %.3fms | p90 %.3fms | p99 %.3fms | max %.3fms | " +
+                        "Mean execute %.3fms | fetch %.3fms | mapping %.3fms",
+                useCase, areaFilter, getCount(), getErrorCount(), getRowCount(),
+                latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(90) / 1e6,
+                latency.getPercentileNanos(99) / 1e6, latency.getMaxNanos() / 1e6,
+                execute.getMeanNanos() / 1e6, fetch.getMeanNanos() / 1e6, mapping.getMeanNanos() / 1e6);
+    }
+}
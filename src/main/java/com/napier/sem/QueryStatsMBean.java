@@ -0,0 +1,34 @@
+package com.napier.sem;
+
+/**
+ * The JMX view of the statistics for one report and area filter, see QueryStats.  Times are in
+ * microseconds.
+ */
+public interface QueryStatsMBean
+{
+    String getUseCase();
+    String getAreaFilter();
+
+    long getCount();
+    long getErrorCount();
+    long getRowCount();
+
+    // From borrowing a connection to the last row being handed over
+    long getMeanMicros();
+    long getP50Micros();
+    long getP90Micros();
+    long getP99Micros();
+    long getMaxMicros();
+
+    // Running the statement, until the first rows are back
+    long getExecuteMeanMicros();
+    long getExecuteP99Micros();
+
+    // Reading the rows, less the time spent building records from them
+    long getFetchMeanMicros();
+    long getFetchP99Micros();
+
+    // Building records from the rows
+    long getMappingMeanMicros();
+    long getMappingP99Micros();
+}
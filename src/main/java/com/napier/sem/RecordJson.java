@@ -0,0 +1,132 @@
+package com.napier.sem;
+
+/**
+ * Writes report records as JSON objects.  Each record type has its own fields, named as in the typed
+ * row classes.  Percentages which can't be worked out (an area with no population) are written as null.
+ */
+public class RecordJson
+{
+    private RecordJson() { }
+
+    /**
+     * Appends a record as a JSON object.
+     * @param json The JSON being built.
+     * @param record The record, written as null if it or its row is null.
+     */
+    public static void append(StringBuilder json, Record record)
+    {
+        ReportRow row = (record == null) ? null : record.getRow();
+        if (row == null)
+        {
+            json.append("null");
+            return;
+        }
+
+        json.append('{');
+        switch (row.getRecordType())
+        {
+            case App.COUNTRY:
+                CountryRow country = (CountryRow) row;
+                field(json, "code", country.getCountryCode()).append(',');
+                field(json, "name", country.getName()).append(',');
+                field(json, "continent", country.getContinent()).append(',');
+                field(json, "region", country.getRegion()).append(',');
+                field(json, "population", country.getPopulation()).append(',');
+                field(json, "capital", country.getCapital());
+                break;
+            case App.CAPITAL_CITY:
+                CapitalRow capital = (CapitalRow) row;
+                field(json, "name", capital.getName()).append(',');
+                field(json, "country", capital.getCountry()).append(',');
+                field(json, "region", capital.getRegion()).append(',');
+                field(json, "continent", capital.getContinent()).append(',');
+                field(json, "population", capital.getPopulation());
+                break;
+            case App.CITY:
+                CityRow city = (CityRow) row;
+                field(json, "name", city.getName()).append(',');
+                field(json, "country", city.getCountry()).append(',');
+                field(json, "district", city.getDistrict()).append(',');
+                field(json, "population", city.getPopulation());
+                break;
+            case App.RESIDENCE_REPORT:
+                ResidenceRow residence = (ResidenceRow) row;
+                field(json, "name", residence.getName()).append(',');
+                field(json, "population", residence.getPopulation()).append(',');
+                field(json, "populationLivingInCities", residence.getPopulationLivingInCities()).append(',');
+                field(json, "percentageLivingInCities", residence.getPercentageLivingInCities()).append(',');
+                field(json, "populationNotLivingInCities", residence.getPopulationNotLivingInCities()).append(',');
+                field(json, "percentageNotLivingInCities", residence.getPercentageNotLivingInCities());
+                break;
+            case App.LANGUAGE:
+                LanguageRow language = (LanguageRow) row;
+                field(json, "name", language.getName()).append(',');
+                field(json, "speakers", language.getSpeakers()).append(',');
+                field(json, "percentage", language.getPercentage());
+                break;
+            case App.POPULATION:
+                field(json, "name", row.getName()).append(',');
+                field(json, "population", row.getPopulation());
+                break;
+            default:
+                field(json, "name", row.getName());
+        }
+        json.append('}');
+    }
+
+    private static StringBuilder field(StringBuilder json, String name, String value)
+    {
+        json.append('"').append(name).append("\":");
+        return string(json, value);
+    }
+
+    private static StringBuilder field(StringBuilder json, String name, long value)
+    {
+        return json.append('"').append(name).append("\":").append(value);
+    }
+
+    private static StringBuilder field(StringBuilder json, String name, double value)
+    {
+        json.append('"').append(name).append("\":");
+        return (Double.isNaN(value) || Double.isInfinite(value)) ? json.append("null") : json.append(value);
+    }
+
+    /**
+     * Appends a string as a quoted JSON string, escaping quotes, backslashes and control characters.
+     * @param json The JSON being built.
+     * @param value The string, written as null if it's null.
+     * @return The JSON being built
+     */
+    public static StringBuilder string(StringBuilder json, String value)
+    {
+        if (value == null) return json.append("null");
+
+        json.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                    else json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+}
@@ -0,0 +1,22 @@
+package com.napier.sem;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Building one record from a row.  Only the rows whose mapping the DAO times are recorded, one in
+ * DAO.MAPPING_SAMPLE_INTERVAL, so each event stands for that many rows.
+ */
+@Name("com.napier.sem.RecordMapping")
+@Label("Record Mapping")
+@Description("A row being mapped into a record, sampled")
+class RecordMappingEvent extends ReportEvent
+{
+    @Label("Record Type")
+    String recordType;
+
+    @Label("Rows Represented")
+    @Description("The number of rows this sample stands for")
+    int rowsRepresented;
+}
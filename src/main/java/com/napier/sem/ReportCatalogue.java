@@ -0,0 +1,230 @@
+package com.napier.sem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every report for every area in the world, worked out from a WorldSnapshot.  Rather than running each
+ * report for each area, the rows of each table are walked once in population order and every row is
+ * added to the report of each area it's in, so a single pass over the cities builds the city report for
+ * every continent, region, country and district at once.
+ * Reports are keyed by report, area filter and normalised area name (see key).  Top N reports are
+ * stored in full, a top N report is the first N records of its list.
+ */
+public class ReportCatalogue
+{
+    // Every report, by key, in the order they were built
+    private final Map<String, List<Record>> reports = new LinkedHashMap<>();
+    private int areaCount;
+
+    private ReportCatalogue() { }
+
+    /**
+     * Builds the catalogue, giving the same records in the same order as a SnapshotReportSource on the
+     * same snapshot.
+     * @param snapshot The snapshot to build every report from.
+     * @return The catalogue.
+     */
+    public static ReportCatalogue build(WorldSnapshot snapshot)
+    {
+        ReportCatalogue catalogue = new ReportCatalogue();
+        catalogue.addCountries(snapshot);
+        catalogue.addCities(snapshot);
+        catalogue.addCapitalCities(snapshot);
+        catalogue.addPopulations(snapshot);
+        catalogue.reports.put(key(9, null, null), new SnapshotReportSource(snapshot).languageReport());
+        return catalogue;
+    }
+
+    /**
+     * Builds the key a report is stored under.  Names are normalised the way the database compares them,
+     * and the world has no name.
+     * @param queryId The report, numbered as in the UserPrompt menu.
+     * @param areaFilter The type of area, null for the language report.
+     * @param areaName The name of the area.
+     * @return The key.
+     */
+    static String key(int queryId, String areaFilter, String areaName)
+    {
+        if (areaFilter == null) return String.valueOf(queryId);
+        String name = (App.WORLD.equals(areaFilter) || areaName == null) ? "" : WorldSnapshot.normalise(areaName);
+        return queryId + "|" + areaFilter + "|" + name;
+    }
+
+    /**
+     * @return Every report, by key.  The map can't be modified.
+     */
+    public Map<String, List<Record>> getReports() { return Collections.unmodifiableMap(reports); }
+
+    /**
+     * @return The number of reports in the catalogue.
+     */
+    public int getReportCount() { return reports.size(); }
+
+    /**
+     * @return The number of distinct areas reported on, counting each area filter separately.
+     */
+    public int getAreaCount() { return areaCount; }
+
+    /**
+     * @return The number of records across every report.
+     */
+    public long getRecordCount()
+    {
+        long count = 0;
+        for (List<Record> records : reports.values()) count += records.size();
+        return count;
+    }
+
+    /**
+     * Adds a record to the report for an area, creating the report the first time the area is seen.
+     */
+    private void add(int queryId, String areaFilter, String areaName, Record record)
+    {
+        reports.computeIfAbsent(key(queryId, areaFilter, areaName), key -> new ArrayList<>()).add(record);
+    }
+
+    /**
+     * Use cases 1 and 2, from one pass over the countries.  Only countries with a capital are listed, and
+     * top N reports also need the capital to be in the country, as in SnapshotReportSource.
+     */
+    private void addCountries(WorldSnapshot snapshot)
+    {
+        for (int country : snapshot.countriesByPopulation)
+        {
+            int capital = snapshot.countryCapital[country];
+            if (capital < 0) continue;
+
+            Record record = new Record(snapshot.string(snapshot.countryCode[country]),
+                    snapshot.string(snapshot.countryName[country]),
+                    snapshot.string(snapshot.countryContinent[country]),
+                    snapshot.string(snapshot.countryRegion[country]),
+                    snapshot.countryPopulation[country],
+                    snapshot.string(snapshot.cityName[capital]));
+            boolean inTopN = snapshot.cityCountry[capital] == country;
+            for (String areaFilter : DAO.COUNTRY_AREA_FILTERS)
+            {
+                String areaName = countryArea(snapshot, country, areaFilter);
+                add(1, areaFilter, areaName, record);
+                if (inTopN) add(2, areaFilter, areaName, record);
+            }
+        }
+    }
+
+    /**
+     * Use cases 3 and 4, from one pass over the cities.  Top N reports leave out cities with no population.
+     */
+    private void addCities(WorldSnapshot snapshot)
+    {
+        for (int city : snapshot.citiesByPopulation)
+        {
+            int country = snapshot.cityCountry[city];
+            if (country < 0) continue;
+
+            Record record = new Record(snapshot.string(snapshot.cityName[city]),
+                    snapshot.string(snapshot.countryName[country]),
+                    snapshot.string(snapshot.cityDistrict[city]),
+                    snapshot.cityPopulation[city]);
+            boolean inTopN = snapshot.cityPopulation[city] > 0;
+            for (String areaFilter : DAO.CITY_AREA_FILTERS)
+            {
+                String areaName = App.DISTRICT.equals(areaFilter)
+                        ? snapshot.string(snapshot.cityDistrict[city])
+                        : countryArea(snapshot, country, areaFilter);
+                add(3, areaFilter, areaName, record);
+                if (inTopN) add(4, areaFilter, areaName, record);
+            }
+        }
+    }
+
+    /**
+     * Use cases 5 and 6, from one pass over the capital cities.  Top N reports leave out capitals with no
+     * population.
+     */
+    private void addCapitalCities(WorldSnapshot snapshot)
+    {
+        for (int city : snapshot.capitalCitiesByPopulation)
+        {
+            int country = snapshot.cityCountry[city];
+            Record record = new Record(snapshot.string(snapshot.cityName[city]),
+                    snapshot.string(snapshot.countryName[country]),
+                    snapshot.string(snapshot.countryRegion[country]),
+                    snapshot.string(snapshot.countryContinent[country]),
+                    snapshot.cityPopulation[city]);
+            boolean inTopN = snapshot.cityPopulation[city] > 0;
+            for (String areaFilter : DAO.COUNTRY_AREA_FILTERS)
+            {
+                String areaName = countryArea(snapshot, country, areaFilter);
+                add(5, areaFilter, areaName, record);
+                if (inTopN) add(6, areaFilter, areaName, record);
+            }
+        }
+    }
+
+    /**
+     * Use cases 7 and 8, looked up in the snapshot's population rollup for every area named in the
+     * country and city tables.
+     */
+    private void addPopulations(WorldSnapshot snapshot)
+    {
+        PopulationRollup rollup = snapshot.getPopulationRollup();
+        reports.put(key(8, App.WORLD, ""), single(rollup.populationOf(App.WORLD, "")));
+        areaCount = 1;
+
+        for (int country = 0; country < snapshot.countryCount; country++)
+        {
+            for (String areaFilter : DAO.RESIDENCE_AREA_FILTERS)
+            {
+                String areaName = countryArea(snapshot, country, areaFilter);
+                if (reports.containsKey(key(8, areaFilter, areaName))) continue;
+
+                areaCount++;
+                reports.put(key(7, areaFilter, areaName),
+                        single(rollup.populationLivingInAndNotInCities(areaFilter, areaName)));
+                reports.put(key(8, areaFilter, areaName), single(rollup.populationOf(areaFilter, areaName)));
+            }
+        }
+        for (int city = 0; city < snapshot.cityCount; city++)
+        {
+            if (snapshot.cityCountry[city] < 0) continue;
+            String[][] areas = {
+                    {App.DISTRICT, snapshot.string(snapshot.cityDistrict[city])},
+                    {App.CITY, snapshot.string(snapshot.cityName[city])}};
+            for (String[] area : areas)
+            {
+                if (reports.containsKey(key(8, area[0], area[1]))) continue;
+
+                areaCount++;
+                reports.put(key(8, area[0], area[1]), single(rollup.populationOf(area[0], area[1])));
+            }
+        }
+    }
+
+    /**
+     * Names the area of the given type a country is in.
+     */
+    private static String countryArea(WorldSnapshot snapshot, int country, String areaFilter)
+    {
+        switch (areaFilter)
+        {
+            case App.CONTINENT:
+                return snapshot.string(snapshot.countryContinent[country]);
+            case App.REGION:
+                return snapshot.string(snapshot.countryRegion[country]);
+            case App.COUNTRY:
+                return snapshot.string(snapshot.countryName[country]);
+            default:
+                return "";
+        }
+    }
+
+    private static List<Record> single(Record record)
+    {
+        List<Record> records = new ArrayList<>(1);
+        if (record != null) records.add(record);
+        return records;
+    }
+}
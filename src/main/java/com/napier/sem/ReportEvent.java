@@ -0,0 +1,25 @@
+package com.napier.sem;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * The fields every Java Flight Recorder event from the app carries: the report it was for and the area
+ * filter it was run with.  Stack traces are left off, as they're the expensive part of an event and
+ * every event comes from the same few places.  See jfr/reports.jfc for settings which turn them on.
+ */
+@Category({"World Reports"})
+@StackTrace(false)
+abstract class ReportEvent extends Event
+{
+    @Label("Use Case")
+    @Description("The report, e.g. topNCitiesIn")
+    String useCase;
+
+    @Label("Area Filter")
+    @Description("The area filter the report was run with, none if it takes none")
+    String areaFilter;
+}
@@ -0,0 +1,47 @@
+package com.napier.sem;
+
+/**
+ * The SQL for a report along with the values bound to its placeholders and the type of record it
+ * returns.  The DAO builds one of these for each report before running it, so the same query can either
+ * be read into a list or streamed a row at a time.  The report and area filter it was built for are kept
+ * too, so its timings can be recorded against them.
+ */
+public class ReportQuery
+{
+    // Use case recorded for SQL run directly through executeStatement rather than built for a report
+    static final String AD_HOC = "statement";
+
+    private final String useCase;
+    private final String areaFilter;
+    private final String statement;
+    private final String recordType;
+    private final Object[] parameters;
+
+    public ReportQuery(String statement, String recordType, Object... parameters)
+    {
+        this(AD_HOC, null, statement, recordType, parameters);
+    }
+
+    /**
+     * @param useCase The report the query was built for, e.g. "topNCitiesIn".
+     * @param areaFilter The area filter the report is run with, null if it takes none.
+     * @param statement The SQL, with a ? for each parameter.
+     * @param recordType The type of record the query returns.
+     * @param parameters The values bound to the placeholders, in order.
+     */
+    public ReportQuery(String useCase, String areaFilter, String statement, String recordType, Object... parameters)
+    {
+        this.useCase = useCase;
+        this.areaFilter = areaFilter;
+        this.statement = statement;
+        this.recordType = recordType;
+        this.parameters = parameters.clone();
+    }
+
+    public String getUseCase() { return useCase; }
+    public String getAreaFilter() { return areaFilter; }
+    public String getStatement() { return statement; }
+    public String getRecordType() { return recordType; }
+    public Object[] getParameters() { return parameters.clone(); }
+    public int getParameterCount() { return parameters.length; }
+}
@@ -0,0 +1,23 @@
+package com.napier.sem;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Printing a chunk of rendered rows, which is where rendering spends its time when the output is the
+ * console.
+ */
+@Name("com.napier.sem.ReportRender")
+@Label("Report Render")
+@Description("A chunk of a rendered report being printed")
+class ReportRenderEvent extends ReportEvent
+{
+    @Label("Rows")
+    @Description("The number of records in the chunk")
+    long rowCount;
+
+    @Label("Characters")
+    @Description("The number of characters printed")
+    long characters;
+}
@@ -0,0 +1,204 @@
+package com.napier.sem;
+
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Formatter;
+import java.util.Locale;
+
+/**
+ * Prints report records exactly as System.out.println(record) would, but without formatting through
+ * String.format for every row or flushing the console after every line.  Rows are written into one
+ * reusable buffer, which is printed in large chunks.  Whole numbers are grouped in thousands by hand,
+ * using the same separator String.format would for the default locale.  Locales which don't use ASCII
+ * digits or groups of three fall back to String.format, so the output is always the same as
+ * Record.toString.
+ * Call flush once the report has been rendered.
+ */
+public class ReportRenderer
+{
+    // Characters buffered before they are printed
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final String ROW_START = App.HORIZONTAL_LINE + "\n";
+
+    private final PrintStream out;
+    private final StringBuilder buffer = new StringBuilder(CHUNK_SIZE + 1024);
+    // Scratch space for the digits of a grouped number, the longest is Long.MIN_VALUE with separators
+    private final char[] digits = new char[26];
+    private final Locale locale;
+    private final Formatter formatter;
+    private final char groupingSeparator;
+    private final boolean asciiGroupsOfThree;
+
+    // The report being rendered and the rows waiting in the buffer, for flight recorder events
+    private final String useCase;
+    private final String areaFilter;
+    private long bufferedRows;
+
+    /**
+     * @param out The stream the rows are printed to, usually System.out.
+     */
+    public ReportRenderer(PrintStream out)
+    {
+        this(out, null);
+    }
+
+    /**
+     * @param out The stream the rows are printed to, usually System.out.
+     * @param request The report being rendered, recorded with each chunk printed, may be null.
+     */
+    public ReportRenderer(PrintStream out, ReportRequest request)
+    {
+        this.out = out;
+        useCase = (request == null) ? null : request.getUseCase();
+        areaFilter = (request == null || request.getAreaFilter() == null)
+                ? QueryMetrics.NO_AREA_FILTER : request.getAreaFilter();
+        locale = Locale.getDefault(Locale.Category.FORMAT);
+        formatter = new Formatter(buffer, locale);
+
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        NumberFormat integerFormat = NumberFormat.getIntegerInstance(locale);
+        groupingSeparator = symbols.getGroupingSeparator();
+        asciiGroupsOfThree = symbols.getZeroDigit() == '0' && integerFormat instanceof DecimalFormat &&
+                ((DecimalFormat) integerFormat).getGroupingSize() == 3;
+    }
+
+    /**
+     * Adds a record to the output, followed by a line separator.  The buffer is printed once it's full.
+     * @param record The record, rendered as "null" if it or its text is null, as println would.
+     */
+    public void render(Record record)
+    {
+        ReportRow row = (record == null) ? null : record.getRow();
+        if (row == null) buffer.append("null");
+        else appendRow(row);
+        buffer.append(LINE_SEPARATOR);
+        bufferedRows++;
+
+        if (buffer.length() >= CHUNK_SIZE) printBuffer();
+    }
+
+    /**
+     * Prints anything still buffered and flushes the stream.
+     */
+    public void flush()
+    {
+        printBuffer();
+        out.flush();
+    }
+
+    private void printBuffer()
+    {
+        if (buffer.length() == 0) return;
+
+        ReportRenderEvent event = new ReportRenderEvent();
+        event.begin();
+        out.print(buffer);
+        if (event.shouldCommit())
+        {
+            event.useCase = useCase;
+            event.areaFilter = areaFilter;
+            event.rowCount = bufferedRows;
+            event.characters = buffer.length();
+            event.commit();
+        }
+        buffer.setLength(0);
+        bufferedRows = 0;
+    }
+
+    /**
+     * Appends a row laid out the same way as its toString.
+     */
+    private void appendRow(ReportRow row)
+    {
+        buffer.append(ROW_START);
+        switch (row.getRecordType())
+        {
+            case App.COUNTRY:
+                CountryRow country = (CountryRow) row;
+                buffer.append("Country code: ").append(country.getCountryCode())
+                        .append(" | Name: ").append(country.getName())
+                        .append(" | Continent: ").append(country.getContinent())
+                        .append("\nRegion: ").append(country.getRegion())
+                        .append(" | Population: ");
+                appendGrouped(country.getPopulation());
+                buffer.append(" | Capital: ").append(country.getCapital());
+                break;
+            case App.CAPITAL_CITY:
+                buffer.append("Name: ").append(row.getName())
+                        .append(" | Country: ").append(row.getCountry())
+                        .append(" | Population: ");
+                appendGrouped(row.getPopulation());
+                break;
+            case App.CITY:
+                buffer.append("Name: ").append(row.getName())
+                        .append(" |  Country: ").append(row.getCountry())
+                        .append(" \nDistrict: ").append(((CityRow) row).getDistrict())
+                        .append(" |  Population: ");
+                appendGrouped(row.getPopulation());
+                break;
+            case App.RESIDENCE_REPORT:
+                ResidenceRow residence = (ResidenceRow) row;
+                buffer.append("Area: ").append(residence.getName())
+                        .append(" | Total population: ");
+                appendGrouped(residence.getPopulation());
+                buffer.append("\nPopulation living in Cities: ");
+                appendGrouped(residence.getPopulationLivingInCities());
+                formatter.format(" (%.2f%%)", residence.getPercentageLivingInCities());
+                buffer.append("\nPopulation not living in Cities: ");
+                appendGrouped(residence.getPopulationNotLivingInCities());
+                formatter.format(" (%.2f%%)", residence.getPercentageNotLivingInCities());
+                break;
+            case App.LANGUAGE:
+                LanguageRow language = (LanguageRow) row;
+                buffer.append("Language: ").append(language.getName())
+                        .append(" |  Speakers: ");
+                appendGrouped(language.getSpeakers());
+                buffer.append(" | % of world's population: ");
+                if (asciiGroupsOfThree) buffer.append(language.getPercentage());
+                else formatter.format("%d", language.getPercentage());
+                buffer.append('%');
+                break;
+            case App.POPULATION:
+                buffer.append("Area: ").append(row.getName())
+                        .append(" |  Population: ");
+                appendGrouped(row.getPopulation());
+                break;
+            default:
+                // Keep anything added later working, even before it has a fast path here
+                buffer.setLength(buffer.length() - ROW_START.length());
+                buffer.append(row);
+        }
+    }
+
+    /**
+     * Appends a number grouped in thousands, the same as %,d.
+     * @param value The number.
+     */
+    void appendGrouped(long value)
+    {
+        if (!asciiGroupsOfThree)
+        {
+            formatter.format("%,d", value);
+            return;
+        }
+
+        // Work with the negative value, so Long.MIN_VALUE doesn't overflow
+        long remaining = (value < 0) ? value : -value;
+        int position = digits.length;
+        int digitCount = 0;
+        do
+        {
+            if (digitCount > 0 && digitCount % 3 == 0) digits[--position] = groupingSeparator;
+            digits[--position] = (char) ('0' - remaining % 10);
+            remaining /= 10;
+            digitCount++;
+        }
+        while (remaining != 0);
+
+        if (value < 0) buffer.append('-');
+        buffer.append(digits, position, digits.length - position);
+    }
+}
@@ -0,0 +1,67 @@
+package com.napier.sem;
+
+import java.util.Objects;
+
+/**
+ * A request for one report, using the same numbering as the menu in UserPrompt:
+ *   1) all countries          2) top N countries
+ *   3) all cities             4) top N cities
+ *   5) all capital cities     6) top N capital cities
+ *   7) residence report       8) population
+ *   9) language report
+ * The area filter, area name and n are only used by the reports which take them.
+ */
+public class ReportRequest
+{
+    // The report methods, by report number, which the DAO and metrics name use cases after
+    private static final String[] USE_CASES = {null, "allCountriesIn", "topNCountriesIn", "allCitiesIn",
+            "topNCitiesIn", "allCapitalCitiesIn", "topNCapitalCitiesIn", "populationLivingInAndNotInCities",
+            "populationOf", "languageReport"};
+
+    private final int queryId;
+    private final String areaFilter;
+    private final String areaName;
+    private final int n;
+
+    public ReportRequest(int queryId, String areaFilter, String areaName, int n)
+    {
+        this.queryId = queryId;
+        this.areaFilter = areaFilter;
+        this.areaName = areaName;
+        this.n = n;
+    }
+
+    public int getQueryId() { return queryId; }
+    public String getAreaFilter() { return areaFilter; }
+    public String getAreaName() { return areaName; }
+    public int getN() { return n; }
+
+    /**
+     * @return The name of the report method, e.g. "topNCitiesIn", or "unknown" for a report that doesn't exist.
+     */
+    public String getUseCase()
+    {
+        return (queryId >= 1 && queryId < USE_CASES.length) ? USE_CASES[queryId] : "unknown";
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other) return true;
+        if (!(other instanceof ReportRequest)) return false;
+        ReportRequest request = (ReportRequest) other;
+        return queryId == request.queryId &&
+                n == request.n &&
+                Objects.equals(areaFilter, request.areaFilter) &&
+                Objects.equals(areaName, request.areaName);
+    }
+
+    @Override
+    public int hashCode() { return Objects.hash(queryId, areaFilter, areaName, n); }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Report %d | Area filter: %s | Area name: %s | N: %d", queryId, areaFilter, areaName, n);
+    }
+}
@@ -0,0 +1,54 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A single row of a report.  Each record type has its own immutable row class holding only the fields
+ * that type uses, read from the query result by column index.  Getters for fields a type doesn't have
+ * return null or 0, which is what the wide Record used to hold for them.
+ */
+public abstract class ReportRow
+{
+    /**
+     * Reads the current row of a report query's result into the row class for its record type.  Columns
+     * are read by position, so they must be in the order the DAO's queries select them.
+     * @param result The result of a report query, positioned on a row.  If null an empty row is made.
+     * @param recordType The type of record the query returns (country, city, capital city etc.).
+     * @return The row, or null if the record type isn't known
+     * @throws SQLException if a column can't be read
+     */
+    public static ReportRow map(ResultSet result, String recordType) throws SQLException
+    {
+        switch (recordType)
+        {
+            case App.COUNTRY:
+                return (result == null) ? new CountryRow(null, null, null, null, 0, null) : CountryRow.map(result);
+            case App.CAPITAL_CITY:
+                return (result == null) ? new CapitalRow(null, null, null, null, 0) : CapitalRow.map(result);
+            case App.CITY:
+                return (result == null) ? new CityRow(null, null, null, 0) : CityRow.map(result);
+            case App.RESIDENCE_REPORT:
+                return (result == null) ? new ResidenceRow(null, 0, 0, 0, 0, 0) : ResidenceRow.map(result);
+            case App.LANGUAGE:
+                return (result == null) ? new LanguageRow(null, 0, 0) : LanguageRow.map(result);
+            case App.POPULATION:
+                return (result == null) ? new PopulationRow(null, 0) : PopulationRow.map(result);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The type of record this row is (country, city, capital city etc.).
+     */
+    public abstract String getRecordType();
+
+    public abstract String getName();
+    public String getContinent() { return null; }
+    public String getCountry() { return null; }
+    public long getPopulation() { return 0; }
+    public long getSpeakers() { return 0; }
+    public long getPopulationLivingInCities() { return 0; }
+    public long getPopulationNotLivingInCities() { return 0; }
+}
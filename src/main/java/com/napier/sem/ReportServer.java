@@ -0,0 +1,404 @@
+package com.napier.sem;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves every report over HTTP as JSON.  Each use case has its own endpoint, e.g.
+ * GET /cities/top?area=continent&name=Europe&n=10, with the area filter, area name and N given as query
+ * parameters.  Records are streamed into the response as they're read, so a large report never has to
+ * be held in memory.
+ * Requests are handled on a fixed number of threads sharing one report source, with a bounded queue
+ * in front of them.  When the queue is full the server's own thread runs the request, which stops it
+ * accepting more connections until it catches up.
+ * GET /stats gives the number of requests and latency of each endpoint.
+ * The JDK's server writes the headers and body separately, so start the JVM with
+ * -Dsun.net.httpserver.nodelay=true, as App does, or every keep-alive request waits out the client's
+ * delayed ACK (~40ms).
+ */
+public final class ReportServer implements AutoCloseable
+{
+    // Endpoint paths and the report each one runs
+    static final Map<String, Integer> ENDPOINTS;
+    static
+    {
+        Map<String, Integer> endpoints = new LinkedHashMap<>();
+        endpoints.put("/countries", 1);
+        endpoints.put("/countries/top", 2);
+        endpoints.put("/cities", 3);
+        endpoints.put("/cities/top", 4);
+        endpoints.put("/capitals", 5);
+        endpoints.put("/capitals/top", 6);
+        endpoints.put("/residence", 7);
+        endpoints.put("/population", 8);
+        endpoints.put("/languages", 9);
+        ENDPOINTS = Collections.unmodifiableMap(endpoints);
+    }
+
+    // Size of the buffer between the JSON and the connection
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+
+    private final ReportSource source;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+
+    /**
+     * Creates a server, which doesn't accept requests until it's started.
+     * @param source The source every report is read from, shared by all requests.
+     * @param port The port to listen on, 0 for any free port.
+     * @param threads The number of requests handled at once, usually the connection pool's size.
+     * @param queueCapacity The number of requests which can wait for a thread.
+     * @throws IOException if the port can't be bound
+     */
+    public ReportServer(ReportSource source, int port, int threads, int queueCapacity) throws IOException
+    {
+        this(source, port, threads, queueCapacity, false);
+    }
+
+    /**
+     * Creates a server, which doesn't accept requests until it's started.
+     * @param source The source every report is read from, shared by all requests.
+     * @param port The port to listen on, 0 for any free port.
+     * @param threads The number of requests handled at once.  On virtual threads this can be far more than
+     *                the connection pool's size, as long as the source limits its own queries.
+     * @param queueCapacity The number of requests which can wait for a thread.
+     * @param virtualThreads true to handle requests on virtual threads, so requests waiting on the
+     *                       database don't each hold a platform thread.
+     * @throws IOException if the port can't be bound
+     */
+    public ReportServer(ReportSource source, int port, int threads, int queueCapacity, boolean virtualThreads)
+            throws IOException
+    {
+        this.source = source;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                virtualThreads
+                        ? Thread.ofVirtual().name("report-server-", 1).factory()
+                        : runnable -> {
+                            Thread thread = new Thread(runnable, "report-server-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        for (Map.Entry<String, Integer> endpoint : ENDPOINTS.entrySet())
+        {
+            String path = endpoint.getKey();
+            int queryId = endpoint.getValue();
+            latencies.put(path, new LatencyHistogram());
+            server.createContext(path, exchange -> handleReport(exchange, path, queryId));
+        }
+        server.createContext("/stats", this::handleStats);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() { server.start(); }
+
+    /**
+     * @return The port the server is listening on.
+     */
+    public int getPort() { return server.getAddress().getPort(); }
+
+    /**
+     * Stops accepting requests, gives requests in progress a second to finish and stops the threads.
+     */
+    @Override
+    public void close()
+    {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * Runs the report for an endpoint and streams its records as a JSON array.
+     */
+    private void handleReport(HttpExchange exchange, String path, int queryId) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            // Contexts match by prefix, so /cities also receives /cities/anything
+            if (!exchange.getRequestURI().getPath().equals(path))
+            {
+                sendError(exchange, 404, "No such report");
+                return;
+            }
+            if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                sendError(exchange, 405, "Reports only support GET");
+                return;
+            }
+
+            ReportRequest request;
+            try
+            {
+                request = parseRequest(queryId, parseQuery(exchange.getRequestURI().getRawQuery()));
+            }
+            catch (IllegalArgumentException e)
+            {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            JsonArrayResponse response = new JsonArrayResponse(exchange);
+            long count;
+            try
+            {
+                count = source.forEachRecord(request, response::write);
+            }
+            catch (UncheckedIOException e)
+            {
+                // The client went away part way through the report
+                return;
+            }
+
+            // A report which fails part way through is left unterminated, so the client can't mistake it
+            // for a complete one
+            if (count >= 0) response.finish();
+            else if (!response.isStarted()) sendError(exchange, 503, "Could not run the query");
+        }
+        finally
+        {
+            exchange.close();
+            latencies.get(path).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes the request count and latency of every endpoint as JSON.
+     */
+    private void handleStats(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            byte[] body = statsJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return The request count and latencies, in microseconds, of every endpoint as a JSON object.
+     */
+    String statsJson()
+    {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, LatencyHistogram> endpoint : latencies.entrySet())
+        {
+            LatencyHistogram latency = endpoint.getValue();
+            if (json.length() > 1) json.append(',');
+            RecordJson.string(json, endpoint.getKey())
+                    .append(":{\"requests\":").append(latency.getCount())
+                    .append(",\"meanMicros\":").append(latency.getMeanNanos() / 1000)
+                    .append(",\"p50Micros\":").append(latency.getPercentileNanos(50) / 1000)
+                    .append(",\"p95Micros\":").append(latency.getPercentileNanos(95) / 1000)
+                    .append(",\"p99Micros\":").append(latency.getPercentileNanos(99) / 1000)
+                    .append(",\"maxMicros\":").append(latency.getMaxNanos() / 1000)
+                    .append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Gets the latencies recorded for an endpoint.
+     * @param path The endpoint's path, e.g. "/cities/top".
+     * @return The endpoint's latencies, or null if there's no such endpoint.
+     */
+    public LatencyHistogram getLatency(String path) { return latencies.get(path); }
+
+    /**
+     * Builds a report request from an endpoint's query parameters.
+     * @param queryId The report the endpoint runs.
+     * @param parameters The query parameters: area, name (not needed for the world) and n (top N only).
+     * @return The request
+     * @throws IllegalArgumentException if a parameter is missing or not valid for the report
+     */
+    static ReportRequest parseRequest(int queryId, Map<String, String> parameters)
+    {
+        if (queryId == 9) return new ReportRequest(9, null, null, 0);
+
+        String areaFilter = parameters.get("area");
+        List<String> validAreaFilters = validAreaFilters(queryId);
+        if (areaFilter == null || !validAreaFilters.contains(areaFilter))
+        {
+            throw new IllegalArgumentException("area must be one of " + String.join(", ", validAreaFilters));
+        }
+
+        String areaName = parameters.get("name");
+        if (App.WORLD.equals(areaFilter)) areaName = "";
+        else if (areaName == null || areaName.isEmpty())
+        {
+            throw new IllegalArgumentException("name is needed for the " + areaFilter + " area");
+        }
+
+        int n = 0;
+        if (queryId == 2 || queryId == 4 || queryId == 6)
+        {
+            try
+            {
+                n = Integer.parseInt(parameters.getOrDefault("n", ""));
+            }
+            catch (NumberFormatException e)
+            {
+                n = 0;
+            }
+            if (n < 1) throw new IllegalArgumentException("n must be a whole number of at least 1");
+        }
+        return new ReportRequest(queryId, areaFilter, areaName, n);
+    }
+
+    /**
+     * @return The area filters the DAO accepts for a report.
+     */
+    private static List<String> validAreaFilters(int queryId)
+    {
+        switch (queryId)
+        {
+            case 3:
+            case 4:
+                return DAO.CITY_AREA_FILTERS;
+            case 7:
+                return DAO.RESIDENCE_AREA_FILTERS;
+            case 8:
+                return DAO.POPULATION_AREA_FILTERS;
+            default:
+                return DAO.COUNTRY_AREA_FILTERS;
+        }
+    }
+
+    /**
+     * Splits a raw query string into decoded parameters.  Later values replace earlier ones.
+     * @param rawQuery The query string, without the leading ?, may be null.
+     * @return The parameters by name
+     */
+    static Map<String, String> parseQuery(String rawQuery)
+    {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return parameters;
+
+        for (String pair : rawQuery.split("&"))
+        {
+            int equals = pair.indexOf('=');
+            String name = (equals < 0) ? pair : pair.substring(0, equals);
+            String value = (equals < 0) ? "" : pair.substring(equals + 1);
+            parameters.put(decode(name), decode(value));
+        }
+        return parameters;
+    }
+
+    private static String decode(String value)
+    {
+        try
+        {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch (UnsupportedEncodingException | IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Badly encoded query parameter: " + value);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+    {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        byte[] body = RecordJson.string(json, message).append('}').toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Streams records into a response as a JSON array.  The response headers aren't sent until the first
+     * record arrives, so a report which fails straight away can still be answered with an error.
+     */
+    private static class JsonArrayResponse
+    {
+        private final HttpExchange exchange;
+        private final StringBuilder json = new StringBuilder(256);
+        private Writer writer;
+
+        JsonArrayResponse(HttpExchange exchange) { this.exchange = exchange; }
+
+        boolean isStarted() { return writer != null; }
+
+        /**
+         * Writes one record, starting the response if it's the first.
+         * @throws UncheckedIOException if the client has gone away
+         */
+        void write(Record record)
+        {
+            try
+            {
+                json.setLength(0);
+                if (writer == null)
+                {
+                    start();
+                    json.append('[');
+                }
+                else json.append(',');
+                RecordJson.append(json, record);
+                writer.append(json);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Closes the array, sending an empty one if there were no records.
+         */
+        void finish() throws IOException
+        {
+            if (writer == null)
+            {
+                start();
+                writer.write('[');
+            }
+            writer.write(']');
+            writer.flush();
+        }
+
+        private void start() throws IOException
+        {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            // A length of 0 sends the body in chunks, as it's written
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            writer = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8),
+                    RESPONSE_BUFFER_SIZE);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.napier.sem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Something which can produce every report the app offers.  The DAO answers reports by querying MySQL,
+ * while other sources (such as the in-memory snapshot) answer them without going to the database.
+ * Every source returns the same records in the same order for the same arguments, so they can be
+ * swapped for one another.
+ */
+public interface ReportSource
+{
+    // Use cases 1.1-1.3
+    List<Record> allCountriesIn(String areaFilter, String areaName);
+
+    // Use cases 2.1-2.3
+    List<Record> topNCountriesIn(String areaFilter, String areaName, Integer n);
+
+    // Use cases 3.1-3.5
+    List<Record> allCitiesIn(String areaFilter, String areaName);
+
+    // Use cases 4.1-4.5
+    List<Record> topNCitiesIn(String areaFilter, String areaName, Integer n);
+
+    // Use cases 5.1-5.3
+    List<Record> allCapitalCitiesIn(String areaFilter, String areaName);
+
+    // Use cases 6.1-6.3
+    List<Record> topNCapitalCitiesIn(String areaFilter, String areaName, Integer n);
+
+    // Use cases 7.1-7.3
+    List<Record> populationLivingInAndNotInCities(String areaFilter, String areaName);
+
+    // Use cases 8.1-8.6
+    List<Record> populationOf(String areaFilter, String areaName);
+
+    // Use case 9.1
+    List<Record> languageReport();
+
+    /**
+     * Runs the report described by a request.
+     * @param request The report to run, numbered as in the UserPrompt menu.
+     * @return The records in the report, or null if the report couldn't be run or doesn't exist.
+     */
+    default List<Record> execute(ReportRequest request)
+    {
+        String areaFilter = request.getAreaFilter();
+        String areaName = request.getAreaName();
+        int n = request.getN();
+
+        switch (request.getQueryId())
+        {
+            case (1):
+                return allCountriesIn(areaFilter, areaName);
+            case (2):
+                return topNCountriesIn(areaFilter, areaName, n);
+            case (3):
+                return allCitiesIn(areaFilter, areaName);
+            case (4):
+                return topNCitiesIn(areaFilter, areaName, n);
+            case (5):
+                return allCapitalCitiesIn(areaFilter, areaName);
+            case (6):
+                return topNCapitalCitiesIn(areaFilter, areaName, n);
+            case (7):
+                return populationLivingInAndNotInCities(areaFilter, areaName);
+            case (8):
+                return populationOf(areaFilter, areaName);
+            case (9):
+                return languageReport();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Runs several reports, for example every report for one area.  Sources which can answer them
+     * together override this, by default they are run one after another.
+     * @param requests The reports to run.
+     * @return The records in each report, in request order.  A report which couldn't be run or doesn't
+     *         exist has null in place of its records.
+     */
+    default List<List<Record>> executeBatch(List<ReportRequest> requests)
+    {
+        List<List<Record>> results = new ArrayList<>(requests.size());
+        for (ReportRequest request : requests) results.add(execute(request));
+        return results;
+    }
+
+    /**
+     * Runs a report and hands each record to the consumer as it's produced, rather than returning them
+     * all at once.  Sources which can read results a row at a time override this so output can start
+     * before the whole report has been read.
+     * @param request The report to run.
+     * @param consumer Called once for each record, in report order.
+     * @return The number of records produced, or -1 if the report couldn't be run.
+     */
+    default long forEachRecord(ReportRequest request, Consumer<Record> consumer)
+    {
+        List<Record> records = execute(request);
+        if (records == null) return -1;
+
+        records.forEach(consumer);
+        return records.size();
+    }
+}
@@ -0,0 +1,372 @@
+package com.napier.sem;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file of precomputed reports, written from a ReportCatalogue and read back as a report source.  Any
+ * report is answered with one lookup in the index and one read of the file, without a database.
+ * The file holds a header, every report one after another, then the index of report keys to where
+ * each report starts and how long it is, and finally where the index starts:
+ *     magic | version | report... | index count | (key, offset, length)... | index offset
+ * Each report is a row count followed by its rows, each a type byte and the row's fields.
+ * The index is read into memory when the store is opened, reports are read when they're asked for.
+ * Reads are positional, so one store can be shared by any number of threads.
+ */
+public class ReportStore implements ReportSource, Closeable
+{
+    // Marks the file as a report store, "WRPT"
+    static final int MAGIC = 0x57525054;
+    static final int VERSION = 1;
+
+    // Row types
+    private static final byte COUNTRY_ROW = 1;
+    private static final byte CITY_ROW = 2;
+    private static final byte CAPITAL_ROW = 3;
+    private static final byte RESIDENCE_ROW = 4;
+    private static final byte POPULATION_ROW = 5;
+    private static final byte LANGUAGE_ROW = 6;
+
+    private final Path file;
+    private final FileChannel channel;
+    // Where each report is in the file, by catalogue key, as {offset, length}
+    private final Map<String, long[]> index;
+
+    private ReportStore(Path file, FileChannel channel, Map<String, long[]> index)
+    {
+        this.file = file;
+        this.channel = channel;
+        this.index = index;
+    }
+
+    /**
+     * Writes every report in a catalogue to a new store, replacing the file if it exists.
+     * @param catalogue The reports to write.
+     * @param file The file to write.
+     * @return The size of the file in bytes
+     * @throws IOException if the file can't be written
+     */
+    public static long write(ReportCatalogue catalogue, Path file) throws IOException
+    {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+
+        try (OutputStream stream = Files.newOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long offset = 8;
+
+            List<String> keys = new ArrayList<>(catalogue.getReports().keySet());
+            long[] offsets = new long[keys.size()];
+            int[] lengths = new int[keys.size()];
+            ByteArrayOutputStream report = new ByteArrayOutputStream();
+            for (int i = 0; i < keys.size(); i++)
+            {
+                report.reset();
+                writeReport(new DataOutputStream(report), catalogue.getReports().get(keys.get(i)));
+                report.writeTo(out);
+                offsets[i] = offset;
+                lengths[i] = report.size();
+                offset += report.size();
+            }
+
+            long indexOffset = offset;
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++)
+            {
+                out.writeUTF(keys.get(i));
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+            out.writeLong(indexOffset);
+        }
+        return Files.size(file);
+    }
+
+    /**
+     * Opens a store and reads its index.
+     * @param file The store's file.
+     * @return The store, which must be closed once it's no longer needed
+     * @throws IOException if the file can't be read or isn't a store of this version
+     */
+    public static ReportStore open(Path file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            if (size < 20) throw new IOException(file + " is too short to be a report store");
+
+            DataInputStream header = read(channel, 0, 8);
+            if (header.readInt() != MAGIC) throw new IOException(file + " isn't a report store");
+            int version = header.readInt();
+            if (version != VERSION) throw new IOException(file + " is version " + version + ", expected " + VERSION);
+
+            long indexOffset = read(channel, size - 8, 8).readLong();
+            if (indexOffset < 8 || indexOffset > size - 12) throw new IOException(file + " has a bad index offset");
+
+            DataInputStream in = read(channel, indexOffset, (int) (size - 8 - indexOffset));
+            int count = in.readInt();
+            Map<String, long[]> index = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                index.put(key, new long[] {in.readLong(), in.readInt()});
+            }
+            return new ReportStore(file, channel, index);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of reports in the store.
+     */
+    public int getReportCount() { return index.size(); }
+
+    @Override
+    public List<Record> allCountriesIn(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("allCountriesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, 1)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(1, areaFilter, areaName), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Record> topNCountriesIn(String areaFilter, String areaName, Integer n)
+    {
+        if (DAO.queryInvalid("topNCountriesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, n)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(2, areaFilter, areaName), n);
+    }
+
+    @Override
+    public List<Record> allCitiesIn(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("allCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.CITY_AREA_FILTERS, 1)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(3, areaFilter, areaName), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Record> topNCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        if (DAO.queryInvalid("topNCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.CITY_AREA_FILTERS, n)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(4, areaFilter, areaName), n);
+    }
+
+    @Override
+    public List<Record> allCapitalCitiesIn(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("allCapitalCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, 1)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(5, areaFilter, areaName), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Record> topNCapitalCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        if (DAO.queryInvalid("topNCapitalCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, n)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(6, areaFilter, areaName), n);
+    }
+
+    @Override
+    public List<Record> populationLivingInAndNotInCities(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("populationLivingInAndNotInCities", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.RESIDENCE_AREA_FILTERS, 1)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(7, areaFilter, areaName), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Record> populationOf(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("populationOf", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.POPULATION_AREA_FILTERS, 1)) return new ArrayList<>();
+        return lookUp(ReportCatalogue.key(8, areaFilter, areaName), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Record> languageReport()
+    {
+        return lookUp(ReportCatalogue.key(9, null, null), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException { channel.close(); }
+
+    /**
+     * Reads a report from the file.
+     * @param key The report's catalogue key.
+     * @param n The most records to read, as top N reports are the start of their list.
+     * @return The report's records, an empty list if there's no such area, or null if it can't be read
+     */
+    private List<Record> lookUp(String key, int n)
+    {
+        long[] location = index.get(key);
+        if (location == null) return new ArrayList<>();
+
+        try
+        {
+            return readReport(read(channel, location[0], (int) location[1]), n);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read " + key + " from " + file);
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads part of the file without moving the channel's position, so threads don't interfere.
+     */
+    private static DataInputStream read(FileChannel channel, long offset, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, offset + buffer.position()) < 0) throw new IOException("Unexpected end of file");
+        }
+        return new DataInputStream(new ByteArrayInputStream(buffer.array()));
+    }
+
+    private static void writeReport(DataOutputStream out, List<Record> records) throws IOException
+    {
+        out.writeInt(records.size());
+        for (Record record : records)
+        {
+            ReportRow row = record.getRow();
+            if (row instanceof CountryRow)
+            {
+                CountryRow country = (CountryRow) row;
+                out.writeByte(COUNTRY_ROW);
+                writeString(out, country.getCountryCode());
+                writeString(out, country.getName());
+                writeString(out, country.getContinent());
+                writeString(out, country.getRegion());
+                out.writeLong(country.getPopulation());
+                writeString(out, country.getCapital());
+            }
+            else if (row instanceof CityRow)
+            {
+                CityRow city = (CityRow) row;
+                out.writeByte(CITY_ROW);
+                writeString(out, city.getName());
+                writeString(out, city.getCountry());
+                writeString(out, city.getDistrict());
+                out.writeLong(city.getPopulation());
+            }
+            else if (row instanceof CapitalRow)
+            {
+                CapitalRow capital = (CapitalRow) row;
+                out.writeByte(CAPITAL_ROW);
+                writeString(out, capital.getName());
+                writeString(out, capital.getCountry());
+                writeString(out, capital.getRegion());
+                writeString(out, capital.getContinent());
+                out.writeLong(capital.getPopulation());
+            }
+            else if (row instanceof ResidenceRow)
+            {
+                ResidenceRow residence = (ResidenceRow) row;
+                out.writeByte(RESIDENCE_ROW);
+                writeString(out, residence.getName());
+                out.writeLong(residence.getPopulation());
+                out.writeLong(residence.getPopulationLivingInCities());
+                out.writeDouble(residence.getPercentageLivingInCities());
+                out.writeLong(residence.getPopulationNotLivingInCities());
+                out.writeDouble(residence.getPercentageNotLivingInCities());
+            }
+            else if (row instanceof PopulationRow)
+            {
+                out.writeByte(POPULATION_ROW);
+                writeString(out, row.getName());
+                out.writeLong(row.getPopulation());
+            }
+            else if (row instanceof LanguageRow)
+            {
+                LanguageRow language = (LanguageRow) row;
+                out.writeByte(LANGUAGE_ROW);
+                writeString(out, language.getName());
+                out.writeLong(language.getSpeakers());
+                out.writeInt(language.getPercentage());
+            }
+            else
+            {
+                throw new IOException("Can't store a record of an unknown type");
+            }
+        }
+    }
+
+    private static List<Record> readReport(DataInputStream in, int n) throws IOException
+    {
+        int count = Math.min(in.readInt(), n);
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            byte type = in.readByte();
+            switch (type)
+            {
+                case COUNTRY_ROW:
+                    records.add(new Record(new CountryRow(readString(in), readString(in), readString(in),
+                            readString(in), in.readLong(), readString(in))));
+                    break;
+                case CITY_ROW:
+                    records.add(new Record(new CityRow(readString(in), readString(in), readString(in),
+                            in.readLong())));
+                    break;
+                case CAPITAL_ROW:
+                    records.add(new Record(new CapitalRow(readString(in), readString(in), readString(in),
+                            readString(in), in.readLong())));
+                    break;
+                case RESIDENCE_ROW:
+                    records.add(new Record(new ResidenceRow(readString(in), in.readLong(), in.readLong(),
+                            in.readDouble(), in.readLong(), in.readDouble())));
+                    break;
+                case POPULATION_ROW:
+                    records.add(new Record(new PopulationRow(readString(in), in.readLong())));
+                    break;
+                case LANGUAGE_ROW:
+                    records.add(new Record(new LanguageRow(readString(in), in.readLong(), in.readInt())));
+                    break;
+                default:
+                    throw new IOException("Unknown row type " + type);
+            }
+        }
+        return records;
+    }
+
+    // Strings are written with a leading flag so nulls survive the round trip
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
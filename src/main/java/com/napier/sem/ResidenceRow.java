@@ -0,0 +1,81 @@
+package com.napier.sem;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The row of a residence report (use case 7)
+ */
+public final class ResidenceRow extends ReportRow
+{
+    private final String name;
+    private final long population;
+    private final long populationLivingInCities;
+    private final double percentageLivingInCities;
+    private final long populationNotLivingInCities;
+    private final double percentageNotLivingInCities;
+
+    public ResidenceRow(String name, long population, long populationLivingInCities, double percentageLivingInCities,
+                        long populationNotLivingInCities, double percentageNotLivingInCities)
+    {
+        this.name = name;
+        this.population = population;
+        this.populationLivingInCities = populationLivingInCities;
+        this.percentageLivingInCities = percentageLivingInCities;
+        this.populationNotLivingInCities = populationNotLivingInCities;
+        this.percentageNotLivingInCities = percentageNotLivingInCities;
+    }
+
+    /**
+     * Reads a row selected as name, totalPopulation, populationInCities, populationNotInCities.
+     * The percentages are worked out from the populations.
+     * @param result The result, positioned on a row.
+     * @return The row
+     * @throws SQLException if a column can't be read
+     */
+    static ResidenceRow map(ResultSet result) throws SQLException
+    {
+        long population = result.getLong(2);
+        long populationLivingInCities = result.getLong(3);
+        long populationNotLivingInCities = result.getLong(4);
+        return new ResidenceRow(result.getString(1),
+                population,
+                populationLivingInCities,
+                (double) populationLivingInCities / (double) population * 100,
+                populationNotLivingInCities,
+                (double) populationNotLivingInCities / (double) population * 100);
+    }
+
+    @Override
+    public String getRecordType() { return App.RESIDENCE_REPORT; }
+
+    @Override
+    public String getName() { return name; }
+    @Override
+    public long getPopulation() { return population; }
+    @Override
+    public long getPopulationLivingInCities() { return populationLivingInCities; }
+    public double getPercentageLivingInCities() { return percentageLivingInCities; }
+    @Override
+    public long getPopulationNotLivingInCities() { return populationNotLivingInCities; }
+    public double getPercentageNotLivingInCities() { return percentageNotLivingInCities; }
+
+    /**
+     * Formats the residence report in a consistent, readable manner
+     * @return A string representing a residence report record
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(App.HORIZONTAL_LINE + "\n" +
+                        "Area: %s | Total population: %,d\n" +
+                        "Population living in Cities: %,d (%.2f%%)\n" +
+                        "Population not living in Cities: %,d (%.2f%%)",
+                name,
+                population,
+                populationLivingInCities,
+                percentageLivingInCities,
+                populationNotLivingInCities,
+                percentageNotLivingInCities);
+    }
+}
@@ -0,0 +1,22 @@
+package com.napier.sem;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Reading a report's rows from the database, mapping them into records and handing each one on.
+ */
+@Name("com.napier.sem.ResultFetch")
+@Label("Result Fetch")
+@Description("The rows of a report query being read")
+class ResultFetchEvent extends ReportEvent
+{
+    @Label("Rows")
+    @Description("The number of records read")
+    long rowCount;
+
+    @Label("Streamed")
+    @Description("Whether each record was handed on as it was read, so the time includes the consumer's")
+    boolean streamed;
+}
@@ -0,0 +1,327 @@
+package com.napier.sem;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the reports which take longer than a threshold to a log file, with the SQL exactly as run, its
+ * bind values, its timings and MySQL's plan for it from EXPLAIN FORMAT=JSON.  The DAO hands each slow
+ * query over and carries on, the plan is fetched and the entry written on the log's own thread, so a slow
+ * query is never made slower by being logged.  The plan is fetched on a connection borrowed from the pool,
+ * but only if one comes free within EXPLAIN_BORROW_TIMEOUT_MILLIS, so EXPLAIN never holds up reports
+ * waiting on a busy pool.  The entry is written without its plan when none is free.
+ * The log is rotated once it reaches its maximum size: log becomes log.1, log.1 becomes log.2 and so on,
+ * and the oldest is deleted.  If slow queries come faster than they can be written, the queue fills up
+ * and the extra queries are counted rather than logged.
+ */
+public class SlowQueryLog implements AutoCloseable
+{
+    // Slow queries waiting to be written before new ones are dropped
+    static final int QUEUE_CAPACITY = 256;
+    // Time waited for a connection to run EXPLAIN on before logging the query without its plan
+    static final long EXPLAIN_BORROW_TIMEOUT_MILLIS = 100;
+
+    private final long thresholdNanos;
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final ConnectionPool pool;
+    private final ThreadPoolExecutor writer;
+
+    // Only touched on the writer thread
+    private OutputStream out;
+    private long fileBytes;
+
+    // Statistics
+    private final AtomicLong loggedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Opens the log, appending to the file if it exists.
+     * @param thresholdMillis Queries taking at least this long are logged, from borrowing a connection to
+     *                        handing over the last record.
+     * @param file The log file.
+     * @param maxFileBytes The size the log is rotated at.
+     * @param maxFiles The number of rotated logs kept besides the current one.
+     * @param pool The pool plans are fetched with, or null to log queries without their plans.
+     */
+    public SlowQueryLog(long thresholdMillis, Path file, long maxFileBytes, int maxFiles, ConnectionPool pool)
+    {
+        if (thresholdMillis < 0) throw new IllegalArgumentException("Threshold can't be negative");
+        if (maxFileBytes < 1) throw new IllegalArgumentException("Maximum file size must be at least 1 byte");
+        if (maxFiles < 0) throw new IllegalArgumentException("Number of rotated files can't be negative");
+
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.pool = pool;
+
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "slow-query-log");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> droppedCount.incrementAndGet());
+    }
+
+    /**
+     * @return The latency at which queries are logged, in nanoseconds.
+     */
+    public long getThresholdNanos() { return thresholdNanos; }
+
+    /**
+     * Logs a query if it took at least the threshold.  The entry is written in the background.
+     * @param query The query the DAO ran.
+     * @param totalNanos The whole query, from borrowing a connection to handing over the last row.
+     * @param executeNanos Running the statement.
+     * @param fetchNanos Reading the rows, less mappingNanos.
+     * @param mappingNanos Building records from the rows.
+     * @param rowCount The number of records the query gave.
+     */
+    public void record(ReportQuery query, long totalNanos, long executeNanos, long fetchNanos, long mappingNanos,
+                       long rowCount)
+    {
+        if (totalNanos < thresholdNanos) return;
+
+        Instant finished = Instant.now();
+        writer.execute(() -> write(format(query, finished, totalNanos, executeNanos, fetchNanos, mappingNanos,
+                rowCount, explain(query))));
+    }
+
+    /**
+     * Writes the queries already handed over, then closes the file.  Queries handed over afterwards
+     * aren't logged.
+     */
+    @Override
+    public void close()
+    {
+        writer.shutdown();
+        try
+        {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS))
+            {
+                System.out.println("Gave up waiting for the slow query log to be written");
+                writer.shutdownNow();
+                return;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        closeFile();
+    }
+
+    /**
+     * @return The number of slow queries written to the log.
+     */
+    public long getLoggedCount() { return loggedCount.get(); }
+
+    /**
+     * @return The number of slow queries left out because the queue was full.
+     */
+    public long getDroppedCount() { return droppedCount.get(); }
+
+    /**
+     * Asks MySQL how it runs a query, binding the same values the query was run with.
+     * @param query The query.
+     * @return The plan as JSON, or a note saying why there isn't one
+     */
+    private String explain(ReportQuery query)
+    {
+        if (pool == null) return "(no connection pool, plan not captured)";
+
+        Connection borrowed;
+        try
+        {
+            borrowed = pool.tryBorrow(EXPLAIN_BORROW_TIMEOUT_MILLIS);
+        }
+        catch (SQLException e)
+        {
+            return "(could not get a connection for EXPLAIN: " + e.getMessage() + ")";
+        }
+        if (borrowed == null) return "(no connection free, plan not captured)";
+
+        try (PreparedStatement statement = borrowed.prepareStatement("EXPLAIN FORMAT=JSON " + query.getStatement()))
+        {
+            DAO.bindParameters(statement, query.getParameters());
+            try (ResultSet resultSet = statement.executeQuery())
+            {
+                if (resultSet == null || !resultSet.next()) return "(EXPLAIN gave no plan)";
+                return resultSet.getString(1);
+            }
+        }
+        catch (SQLException e)
+        {
+            return "(EXPLAIN failed: " + e.getMessage() + ")";
+        }
+        finally
+        {
+            pool.release(borrowed);
+        }
+    }
+
+    /**
+     * Formats a log entry.  Comment lines start with #, like MySQL's own slow query log, and the SQL is
+     * given with its values in place of the placeholders so it can be pasted into a MySQL client.
+     */
+    static String format(ReportQuery query, Instant finished, long totalNanos, long executeNanos, long fetchNanos,
+                         long mappingNanos, long rowCount, String plan)
+    {
+        StringBuilder entry = new StringBuilder();
+        entry.append("# Time: ").append(finished).append('\n');
+        entry.append("# Use case: ").append(query.getUseCase())
+                .append(" | Area filter: ").append(query.getAreaFilter())
+                .append(" | Rows: ").append(rowCount).append('\n');
+        entry.append(String.format("# Total: %.3fms | Execute: %.3fms | Fetch: %.3fms | Mapping: %.3fms\n",
+                totalNanos / 1e6, executeNanos / 1e6, fetchNanos / 1e6, mappingNanos / 1e6));
+        entry.append("# Parameters:");
+        for (Object parameter : query.getParameters()) entry.append(' ').append(literal(parameter));
+        entry.append('\n');
+        entry.append(inline(query.getStatement(), query.getParameters()).trim()).append(";\n");
+        entry.append("# Plan:\n").append(plan).append("\n\n");
+        return entry.toString();
+    }
+
+    /**
+     * Puts the values in place of a statement's placeholders.  Question marks inside quotes are left as
+     * they are.  Only for reading, queries are never run this way.
+     * @param statement The SQL, with a ? for each parameter.
+     * @param parameters The values, in order.
+     * @return The SQL with the values quoted in place
+     */
+    static String inline(String statement, Object[] parameters)
+    {
+        StringBuilder sql = new StringBuilder(statement.length() + 16 * parameters.length);
+        boolean quoted = false;
+        int next = 0;
+        for (int i = 0; i < statement.length(); i++)
+        {
+            char c = statement.charAt(i);
+            if (c == '\'') quoted = !quoted;
+            if (c == '?' && !quoted && next < parameters.length) sql.append(literal(parameters[next++]));
+            else sql.append(c);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return A parameter as an SQL literal, strings quoted with their quotes and backslashes escaped
+     */
+    private static String literal(Object parameter)
+    {
+        if (parameter == null) return "NULL";
+        if (parameter instanceof Number) return parameter.toString();
+        return "'" + parameter.toString().replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /**
+     * Appends an entry to the log, rotating it first if the entry would take it past its maximum size.
+     * The file is flushed once there's nothing else waiting to be written.
+     */
+    private void write(String entry)
+    {
+        byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+        try
+        {
+            if (out == null) open();
+            if (fileBytes > 0 && fileBytes + bytes.length > maxFileBytes)
+            {
+                closeFile();
+                rotate();
+                open();
+            }
+            out.write(bytes);
+            fileBytes += bytes.length;
+            loggedCount.incrementAndGet();
+            if (writer.getQueue().isEmpty()) out.flush();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not write to the slow query log " + file);
+            System.out.println(e.getMessage());
+            closeFile();
+        }
+    }
+
+    private void open() throws IOException
+    {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        fileBytes = Files.size(file);
+    }
+
+    private void closeFile()
+    {
+        if (out == null) return;
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not close the slow query log " + file);
+        }
+        out = null;
+    }
+
+    /**
+     * Moves each log along one, deleting the oldest.
+     */
+    private void rotate() throws IOException
+    {
+        if (maxFiles == 0)
+        {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--)
+        {
+            Path older = rotated(i);
+            if (Files.exists(older)) Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param generation How many rotations ago the log was current, from 1.
+     * @return The path of the rotated log
+     */
+    Path rotated(int generation)
+    {
+        Path name = Paths.get(file.getFileName() + "." + generation);
+        return (file.getParent() == null) ? name : file.getParent().resolve(name);
+    }
+
+    /**
+     * Formats the log's statistics in a consistent, readable manner
+     * @return A string summarising how many slow queries were logged and dropped
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("Slow query log | Threshold: %.3fms | Logged: %,d | Dropped: %,d",
+                thresholdNanos / 1e6, getLoggedCount(), getDroppedCount());
+    }
+}
@@ -0,0 +1,300 @@
+package com.napier.sem;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Answers every report from an in-memory WorldSnapshot instead of MySQL.  The results match the DAO's,
+ * both in the records returned and the order they're returned in.
+ * Populations of the world, continents, regions and countries are looked up in the snapshot's
+ * PopulationRollup.  District and city populations and the residence report are summed over the city
+ * table by the snapshot's CityStore, with the Vector API where the JVM has it.
+ * The snapshot can be rebuilt with refresh, or have one city's population changed with
+ * updateCityPopulation.  The new snapshot is swapped in atomically once it's fully built, and any report
+ * already running carries on with the snapshot it started with.
+ */
+public class SnapshotReportSource implements ReportSource
+{
+    // The languages covered by the language report
+    private static final List<String> REPORT_LANGUAGES = Arrays.asList(
+            "Chinese", "English", "Hindi", "Spanish", "Arabic");
+
+    private final Callable<WorldSnapshot> loader;
+    private final AtomicReference<WorldSnapshot> current = new AtomicReference<>();
+
+    /**
+     * @param loader Builds a new snapshot each time refresh is called, e.g. by reading the database.
+     */
+    public SnapshotReportSource(Callable<WorldSnapshot> loader) { this.loader = loader; }
+
+    /**
+     * Creates a source which answers reports from an existing snapshot.  Refreshing it reloads the same
+     * snapshot.
+     * @param snapshot The snapshot reports will be answered from.
+     */
+    public SnapshotReportSource(WorldSnapshot snapshot)
+    {
+        this(() -> snapshot);
+        current.set(snapshot);
+    }
+
+    /**
+     * Builds a new snapshot and swaps it in place of the current one.  If the new snapshot can't be
+     * built the current one is kept.
+     * @return True if the snapshot was replaced.
+     */
+    public boolean refresh()
+    {
+        try
+        {
+            WorldSnapshot snapshot = loader.call();
+            if (snapshot == null) return false;
+            // Swapped under the same lock as updates, so an update can't put back the old snapshot
+            synchronized (this)
+            {
+                current.set(snapshot);
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            System.out.println("Could not refresh the world snapshot");
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Changes one city's population.  The snapshot is copied with the change, keeping the city reports'
+     * sort orders, the city store and the population rollup in step, and swapped in.  The rollup is
+     * updated along the city's path rather than rebuilt.
+     * @param cityId The database ID of the city.
+     * @param population The city's new population.
+     * @return False if no snapshot has been loaded or there's no city with the ID.
+     */
+    public synchronized boolean updateCityPopulation(int cityId, int population)
+    {
+        WorldSnapshot snapshot = current.get();
+        if (snapshot == null) return false;
+
+        WorldSnapshot updated = snapshot.withCityPopulation(cityId, population);
+        if (updated == null) return false;
+        current.set(updated);
+        return true;
+    }
+
+    /**
+     * @return The snapshot reports are currently answered from, or null if none has been loaded.
+     */
+    public WorldSnapshot getSnapshot() { return current.get(); }
+
+    @Override
+    public List<Record> allCountriesIn(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("allCountriesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, 1)) return new ArrayList<>();
+        return countries(current.get(), areaFilter, areaName, Integer.MAX_VALUE, false);
+    }
+
+    @Override
+    public List<Record> topNCountriesIn(String areaFilter, String areaName, Integer n)
+    {
+        if (DAO.queryInvalid("topNCountriesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, n)) return new ArrayList<>();
+        return countries(current.get(), areaFilter, areaName, n, true);
+    }
+
+    @Override
+    public List<Record> allCitiesIn(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("allCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.CITY_AREA_FILTERS, 1)) return new ArrayList<>();
+        return cities(current.get(), areaFilter, areaName, Integer.MAX_VALUE, false);
+    }
+
+    @Override
+    public List<Record> topNCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        if (DAO.queryInvalid("topNCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.CITY_AREA_FILTERS, n)) return new ArrayList<>();
+        return cities(current.get(), areaFilter, areaName, n, true);
+    }
+
+    @Override
+    public List<Record> allCapitalCitiesIn(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("allCapitalCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, 1)) return new ArrayList<>();
+        return capitalCities(current.get(), areaFilter, areaName, Integer.MAX_VALUE, false);
+    }
+
+    @Override
+    public List<Record> topNCapitalCitiesIn(String areaFilter, String areaName, Integer n)
+    {
+        if (DAO.queryInvalid("topNCapitalCitiesIn", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.COUNTRY_AREA_FILTERS, n)) return new ArrayList<>();
+        return capitalCities(current.get(), areaFilter, areaName, n, true);
+    }
+
+    @Override
+    public List<Record> populationLivingInAndNotInCities(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("populationLivingInAndNotInCities", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.RESIDENCE_AREA_FILTERS, 1)) return new ArrayList<>();
+
+        WorldSnapshot snapshot = current.get();
+        if (snapshot == null) return null;
+
+        Record record = snapshot.getCityStore().populationLivingInAndNotInCities(areaFilter, areaName);
+        List<Record> records = new ArrayList<>();
+        if (record != null) records.add(record);
+        return records;
+    }
+
+    @Override
+    public List<Record> populationOf(String areaFilter, String areaName)
+    {
+        if (DAO.queryInvalid("populationOf", DAO.getParameterisedWhereCondition(areaFilter, areaName),
+                areaFilter, DAO.POPULATION_AREA_FILTERS, 1)) return new ArrayList<>();
+
+        WorldSnapshot snapshot = current.get();
+        if (snapshot == null) return null;
+
+        // District and city populations are summed from the city table, the rest come from the country table
+        Record record = (App.DISTRICT.equals(areaFilter) || App.CITY.equals(areaFilter))
+                ? snapshot.getCityStore().populationOf(areaFilter, areaName)
+                : snapshot.getPopulationRollup().populationOf(areaFilter, areaName);
+        List<Record> records = new ArrayList<>();
+        if (record != null) records.add(record);
+        return records;
+    }
+
+    @Override
+    public List<Record> languageReport()
+    {
+        WorldSnapshot snapshot = current.get();
+        if (snapshot == null) return null;
+
+        long worldPopulation = snapshot.getPopulationRollup().populationOf(App.WORLD, "").getPopulation();
+
+        // Speakers are summed in thousandths of a person so the sum is exact, then rounded up as in SQL
+        List<Record> records = new ArrayList<>();
+        for (String language : REPORT_LANGUAGES)
+        {
+            int[] languageNames = snapshot.stringsMatching(language);
+            String name = null;
+            long thousandths = 0;
+            for (int row = 0; row < snapshot.languageCount; row++)
+            {
+                int country = snapshot.languageCountry[row];
+                if (country < 0 || !WorldSnapshot.contains(languageNames, snapshot.languageName[row])) continue;
+                if (name == null) name = snapshot.string(snapshot.languageName[row]);
+                thousandths += (long) snapshot.countryPopulation[country] * snapshot.languagePercentage[row];
+            }
+            if (name == null) continue;
+
+            long speakers = (thousandths + 999) / 1000;
+            records.add(new Record(name, speakers, percentageOfWorld(speakers, worldPopulation)));
+        }
+        records.sort((a, b) -> Long.compare(b.getSpeakers(), a.getSpeakers()));
+        return records;
+    }
+
+    /**
+     * Works out a percentage the same way MySQL does for (speakers / world_population) * 100.  The
+     * division is rounded to 4 decimal places, and the percentage is then truncated when read as an int.
+     * @param speakers The number of speakers of a language.
+     * @param worldPopulation The population of the world.
+     * @return The whole percentage of the world's population.
+     */
+    static int percentageOfWorld(long speakers, long worldPopulation)
+    {
+        if (worldPopulation == 0) return 0;
+        return BigDecimal.valueOf(speakers)
+                .divide(BigDecimal.valueOf(worldPopulation), 4, RoundingMode.HALF_UP)
+                .movePointRight(2)
+                .intValue();
+    }
+
+    /**
+     * Lists countries in an area by descending population.  Countries are only listed if they have a
+     * capital city, as the SQL joins on it, and top N queries also need the capital to be in the country.
+     */
+    private static List<Record> countries(WorldSnapshot snapshot, String areaFilter, String areaName,
+                                          int n, boolean topN)
+    {
+        if (snapshot == null) return null;
+        int[] areaNames = snapshot.stringsMatching(areaName);
+
+        List<Record> records = new ArrayList<>();
+        for (int country : snapshot.countriesByPopulation)
+        {
+            if (records.size() >= n) break;
+            int capital = snapshot.countryCapital[country];
+            if (capital < 0 || (topN && snapshot.cityCountry[capital] != country)) continue;
+            if (!snapshot.countryIn(country, areaFilter, areaNames)) continue;
+
+            records.add(new Record(snapshot.string(snapshot.countryCode[country]),
+                    snapshot.string(snapshot.countryName[country]),
+                    snapshot.string(snapshot.countryContinent[country]),
+                    snapshot.string(snapshot.countryRegion[country]),
+                    snapshot.countryPopulation[country],
+                    snapshot.string(snapshot.cityName[capital])));
+        }
+        return records;
+    }
+
+    /**
+     * Lists cities in an area by descending population.  Top N queries leave out cities with no population.
+     */
+    private static List<Record> cities(WorldSnapshot snapshot, String areaFilter, String areaName,
+                                       int n, boolean topN)
+    {
+        if (snapshot == null) return null;
+        int[] areaNames = snapshot.stringsMatching(areaName);
+
+        List<Record> records = new ArrayList<>();
+        for (int city : snapshot.citiesByPopulation)
+        {
+            if (records.size() >= n || (topN && snapshot.cityPopulation[city] <= 0)) break;
+            if (snapshot.cityCountry[city] < 0 || !snapshot.cityIn(city, areaFilter, areaNames)) continue;
+
+            records.add(new Record(snapshot.string(snapshot.cityName[city]),
+                    snapshot.string(snapshot.countryName[snapshot.cityCountry[city]]),
+                    snapshot.string(snapshot.cityDistrict[city]),
+                    snapshot.cityPopulation[city]));
+        }
+        return records;
+    }
+
+    /**
+     * Lists capital cities in an area by descending population.  Top N queries leave out capitals with
+     * no population.
+     */
+    private static List<Record> capitalCities(WorldSnapshot snapshot, String areaFilter, String areaName,
+                                              int n, boolean topN)
+    {
+        if (snapshot == null) return null;
+        int[] areaNames = snapshot.stringsMatching(areaName);
+
+        List<Record> records = new ArrayList<>();
+        for (int city : snapshot.capitalCitiesByPopulation)
+        {
+            if (records.size() >= n || (topN && snapshot.cityPopulation[city] <= 0)) break;
+            int country = snapshot.cityCountry[city];
+            if (!snapshot.countryIn(country, areaFilter, areaNames)) continue;
+
+            records.add(new Record(snapshot.string(snapshot.cityName[city]),
+                    snapshot.string(snapshot.countryName[country]),
+                    snapshot.string(snapshot.countryRegion[country]),
+                    snapshot.string(snapshot.countryContinent[country]),
+                    snapshot.cityPopulation[city]));
+        }
+        return records;
+    }
+}
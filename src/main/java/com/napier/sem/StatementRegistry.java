@@ -0,0 +1,35 @@
+package com.napier.sem;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Holds the parameterised SQL for every shape of report query.  A shape is a report (allCountriesIn,
+ * topNCitiesIn etc.) combined with the area filter it's run with, since the filter decides which column
+ * the where condition uses.  The SQL for each shape is only built once, and because the text is then
+ * identical every time it's used the driver's per-connection statement cache can hand back the
+ * statement the server has already parsed and planned.
+ */
+public class StatementRegistry
+{
+    private final Map<String, String> statements = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the SQL for a report shape, building it the first time the shape is used.
+     * @param report The name of the report, e.g. "topNCitiesIn".
+     * @param areaFilter The area filter the report is being run with.
+     * @param builder Builds the SQL for the shape from its parameterised where condition.
+     * @param whereCondition The parameterised where condition for the area filter.
+     * @return The parameterised SQL for the shape.
+     */
+    public String get(String report, String areaFilter, String whereCondition, Function<String, String> builder)
+    {
+        return statements.computeIfAbsent(report + "|" + areaFilter, key -> builder.apply(whereCondition));
+    }
+
+    /**
+     * @return The number of report shapes which have been built so far.
+     */
+    public int size() { return statements.size(); }
+}
@@ -9,7 +9,7 @@ import java.util.*;
  */
 public class UserPrompt
 {
-    private final DAO dao;
+    private final ReportSource dao;
     private final Scanner scanner;
     private boolean userWantsToQuit;
     private static final int[] topNQueryIds = new int[]{2, 4, 6};
@@ -34,7 +34,7 @@ public class UserPrompt
     private final Map<Integer, QueryInfo> queryTable = new HashMap<>();
     public boolean getUserWantsToQuit() { return userWantsToQuit; }
 
-    public UserPrompt(DAO dao)
+    public UserPrompt(ReportSource dao)
     {
         this.dao = dao;
         // Initialise a scanner to read strings from the console, splitting on newlines
@@ -116,11 +116,8 @@ public class UserPrompt
                 if (n == -1) continue; // Exit the loop if the user indicated they wanted to quit
             }
 
-            // Run the query that the user selects
-            List<Record> records = executeQueryFromInput(chosenQueryId, chosenAreaFilter, areaNameInput, n);
-
-            // Print the records to the console
-            showRecords(records);
+            // Run the query that the user selects, printing each record as soon as it's read
+            showReport(new ReportRequest(chosenQueryId, chosenAreaFilter, areaNameInput, n));
         }
 
         scanner.close();
@@ -146,7 +143,32 @@ public class UserPrompt
             return;
         }
 
-        for (Record record: records) System.out.println(record);
+        // Render into one buffer and print it in large chunks rather than a line at a time
+        ReportRenderer renderer = new ReportRenderer(System.out);
+        for (Record record: records) renderer.render(record);
+        renderer.flush();
+    }
+
+    /**
+     * Run a report and print each record to the console as it's read, so output starts with the first
+     * chunk of rows rather than once the whole report has been read.  If the report fails or is empty, an error
+     * message is printed.
+     * @param request The report to run
+     */
+    public void showReport(ReportRequest request)
+    {
+        ReportRenderer renderer = new ReportRenderer(System.out, request);
+        long count = dao.forEachRecord(request, renderer::render);
+        renderer.flush();
+
+        if (count < 0)
+        {
+            System.out.println("Could not run the query");
+        }
+        else if (count == 0)
+        {
+            System.out.println("Your query had no results, maybe try again with different input");
+        }
     }
 
     /**
@@ -293,31 +315,7 @@ public class UserPrompt
      */
     public List<Record> executeQueryFromInput(int queryId, String areaFilter, String areaName, int n)
     {
-
-        switch (queryId)
-        {
-            case (1):
-                return dao.allCountriesIn(areaFilter, areaName);
-            case (2):
-                return dao.topNCountriesIn(areaFilter, areaName, n);
-            case (3):
-                return dao.allCitiesIn(areaFilter, areaName);
-            case (4):
-                return dao.topNCitiesIn(areaFilter, areaName, n);
-            case (5):
-                return dao.allCapitalCitiesIn(areaFilter, areaName);
-            case (6):
-                return dao.topNCapitalCitiesIn(areaFilter, areaName, n);
-            case (7):
-                return dao.populationLivingInAndNotInCities(areaFilter, areaName);
-            case (8):
-                return dao.populationOf(areaFilter, areaName);
-            case (9):
-                return dao.languageReport();
-            default:
-                return null;
-        }
-
+        return dao.execute(new ReportRequest(queryId, areaFilter, areaName, n));
     }
 }
 
@@ -0,0 +1,100 @@
+package com.napier.sem;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * City scans using the JDK Vector API.  Codes are compared a vector at a time, and the comparison masks
+ * which populations are added into a vector of running sums, so there's no branch per city.
+ * Populations are longs and codes are ints, so codes are loaded at half the width of the populations to
+ * give both vectors the same number of lanes.  The last few cities, which don't fill a vector, are
+ * handled one at a time.
+ * Only load this class when the jdk.incubator.vector module is present, see CityScan.vector.
+ */
+final class VectorCityScan implements CityScan
+{
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+
+    @Override
+    public long[] sumWhere(int[] column, int code, long[] population, int size)
+    {
+        checkSize(column, population, size);
+
+        LongVector sums = LongVector.zero(LONGS);
+        LongVector counts = LongVector.zero(LONGS);
+        LongVector ones = LongVector.broadcast(LONGS, 1);
+        int i = 0;
+        for (int bound = LONGS.loopBound(size); i < bound; i += LONGS.length())
+        {
+            // Most vectors hold no match for a single code, so only their codes are read, a third of the
+            // memory traffic of reading their populations too when the table is bigger than the cache
+            VectorMask<Integer> hit = IntVector.fromArray(INTS, column, i).eq(code);
+            if (!hit.anyTrue()) continue;
+            VectorMask<Long> match = hit.cast(LONGS);
+            sums = sums.add(LongVector.fromArray(LONGS, population, i), match);
+            counts = counts.add(ones, match);
+        }
+
+        long count = counts.reduceLanes(VectorOperators.ADD);
+        long sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < size; i++)
+        {
+            if (column[i] == code)
+            {
+                count++;
+                sum += population[i];
+            }
+        }
+        return new long[] {count, sum};
+    }
+
+    @Override
+    public long[] sumWhereIn(int[] column, int[] inSet, long[] population, int size)
+    {
+        checkSize(column, population, size);
+
+        LongVector sums = LongVector.zero(LONGS);
+        LongVector counts = LongVector.zero(LONGS);
+        LongVector ones = LongVector.broadcast(LONGS, 1);
+        int i = 0;
+        for (int bound = LONGS.loopBound(size); i < bound; i += LONGS.length())
+        {
+            // Gathers inSet[column[i]] for every lane
+            VectorMask<Long> match = IntVector.fromArray(INTS, inSet, 0, column, i)
+                    .compare(VectorOperators.NE, 0)
+                    .cast(LONGS);
+            sums = sums.add(LongVector.fromArray(LONGS, population, i), match);
+            counts = counts.add(ones, match);
+        }
+
+        long count = counts.reduceLanes(VectorOperators.ADD);
+        long sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < size; i++)
+        {
+            if (inSet[column[i]] != 0)
+            {
+                count++;
+                sum += population[i];
+            }
+        }
+        return new long[] {count, sum};
+    }
+
+    @Override
+    public String getName() { return "vector (" + LONGS.length() + " lanes)"; }
+
+    // Checked up front so a bad size fails straight away, rather than part way through a scan
+    private static void checkSize(int[] column, long[] population, int size)
+    {
+        if (size < 0 || size > column.length || size > population.length)
+        {
+            throw new IllegalArgumentException("Size is outside the columns");
+        }
+    }
+}
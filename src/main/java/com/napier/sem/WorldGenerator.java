@@ -0,0 +1,576 @@
+package com.napier.sem;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Generates a synthetic world database, shaped like the shipped world.sql but any number of times bigger,
+ * for testing reports at sizes the real tables can't reach.  The same scale and seed always give the
+ * same world.
+ * The shape is taken from world.sql: countries are spread over its 25 regions in the same proportions,
+ * cities per country and city populations are log-normal with the same median and spread, about 3% of
+ * countries have no cities and no capital, and each country speaks a few languages drawn from a long
+ * tailed list headed by the most widely spoken ones.
+ * At scale n there are n times as many cities, countries and languages, except that country codes are
+ * three letters so there are never more than 17,576 countries, past that the extra cities go to the
+ * countries there are.  Country populations are ints in the database, so a country whose cities would
+ * outgrow one has its city populations scaled down to fit.
+ * Every city is in a country, every capital is the largest city of its own country and every language
+ * is spoken in a country, so the foreign keys hold.  The world can be written to an SQL file for MySQL
+ * or fed straight into a WorldSnapshot or CityStore.
+ */
+public class WorldGenerator
+{
+    // Sizes of the shipped tables, the scale 1 world
+    static final int BASE_COUNTRIES = 239;
+    static final int BASE_CITIES = 4079;
+    static final int BASE_LANGUAGES = 457;
+    static final int MAX_COUNTRIES = 26 * 26 * 26;
+    static final int MAX_SCALE = 10_000;
+
+    // Continent, region and the number of countries in it in world.sql
+    private static final String[][] REGIONS = {
+            {"Africa", "Central Africa", "9"},
+            {"Africa", "Eastern Africa", "20"},
+            {"Africa", "Northern Africa", "7"},
+            {"Africa", "Southern Africa", "5"},
+            {"Africa", "Western Africa", "17"},
+            {"Antarctica", "Antarctica", "5"},
+            {"Asia", "Eastern Asia", "8"},
+            {"Asia", "Middle East", "18"},
+            {"Asia", "Southeast Asia", "11"},
+            {"Asia", "Southern and Central Asia", "14"},
+            {"Europe", "Baltic Countries", "3"},
+            {"Europe", "British Islands", "2"},
+            {"Europe", "Eastern Europe", "10"},
+            {"Europe", "Nordic Countries", "7"},
+            {"Europe", "Southern Europe", "15"},
+            {"Europe", "Western Europe", "9"},
+            {"North America", "Caribbean", "24"},
+            {"North America", "Central America", "8"},
+            {"North America", "North America", "5"},
+            {"Oceania", "Australia and New Zealand", "5"},
+            {"Oceania", "Melanesia", "5"},
+            {"Oceania", "Micronesia", "7"},
+            {"Oceania", "Micronesia/Caribbean", "1"},
+            {"Oceania", "Polynesia", "10"},
+            {"South America", "South America", "14"}};
+
+    // The most widely spoken languages head the list, the rest are generated
+    private static final String[] LANGUAGES = {"English", "Arabic", "Spanish", "French", "German",
+            "Chinese", "Russian", "Italian", "Portuguese", "Hindi"};
+
+    // Log-normal fits to world.sql: city populations, cities per country and the share living in cities
+    private static final double CITY_POPULATION_LOG_MEAN = 12.2;
+    private static final double CITY_POPULATION_LOG_SD = 0.96;
+    private static final int MIN_CITY_POPULATION = 42;
+    private static final int MAX_CITY_POPULATION = 10_500_000;
+    private static final double CITY_WEIGHT_LOG_SD = 2.0;
+    private static final double URBAN_SHARE_LOG_MEAN = Math.log(0.25);
+    private static final double URBAN_SHARE_LOG_SD = 0.8;
+    private static final double EMPTY_COUNTRY_SHARE = 7.0 / 239;
+    private static final int CITIES_PER_DISTRICT = 3;
+    private static final double LANGUAGES_PER_COUNTRY = 4.1;
+    private static final int MAX_LANGUAGES_PER_COUNTRY = 12;
+
+    // A country's cities are kept to this much of the largest int population, leaving room for the rest
+    private static final long MAX_CITY_POPULATION_PER_COUNTRY = Integer.MAX_VALUE / 10L * 9;
+
+    // Distinct city and district names, past this they're reused so the string dictionaries stay small
+    private static final int NAME_POOL = 1 << 20;
+    private static final String[] SYLLABLES = {"ba", "ka", "da", "ra", "ma", "na", "sa", "ta", "la", "va",
+            "ko", "ri", "lu", "mo", "ne", "si", "to", "pe", "zu", "gi", "an", "el", "or", "un"};
+
+    // Rows in each INSERT statement of the SQL file
+    private static final int ROWS_PER_INSERT = 1000;
+
+    private final int scale;
+    private final long seed;
+    private final int countries;
+    private final int cities;
+    private final int languages;
+
+    // Country table, worked out up front as the country rows come before the cities
+    private final String[] code;
+    private final String[] continent;
+    private final String[] region;
+    private final int[] cityCount;
+    private final int[] population;
+    private final int[] capitalId;
+    // Each country's cities are drawn from their own random sequence, so they can be drawn again
+    private final long[] citySeed;
+    private final double[] cityScaleDown;
+    private final long languageSeed;
+
+    /**
+     * @param scale How many times bigger than world.sql, from 1 up to MAX_SCALE.
+     * @param seed The seed, the same scale and seed give the same world.
+     */
+    public WorldGenerator(int scale, long seed)
+    {
+        if (scale < 1 || scale > MAX_SCALE)
+        {
+            throw new IllegalArgumentException("Scale must be from 1 to " + MAX_SCALE);
+        }
+        this.scale = scale;
+        this.seed = seed;
+        countries = (int) Math.min((long) BASE_COUNTRIES * scale, MAX_COUNTRIES);
+        cities = BASE_CITIES * scale;
+        languages = (int) ((long) BASE_LANGUAGES * countries / BASE_COUNTRIES);
+
+        SplittableRandom random = new SplittableRandom(seed);
+        code = countryCodes(random);
+        continent = new String[countries];
+        region = new String[countries];
+        cityCount = new int[countries];
+        population = new int[countries];
+        capitalId = new int[countries];
+        citySeed = new long[countries];
+        cityScaleDown = new double[countries];
+        languageSeed = random.nextLong();
+
+        // Pick each country's region and how big a share of the cities it has
+        double[] regionWeights = new double[REGIONS.length];
+        for (int i = 0; i < REGIONS.length; i++) regionWeights[i] = Integer.parseInt(REGIONS[i][2]);
+        double[] regionTotals = cumulative(regionWeights);
+        double[] cityWeights = new double[countries];
+        int withCities = 0;
+        for (int country = 0; country < countries; country++)
+        {
+            String[] picked = REGIONS[pick(regionTotals, random)];
+            continent[country] = picked[0];
+            region[country] = picked[1];
+            citySeed[country] = random.nextLong();
+            // At least one country has cities, so there's somewhere to put them
+            boolean empty = random.nextDouble() < EMPTY_COUNTRY_SHARE && (country < countries - 1 || withCities > 0);
+            if (empty) continue;
+            cityWeights[country] = Math.exp(CITY_WEIGHT_LOG_SD * random.nextGaussian());
+            cityCount[country] = 1;
+            withCities++;
+        }
+
+        // Every country with cities has one, the rest are shared out by weight
+        double[] cityTotals = cumulative(cityWeights);
+        for (int city = withCities; city < cities; city++) cityCount[pick(cityTotals, random)]++;
+
+        // Draw every country's cities to find its capital and how many of its people live in cities
+        int nextId = 1;
+        for (int country = 0; country < countries; country++)
+        {
+            SplittableRandom cityRandom = new SplittableRandom(citySeed[country]);
+            long inCities = 0;
+            int largest = 0;
+            int capital = 0;
+            for (int city = 0; city < cityCount[country]; city++)
+            {
+                int cityPopulation = cityPopulation(cityRandom);
+                cityRandom.nextInt(districtCount(country));
+                inCities += cityPopulation;
+                if (cityPopulation > largest)
+                {
+                    largest = cityPopulation;
+                    capital = nextId + city;
+                }
+            }
+            cityScaleDown[country] = (inCities > MAX_CITY_POPULATION_PER_COUNTRY)
+                    ? (double) MAX_CITY_POPULATION_PER_COUNTRY / inCities : 1;
+            capitalId[country] = capital;
+            nextId += cityCount[country];
+
+            if (cityCount[country] == 0)
+            {
+                population[country] = (int) Math.exp(Math.log(20_000) + 1.5 * random.nextGaussian());
+                continue;
+            }
+            // Sum the scaled populations the cities will be written with
+            if (cityScaleDown[country] < 1)
+            {
+                cityRandom = new SplittableRandom(citySeed[country]);
+                inCities = 0;
+                for (int city = 0; city < cityCount[country]; city++)
+                {
+                    inCities += scaleDown(cityPopulation(cityRandom), cityScaleDown[country]);
+                    cityRandom.nextInt(districtCount(country));
+                }
+            }
+            double urbanShare = Math.min(1, Math.max(0.02,
+                    Math.exp(URBAN_SHARE_LOG_MEAN + URBAN_SHARE_LOG_SD * random.nextGaussian())));
+            population[country] = (int) Math.min(Integer.MAX_VALUE, Math.round(inCities / urbanShare));
+        }
+    }
+
+    public int getScale() { return scale; }
+
+    public long getSeed() { return seed; }
+
+    public int getCountryCount() { return countries; }
+
+    public int getCityCount() { return cities; }
+
+    /**
+     * Takes the generated rows.  Every country is given first, then every city in country order, then
+     * every language.
+     */
+    public interface Sink
+    {
+        void addCountry(String code, String name, String continent, String region, int population, Integer capitalId);
+
+        void addCity(int id, String name, String countryCode, String district, int population);
+
+        void addLanguage(String countryCode, String language, boolean official, int percentageTenths);
+    }
+
+    /**
+     * Generates the world into a sink.
+     * @param sink The sink to give every row to.
+     */
+    public void generate(Sink sink)
+    {
+        for (int country = 0; country < countries; country++)
+        {
+            sink.addCountry(code[country], countryName(country), continent[country], region[country],
+                    population[country], (cityCount[country] == 0) ? null : capitalId[country]);
+        }
+
+        // Cities are numbered from 1 in country order, and district names run on from country to country
+        int id = 1;
+        int districtOffset = 0;
+        for (int country = 0; country < countries; country++)
+        {
+            SplittableRandom cityRandom = new SplittableRandom(citySeed[country]);
+            for (int city = 0; city < cityCount[country]; city++)
+            {
+                int cityPopulation = scaleDown(cityPopulation(cityRandom), cityScaleDown[country]);
+                int district = districtOffset + cityRandom.nextInt(districtCount(country));
+                sink.addCity(id, name((id - 1) % NAME_POOL), code[country],
+                        name(NAME_POOL + district % NAME_POOL), cityPopulation);
+                id++;
+            }
+            districtOffset += (cityCount[country] == 0) ? 0 : districtCount(country);
+        }
+
+        // Widely spoken languages are picked more often, each about as often as in world.sql
+        double[] languageWeights = new double[languages];
+        for (int language = 0; language < languages; language++) languageWeights[language] = 1.0 / (language + 1);
+        double[] languageTotals = cumulative(languageWeights);
+        SplittableRandom random = new SplittableRandom(languageSeed);
+        int[] spoken = new int[MAX_LANGUAGES_PER_COUNTRY];
+        for (int country = 0; country < countries; country++)
+        {
+            // Geometric, so most countries speak a few languages and some speak many
+            double more = Math.log(1 - random.nextDouble()) / Math.log(1 - 1 / LANGUAGES_PER_COUNTRY);
+            int count = (int) Math.min(MAX_LANGUAGES_PER_COUNTRY, 1 + (long) more);
+            for (int i = 0; i < count; i++)
+            {
+                int language;
+                do
+                {
+                    language = pick(languageTotals, random);
+                } while (contains(spoken, i, language));
+                spoken[i] = language;
+            }
+
+            // The first language is official and spoken by most, the others share what's left
+            int remaining = 1000;
+            for (int i = 0; i < count; i++)
+            {
+                int share = (i == 0) ? 500 + random.nextInt(500) : (int) (remaining * random.nextDouble(0.1, 0.7));
+                remaining -= share;
+                sink.addLanguage(code[country], languageName(spoken[i]), i == 0, share);
+            }
+        }
+    }
+
+    /**
+     * @return The world as an in-memory snapshot.
+     */
+    public WorldSnapshot snapshot()
+    {
+        WorldSnapshot.Builder builder = new WorldSnapshot.Builder();
+        generate(new Sink()
+        {
+            @Override
+            public void addCountry(String code, String name, String continent, String region, int population, Integer capitalId)
+            {
+                builder.addCountry(code, name, continent, region, population, capitalId);
+            }
+
+            @Override
+            public void addCity(int id, String name, String countryCode, String district, int population)
+            {
+                builder.addCity(id, name, countryCode, district, population);
+            }
+
+            @Override
+            public void addLanguage(String countryCode, String language, boolean official, int percentageTenths)
+            {
+                builder.addLanguage(countryCode, language, percentageTenths);
+            }
+        });
+        return builder.build();
+    }
+
+    /**
+     * @param scan The scan the store filters with.
+     * @return The country and city tables as a column store.
+     */
+    public CityStore cityStore(CityScan scan)
+    {
+        CityStore.Builder builder = new CityStore.Builder(cities);
+        generate(new Sink()
+        {
+            @Override
+            public void addCountry(String code, String name, String continent, String region, int population, Integer capitalId)
+            {
+                builder.addCountry(code, name, continent, region, population);
+            }
+
+            @Override
+            public void addCity(int id, String name, String countryCode, String district, int population)
+            {
+                builder.addCity(name, countryCode, district, population);
+            }
+
+            @Override
+            public void addLanguage(String countryCode, String language, boolean official, int percentageTenths) { }
+        });
+        return builder.build(scan);
+    }
+
+    /**
+     * Writes the world as an SQL file which replaces the rows of the world database's tables, to be run
+     * after world.sql, e.g. copied into docker-entrypoint-initdb.d after it or piped into the mysql client.
+     * Rows are inserted a thousand at a time in one transaction, with key checks off while loading.
+     * @param file The file to write, replaced if it exists.
+     * @return The number of rows written
+     * @throws IOException if the file can't be written
+     */
+    public long writeSql(Path file) throws IOException
+    {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            writer.write("-- Synthetic world database, scale " + scale + ", seed " + seed + "\n");
+            writer.write("SET NAMES utf8mb4;\n");
+            writer.write("SET FOREIGN_KEY_CHECKS = 0;\n");
+            writer.write("SET UNIQUE_CHECKS = 0;\n");
+            writer.write("SET autocommit = 0;\n");
+            writer.write("DELETE FROM countrylanguage;\n");
+            writer.write("DELETE FROM city;\n");
+            writer.write("DELETE FROM country;\n");
+
+            SqlSink sink = new SqlSink(writer);
+            generate(sink);
+            sink.endInsert();
+
+            writer.write("COMMIT;\n");
+            writer.write("SET UNIQUE_CHECKS = 1;\n");
+            writer.write("SET FOREIGN_KEY_CHECKS = 1;\n");
+            return sink.rows;
+        }
+    }
+
+    /**
+     * Writes rows as multi-row INSERT statements, starting a new statement for each table.
+     */
+    private static class SqlSink implements Sink
+    {
+        private final Writer writer;
+        private String table;
+        private int rowsInInsert;
+        private long rows;
+
+        SqlSink(Writer writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override
+        public void addCountry(String code, String name, String continent, String region, int population, Integer capitalId)
+        {
+            row("country (Code, Name, Continent, Region, Population, Capital)",
+                    quote(code) + "," + quote(name) + "," + quote(continent) + "," + quote(region) + ","
+                            + population + "," + ((capitalId == null) ? "NULL" : capitalId.toString()));
+        }
+
+        @Override
+        public void addCity(int id, String name, String countryCode, String district, int population)
+        {
+            row("city (ID, Name, CountryCode, District, Population)",
+                    id + "," + quote(name) + "," + quote(countryCode) + "," + quote(district) + "," + population);
+        }
+
+        @Override
+        public void addLanguage(String countryCode, String language, boolean official, int percentageTenths)
+        {
+            row("countrylanguage (CountryCode, Language, IsOfficial, Percentage)",
+                    quote(countryCode) + "," + quote(language) + "," + (official ? "'T'" : "'F'") + ","
+                            + (percentageTenths / 10) + "." + (percentageTenths % 10));
+        }
+
+        private void row(String table, String values)
+        {
+            try
+            {
+                if (!table.equals(this.table) || rowsInInsert == ROWS_PER_INSERT)
+                {
+                    endInsert();
+                    writer.write("INSERT INTO " + table + " VALUES\n(");
+                    this.table = table;
+                }
+                else writer.write(",\n(");
+                writer.write(values);
+                writer.write(")");
+                rowsInInsert++;
+                rows++;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void endInsert() throws IOException
+        {
+            if (rowsInInsert > 0) writer.write(";\n");
+            rowsInInsert = 0;
+        }
+
+        private static String quote(String value)
+        {
+            return "'" + value.replace("\\", "\\\\").replace("'", "''") + "'";
+        }
+    }
+
+    /**
+     * Writes a synthetic world to an SQL file.
+     * Usage: WorldGenerator scale [seed] [file], seed 42 and target/world-[scale]x.sql by default
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: WorldGenerator scale [seed] [file]");
+            return;
+        }
+        int scale = Integer.parseInt(args[0]);
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 42;
+        Path file = Paths.get((args.length > 2) ? args[2] : "target/world-" + scale + "x.sql");
+
+        long start = System.nanoTime();
+        WorldGenerator generator = new WorldGenerator(scale, seed);
+        long rows = generator.writeSql(file);
+        System.out.printf("Wrote %,d rows (%,d countries, %,d cities) to %s in %.1fs%n", rows,
+                generator.getCountryCount(), generator.getCityCount(), file, (System.nanoTime() - start) / 1e9);
+    }
+
+    private int districtCount(int country)
+    {
+        return Math.max(1, (cityCount[country] + CITIES_PER_DISTRICT - 1) / CITIES_PER_DISTRICT);
+    }
+
+    private static int cityPopulation(SplittableRandom random)
+    {
+        double drawn = Math.exp(CITY_POPULATION_LOG_MEAN + CITY_POPULATION_LOG_SD * random.nextGaussian());
+        return (int) Math.min(MAX_CITY_POPULATION, Math.max(MIN_CITY_POPULATION, drawn));
+    }
+
+    private static int scaleDown(int population, double factor)
+    {
+        return (factor < 1) ? Math.max(1, (int) (population * factor)) : population;
+    }
+
+    /**
+     * Shuffles every three letter code and takes as many as there are countries, in alphabetical order.
+     */
+    private String[] countryCodes(SplittableRandom random)
+    {
+        int[] all = new int[MAX_COUNTRIES];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        for (int i = all.length - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int swap = all[i];
+            all[i] = all[j];
+            all[j] = swap;
+        }
+        int[] picked = Arrays.copyOf(all, countries);
+        Arrays.sort(picked);
+
+        String[] codes = new String[countries];
+        for (int i = 0; i < countries; i++)
+        {
+            int value = picked[i];
+            codes[i] = new String(new char[] {(char) ('A' + value / 676), (char) ('A' + value / 26 % 26), (char) ('A' + value % 26)});
+        }
+        return codes;
+    }
+
+    private static String countryName(int country)
+    {
+        return name(country) + "ia";
+    }
+
+    private static String languageName(int language)
+    {
+        return (language < LANGUAGES.length) ? LANGUAGES[language] : name(language) + "ish";
+    }
+
+    /**
+     * Makes a name from syllables, a different name for every index.
+     */
+    static String name(int index)
+    {
+        // Every syllable is two letters, so no two indexes spell the same name
+        StringBuilder name = new StringBuilder();
+        for (int value = index + SYLLABLES.length; value > 0; value /= SYLLABLES.length)
+        {
+            name.insert(0, SYLLABLES[value % SYLLABLES.length]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        return name.toString();
+    }
+
+    private static double[] cumulative(double[] weights)
+    {
+        double[] totals = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++)
+        {
+            total += weights[i];
+            totals[i] = total;
+        }
+        return totals;
+    }
+
+    /**
+     * Picks an index with chance in proportion to its weight.
+     * @param totals The running totals of the weights.
+     */
+    private static int pick(double[] totals, SplittableRandom random)
+    {
+        double target = random.nextDouble() * totals[totals.length - 1];
+        int index = Arrays.binarySearch(totals, target);
+        if (index < 0) index = -index - 1;
+        // Skip zero weights, whose totals equal the one before
+        while (index < totals.length - 1 && totals[index] <= target) index++;
+        return index;
+    }
+
+    private static boolean contains(int[] values, int length, int value)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            if (values[i] == value) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,559 @@
+package com.napier.sem;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable in-memory copy of the country, city and countrylanguage tables.  The tables are stored
+ * column by column in primitive arrays, and every string is replaced by its index in a single string
+ * dictionary, so a whole table can be scanned without touching more than a few arrays.
+ * A city's population is changed by building a new snapshot with withCityPopulation, which shares every
+ * other column with this one.
+ * Rows are referred to by their index in the arrays, not their database IDs.
+ */
+public class WorldSnapshot
+{
+    private static final int[] NO_MATCHES = new int[0];
+    // The accents left as separate marks once a string is decomposed
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}");
+
+    // Every distinct string in the snapshot, the string columns hold indexes into this
+    final String[] strings;
+    // Maps the normalised form of a string to the dictionary indexes of every string with that form
+    private final Map<String, int[]> stringsByKey;
+
+    // Country columns
+    final int countryCount;
+    final int[] countryCode;
+    final int[] countryName;
+    final int[] countryContinent;
+    final int[] countryRegion;
+    final int[] countryPopulation;
+    final int[] countryCapital;
+
+    // City columns
+    final int cityCount;
+    final int[] cityId;
+    final int[] cityName;
+    final int[] cityCountry;
+    final int[] cityDistrict;
+    final int[] cityPopulation;
+
+    // Country language columns, percentages are stored in tenths of a percent
+    final int languageCount;
+    final int[] languageCountry;
+    final int[] languageName;
+    final int[] languagePercentage;
+
+    // Row indexes sorted by descending population
+    final int[] countriesByPopulation;
+    final int[] citiesByPopulation;
+    final int[] capitalCitiesByPopulation;
+
+    // Population totals for every area
+    private final PopulationRollup populationRollup;
+    // The city table column by column, for filtered sums over cities
+    private final CityStore cityStore;
+
+    /**
+     * Creates a snapshot from its columns, with country codes and capital city IDs already resolved into
+     * row indexes.  The arrays are used as they are, not copied.
+     */
+    WorldSnapshot(String[] strings,
+                  int[] countryCode, int[] countryName, int[] countryContinent, int[] countryRegion,
+                  int[] countryPopulation, int[] countryCapital,
+                  int[] cityId, int[] cityName, int[] cityCountry, int[] cityDistrict, int[] cityPopulation,
+                  int[] languageCountry, int[] languageName, int[] languagePercentage)
+    {
+        this.strings = strings;
+        this.countryCount = countryCode.length;
+        this.countryCode = countryCode;
+        this.countryName = countryName;
+        this.countryContinent = countryContinent;
+        this.countryRegion = countryRegion;
+        this.countryPopulation = countryPopulation;
+        this.countryCapital = countryCapital;
+        this.cityCount = cityId.length;
+        this.cityId = cityId;
+        this.cityName = cityName;
+        this.cityCountry = cityCountry;
+        this.cityDistrict = cityDistrict;
+        this.cityPopulation = cityPopulation;
+        this.languageCount = languageName.length;
+        this.languageCountry = languageCountry;
+        this.languageName = languageName;
+        this.languagePercentage = languagePercentage;
+
+        // Group dictionary entries which the database would consider equal, most groups have one entry
+        stringsByKey = new HashMap<>(strings.length * 2);
+        for (int i = 0; i < strings.length; i++)
+        {
+            String key = normalise(strings[i]);
+            int[] group = stringsByKey.get(key);
+            if (group == null)
+            {
+                stringsByKey.put(key, new int[] {i});
+            }
+            else
+            {
+                group = Arrays.copyOf(group, group.length + 1);
+                group[group.length - 1] = i;
+                stringsByKey.put(key, group);
+            }
+        }
+
+        // Sort once by descending population, ties are kept in table order
+        countriesByPopulation = sortedByPopulation(countryCount, countryPopulation);
+        citiesByPopulation = sortedByPopulation(cityCount, cityPopulation);
+        int[] capitals = new int[cityCount];
+        int capitalCount = 0;
+        for (int city : citiesByPopulation)
+        {
+            if (cityCountry[city] >= 0 && countryCapital[cityCountry[city]] == city) capitals[capitalCount++] = city;
+        }
+        capitalCitiesByPopulation = Arrays.copyOf(capitals, capitalCount);
+
+        populationRollup = new PopulationRollup(this);
+        cityStore = CityStore.from(this);
+    }
+
+    /**
+     * Copies a snapshot with one city's population changed.  Every column but the city populations is
+     * shared with the original, and the rollup is handed on rather than rebuilt.
+     */
+    private WorldSnapshot(WorldSnapshot base, int[] cityPopulation, int[] citiesByPopulation,
+                          int[] capitalCitiesByPopulation, CityStore cityStore)
+    {
+        this.strings = base.strings;
+        this.stringsByKey = base.stringsByKey;
+        this.countryCount = base.countryCount;
+        this.countryCode = base.countryCode;
+        this.countryName = base.countryName;
+        this.countryContinent = base.countryContinent;
+        this.countryRegion = base.countryRegion;
+        this.countryPopulation = base.countryPopulation;
+        this.countryCapital = base.countryCapital;
+        this.cityCount = base.cityCount;
+        this.cityId = base.cityId;
+        this.cityName = base.cityName;
+        this.cityCountry = base.cityCountry;
+        this.cityDistrict = base.cityDistrict;
+        this.cityPopulation = cityPopulation;
+        this.languageCount = base.languageCount;
+        this.languageCountry = base.languageCountry;
+        this.languageName = base.languageName;
+        this.languagePercentage = base.languagePercentage;
+        this.countriesByPopulation = base.countriesByPopulation;
+        this.citiesByPopulation = citiesByPopulation;
+        this.capitalCitiesByPopulation = capitalCitiesByPopulation;
+        this.populationRollup = base.populationRollup;
+        this.cityStore = cityStore;
+    }
+
+    /**
+     * Builds a snapshot with one city's population changed, leaving this one as it is.  The city
+     * populations are copied with the change, the city is moved to its new place in the sort orders and
+     * the city store's population column, and the rollup is updated along the city's path to the world
+     * rather than rebuilt.  The rollup is handed on to the new snapshot, so it only answers for the
+     * newest snapshot.
+     * @param id The database ID of the city.
+     * @param population The city's new population.
+     * @return The new snapshot, or null if there's no city with the ID
+     */
+    WorldSnapshot withCityPopulation(int id, int population)
+    {
+        int city = -1;
+        int storeRow = 0;
+        for (int row = 0; row < cityCount && city < 0; row++)
+        {
+            if (cityId[row] == id) city = row;
+            else if (cityCountry[row] >= 0) storeRow++;
+        }
+        if (city < 0) return null;
+
+        int[] populations = Arrays.copyOf(cityPopulation, cityCount);
+        populations[city] = population;
+        int[] capitals = capitalCitiesByPopulation;
+        if (cityCountry[city] >= 0 && countryCapital[cityCountry[city]] == city)
+        {
+            capitals = moved(capitalCitiesByPopulation, city, populations);
+        }
+        CityStore store = (cityCountry[city] < 0) ? cityStore : cityStore.withPopulation(storeRow, population);
+
+        populationRollup.updateCityPopulation(id, population);
+        return new WorldSnapshot(this, populations, moved(citiesByPopulation, city, populations), capitals, store);
+    }
+
+    /**
+     * Moves a row to its place in a copy of a sort order, after its population has changed.
+     * @param sorted Rows by descending population, ties in table order.
+     * @param row The row whose population changed.
+     * @param population The populations, with the change.
+     * @return A copy of the sort order with the row in its new place
+     */
+    private static int[] moved(int[] sorted, int row, int[] population)
+    {
+        int[] rows = new int[sorted.length];
+        long key = sortKey(row, population);
+        int next = 0;
+        boolean placed = false;
+        for (int other : sorted)
+        {
+            if (other == row) continue;
+            if (!placed && key < sortKey(other, population))
+            {
+                rows[next++] = row;
+                placed = true;
+            }
+            rows[next++] = other;
+        }
+        if (!placed) rows[next] = row;
+        return rows;
+    }
+
+    /**
+     * @return The key rows are sorted on, the inverted population above the row index
+     */
+    private static long sortKey(int row, int[] population) { return ((long) ~population[row] << 32) | row; }
+
+    private static int[] sortedByPopulation(int count, int[] population)
+    {
+        // Sort the rows as longs, with the inverted population above the row index, to avoid boxing
+        long[] keys = new long[count];
+        for (int row = 0; row < count; row++) keys[row] = sortKey(row, population);
+        Arrays.sort(keys);
+
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) rows[i] = (int) keys[i];
+        return rows;
+    }
+
+    /**
+     * Converts a string to the form used for comparing area names.  The world database compares strings
+     * ignoring case and accents, so this lower cases the string and strips any accents.
+     * @param value The string to normalise.
+     * @return The normalised string.
+     */
+    static String normalise(String value)
+    {
+        // Most names are plain ASCII, which only needs lower casing
+        boolean ascii = true;
+        for (int i = 0; i < value.length() && ascii; i++) ascii = value.charAt(i) < 0x80;
+        if (ascii) return value.toLowerCase(Locale.ROOT);
+
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+        return ACCENTS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Finds every dictionary entry which the database would treat as equal to the given name.
+     * @param name The name of an area, as entered by the user.
+     * @return The dictionary indexes which match the name, empty if none do.
+     */
+    int[] stringsMatching(String name)
+    {
+        return stringsByKey.getOrDefault(normalise(name), NO_MATCHES);
+    }
+
+    /**
+     * Checks whether a country falls within an area.
+     * @param country The row index of the country.
+     * @param areaFilter The type of area (world, continent, region or country).
+     * @param areaNames The dictionary indexes matching the area's name.
+     * @return True if the country is in the area.
+     */
+    boolean countryIn(int country, String areaFilter, int[] areaNames)
+    {
+        switch (areaFilter)
+        {
+            case App.WORLD:
+                return true;
+            case App.CONTINENT:
+                return contains(areaNames, countryContinent[country]);
+            case App.REGION:
+                return contains(areaNames, countryRegion[country]);
+            case App.COUNTRY:
+                return contains(areaNames, countryName[country]);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether a city falls within an area.
+     * @param city The row index of the city.
+     * @param areaFilter The type of area (world, continent, region, country, district or city).
+     * @param areaNames The dictionary indexes matching the area's name.
+     * @return True if the city is in the area.
+     */
+    boolean cityIn(int city, String areaFilter, int[] areaNames)
+    {
+        switch (areaFilter)
+        {
+            case App.DISTRICT:
+                return contains(areaNames, cityDistrict[city]);
+            case App.CITY:
+                return contains(areaNames, cityName[city]);
+            default:
+                return cityCountry[city] >= 0 && countryIn(cityCountry[city], areaFilter, areaNames);
+        }
+    }
+
+    static boolean contains(int[] values, int value)
+    {
+        for (int candidate : values) if (candidate == value) return true;
+        return false;
+    }
+
+    /**
+     * Looks up a string in the dictionary.
+     * @param index The dictionary index held in a string column.
+     * @return The string.
+     */
+    String string(int index) { return strings[index]; }
+
+    public int getCountryCount() { return countryCount; }
+    public int getCityCount() { return cityCount; }
+    public int getLanguageCount() { return languageCount; }
+
+    /**
+     * @return The population totals for every area, built when the snapshot was.
+     */
+    public PopulationRollup getPopulationRollup() { return populationRollup; }
+
+    /**
+     * @return The city table as a column store, built when the snapshot was.
+     */
+    public CityStore getCityStore() { return cityStore; }
+
+    /**
+     * Reads the country, city and countrylanguage tables into a new snapshot.  Each table is read with
+     * a single scan.
+     * @param connection A connection to the world database.
+     * @return The snapshot of the three tables.
+     * @throws SQLException if any of the tables can't be read
+     */
+    public static WorldSnapshot load(Connection connection) throws SQLException
+    {
+        Builder builder = new Builder();
+
+        try (Statement statement = connection.createStatement())
+        {
+            try (ResultSet countries = statement.executeQuery(
+                    "SELECT code, name, continent, region, population, capital FROM country ORDER BY code"))
+            {
+                while (countries.next())
+                {
+                    int capital = countries.getInt("capital");
+                    builder.addCountry(countries.getString("code"),
+                            countries.getString("name"),
+                            countries.getString("continent"),
+                            countries.getString("region"),
+                            countries.getInt("population"),
+                            countries.wasNull() ? null : capital);
+                }
+            }
+            try (ResultSet cities = statement.executeQuery(
+                    "SELECT id, name, countrycode, district, population FROM city ORDER BY id"))
+            {
+                while (cities.next())
+                {
+                    builder.addCity(cities.getInt("id"),
+                            cities.getString("name"),
+                            cities.getString("countrycode"),
+                            cities.getString("district"),
+                            cities.getInt("population"));
+                }
+            }
+            try (ResultSet languages = statement.executeQuery(
+                    "SELECT countrycode, language, percentage FROM countrylanguage ORDER BY countrycode, language"))
+            {
+                while (languages.next())
+                {
+                    BigDecimal percentage = languages.getBigDecimal("percentage");
+                    builder.addLanguage(languages.getString("countrycode"),
+                            languages.getString("language"),
+                            percentage.movePointRight(1).intValue());
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Reads the tables into a new snapshot using a connection borrowed from the pool.
+     * @param pool The pool to borrow a connection from.
+     * @return The snapshot of the three tables.
+     * @throws SQLException if no connection is available or any of the tables can't be read
+     */
+    public static WorldSnapshot load(ConnectionPool pool) throws SQLException
+    {
+        Connection connection = pool.borrow();
+        try
+        {
+            return load(connection);
+        }
+        finally
+        {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Collects rows one at a time and then builds them into a snapshot.  Capitals and city countries can
+     * refer to rows which haven't been added yet, they are resolved when the snapshot is built.
+     */
+    public static class Builder
+    {
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+
+        private int countryCount;
+        private int[] countryCode = new int[16];
+        private int[] countryName = new int[16];
+        private int[] countryContinent = new int[16];
+        private int[] countryRegion = new int[16];
+        private int[] countryPopulation = new int[16];
+        private Integer[] countryCapitalId = new Integer[16];
+
+        private int cityCount;
+        private int[] cityId = new int[16];
+        private int[] cityName = new int[16];
+        private int[] cityCountryCode = new int[16];
+        private int[] cityDistrict = new int[16];
+        private int[] cityPopulation = new int[16];
+
+        private int languageCount;
+        private int[] languageCountryCode = new int[16];
+        private int[] languageName = new int[16];
+        private int[] languagePercentage = new int[16];
+
+        private int intern(String value)
+        {
+            return stringIndexes.computeIfAbsent(value, key -> {
+                strings.add(key);
+                return strings.size() - 1;
+            });
+        }
+
+        public Builder addCountry(String code, String name, String continent, String region,
+                                  int population, Integer capitalId)
+        {
+            if (countryCount == countryCode.length)
+            {
+                int size = countryCount * 2;
+                countryCode = Arrays.copyOf(countryCode, size);
+                countryName = Arrays.copyOf(countryName, size);
+                countryContinent = Arrays.copyOf(countryContinent, size);
+                countryRegion = Arrays.copyOf(countryRegion, size);
+                countryPopulation = Arrays.copyOf(countryPopulation, size);
+                countryCapitalId = Arrays.copyOf(countryCapitalId, size);
+            }
+            countryCode[countryCount] = intern(code);
+            countryName[countryCount] = intern(name);
+            countryContinent[countryCount] = intern(continent);
+            countryRegion[countryCount] = intern(region);
+            countryPopulation[countryCount] = population;
+            countryCapitalId[countryCount] = capitalId;
+            countryCount++;
+            return this;
+        }
+
+        public Builder addCity(int id, String name, String countryCode, String district, int population)
+        {
+            if (cityCount == cityId.length)
+            {
+                int size = cityCount * 2;
+                cityId = Arrays.copyOf(cityId, size);
+                cityName = Arrays.copyOf(cityName, size);
+                cityCountryCode = Arrays.copyOf(cityCountryCode, size);
+                cityDistrict = Arrays.copyOf(cityDistrict, size);
+                cityPopulation = Arrays.copyOf(cityPopulation, size);
+            }
+            cityId[cityCount] = id;
+            cityName[cityCount] = intern(name);
+            cityCountryCode[cityCount] = intern(countryCode);
+            cityDistrict[cityCount] = intern(district);
+            cityPopulation[cityCount] = population;
+            cityCount++;
+            return this;
+        }
+
+        /**
+         * Adds a row of the countrylanguage table.
+         * @param countryCode The code of the country the language is spoken in.
+         * @param language The name of the language.
+         * @param percentageTenths The percentage of the country that speaks it, in tenths of a percent.
+         * @return This builder.
+         */
+        public Builder addLanguage(String countryCode, String language, int percentageTenths)
+        {
+            if (languageCount == languageName.length)
+            {
+                int size = languageCount * 2;
+                languageCountryCode = Arrays.copyOf(languageCountryCode, size);
+                languageName = Arrays.copyOf(languageName, size);
+                languagePercentage = Arrays.copyOf(languagePercentage, size);
+            }
+            languageCountryCode[languageCount] = intern(countryCode);
+            languageName[languageCount] = intern(language);
+            languagePercentage[languageCount] = percentageTenths;
+            languageCount++;
+            return this;
+        }
+
+        public WorldSnapshot build()
+        {
+            // Resolve country codes and capital city IDs into row indexes
+            Map<Integer, Integer> countryByCode = new HashMap<>();
+            for (int country = 0; country < countryCount; country++) countryByCode.put(countryCode[country], country);
+            Map<Integer, Integer> cityById = new HashMap<>();
+            for (int city = 0; city < cityCount; city++) cityById.put(cityId[city], city);
+
+            int[] cityCountry = new int[cityCount];
+            for (int city = 0; city < cityCount; city++)
+            {
+                cityCountry[city] = countryByCode.getOrDefault(cityCountryCode[city], -1);
+            }
+            int[] languageCountry = new int[languageCount];
+            for (int language = 0; language < languageCount; language++)
+            {
+                languageCountry[language] = countryByCode.getOrDefault(languageCountryCode[language], -1);
+            }
+            int[] countryCapital = new int[countryCount];
+            for (int country = 0; country < countryCount; country++)
+            {
+                Integer capital = countryCapitalId[country];
+                countryCapital[country] = (capital == null) ? -1 : cityById.getOrDefault(capital, -1);
+            }
+
+            return new WorldSnapshot(strings.toArray(new String[0]),
+                    Arrays.copyOf(countryCode, countryCount),
+                    Arrays.copyOf(countryName, countryCount),
+                    Arrays.copyOf(countryContinent, countryCount),
+                    Arrays.copyOf(countryRegion, countryCount),
+                    Arrays.copyOf(countryPopulation, countryCount),
+                    countryCapital,
+                    Arrays.copyOf(cityId, cityCount),
+                    Arrays.copyOf(cityName, cityCount),
+                    cityCountry,
+                    Arrays.copyOf(cityDistrict, cityCount),
+                    Arrays.copyOf(cityPopulation, cityCount),
+                    languageCountry,
+                    Arrays.copyOf(languageName, languageCount),
+                    Arrays.copyOf(languagePercentage, languageCount));
+        }
+    }
+}
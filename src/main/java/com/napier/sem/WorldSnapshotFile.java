@@ -0,0 +1,215 @@
+package com.napier.sem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a WorldSnapshot to a compact binary file and maps it back in, so the app can answer reports
+ * straight after starting without waiting for MySQL or reading the tables over JDBC.
+ * The file is a fixed size header followed by the string dictionary and every column of the snapshot,
+ * each a run of little-endian ints:
+ *     header     - magic, version, country/city/language/string counts, dictionary size, CRC32 of the body
+ *     dictionary - the end offset of every string, then every string's UTF-8 bytes, padded to 4 bytes
+ *     country    - code, name, continent, region, population, capital (row index, -1 for none)
+ *     city       - id, name, country (row index, -1 for none), district, population
+ *     language   - country (row index, -1 for none), name, percentage in tenths of a percent
+ * String columns hold dictionary indexes, as in WorldSnapshot, and row references are already resolved,
+ * so reading the file is one checksum and one bulk copy per column rather than a row by row rebuild.
+ */
+public class WorldSnapshotFile
+{
+    // Marks the file as a world snapshot, "WSNP"
+    static final int MAGIC = 0x57534E50;
+    static final int VERSION = 1;
+    // magic, version, 4 counts, dictionary bytes and the checksum
+    static final int HEADER_SIZE = 7 * 4 + 8;
+
+    private WorldSnapshotFile() { }
+
+    /**
+     * Writes a snapshot to a file.  The file is written alongside and then moved into place, so a reader
+     * never sees half of it.
+     * @param snapshot The snapshot to save.
+     * @param file The file to write, replaced if it exists.
+     * @return The size of the file in bytes
+     * @throws IOException if the file can't be written
+     */
+    public static long write(WorldSnapshot snapshot, Path file) throws IOException
+    {
+        byte[][] encoded = new byte[snapshot.strings.length][];
+        int dictionaryBytes = 0;
+        for (int i = 0; i < encoded.length; i++)
+        {
+            encoded[i] = snapshot.strings[i].getBytes(StandardCharsets.UTF_8);
+            dictionaryBytes += encoded[i].length;
+        }
+        int paddedDictionaryBytes = (dictionaryBytes + 3) & ~3;
+
+        int columnInts = 6 * snapshot.countryCount + 5 * snapshot.cityCount + 3 * snapshot.languageCount;
+        int bodySize = 4 * encoded.length + paddedDictionaryBytes + 4 * columnInts;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize).order(ByteOrder.LITTLE_ENDIAN);
+
+        // The checksum is filled in once the body has been written
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(snapshot.countryCount)
+                .putInt(snapshot.cityCount)
+                .putInt(snapshot.languageCount)
+                .putInt(encoded.length)
+                .putInt(dictionaryBytes)
+                .putLong(0);
+
+        int end = 0;
+        for (byte[] string : encoded)
+        {
+            end += string.length;
+            buffer.putInt(end);
+        }
+        for (byte[] string : encoded) buffer.put(string);
+        buffer.position(buffer.position() + paddedDictionaryBytes - dictionaryBytes);
+
+        IntBuffer columns = buffer.asIntBuffer();
+        columns.put(snapshot.countryCode).put(snapshot.countryName).put(snapshot.countryContinent)
+                .put(snapshot.countryRegion).put(snapshot.countryPopulation).put(snapshot.countryCapital);
+        columns.put(snapshot.cityId).put(snapshot.cityName).put(snapshot.cityCountry)
+                .put(snapshot.cityDistrict).put(snapshot.cityPopulation);
+        columns.put(snapshot.languageCountry).put(snapshot.languageName).put(snapshot.languagePercentage);
+
+        buffer.putLong(HEADER_SIZE - 8, checksum(buffer.duplicate().position(HEADER_SIZE)));
+
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            buffer.rewind();
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Files.size(file);
+    }
+
+    /**
+     * Maps a snapshot file into memory and checks its header and checksum before reading it.
+     * @param file The file to read.
+     * @return The snapshot
+     * @throws IOException if the file can't be read, is from another version or is damaged
+     */
+    public static WorldSnapshot read(Path file) throws IOException
+    {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException(file + " isn't a world snapshot");
+            }
+            // The mapping stays valid once the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.getInt() != MAGIC) throw new IOException(file + " isn't a world snapshot");
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IOException(file + " is version " + version + ", expected " + VERSION);
+        int countryCount = buffer.getInt();
+        int cityCount = buffer.getInt();
+        int languageCount = buffer.getInt();
+        int stringCount = buffer.getInt();
+        int dictionaryBytes = buffer.getInt();
+        long expectedChecksum = buffer.getLong();
+
+        long bodySize = 4L * stringCount + ((dictionaryBytes + 3L) & ~3L)
+                + 4L * (6L * countryCount + 5L * cityCount + 3L * languageCount);
+        if (countryCount < 0 || cityCount < 0 || languageCount < 0 || stringCount < 0 || dictionaryBytes < 0
+                || HEADER_SIZE + bodySize != buffer.capacity())
+        {
+            throw new IOException(file + " is the wrong size for its header");
+        }
+        if (checksum(buffer.duplicate().position(HEADER_SIZE)) != expectedChecksum)
+        {
+            throw new IOException(file + " is damaged, its checksum doesn't match");
+        }
+
+        // Decode the dictionary
+        String[] strings = new String[stringCount];
+        int stringsStart = HEADER_SIZE + 4 * stringCount;
+        int start = 0;
+        for (int i = 0; i < stringCount; i++)
+        {
+            int end = buffer.getInt();
+            if (end < start || end > dictionaryBytes) throw new IOException(file + " has a bad string dictionary");
+            byte[] bytes = new byte[end - start];
+            buffer.get(stringsStart + start, bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            start = end;
+        }
+        buffer.position(stringsStart + ((dictionaryBytes + 3) & ~3));
+
+        // Copy each column out in bulk
+        IntBuffer columns = buffer.asIntBuffer();
+        int[] countryCode = column(columns, countryCount);
+        int[] countryName = column(columns, countryCount);
+        int[] countryContinent = column(columns, countryCount);
+        int[] countryRegion = column(columns, countryCount);
+        int[] countryPopulation = column(columns, countryCount);
+        int[] countryCapital = column(columns, countryCount);
+        int[] cityId = column(columns, cityCount);
+        int[] cityName = column(columns, cityCount);
+        int[] cityCountry = column(columns, cityCount);
+        int[] cityDistrict = column(columns, cityCount);
+        int[] cityPopulation = column(columns, cityCount);
+        int[] languageCountry = column(columns, languageCount);
+        int[] languageName = column(columns, languageCount);
+        int[] languagePercentage = column(columns, languageCount);
+
+        // A checksum only catches damage, so make sure every reference points inside the snapshot
+        checkReferences(file, 0, stringCount, countryCode, countryName, countryContinent, countryRegion,
+                cityName, cityDistrict, languageName);
+        checkReferences(file, -1, countryCount, cityCountry, languageCountry);
+        checkReferences(file, -1, cityCount, countryCapital);
+
+        return new WorldSnapshot(strings,
+                countryCode, countryName, countryContinent, countryRegion, countryPopulation, countryCapital,
+                cityId, cityName, cityCountry, cityDistrict, cityPopulation,
+                languageCountry, languageName, languagePercentage);
+    }
+
+    private static int[] column(IntBuffer columns, int length)
+    {
+        int[] values = new int[length];
+        columns.get(values);
+        return values;
+    }
+
+    /**
+     * Checks every value in the columns is from min up to, but not including, limit.
+     */
+    private static void checkReferences(Path file, int min, int limit, int[]... columns) throws IOException
+    {
+        for (int[] column : columns)
+        {
+            for (int value : column)
+            {
+                if (value < min || value >= limit) throw new IOException(file + " has a reference out of range");
+            }
+        }
+    }
+
+    private static long checksum(ByteBuffer body)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return crc.getValue();
+    }
+}
@@ -7,9 +7,13 @@ import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -774,4 +778,179 @@ public class IntegrationTests
                     "Test that the user can quit at any stage of the loop");
         }
     }
+
+    // Test that a pooled DAO can run several reports at once and gives every connection back
+    @Test
+    void DAO_pooled_concurrentQueriesReleaseConnections() throws InterruptedException
+    {
+        // given
+        ConnectionPool pool = App.createPool("localhost:33061");
+        DAO pooledDao = DAO.pooled(pool);
+        List<Thread> threads = new ArrayList<>();
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+
+        // when
+        for (int i = 0; i < 16; i++)
+        {
+            Thread thread = new Thread(() -> sizes.add(pooledDao.topNCitiesIn(App.CONTINENT, "Asia", 10).size()));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        pool.close();
+
+        // then
+        assertEquals(Collections.nCopies(16, 10), sizes,
+                "Test that a pooled DAO can run several reports at once");
+        assertEquals(0, pool.getActiveConnections(),
+                "Test that a pooled DAO gives every connection back");
+        assertTrue(pool.getTotalConnections() <= App.POOL_MAX_SIZE,
+                "Test that the pool never opens more than its maximum size");
+    }
+
+    // Test that an area name containing SQL is bound as a value rather than run as part of the query
+    @Test
+    void DAO_allCountriesIn_areaNameIsNotSplicedIntoQuery()
+    {
+        // given
+        String areaName = "Asia' OR '1'='1";
+
+        // when
+        List<Record> countries = dao.allCountriesIn(App.CONTINENT, areaName);
+
+        // then
+        assertEquals(0, countries.size(),
+                "Test that an area name containing SQL is bound as a value rather than run as part of the query");
+    }
+
+    // Test that running a prepared report again gives the same results
+    @Test
+    void DAO_topNCitiesIn_repeatedPreparedQueryGivesSameResults()
+    {
+        // when
+        List<Record> first = dao.topNCitiesIn(App.REGION, "Caribbean", 7);
+        List<Record> second = dao.topNCitiesIn(App.REGION, "Caribbean", 7);
+
+        // then
+        assertEquals(first.toString(), second.toString(),
+                "Test that running a prepared report again gives the same results");
+    }
+
+    // Test that the in-memory snapshot gives the same reports as the database
+    @Test
+    void SnapshotReportSource_allReports_matchDAO() throws SQLException
+    {
+        // given
+        SnapshotReportSource snapshot = new SnapshotReportSource(WorldSnapshot.load(connection));
+
+        // then
+        assertEquals(dao.allCountriesIn(App.CONTINENT, "Europe").toString(),
+                snapshot.allCountriesIn(App.CONTINENT, "Europe").toString(),
+                "Test that the in-memory snapshot gives the same country report as the database");
+        assertEquals(dao.topNCitiesIn(App.CONTINENT, "Asia", 20).toString(),
+                snapshot.topNCitiesIn(App.CONTINENT, "Asia", 20).toString(),
+                "Test that the in-memory snapshot gives the same city report as the database");
+        assertEquals(dao.allCapitalCitiesIn(App.REGION, "Caribbean").toString(),
+                snapshot.allCapitalCitiesIn(App.REGION, "Caribbean").toString(),
+                "Test that the in-memory snapshot gives the same capital city report as the database");
+        assertEquals(dao.populationLivingInAndNotInCities(App.REGION, "caribbean").toString(),
+                snapshot.populationLivingInAndNotInCities(App.REGION, "caribbean").toString(),
+                "Test that the in-memory snapshot gives the same residence report as the database");
+        assertEquals(dao.populationOf(App.DISTRICT, "Scotland").toString(),
+                snapshot.populationOf(App.DISTRICT, "Scotland").toString(),
+                "Test that the in-memory snapshot gives the same population report as the database");
+        assertEquals(dao.languageReport().toString(),
+                snapshot.languageReport().toString(),
+                "Test that the in-memory snapshot gives the same language report as the database");
+    }
+
+    // Test that streaming a report through a cursor gives the same records as reading it into a list
+    @Test
+    void DAO_forEachRecord_matchesListWithSmallFetchSize()
+    {
+        // given
+        DAO streamingDao = new DAO(connection);
+        streamingDao.setFetchSize(7);
+        List<Record> streamed = new ArrayList<>();
+
+        // when
+        long count = streamingDao.forEachRecord(new ReportRequest(3, App.CONTINENT, "Europe", 0), streamed::add);
+
+        // then
+        assertEquals(dao.allCitiesIn(App.CONTINENT, "Europe").toString(), streamed.toString(),
+                "Test that streaming a report gives the same records as reading it into a list");
+        assertEquals(streamed.size(), count,
+                "Test that streaming a report counts every record");
+    }
+
+    // Test that a streamed report gives its connection back to the pool once the stream is closed
+    @Test
+    void DAO_streamRecords_connectionReleasedOnClose() throws SQLException
+    {
+        // given
+        ConnectionPool pool = App.createPool("localhost:33061");
+        DAO pooledDao = DAO.pooled(pool);
+        List<Record> firstFive;
+
+        // when
+        try (Stream<Record> records = pooledDao.streamRecords(new ReportRequest(3, App.WORLD, "", 0)))
+        {
+            firstFive = records.limit(5).collect(Collectors.toList());
+            assertEquals(1, pool.getActiveConnections(),
+                    "Test that a streamed report holds its connection while the stream is open");
+        }
+
+        // then
+        assertEquals(dao.topNCitiesIn(App.WORLD, "", 5).toString(), firstFive.toString(),
+                "Test that a streamed report gives records in report order");
+        assertEquals(0, pool.getActiveConnections(),
+                "Test that a streamed report gives its connection back to the pool once the stream is closed");
+        pool.close();
+    }
+
+    // Test that a batch runs on a connection without allowMultiQueries, one report at a time
+    @Test
+    void DAO_executeBatch_singleConnectionMatchesEachReport()
+    {
+        // given
+        List<ReportRequest> requests = Arrays.asList(
+                new ReportRequest(8, App.CONTINENT, "Europe", 0),
+                new ReportRequest(4, App.COUNTRY, "United Kingdom", 3),
+                new ReportRequest(9, null, null, 0));
+
+        // when
+        List<List<Record>> results = dao.executeBatch(requests);
+
+        // then
+        assertEquals(dao.populationOf(App.CONTINENT, "Europe").toString(), String.valueOf(results.get(0)),
+                "Test that the first report in a batch matches running it alone");
+        assertEquals(dao.topNCitiesIn(App.COUNTRY, "United Kingdom", 3).toString(), String.valueOf(results.get(1)),
+                "Test that the second report in a batch matches running it alone");
+        assertEquals(dao.languageReport().toString(), String.valueOf(results.get(2)),
+                "Test that the last report in a batch matches running it alone");
+    }
+
+    // Test that a batch sent in one call on the batch pool gives the same reports as running them alone
+    @Test
+    void DAO_executeBatch_batchPoolMatchesEachReport()
+    {
+        // given
+        ConnectionPool pool = App.createPool("localhost:33061");
+        ConnectionPool batchPool = App.createBatchPool("localhost:33061");
+        DAO pooledDao = DAO.pooled(pool, batchPool);
+        List<ReportRequest> requests = Arrays.asList(
+                new ReportRequest(8, App.CONTINENT, "Europe", 0),
+                new ReportRequest(4, App.COUNTRY, "United Kingdom", 3));
+
+        // when
+        List<List<Record>> results = pooledDao.executeBatch(requests);
+
+        // then
+        assertEquals(dao.populationOf(App.CONTINENT, "Europe").toString(), String.valueOf(results.get(0)),
+                "Test that the first report in a multi-statement call matches running it alone");
+        assertEquals(dao.topNCitiesIn(App.COUNTRY, "United Kingdom", 3).toString(), String.valueOf(results.get(1)),
+                "Test that the second report in a multi-statement call matches running it alone");
+        batchPool.close();
+        pool.close();
+    }
 }
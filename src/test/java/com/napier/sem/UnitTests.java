@@ -5,10 +5,52 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -75,58 +117,40 @@ public class UnitTests
         App.disconnect(null); // then: no failure
     }
 
-    // Test the whereCondition is null when the areaFilter is unexpected
+    // Test that the parameterised whereCondition has a placeholder where the area name goes
     @Test
-    void DAO_getWhereCondition_unknownAreaFilterReturnsNull()
+    void DAO_getParameterisedWhereCondition_placeholderForAreaName()
     {
-        // given
-        String areaFilter = "planet";
-
-        // when
-        String whereCondition = DAO.getWhereCondition(areaFilter, "Earth");
-
-        // then
-        assertNull(whereCondition,
-                "Test the whereCondition is null when the areaFilter is unexpected");
-    }
-
-    // Test that the whereCondition contains our given area name
-    @Test
-    void DAO_getWhereCondition_areaNameAppearsInWhereCondition()
-    {
-        // given
-        String areaName = "New York";
-
         // when
-        String whereCondition = DAO.getWhereCondition(App.DISTRICT, areaName);
+        String whereCondition = DAO.getParameterisedWhereCondition(App.DISTRICT, "New York");
 
         // then
-        assertTrue(whereCondition.contains(areaName),
-                "Test that the whereCondition contains our given area name");
+        assertEquals("city.district = ?\n", whereCondition,
+                "Test that the parameterised whereCondition has a placeholder where the area name goes");
     }
 
-    // Test that the whereCondition is null when areaName is null
+    // Test that the parameterised whereCondition is null when areaName is null
     @Test
-    void DAO_getWhereCondition_nullAreaNameReturnsNull()
+    void DAO_getParameterisedWhereCondition_nullAreaNameReturnsNull()
     {
         // when
-        String whereCondition = DAO.getWhereCondition(App.WORLD, null);
+        String whereCondition = DAO.getParameterisedWhereCondition(App.WORLD, null);
 
         // then
         assertNull(whereCondition,
-                "Test that the whereCondition is null when areaName is null");
+                "Test that the parameterised whereCondition is null when areaName is null");
     }
 
-    // Test that the whereCondition is null when areaFilter is null
+    // Test that the parameterised whereCondition is null when areaFilter is null
     @Test
-    void DAO_getWhereCondition_nullAreaFilterReturnsNull()
+    void DAO_getParameterisedWhereCondition_nullAreaFilterReturnsNull()
     {
         // when
-        String whereCondition = DAO.getWhereCondition(null, "Earth");
+        String whereCondition = DAO.getParameterisedWhereCondition(null, "Earth");
 
         // then
         assertNull(whereCondition,
-                "Test that the whereCondition is null when areaFilter is null");
+                "Test that the parameterised whereCondition is null when areaFilter is null");
     }
 
     // Test that a null whereCondition will result in queryInvalid being true
@@ -1234,4 +1258,3124 @@ public class UnitTests
         // when
         userPrompt.start(); // then: no failure
     }
+
+    /**
+     * Creates a stand-in connection for testing the pool without a database.
+     * @param valid The value isValid will return
+     * @param closed Set to true when the connection is closed
+     * @return A connection object which does nothing
+     */
+    private static Connection fakeConnection(boolean valid, AtomicBoolean closed)
+    {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, methodArgs) -> {
+                    switch (method.getName())
+                    {
+                        case "isValid":
+                            return valid;
+                        case "close":
+                            closed.set(true);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == methodArgs[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // Test that a released connection is handed out again rather than a new one being opened
+    @Test
+    void ConnectionPool_borrow_reusesReleasedConnection() throws SQLException
+    {
+        // given
+        AtomicInteger opened = new AtomicInteger();
+        ConnectionPool pool = new ConnectionPool(() -> {
+            opened.incrementAndGet();
+            return fakeConnection(true, new AtomicBoolean());
+        }, 0, 2, 60000, 1000, 60000);
+
+        // when
+        Connection first = pool.borrow();
+        pool.release(first);
+        Connection second = pool.borrow();
+        pool.release(second);
+        pool.close();
+
+        // then
+        assertSame(first, second,
+                "Test that a released connection is handed out again rather than a new one being opened");
+        assertEquals(1, opened.get(),
+                "Test that a released connection is handed out again rather than a new one being opened");
+        assertEquals(2L, pool.getBorrowCount(),
+                "Test that a released connection is handed out again rather than a new one being opened");
+    }
+
+    // Test that borrow times out and is counted when every connection is in use
+    @Test
+    void ConnectionPool_borrow_timesOutWhenSaturated() throws SQLException
+    {
+        // given
+        ConnectionPool pool = new ConnectionPool(() -> fakeConnection(true, new AtomicBoolean()),
+                0, 1, 60000, 50, 60000);
+        Connection held = pool.borrow();
+
+        // when
+        assertThrows(SQLTimeoutException.class, pool::borrow,
+                "Test that borrow times out when every connection is in use");
+
+        // then
+        assertEquals(1L, pool.getTimeoutCount(),
+                "Test that borrow times out and is counted when every connection is in use");
+        assertEquals(1.0, pool.getSaturation(), 0.0001,
+                "Test that the pool reports itself as saturated when every connection is in use");
+        pool.release(held);
+        pool.close();
+    }
+
+    // Test that an idle connection which fails validation is closed and replaced on borrow
+    @Test
+    void ConnectionPool_borrow_replacesInvalidIdleConnection() throws SQLException
+    {
+        // given
+        AtomicBoolean staleClosed = new AtomicBoolean();
+        Connection stale = fakeConnection(false, staleClosed);
+        ConnectionPool pool = new ConnectionPool(() -> fakeConnection(true, new AtomicBoolean()),
+                0, 1, 60000, 1000, 60000);
+        pool.adopt(stale);
+
+        // when
+        Connection borrowed = pool.borrow();
+
+        // then
+        assertNotSame(stale, borrowed,
+                "Test that an idle connection which fails validation is replaced on borrow");
+        assertTrue(staleClosed.get(),
+                "Test that an idle connection which fails validation is closed");
+        assertEquals(1L, pool.getInvalidCount(),
+                "Test that an idle connection which fails validation is counted");
+        pool.release(borrowed);
+        pool.close();
+    }
+
+    // Test that a connection released moments ago is reused without a round trip to check it
+    @Test
+    void ConnectionPool_borrow_validatesOnlyLongIdleConnections() throws SQLException
+    {
+        // given
+        AtomicInteger checks = new AtomicInteger();
+        Connection counted = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, methodArgs) -> {
+                    if (method.getName().equals("isValid")) return checks.incrementAndGet() > 0;
+                    if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                    if (method.getName().equals("equals")) return proxy == methodArgs[0];
+                    return null;
+                });
+        ConnectionPool pool = new ConnectionPool(() -> counted, 0, 1, 60000, 1000, 60000);
+
+        // when
+        pool.release(pool.borrow());
+        pool.release(pool.borrow());
+        int recentChecks = checks.get();
+        pool.setValidationIdleMillis(0);
+        pool.release(pool.borrow());
+
+        // then
+        assertEquals(0, recentChecks, "Test that recently used connections aren't checked on borrow");
+        assertEquals(1, checks.get(), "Test that connections idle past the threshold are checked on borrow");
+        pool.close();
+    }
+
+    // Test that a pool can't be created with a minimum size larger than its maximum size
+    @Test
+    void ConnectionPool_constructor_minSizeLargerThanMaxSizeRejected()
+    {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ConnectionPool(() -> null, 5, 2, 1000, 1000, 1000),
+                "Test that a pool can't be created with a minimum size larger than its maximum size");
+    }
+
+    // Test that a pooled DAO with no database returns null rather than failing
+    @Test
+    void DAO_pooled_nullWhenNoConnectionAvailable()
+    {
+        // given
+        ConnectionPool pool = new ConnectionPool(() -> {
+            throw new SQLException("No database");
+        }, 0, 1, 60000, 50, 60000);
+        DAO pooledDao = DAO.pooled(pool);
+
+        // when
+        List<Record> records = pooledDao.executeStatement("SELECT 1", App.COUNTRY);
+        pool.close();
+
+        // then
+        assertNull(records,
+                "Test that a pooled DAO with no database returns null rather than failing");
+        assertEquals(0, pool.getTotalConnections(),
+                "Test that a failed connection attempt doesn't use up a slot in the pool");
+    }
+
+    // Test that the parameterised where condition uses a placeholder instead of the area name
+    @Test
+    void DAO_getParameterisedWhereCondition_areaNameNotInWhereCondition()
+    {
+        // given
+        String areaName = "New York";
+
+        // when
+        String whereCondition = DAO.getParameterisedWhereCondition(App.DISTRICT, areaName);
+
+        // then
+        assertEquals("city.district = ?\n", whereCondition,
+                "Test that the parameterised where condition uses a placeholder instead of the area name");
+    }
+
+    // Test that the parameterised where condition is null when the areaFilter is unexpected
+    @Test
+    void DAO_getParameterisedWhereCondition_unknownAreaFilterReturnsNull()
+    {
+        // when
+        String whereCondition = DAO.getParameterisedWhereCondition("planet", "Earth");
+
+        // then
+        assertNull(whereCondition,
+                "Test the parameterised where condition is null when the areaFilter is unexpected");
+    }
+
+    // Test that the area name is bound once per where condition, followed by n
+    @Test
+    void DAO_areaParameters_areaNameRepeatedForEachWhereCondition()
+    {
+        // when
+        Object[] parameters = DAO.areaParameters(App.REGION, "Caribbean", 2, 5);
+
+        // then
+        assertArrayEquals(new Object[]{"Caribbean", "Caribbean", 5}, parameters,
+                "Test that the area name is bound once per where condition, followed by n");
+    }
+
+    // Test that no area name is bound for world queries since their where condition has no placeholder
+    @Test
+    void DAO_areaParameters_worldHasNoAreaName()
+    {
+        // when
+        Object[] parameters = DAO.areaParameters(App.WORLD, "", 1, null);
+
+        // then
+        assertEquals(0, parameters.length,
+                "Test that no area name is bound for world queries");
+    }
+
+    // Test that the SQL for a report shape is only built once
+    @Test
+    void StatementRegistry_get_buildsEachShapeOnce()
+    {
+        // given
+        StatementRegistry registry = new StatementRegistry();
+        AtomicInteger builds = new AtomicInteger();
+
+        // when
+        String first = registry.get("topNCitiesIn", App.REGION, "country.region = ?\n", where -> {
+            builds.incrementAndGet();
+            return "SELECT * FROM city WHERE " + where;
+        });
+        String second = registry.get("topNCitiesIn", App.REGION, "country.region = ?\n", where -> {
+            builds.incrementAndGet();
+            return "SELECT * FROM city WHERE " + where;
+        });
+
+        // then
+        assertSame(first, second,
+                "Test that the SQL for a report shape is only built once");
+        assertEquals(1, builds.get(),
+                "Test that the SQL for a report shape is only built once");
+        assertEquals(1, registry.size(),
+                "Test that the SQL for a report shape is only built once");
+    }
+
+    /**
+     * Builds a small world for testing the snapshot without a database.
+     * @return A snapshot holding three countries, five cities and their languages
+     */
+    private static WorldSnapshot smallWorld()
+    {
+        return new WorldSnapshot.Builder()
+                .addCountry("GBR", "United Kingdom", "Europe", "British Islands", 59623400, 456)
+                .addCountry("FRA", "France", "Europe", "Western Europe", 59225700, 2974)
+                .addCountry("ATA", "Antarctica", "Antarctica", "Antarctica", 0, null)
+                .addCity(456, "London", "GBR", "England", 7285000)
+                .addCity(457, "Birmingham", "GBR", "England", 1013000)
+                .addCity(2974, "Paris", "FRA", "Île-de-France", 2125246)
+                .addCity(2975, "Marseille", "FRA", "Provence-Alpes-Côte", 798430)
+                .addCity(2976, "Nowhere", "FRA", "Île-de-France", 0)
+                .addLanguage("GBR", "English", 973)
+                .addLanguage("FRA", "French", 936)
+                .addLanguage("FRA", "Arabic", 25)
+                .build();
+    }
+
+    // Test that snapshot countries are matched ignoring case and sorted by descending population
+    @Test
+    void SnapshotReportSource_allCountriesIn_caseInsensitiveAndSorted()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+
+        // when
+        List<Record> countries = source.allCountriesIn(App.CONTINENT, "europe");
+
+        // then
+        assertEquals(2, countries.size(),
+                "Test that snapshot countries are matched ignoring case");
+        assertEquals("United Kingdom", countries.get(0).getName(),
+                "Test that snapshot countries are sorted by descending population");
+        assertEquals("France", countries.get(1).getName(),
+                "Test that snapshot countries are sorted by descending population");
+    }
+
+    // Test that countries without a capital are left out, as the SQL joins on the capital
+    @Test
+    void SnapshotReportSource_allCountriesIn_countriesWithoutCapitalExcluded()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+
+        // when
+        List<Record> countries = source.allCountriesIn(App.WORLD, "");
+
+        // then
+        assertEquals(2, countries.size(),
+                "Test that countries without a capital are left out");
+    }
+
+    // Test that top N cities leave out cities with no population and stop at N
+    @Test
+    void SnapshotReportSource_topNCitiesIn_zeroPopulationExcluded()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+
+        // when
+        List<Record> cities = source.topNCitiesIn(App.DISTRICT, "ile-de-france", 5);
+        List<Record> allCities = source.allCitiesIn(App.DISTRICT, "Île-de-France");
+
+        // then
+        assertEquals(1, cities.size(),
+                "Test that top N cities leave out cities with no population");
+        assertEquals(2, allCities.size(),
+                "Test that all cities includes cities with no population");
+        assertEquals("Paris", cities.get(0).getName(),
+                "Test that district names are matched ignoring accents");
+    }
+
+    // Test that only each country's capital appears in the capital city report
+    @Test
+    void SnapshotReportSource_allCapitalCitiesIn_onlyCapitals()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+
+        // when
+        List<Record> capitals = source.allCapitalCitiesIn(App.WORLD, "");
+
+        // then
+        assertEquals(2, capitals.size(),
+                "Test that only each country's capital appears in the capital city report");
+        assertEquals("London", capitals.get(0).getName(),
+                "Test that only each country's capital appears in the capital city report");
+        assertEquals("Paris", capitals.get(1).getName(),
+                "Test that only each country's capital appears in the capital city report");
+    }
+
+    // Test that the snapshot residence report splits the population as the SQL does
+    @Test
+    void SnapshotReportSource_populationLivingInAndNotInCities_splitsPopulation()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+        String expectedToStringOutput = App.HORIZONTAL_LINE + "\n" +
+                "Area: United Kingdom | Total population: 59,623,400\n" +
+                "Population living in Cities: 8,298,000 (13.92%)\n" +
+                "Population not living in Cities: 51,325,400 (86.08%)";
+
+        // when
+        List<Record> report = source.populationLivingInAndNotInCities(App.COUNTRY, "united kingdom");
+
+        // then
+        assertEquals(expectedToStringOutput, report.get(0).toString(),
+                "Test that the snapshot residence report splits the population as the SQL does");
+    }
+
+    // Test that the population of a district is summed from its cities
+    @Test
+    void SnapshotReportSource_populationOf_districtSummedFromCities()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+
+        // when
+        List<Record> population = source.populationOf(App.DISTRICT, "england");
+
+        // then
+        assertEquals("England", population.get(0).getName(),
+                "Test that the population report uses the name stored in the database");
+        assertEquals(8298000L, population.get(0).getPopulation(),
+                "Test that the population of a district is summed from its cities");
+    }
+
+    // Test that an unknown area gives an empty population report
+    @Test
+    void SnapshotReportSource_populationOf_unknownAreaListEmpty()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+
+        // when
+        List<Record> population = source.populationOf(App.REGION, "Atlantis");
+
+        // then
+        assertEquals(0, population.size(),
+                "Test that an unknown area gives an empty population report");
+    }
+
+    // Test that language speakers are rounded up and sorted by number of speakers
+    @Test
+    void SnapshotReportSource_languageReport_speakersRoundedUpAndSorted()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+
+        // when
+        List<Record> languages = source.languageReport();
+
+        // then
+        assertEquals(2, languages.size(),
+                "Test that only report languages which are spoken are listed");
+        assertEquals("English", languages.get(0).getName(),
+                "Test that languages are sorted by number of speakers");
+        assertEquals(58013569L, languages.get(0).getSpeakers(),
+                "Test that language speakers are rounded up");
+        assertEquals(1480643L, languages.get(1).getSpeakers(),
+                "Test that language speakers are rounded up");
+    }
+
+    // Test that the language percentage is rounded to 4 places before it is truncated, as MySQL does
+    @Test
+    void SnapshotReportSource_percentageOfWorld_roundsThenTruncates()
+    {
+        assertEquals(20, SnapshotReportSource.percentageOfWorld(199999, 1000000),
+                "Test that the language percentage is rounded to 4 places before it is truncated");
+        assertEquals(19, SnapshotReportSource.percentageOfWorld(199949, 1000000),
+                "Test that the language percentage is truncated to a whole number");
+    }
+
+    // Test that refreshing swaps in a new snapshot while results already returned are unchanged
+    @Test
+    void SnapshotReportSource_refresh_swapsSnapshot()
+    {
+        // given
+        AtomicInteger loads = new AtomicInteger();
+        SnapshotReportSource source = new SnapshotReportSource(() -> {
+            WorldSnapshot.Builder builder = new WorldSnapshot.Builder()
+                    .addCountry("GBR", "United Kingdom", "Europe", "British Islands", 59623400, 456)
+                    .addCity(456, "London", "GBR", "England", 7285000 + loads.incrementAndGet());
+            return builder.build();
+        });
+        source.refresh();
+        List<Record> before = source.populationOf(App.CITY, "London");
+
+        // when
+        boolean refreshed = source.refresh();
+        List<Record> after = source.populationOf(App.CITY, "London");
+
+        // then
+        assertTrue(refreshed,
+                "Test that refreshing swaps in a new snapshot");
+        assertEquals(7285001L, before.get(0).getPopulation(),
+                "Test that results already returned are unchanged by a refresh");
+        assertEquals(7285002L, after.get(0).getPopulation(),
+                "Test that refreshing swaps in a new snapshot");
+    }
+
+    // Test that a failed refresh keeps the current snapshot
+    @Test
+    void SnapshotReportSource_refresh_failureKeepsSnapshot()
+    {
+        // given
+        WorldSnapshot snapshot = smallWorld();
+        SnapshotReportSource source = new SnapshotReportSource(() -> {
+            throw new SQLException("No database");
+        });
+
+        // when
+        boolean refreshed = source.refresh();
+
+        // then
+        assertFalse(refreshed,
+                "Test that a failed refresh is reported");
+        assertNull(source.getSnapshot(),
+                "Test that a failed refresh keeps the current snapshot");
+        assertNotNull(new SnapshotReportSource(snapshot).getSnapshot(),
+                "Test that a source created from a snapshot starts with it");
+    }
+
+    // Test that the default streaming method hands over every record of the report in order
+    @Test
+    void ReportSource_forEachRecord_recordsHandedOverInOrder()
+    {
+        // given
+        SnapshotReportSource source = new SnapshotReportSource(smallWorld());
+        List<String> names = new ArrayList<>();
+
+        // when
+        long count = source.forEachRecord(new ReportRequest(3, App.WORLD, "", 0), record -> names.add(record.getName()));
+
+        // then
+        assertEquals(5L, count,
+                "Test that the default streaming method hands over every record of the report");
+        assertEquals(Arrays.asList("London", "Paris", "Birmingham", "Marseille", "Nowhere"), names,
+                "Test that the default streaming method hands over every record in order");
+    }
+
+    // Test that streaming a report with no connection reports a failure
+    @Test
+    void DAO_forEachRecord_minusOneWhenNoConnection()
+    {
+        // when
+        long count = dao.forEachRecord(new ReportRequest(1, App.WORLD, "", 0), record -> fail("No records expected"));
+
+        // then
+        assertEquals(-1L, count,
+                "Test that streaming a report with no connection reports a failure");
+    }
+
+    // Test that streaming an invalid report gives no records rather than a failure
+    @Test
+    void DAO_forEachRecord_zeroWhenRequestInvalid()
+    {
+        // when
+        long count = dao.forEachRecord(new ReportRequest(2, App.DISTRICT, "Scotland", 5), record -> fail("No records expected"));
+
+        // then
+        assertEquals(0L, count,
+                "Test that streaming an invalid report gives no records rather than a failure");
+    }
+
+    // Test that an invalid report streams as an empty stream without needing a connection
+    @Test
+    void DAO_streamRecords_emptyWhenRequestInvalid() throws SQLException
+    {
+        // when
+        try (Stream<Record> records = dao.streamRecords(new ReportRequest(1, null, null, 0)))
+        {
+            // then
+            assertEquals(0L, records.count(),
+                    "Test that an invalid report streams as an empty stream");
+        }
+    }
+
+    // Test that the fetch size can't be set below 1
+    @Test
+    void DAO_setFetchSize_zeroRejected()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new DAO(null).setFetchSize(0),
+                "Test that the fetch size can't be set below 1");
+    }
+
+    // Test that two requests for the same report are equal so they can be used as keys
+    @Test
+    void ReportRequest_equals_sameReportIsEqual()
+    {
+        // given
+        ReportRequest first = new ReportRequest(4, App.REGION, "Caribbean", 5);
+        ReportRequest second = new ReportRequest(4, App.REGION, "Caribbean", 5);
+
+        // then
+        assertEquals(first, second,
+                "Test that two requests for the same report are equal");
+        assertEquals(first.hashCode(), second.hashCode(),
+                "Test that two requests for the same report have the same hash code");
+        assertNotEquals(first, new ReportRequest(4, App.REGION, "Caribbean", 6),
+                "Test that requests for different N are not equal");
+    }
+
+    // Test that showing a streamed report with no connection does not fail
+    @Test
+    void UserPrompt_showReport_noFailureWithNoConnection()
+    {
+        // when
+        userPrompt.showReport(new ReportRequest(8, App.WORLD, "", 0)); // then: no failure
+    }
+
+    /**
+     * Wraps the small world in a source which counts how many reports reach it.
+     * @param executions Incremented each time a report is run
+     * @return A report source answering from the small world
+     */
+    private static ReportSource countingSource(AtomicInteger executions)
+    {
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        return new AbstractReportSource()
+        {
+            @Override
+            public List<Record> execute(ReportRequest request)
+            {
+                executions.incrementAndGet();
+                return snapshot.execute(request);
+            }
+        };
+    }
+
+    // Test that a repeated report is served from the cache
+    @Test
+    void CachingReportSource_execute_repeatedReportServedFromCache()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+
+        // when
+        List<Record> first = cache.topNCitiesIn(App.CONTINENT, "Europe", 2);
+        List<Record> second = cache.topNCitiesIn(App.CONTINENT, "EUROPE", 2);
+
+        // then
+        assertSame(first, second,
+                "Test that a repeated report is served from the cache");
+        assertEquals(1, executions.get(),
+                "Test that a repeated report only reaches the delegate once");
+        assertEquals(1L, cache.getHitCount(),
+                "Test that a cache hit is counted");
+        assertEquals(1L, cache.getMissCount(),
+                "Test that a cache miss is counted");
+    }
+
+    // Test that cached reports can't be modified
+    @Test
+    void CachingReportSource_execute_cachedListIsUnmodifiable()
+    {
+        // given
+        CachingReportSource cache = new CachingReportSource(countingSource(new AtomicInteger()), 10, 60000);
+
+        // when
+        List<Record> records = cache.allCountriesIn(App.WORLD, "");
+
+        // then
+        assertThrows(UnsupportedOperationException.class, records::clear,
+                "Test that cached reports can't be modified");
+    }
+
+    // Test that a report is read again once it has expired
+    @Test
+    void CachingReportSource_execute_expiredReportReadAgain()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        AtomicLong now = new AtomicLong();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 1000, now::get);
+        cache.populationOf(App.WORLD, "");
+
+        // when
+        now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+        cache.populationOf(App.WORLD, "");
+
+        // then
+        assertEquals(2, executions.get(),
+                "Test that a report is read again once it has expired");
+        assertEquals(1L, cache.getExpiredCount(),
+                "Test that an expired report is counted");
+    }
+
+    // Test that the least recently used report is evicted when the cache is full
+    @Test
+    void CachingReportSource_execute_leastRecentlyUsedEvicted()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 2, 60000);
+        cache.populationOf(App.COUNTRY, "France");
+        cache.populationOf(App.COUNTRY, "United Kingdom");
+        cache.populationOf(App.COUNTRY, "France");
+
+        // when
+        cache.populationOf(App.COUNTRY, "Antarctica");
+        cache.populationOf(App.COUNTRY, "France");
+
+        // then
+        assertEquals(3, executions.get(),
+                "Test that reports still in the cache aren't read again");
+        assertEquals(1L, cache.getEvictionCount(),
+                "Test that the least recently used report is evicted when the cache is full");
+        assertEquals(2, cache.size(),
+                "Test that the cache never holds more than its maximum number of entries");
+    }
+
+    // Test that invalidating a report makes the next request read it again
+    @Test
+    void CachingReportSource_invalidate_nextRequestReadsAgain()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        cache.languageReport();
+        cache.allCitiesIn(App.WORLD, "");
+
+        // when
+        cache.invalidate(new ReportRequest(9, null, null, 0));
+        cache.languageReport();
+        cache.invalidateAll();
+        cache.allCitiesIn(App.WORLD, "");
+
+        // then
+        assertEquals(4, executions.get(),
+                "Test that invalidating a report makes the next request read it again");
+    }
+
+    // Test that a batch is served from the cache where it can and only the misses are sent on
+    @Test
+    void CachingReportSource_executeBatch_sendsOnlyMisses()
+    {
+        // given
+        List<List<ReportRequest>> sent = new ArrayList<>();
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        CachingReportSource cache = new CachingReportSource(new AbstractReportSource()
+        {
+            @Override
+            public List<Record> execute(ReportRequest request) { return snapshot.execute(request); }
+
+            @Override
+            public List<List<Record>> executeBatch(List<ReportRequest> requests)
+            {
+                sent.add(requests);
+                return super.executeBatch(requests);
+            }
+        }, 10, 60000);
+        List<Record> cached = cache.languageReport();
+        ReportRequest languages = new ReportRequest(9, null, null, 0);
+        ReportRequest cities = new ReportRequest(5, App.WORLD, "", 0);
+
+        // when
+        List<List<Record>> results = cache.executeBatch(Arrays.asList(languages, cities, languages));
+        List<List<Record>> again = cache.executeBatch(Arrays.asList(cities, languages));
+
+        // then
+        assertEquals(Collections.singletonList(Collections.singletonList(cities)), sent,
+                "Test that only the report missing from the cache is sent on, once");
+        assertSame(cached, results.get(0),
+                "Test that a cached report in a batch is served from the cache");
+        assertSame(cached, results.get(2),
+                "Test that a report repeated in a batch is served from the cache");
+        assertSame(results.get(1), again.get(0),
+                "Test that a report read in a batch is cached");
+    }
+
+    // Test that a streamed report longer than the limit is handed over whole but not cached
+    @Test
+    void CachingReportSource_forEachRecord_largeReportNotCached()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        Record record = new SnapshotReportSource(smallWorld()).languageReport().get(0);
+        CachingReportSource cache = new CachingReportSource(new AbstractReportSource()
+        {
+            @Override
+            public List<Record> execute(ReportRequest request)
+            {
+                executions.incrementAndGet();
+                return Collections.nCopies(CachingReportSource.MAX_STREAMED_ROWS + 1, record);
+            }
+        }, 10, 60000);
+        ReportRequest request = new ReportRequest(5, App.WORLD, "", 0);
+        AtomicLong seen = new AtomicLong();
+
+        // when
+        long first = cache.forEachRecord(request, r -> seen.incrementAndGet());
+        long second = cache.forEachRecord(request, r -> seen.incrementAndGet());
+
+        // then
+        assertEquals(CachingReportSource.MAX_STREAMED_ROWS + 1L, first,
+                "Test that a large report is counted");
+        assertEquals(2L * first, seen.get(),
+                "Test that every record of a large report is handed over");
+        assertEquals(2, executions.get(),
+                "Test that a large streamed report is read again rather than cached");
+        assertEquals(first, second,
+                "Test that a large report read again gives the same records");
+    }
+
+    // Test that a failed report is not cached
+    @Test
+    void CachingReportSource_execute_failedReportNotCached()
+    {
+        // given
+        CachingReportSource cache = new CachingReportSource(new DAO(null), 10, 60000);
+
+        // when
+        List<Record> records = cache.languageReport();
+
+        // then
+        assertNull(records,
+                "Test that a failed report is returned as null");
+        assertEquals(0, cache.size(),
+                "Test that a failed report is not cached");
+    }
+
+    // Test that streaming a report through the cache caches it for the next request
+    @Test
+    void CachingReportSource_forEachRecord_streamedReportCached()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        List<Record> streamed = new ArrayList<>();
+
+        // when
+        long count = cache.forEachRecord(new ReportRequest(3, App.WORLD, "", 0), streamed::add);
+        List<Record> cached = cache.allCitiesIn(App.WORLD, "");
+
+        // then
+        assertEquals(5L, count,
+                "Test that streaming a report through the cache hands over every record");
+        assertEquals(streamed, cached,
+                "Test that streaming a report through the cache caches it for the next request");
+        assertEquals(1, executions.get(),
+                "Test that streaming a report through the cache caches it for the next request");
+    }
+
+    // Test that a top N report is derived from the cached full ranking for the same area
+    @Test
+    void CachingReportSource_execute_topNDerivedFromFullRanking()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        cache.allCapitalCitiesIn(App.WORLD, "");
+
+        // when
+        List<Record> topCapitals = cache.topNCapitalCitiesIn(App.WORLD, "", 2);
+
+        // then
+        assertEquals(snapshot.topNCapitalCitiesIn(App.WORLD, "", 2).toString(), topCapitals.toString(),
+                "Test that a derived top N report matches the report read from the source");
+        assertEquals(1, executions.get(),
+                "Test that a top N report is derived from the cached full ranking for the same area");
+        assertEquals(1L, cache.getDerivedHitCount(),
+                "Test that a derived hit is counted");
+        assertEquals(0L, cache.getHitCount(),
+                "Test that a derived hit isn't counted as an exact hit");
+    }
+
+    // Test that top N countries aren't derived from the full country list, which keeps countries whose
+    // capital is in another country
+    @Test
+    void CachingReportSource_execute_topNCountriesNotDerivedFromFullList()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        cache.allCountriesIn(App.WORLD, "");
+
+        // when
+        cache.topNCountriesIn(App.WORLD, "", 2);
+
+        // then
+        assertEquals(2, executions.get(),
+                "Test that top N countries are read from the source when only the full list is cached");
+        assertEquals(0L, cache.getDerivedHitCount(),
+                "Test that top N countries aren't derived from the full country list");
+    }
+
+    // Test that a derived top N city report leaves out cities without a population
+    @Test
+    void CachingReportSource_execute_derivedTopNCitiesSkipsEmptyCities()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        cache.allCitiesIn(App.WORLD, "");
+
+        // when
+        List<Record> topCities = cache.topNCitiesIn(App.WORLD, "", 10);
+
+        // then
+        assertEquals(snapshot.topNCitiesIn(App.WORLD, "", 10).toString(), topCities.toString(),
+                "Test that a derived top N city report leaves out cities without a population");
+        assertEquals(1, executions.get(),
+                "Test that the derived top N city report didn't reach the source");
+        assertThrows(UnsupportedOperationException.class, topCities::clear,
+                "Test that a derived top N report can't be modified");
+    }
+
+    // Test that a cached top N report serves a smaller N but not a larger one
+    @Test
+    void CachingReportSource_execute_largerTopNServesSmallerN()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        cache.topNCitiesIn(App.COUNTRY, "United Kingdom", 1);
+        cache.topNCapitalCitiesIn(App.WORLD, "", 3);
+
+        // when
+        List<Record> larger = cache.topNCitiesIn(App.COUNTRY, "united kingdom", 2);
+        List<Record> smaller = cache.topNCapitalCitiesIn(App.WORLD, "", 2);
+
+        // then
+        assertEquals(2, larger.size(),
+                "Test that a larger N isn't served from a smaller cached N");
+        assertEquals(2, smaller.size(),
+                "Test that a smaller N is served from a larger cached N");
+        assertEquals(3, executions.get(),
+                "Test that only the smaller N is served from the cache");
+        assertEquals(1L, cache.getDerivedHitCount(),
+                "Test that serving a smaller N is counted as a derived hit");
+    }
+
+    // Test that a short cached top N report, which holds the whole ranking, serves a larger N
+    @Test
+    void CachingReportSource_execute_shortTopNServesLargerN()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        cache.topNCitiesIn(App.COUNTRY, "United Kingdom", 5);
+
+        // when
+        List<Record> topCities = cache.topNCitiesIn(App.COUNTRY, "United Kingdom", 50);
+
+        // then
+        assertEquals(2, topCities.size(),
+                "Test that a short top N report serves a larger N");
+        assertEquals(1, executions.get(),
+                "Test that a short top N report, which holds the whole ranking, serves a larger N");
+    }
+
+    // Test that a top N report isn't derived from a ranking which has left the cache
+    @Test
+    void CachingReportSource_execute_noDerivedHitAfterInvalidate()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CachingReportSource cache = new CachingReportSource(countingSource(executions), 10, 60000);
+        cache.topNCountriesIn(App.CONTINENT, "Europe", 2);
+        cache.invalidate(new ReportRequest(2, App.CONTINENT, "Europe", 2));
+
+        // when
+        cache.topNCountriesIn(App.CONTINENT, "Europe", 1);
+
+        // then
+        assertEquals(2, executions.get(),
+                "Test that a top N report isn't derived from a ranking which has left the cache");
+        assertEquals(0L, cache.getDerivedHitCount(),
+                "Test that no derived hit is counted");
+    }
+
+    // Test that the rollup totals every level of the tree
+    @Test
+    void PopulationRollup_populationOf_totalsEveryLevel()
+    {
+        // given
+        PopulationRollup rollup = smallWorld().getPopulationRollup();
+
+        // when
+        Record world = rollup.populationOf(App.WORLD, "");
+        Record continent = rollup.populationOf(App.CONTINENT, "EUROPE");
+        Record district = rollup.populationOf(App.DISTRICT, "ile-de-france");
+        Record city = rollup.populationOf(App.CITY, "London");
+
+        // then
+        assertEquals(118849100L, world.getPopulation(),
+                "Test that the world total comes from the country table");
+        assertEquals("Europe", continent.getName(),
+                "Test that an area is named as it is in the database");
+        assertEquals(118849100L, continent.getPopulation(),
+                "Test that a continent total comes from its countries");
+        assertEquals(2125246L, district.getPopulation(),
+                "Test that a district total comes from its cities");
+        assertEquals(7285000L, city.getPopulation(),
+                "Test that a city total is the city's population");
+        assertNull(rollup.populationOf(App.REGION, "Atlantis"),
+                "Test that an unknown area isn't found");
+    }
+
+    // Test that the rollup residence report splits the population living in and not in cities
+    @Test
+    void PopulationRollup_populationLivingInAndNotInCities_splitsPopulation()
+    {
+        // given
+        PopulationRollup rollup = smallWorld().getPopulationRollup();
+
+        // when
+        Record europe = rollup.populationLivingInAndNotInCities(App.CONTINENT, "Europe");
+        Record antarctica = rollup.populationLivingInAndNotInCities(App.COUNTRY, "Antarctica");
+
+        // then
+        assertEquals(11221676L, europe.getPopulationLivingInCities(),
+                "Test that the population in cities is totalled from the city table");
+        assertEquals(118849100L - 11221676L, europe.getPopulationNotLivingInCities(),
+                "Test that the population not in cities is the rest of the population");
+        assertEquals(0L, antarctica.getPopulationNotLivingInCities(),
+                "Test that an area without cities has no population outside cities, as in SQL");
+    }
+
+    // Test that changing one city's population updates every area above it
+    @Test
+    void PopulationRollup_updateCityPopulation_updatesAncestors()
+    {
+        // given
+        PopulationRollup rollup = smallWorld().getPopulationRollup();
+
+        // when
+        boolean updated = rollup.updateCityPopulation(2974, 2125000);
+
+        // then
+        assertTrue(updated,
+                "Test that a known city is updated");
+        assertEquals(2125000L, rollup.populationOf(App.CITY, "Paris").getPopulation(),
+                "Test that the city's population is updated");
+        assertEquals(2125000L, rollup.populationOf(App.DISTRICT, "Île-de-France").getPopulation(),
+                "Test that the district's population is updated");
+        assertEquals(2923430L, rollup.populationLivingInAndNotInCities(App.COUNTRY, "France")
+                        .getPopulationLivingInCities(),
+                "Test that the country's population in cities is updated");
+        assertEquals(11221430L, rollup.populationLivingInAndNotInCities(App.CONTINENT, "Europe")
+                        .getPopulationLivingInCities(),
+                "Test that the continent's population in cities is updated");
+        assertEquals(59225700L, rollup.populationOf(App.COUNTRY, "France").getPopulation(),
+                "Test that the country's total population, from the country table, is unchanged");
+        assertFalse(rollup.updateCityPopulation(1, 100),
+                "Test that an unknown city isn't updated");
+    }
+
+    // Test that updating a city through the snapshot source keeps the city reports, sums and rollup in step
+    @Test
+    void SnapshotReportSource_updateCityPopulation_keepsReportsInStep()
+    {
+        // given
+        WorldSnapshot original = smallWorld();
+        SnapshotReportSource source = new SnapshotReportSource(original);
+
+        // when
+        boolean updated = source.updateCityPopulation(2975, 3000000);
+
+        // then
+        assertTrue(updated,
+                "Test that a known city is updated");
+        assertEquals("Marseille", source.topNCitiesIn(App.COUNTRY, "France", 1).get(0).getName(),
+                "Test that the city moves to its new place in the city reports");
+        assertEquals(3000000L, source.populationOf(App.CITY, "Marseille").get(0).getPopulation(),
+                "Test that the city's population is summed with the change");
+        assertEquals(3000000L, source.populationOf(App.DISTRICT, "Provence-Alpes-Côte").get(0).getPopulation(),
+                "Test that the district's population is summed with the change");
+        assertEquals(source.getSnapshot().getPopulationRollup()
+                        .populationLivingInAndNotInCities(App.CONTINENT, "Europe").getPopulationLivingInCities(),
+                source.populationLivingInAndNotInCities(App.CONTINENT, "Europe").get(0).getPopulationLivingInCities(),
+                "Test that the residence report agrees with the updated rollup");
+        List<Record> world = source.allCitiesIn(App.WORLD, "");
+        for (int i = 1; i < world.size(); i++)
+        {
+            assertTrue(world.get(i - 1).getPopulation() >= world.get(i).getPopulation(),
+                    "Test that the cities are still in descending order of population");
+        }
+        assertEquals("Paris", new SnapshotReportSource(original).topNCitiesIn(App.COUNTRY, "France", 1).get(0).getName(),
+                "Test that the original snapshot is left as it was");
+        assertFalse(source.updateCityPopulation(1, 100),
+                "Test that an unknown city isn't updated");
+    }
+
+    /**
+     * Makes a ResultSet positioned on a single row, which only answers getters by column index.
+     * @param values The row's values, in column order
+     * @return The result set
+     */
+    private static ResultSet fakeRow(Object... values)
+    {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                (proxy, method, methodArgs) -> {
+                    if (methodArgs == null || !(methodArgs[0] instanceof Integer))
+                    {
+                        throw new SQLException(method.getName() + " must be called with a column index");
+                    }
+                    Object value = values[(Integer) methodArgs[0] - 1];
+                    switch (method.getName())
+                    {
+                        case "getString":
+                            return (value == null) ? null : value.toString();
+                        case "getLong":
+                            return (value == null) ? 0L : ((Number) value).longValue();
+                        case "getInt":
+                            return (value == null) ? 0 : ((Number) value).intValue();
+                        default:
+                            throw new SQLException(method.getName() + " is not supported");
+                    }
+                });
+    }
+
+    // Test that a city row is read by column index in the order the city queries select columns
+    @Test
+    void ReportRow_map_cityReadByColumnIndex() throws SQLException
+    {
+        // given
+        ResultSet result = fakeRow("Edinburgh", "Scotland", 450180L, "United Kingdom");
+
+        // when
+        Record record = new Record(result, App.CITY);
+
+        // then
+        assertTrue(record.getRow() instanceof CityRow,
+                "Test that a city record holds a city row");
+        assertEquals("Scotland", ((CityRow) record.getRow()).getDistrict(),
+                "Test that the district is read from the second column");
+        assertEquals("United Kingdom", record.getCountry(),
+                "Test that the country is read from the fourth column");
+        assertEquals(450180L, record.getPopulation(),
+                "Test that the population is read from the third column");
+    }
+
+    // Test that a capital city row is read by column index in the order the capital queries select columns
+    @Test
+    void ReportRow_map_capitalReadByColumnIndex() throws SQLException
+    {
+        // given
+        ResultSet result = fakeRow("Edinburgh", 450180L, "British Islands", "Europe", "United Kingdom");
+
+        // when
+        Record record = new Record(result, App.CAPITAL_CITY);
+
+        // then
+        assertEquals("Edinburgh", record.getName(),
+                "Test that the name is read from the first column");
+        assertEquals("Europe", record.getContinent(),
+                "Test that the continent is read from the fourth column");
+        assertEquals("United Kingdom", record.getCountry(),
+                "Test that the country is read from the fifth column");
+        assertEquals(450180L, record.getPopulation(),
+                "Test that the population is read from the second column");
+    }
+
+    // Test that a residence row works out its percentages from the populations
+    @Test
+    void ReportRow_map_residencePercentagesWorkedOut() throws SQLException
+    {
+        // given
+        ResultSet result = fakeRow("Europe", 1000L, 250L, 750L);
+
+        // when
+        ResidenceRow row = (ResidenceRow) ReportRow.map(result, App.RESIDENCE_REPORT);
+
+        // then
+        assertEquals(25.0, row.getPercentageLivingInCities(),
+                "Test that the percentage living in cities is worked out from the populations");
+        assertEquals(75.0, row.getPercentageNotLivingInCities(),
+                "Test that the percentage not living in cities is worked out from the populations");
+    }
+
+    // Test that a record of an unknown type has no row and renders as null, as the wide record did
+    @Test
+    void Record_toString_unknownTypeIsNull() throws SQLException
+    {
+        // given
+        Record record = new Record(fakeRow(), "continent");
+
+        // then
+        assertNull(record.getRow(),
+                "Test that a record of an unknown type has no row");
+        assertNull(record.toString(),
+                "Test that a record of an unknown type renders as null");
+        assertEquals(0L, record.getPopulation(),
+                "Test that a record of an unknown type has no population");
+    }
+
+    // Test that fields a record type doesn't have read as null or 0
+    @Test
+    void Record_getters_missingFieldsAreEmpty()
+    {
+        // given
+        Record city = new Record("Edinburgh", "United Kingdom", "Scotland", 450180);
+
+        // then
+        assertNull(city.getContinent(),
+                "Test that a city record has no continent");
+        assertEquals(0L, city.getSpeakers(),
+                "Test that a city record has no speakers");
+        assertEquals(App.CITY, city.getRow().getRecordType(),
+                "Test that the row knows its record type");
+    }
+
+    /**
+     * Records of every type, including negative, zero, extreme and missing values
+     * @return The records
+     */
+    private static List<Record> renderingRecords()
+    {
+        List<Record> records = new ArrayList<>();
+        records.add(new Record("GBR", "United Kingdom", "Europe", "British Islands", 59623400, "London"));
+        records.add(new Record(null, null, null, null, 0, null));
+        records.add(new Record("Edinburgh", "United Kingdom", "British Islands", "Europe", 450180));
+        records.add(new Record("Île-de-France", "France", "Paris", Long.MAX_VALUE));
+        records.add(new Record("Nowhere", null, "", -1234567));
+        records.add(new Record("Europe", 730074600, 241942813, 33.139377, 488131787, 66.860622));
+        records.add(new Record("Antarctica", 0, 0, Double.NaN, 0, Double.NaN));
+        records.add(new Record("Chinese", 1191843539, 19));
+        records.add(new Record("world", Long.MIN_VALUE));
+        records.add(new Record("Atlantis", 999));
+        records.add(null);
+        return records;
+    }
+
+    /**
+     * Prints records once with println and once through a ReportRenderer.
+     * @param records The records to print
+     * @return The println output and the renderer output
+     */
+    private static String[] printBothWays(List<Record> records)
+    {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream printer = new PrintStream(expected, true);
+        for (Record record : records) printer.println(record);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        ReportRenderer renderer = new ReportRenderer(new PrintStream(actual, true));
+        for (Record record : records) renderer.render(record);
+        renderer.flush();
+
+        return new String[]{expected.toString(), actual.toString()};
+    }
+
+    // Test that the renderer prints every record type exactly as println does
+    @Test
+    void ReportRenderer_render_sameAsPrintln()
+    {
+        // when
+        String[] output = printBothWays(renderingRecords());
+
+        // then
+        assertEquals(output[0], output[1],
+                "Test that the renderer prints every record type exactly as println does");
+    }
+
+    // Test that the renderer matches println in locales with other separators or digits
+    @Test
+    void ReportRenderer_render_sameAsPrintlnInOtherLocales()
+    {
+        Locale defaultLocale = Locale.getDefault(Locale.Category.FORMAT);
+        try
+        {
+            for (Locale locale : new Locale[]{Locale.GERMANY, Locale.FRANCE, Locale.forLanguageTag("de-CH"),
+                    Locale.forLanguageTag("th-TH-u-nu-thai"), Locale.forLanguageTag("hi-IN")})
+            {
+                // given
+                Locale.setDefault(Locale.Category.FORMAT, locale);
+
+                // when
+                String[] output = printBothWays(renderingRecords());
+
+                // then
+                assertEquals(output[0], output[1],
+                        "Test that the renderer matches println in the " + locale + " locale");
+            }
+        }
+        finally
+        {
+            Locale.setDefault(Locale.Category.FORMAT, defaultLocale);
+        }
+    }
+
+    // Test that a report bigger than the buffer is printed in full and in order
+    @Test
+    void ReportRenderer_render_largeReportPrintedInFull()
+    {
+        // given
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) records.add(new Record("City " + i, "Country", "District", i * 1001L));
+
+        // when
+        String[] output = printBothWays(records);
+
+        // then
+        assertEquals(output[0], output[1],
+                "Test that a report bigger than the buffer is printed in full and in order");
+    }
+
+    // Test that a report request is built from an endpoint's query parameters
+    @Test
+    void ReportServer_parseRequest_buildsRequestFromParameters()
+    {
+        // given
+        Map<String, String> parameters = ReportServer.parseQuery("area=continent&name=North%20America&n=5");
+
+        // when
+        ReportRequest request = ReportServer.parseRequest(4, parameters);
+
+        // then
+        assertEquals(new ReportRequest(4, App.CONTINENT, "North America", 5), request,
+                "Test that a report request is built from an endpoint's query parameters");
+    }
+
+    // Test that bad query parameters are rejected
+    @Test
+    void ReportServer_parseRequest_rejectsBadParameters()
+    {
+        // then
+        assertThrows(IllegalArgumentException.class,
+                () -> ReportServer.parseRequest(1, ReportServer.parseQuery("area=district&name=Scotland")),
+                "Test that an area filter the report doesn't support is rejected");
+        assertThrows(IllegalArgumentException.class,
+                () -> ReportServer.parseRequest(8, ReportServer.parseQuery("area=city")),
+                "Test that a missing area name is rejected");
+        assertThrows(IllegalArgumentException.class,
+                () -> ReportServer.parseRequest(2, ReportServer.parseQuery("area=world&n=0")),
+                "Test that N below 1 is rejected");
+        assertThrows(IllegalArgumentException.class,
+                () -> ReportServer.parseRequest(6, ReportServer.parseQuery("area=world&n=ten")),
+                "Test that N which isn't a number is rejected");
+        assertEquals(new ReportRequest(2, App.WORLD, "", 3),
+                ReportServer.parseRequest(2, ReportServer.parseQuery("area=world&name=ignored&n=3")),
+                "Test that the area name is ignored for the world");
+    }
+
+    // Test that records are written as JSON with their strings escaped
+    @Test
+    void RecordJson_append_writesEscapedJson()
+    {
+        // given
+        StringBuilder json = new StringBuilder();
+
+        // when
+        RecordJson.append(json, new Record("Sa\"o \\ Paulo", "Brazil", "São\nPaulo", 9968485));
+        json.append(',');
+        RecordJson.append(json, new Record("Antarctica", 0, 0, Double.NaN, 0, Double.NaN));
+
+        // then
+        assertEquals("{\"name\":\"Sa\\\"o \\\\ Paulo\",\"country\":\"Brazil\",\"district\":\"São\\nPaulo\"," +
+                        "\"population\":9968485}," +
+                        "{\"name\":\"Antarctica\",\"population\":0,\"populationLivingInCities\":0," +
+                        "\"percentageLivingInCities\":null,\"populationNotLivingInCities\":0," +
+                        "\"percentageNotLivingInCities\":null}",
+                json.toString(),
+                "Test that records are written as JSON with their strings escaped");
+    }
+
+    // Test that latency percentiles fall in the right bucket
+    @Test
+    void LatencyHistogram_getPercentileNanos_upperBoundOfBucket()
+    {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        // then
+        assertEquals(100L, histogram.getCount(),
+                "Test that every latency is counted");
+        assertEquals(104000L, histogram.getPercentileNanos(50),
+                "Test that the median is the upper bound of its sub-bucket");
+        assertEquals(99L, histogram.getBucketCount(7),
+                "Test that a doubling bucket counts the latencies in all its sub-buckets");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getPercentileNanos(100),
+                "Test that the top percentile is the longest latency");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getMaxNanos(),
+                "Test that the longest latency is kept");
+    }
+
+    // Test that percentiles are within a sub-bucket's width of the true value across the whole range
+    @Test
+    void LatencyHistogram_getPercentileNanos_withinSixPercent()
+    {
+        // given
+        SplittableRandom random = new SplittableRandom(11);
+        long[] micros = new long[1001];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < micros.length; i++)
+        {
+            // Spread evenly over the powers of two from 1us to about 17 minutes
+            micros[i] = (long) Math.pow(2, random.nextDouble(30));
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros[i]));
+        }
+        Arrays.sort(micros);
+
+        // then
+        for (int percentile : new int[] {10, 50, 90, 99})
+        {
+            long expected = TimeUnit.MICROSECONDS.toNanos(micros[(int) Math.ceil(micros.length * percentile / 100.0) - 1]);
+            long actual = histogram.getPercentileNanos(percentile);
+            assertTrue(actual >= expected && actual <= expected + expected / 16 + 1000,
+                    "Test that p" + percentile + " of " + actual + "ns is at most 1/16 above " + expected + "ns");
+        }
+        long counted = 0;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) counted += histogram.getBucketCount(bucket);
+        assertEquals(micros.length, counted,
+                "Test that every latency is counted in one doubling bucket");
+    }
+
+    /**
+     * Makes a GET request and reads the response.
+     * @param url The URL
+     * @return The status code followed by the body
+     */
+    private static String[] httpGet(String url) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        int status = connection.getResponseCode();
+        InputStream body = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read; (read = body.read(buffer)) > 0; ) bytes.write(buffer, 0, read);
+        body.close();
+        return new String[]{String.valueOf(status), new String(bytes.toByteArray(), StandardCharsets.UTF_8)};
+    }
+
+    // Test that the server streams a report as a JSON array and reports its latency
+    @Test
+    void ReportServer_handleReport_streamsJsonArray() throws IOException
+    {
+        // given
+        ReportServer server = new ReportServer(new SnapshotReportSource(smallWorld()), 0, 2, 4);
+        server.start();
+        String base = "http://localhost:" + server.getPort();
+
+        try
+        {
+            // when
+            String[] topCities = httpGet(base + "/cities/top?area=country&name=United%20Kingdom&n=1");
+            String[] empty = httpGet(base + "/countries?area=region&name=Atlantis");
+            String[] badRequest = httpGet(base + "/countries/top?area=world");
+            String[] notFound = httpGet(base + "/cities/elsewhere");
+
+            // then
+            assertEquals("200", topCities[0],
+                    "Test that a report is answered with 200");
+            assertEquals("[{\"name\":\"London\",\"country\":\"United Kingdom\",\"district\":\"England\"," +
+                            "\"population\":7285000}]", topCities[1],
+                    "Test that the server streams a report as a JSON array");
+            assertEquals("[]", empty[1],
+                    "Test that a report without results is an empty array");
+            assertEquals("400", badRequest[0],
+                    "Test that a bad request is answered with 400");
+            assertEquals("404", notFound[0],
+                    "Test that an unknown report is answered with 404");
+            assertEquals(1L, server.getLatency("/cities/top").getCount(),
+                    "Test that the latency of each request is recorded against its endpoint");
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    // Test that a server started on virtual threads answers its requests on virtual threads
+    @Test
+    void ReportServer_handleReport_runsOnVirtualThreads() throws IOException
+    {
+        // given
+        AtomicBoolean onVirtualThread = new AtomicBoolean();
+        ReportSource source = new SnapshotReportSource(smallWorld())
+        {
+            @Override
+            public long forEachRecord(ReportRequest request, Consumer<Record> consumer)
+            {
+                onVirtualThread.set(Thread.currentThread().isVirtual());
+                return super.forEachRecord(request, consumer);
+            }
+        };
+        ReportServer server = new ReportServer(source, 0, 16, 4, true);
+        server.start();
+
+        try
+        {
+            // when
+            String[] countries = httpGet("http://localhost:" + server.getPort() + "/countries?area=world");
+
+            // then
+            assertEquals("200", countries[0], "Test that a report is answered with 200");
+            assertTrue(onVirtualThread.get(), "Test that the report is read on a virtual thread");
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    /**
+     * Creates a stand-in connection whose queries take a while and return one row, which can be read as a
+     * population or residence row, counting how many queries run at once.
+     * @param queryMillis How long each query takes
+     * @param running The number of queries running now
+     * @param peak The most queries which have run at once
+     * @return A connection object which answers every query with the same row
+     */
+    private static Connection slowConnection(long queryMillis, AtomicInteger running, AtomicInteger peak)
+    {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (connection, connectionMethod, connectionArgs) -> {
+                    switch (connectionMethod.getName())
+                    {
+                        case "prepareStatement":
+                            return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                    new Class<?>[]{PreparedStatement.class},
+                                    (statement, method, methodArgs) -> {
+                                        if (!method.getName().equals("executeQuery")) return null;
+                                        peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                                        Thread.sleep(queryMillis);
+                                        running.decrementAndGet();
+                                        return fakeResult(new Object[]{"Europe", 730074600L, 241942813L, 488131787L});
+                                    });
+                        case "isValid":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(connection);
+                        case "equals":
+                            return connection == connectionArgs[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Makes a ResultSet holding the given rows, which answers getString("name") as well as getters by
+     * column index.
+     * @param rows The rows, each holding its values in column order
+     * @return The result set, positioned before the first row
+     */
+    private static ResultSet fakeResult(Object[]... rows)
+    {
+        AtomicInteger row = new AtomicInteger(-1);
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                (proxy, method, methodArgs) -> {
+                    switch (method.getName())
+                    {
+                        case "next":
+                            return row.incrementAndGet() < rows.length;
+                        case "getString":
+                            int column = (methodArgs[0] instanceof Integer) ? (Integer) methodArgs[0] : 1;
+                            Object value = rows[row.get()][column - 1];
+                            return (value == null) ? null : value.toString();
+                        case "getLong":
+                            return ((Number) rows[row.get()][(Integer) methodArgs[0] - 1]).longValue();
+                        case "getInt":
+                            return ((Number) rows[row.get()][(Integer) methodArgs[0] - 1]).intValue();
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // Test that virtual thread mode runs every request but never more queries at once than the pool allows
+    @Test
+    void DAO_onVirtualThreads_limitsQueriesToPoolSize()
+    {
+        // given
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        ConnectionPool pool = new ConnectionPool(() -> slowConnection(5, running, peak),
+                0, 3, 60000, 30000, 60000);
+        DAO virtualDao = DAO.onVirtualThreads(pool);
+        List<CompletableFuture<List<Record>>> results = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < 200; i++)
+        {
+            results.add(virtualDao.submit(new ReportRequest(8, App.CONTINENT, "Europe", 0)));
+        }
+        long populations = results.stream()
+                .map(CompletableFuture::join)
+                .filter(records -> records.size() == 1 && records.get(0).getPopulation() == 730074600L)
+                .count();
+        pool.close();
+
+        // then
+        assertTrue(virtualDao.isOnVirtualThreads(),
+                "Test that the DAO is in virtual thread mode");
+        assertEquals(200, populations,
+                "Test that every submitted request gets its report");
+        assertEquals(3, peak.get(),
+                "Test that no more queries run at once than the pool has connections");
+        assertEquals(0, pool.getWaitCount(),
+                "Test that requests wait on the permits rather than inside the pool");
+    }
+
+    // Test that a DAO on virtual threads with a batch pool sends batches in one call on the batch pool
+    @Test
+    void DAO_onVirtualThreads_sendsBatchesOnBatchPool()
+    {
+        // given
+        List<String> prepared = new ArrayList<>();
+        ConnectionPool pool = new ConnectionPool(() -> fakeConnection(true, new AtomicBoolean()), 0, 1, 60000, 30000, 60000);
+        ConnectionPool batchPool = new ConnectionPool(() -> batchConnection(prepared, new ArrayList<>(),
+                fakeResult(new Object[]{"Europe", 730074600L, 241942813L, 488131787L}),
+                fakeResult(new Object[]{"Asia", 3705025700L, 697604103L, 3007421597L})),
+                0, 1, 60000, 30000, 60000);
+        DAO virtualDao = DAO.onVirtualThreads(pool, batchPool);
+
+        // when
+        List<List<Record>> results = virtualDao.executeBatch(Arrays.asList(
+                new ReportRequest(7, App.CONTINENT, "Europe", 0),
+                new ReportRequest(7, App.CONTINENT, "Asia", 0)));
+        pool.close();
+        batchPool.close();
+
+        // then
+        assertTrue(virtualDao.isOnVirtualThreads(), "Test that the DAO is in virtual thread mode");
+        assertEquals(1, prepared.size(), "Test that the batch is sent as one call");
+        assertEquals(2, results.size(), "Test that every report in the batch is answered");
+    }
+
+    // Test that a DAO which isn't in virtual thread mode runs a submitted request on the calling thread
+    @Test
+    void DAO_submit_runsOnCallerWithoutVirtualThreads()
+    {
+        // given
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        DAO plainDao = new DAO(slowConnection(0, running, peak));
+
+        // when
+        CompletableFuture<List<Record>> result = plainDao.submit(new ReportRequest(8, App.WORLD, "", 0));
+
+        // then
+        assertFalse(plainDao.isOnVirtualThreads(),
+                "Test that a plain DAO isn't in virtual thread mode");
+        assertTrue(result.isDone(),
+                "Test that the request has already run when submit returns");
+        assertEquals(1, result.join().size(),
+                "Test that the report is returned through the future");
+    }
+
+    /**
+     * Creates a stand-in connection whose queries only end when their statement is cancelled.
+     * @param started Counted down when a query starts
+     * @param cancels Counts the statements cancelled
+     * @return A connection object whose queries block until cancelled
+     */
+    private static Connection blockingConnection(CountDownLatch started, AtomicInteger cancels)
+    {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (connection, connectionMethod, connectionArgs) -> {
+                    switch (connectionMethod.getName())
+                    {
+                        case "prepareStatement":
+                            CountDownLatch cancelled = new CountDownLatch(1);
+                            return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                    new Class<?>[]{PreparedStatement.class},
+                                    (statement, method, methodArgs) -> {
+                                        switch (method.getName())
+                                        {
+                                            case "executeQuery":
+                                                started.countDown();
+                                                cancelled.await();
+                                                throw new SQLException("Query execution was interrupted");
+                                            case "cancel":
+                                                cancels.incrementAndGet();
+                                                cancelled.countDown();
+                                                return null;
+                                            default:
+                                                return null;
+                                        }
+                                    });
+                        case "isValid":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(connection);
+                        case "equals":
+                            return connection == connectionArgs[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // Test that several reports started through the async facade can be joined together
+    @Test
+    void AsyncDAO_execute_fansOutReports()
+    {
+        // given
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        ConnectionPool pool = new ConnectionPool(() -> slowConnection(50, running, peak),
+                0, 3, 60000, 30000, 60000);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        AsyncDAO async = new AsyncDAO(DAO.pooled(pool), executor);
+
+        // when
+        CompletableFuture<List<Record>> population = async.populationOf(App.CONTINENT, "Europe");
+        CompletableFuture<List<Record>> residence = async.populationLivingInAndNotInCities(App.CONTINENT, "Europe");
+        CompletableFuture<List<Record>> invalid = async.topNCitiesIn(App.CONTINENT, "Europe", 0);
+        CompletableFuture.allOf(population, residence, invalid).join();
+        executor.shutdown();
+        pool.close();
+
+        // then
+        assertEquals(1, population.join().size(),
+                "Test that the population report is returned through its future");
+        assertEquals(1, residence.join().size(),
+                "Test that the residence report is returned through its future");
+        assertTrue(invalid.join().isEmpty(),
+                "Test that invalid arguments give an empty report, as they do with the DAO");
+        assertEquals(2, peak.get(),
+                "Test that the reports ran at the same time");
+    }
+
+    // Test that cancelling a report's future cancels its JDBC statement and gives back the connection
+    @Test
+    void AsyncDAO_execute_cancelCancelsStatement() throws InterruptedException
+    {
+        // given
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger cancels = new AtomicInteger();
+        ConnectionPool pool = new ConnectionPool(() -> blockingConnection(started, cancels),
+                0, 1, 60000, 30000, 60000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncDAO async = new AsyncDAO(DAO.pooled(pool), executor);
+
+        // when
+        CompletableFuture<List<Record>> report = async.allCitiesIn(App.WORLD, "");
+        started.await();
+        report.cancel(true);
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        // then
+        assertTrue(report.isCancelled(),
+                "Test that the future is cancelled");
+        assertEquals(1, cancels.get(),
+                "Test that the running statement is cancelled");
+        assertEquals(0, pool.getActiveConnections(),
+                "Test that the connection is given back once the query stops");
+        pool.close();
+    }
+
+    // Test that a report cancelled after its statement is registered, but before it's executed, isn't run
+    @Test
+    void DAO_execute_cancelBeforeExecuteStopsQuery()
+    {
+        // given
+        QueryHandle handle = new QueryHandle();
+        AtomicInteger executions = new AtomicInteger();
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, connectionMethod, connectionArgs) -> {
+                    if (!connectionMethod.getName().equals("prepareStatement")) return null;
+                    return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                            new Class<?>[]{PreparedStatement.class},
+                            (statement, method, methodArgs) -> {
+                                switch (method.getName())
+                                {
+                                    case "setFetchSize":
+                                        // The report is cancelled while the statement is being set up
+                                        handle.cancel();
+                                        return null;
+                                    case "executeQuery":
+                                        executions.incrementAndGet();
+                                        throw new SQLException("Query should not have been run");
+                                    default:
+                                        return null;
+                                }
+                            });
+                });
+        DAO dao = new DAO(connection);
+
+        // when
+        List<Record> report = dao.execute(new ReportRequest(1, App.WORLD, "", 0), handle);
+
+        // then
+        assertNull(report, "Test that a cancelled report is null");
+        assertEquals(0, executions.get(),
+                "Test that the query isn't executed once the report has been cancelled");
+    }
+
+    // Test that finishing a query waits for a cancel in progress, so the connection isn't released under it
+    @Test
+    void QueryHandle_finish_waitsForCancelInProgress() throws Exception
+    {
+        // given
+        CountDownLatch cancelling = new CountDownLatch(1);
+        CountDownLatch letCancelFinish = new CountDownLatch(1);
+        AtomicBoolean cancelDone = new AtomicBoolean();
+        PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, methodArgs) -> {
+                    if (!method.getName().equals("cancel")) return null;
+                    cancelling.countDown();
+                    letCancelFinish.await();
+                    cancelDone.set(true);
+                    return null;
+                });
+        QueryHandle handle = new QueryHandle();
+        handle.start(statement);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        // when
+        executor.submit(handle::cancel);
+        cancelling.await();
+        Future<Boolean> finished = executor.submit(() -> {
+            handle.finish();
+            return cancelDone.get();
+        });
+        Thread.sleep(50);
+        boolean finishedEarly = finished.isDone();
+        letCancelFinish.countDown();
+
+        // then
+        assertFalse(finishedEarly, "Test that finish waits while the statement is being cancelled");
+        assertTrue(finished.get(5, TimeUnit.SECONDS), "Test that finish returns once the cancel is done");
+        executor.shutdown();
+    }
+
+    // Test that a report which takes longer than the timeout fails with a TimeoutException and is cancelled,
+    // and that a report cancelled before it starts is never run
+    @Test
+    void AsyncDAO_execute_timeoutCancelsStatement() throws InterruptedException
+    {
+        // given
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger cancels = new AtomicInteger();
+        ConnectionPool pool = new ConnectionPool(() -> blockingConnection(started, cancels),
+                0, 1, 60000, 30000, 60000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncDAO async = new AsyncDAO(DAO.pooled(pool), executor, 50);
+
+        // when
+        CompletableFuture<List<Record>> report = async.allCountriesIn(App.WORLD, "");
+        CompletableFuture<List<Record>> queued = async.allCountriesIn(App.WORLD, "");
+        queued.cancel(true);
+        CompletionException timedOut = assertThrows(CompletionException.class, report::join,
+                "Test that a slow report fails");
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        // then
+        assertTrue(timedOut.getCause() instanceof TimeoutException,
+                "Test that the report fails with a TimeoutException");
+        assertEquals(1, cancels.get(),
+                "Test that the running statement is cancelled and the report cancelled in the queue never runs");
+        pool.close();
+    }
+
+    /**
+     * Creates a stand-in connection which answers a multi-statement call with one result set per query,
+     * or single queries with the next result set each.
+     * @param prepared Receives the SQL of each statement prepared
+     * @param bound Receives the parameters bound, in order
+     * @param results The result set returned for each query, in order, null to fail at that query
+     * @return A connection object which answers a single batch
+     */
+    private static Connection batchConnection(List<String> prepared, List<Object> bound, ResultSet... results)
+    {
+        AtomicInteger current = new AtomicInteger();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (connection, connectionMethod, connectionArgs) -> {
+                    switch (connectionMethod.getName())
+                    {
+                        case "prepareStatement":
+                            prepared.add((String) connectionArgs[0]);
+                            return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                    new Class<?>[]{PreparedStatement.class},
+                                    (statement, method, methodArgs) -> {
+                                        switch (method.getName())
+                                        {
+                                            case "setString":
+                                            case "setInt":
+                                                bound.add(methodArgs[1]);
+                                                return null;
+                                            case "execute":
+                                                return true;
+                                            case "executeQuery":
+                                                return results[current.getAndIncrement()];
+                                            case "getResultSet":
+                                                ResultSet result = results[current.get()];
+                                                if (result == null) throw new SQLException("Unknown column");
+                                                return result;
+                                            case "getMoreResults":
+                                                return current.incrementAndGet() < results.length;
+                                            default:
+                                                return null;
+                                        }
+                                    });
+                        case "isValid":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(connection);
+                        case "equals":
+                            return connection == connectionArgs[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Creates a pooled DAO whose batches go to the given connection, through a batch pool of one.
+     * @param batchConnection The connection batches are sent on
+     * @return The DAO
+     */
+    private static DAO batchDao(Connection batchConnection)
+    {
+        ConnectionPool pool = new ConnectionPool(() -> fakeConnection(true, new AtomicBoolean()), 0, 1, 60000, 1000, 60000);
+        ConnectionPool batchPool = new ConnectionPool(() -> batchConnection, 0, 1, 60000, 1000, 60000);
+        return DAO.pooled(pool, batchPool);
+    }
+
+    // Test that a DAO without a batch pool runs a batch a report at a time, never as one call
+    @Test
+    void DAO_executeBatch_withoutBatchPoolRunsEachReport()
+    {
+        // given
+        List<String> prepared = new ArrayList<>();
+        DAO singleDao = new DAO(batchConnection(prepared, new ArrayList<>(),
+                fakeResult(new Object[]{"Europe", 730074600L}), fakeResult(new Object[]{"Europe", 730074600L})));
+        List<ReportRequest> requests = Arrays.asList(
+                new ReportRequest(8, App.CONTINENT, "Europe", 0),
+                new ReportRequest(8, App.REGION, "Western Europe", 0));
+
+        // when
+        singleDao.executeBatch(requests);
+
+        // then
+        assertEquals(2, prepared.size(),
+                "Test that each report is prepared on its own");
+        assertFalse(prepared.stream().anyMatch(sql -> sql.contains(DAO.BATCH_SEPARATOR)),
+                "Test that no statement joins several queries");
+    }
+
+    // Test that a batch is sent as one multi-statement call and its result sets are split back into reports
+    @Test
+    void DAO_executeBatch_oneCallSplitIntoReports()
+    {
+        // given
+        List<String> prepared = new ArrayList<>();
+        List<Object> bound = new ArrayList<>();
+        DAO batchDao = batchDao(batchConnection(prepared, bound,
+                fakeResult(new Object[]{"Europe", 730074600L}),
+                fakeResult(new Object[]{"London", "England", 7285000L, "United Kingdom"},
+                        new Object[]{"Birmingham", "England", 1013000L, "United Kingdom"})));
+        List<ReportRequest> requests = Arrays.asList(
+                new ReportRequest(8, App.CONTINENT, "Europe", 0),
+                new ReportRequest(4, App.CITY, "Europe", 5),
+                new ReportRequest(4, App.COUNTRY, "United Kingdom", 2),
+                new ReportRequest(12, App.WORLD, "", 0));
+
+        // when
+        List<List<Record>> results = batchDao.executeBatch(requests);
+
+        // then
+        assertEquals(1, prepared.size(),
+                "Test that the batch is sent in one call");
+        assertEquals(2, prepared.get(0).split(DAO.BATCH_SEPARATOR).length,
+                "Test that only the valid requests are sent");
+        assertEquals(Arrays.asList("Europe", "United Kingdom", 2), bound,
+                "Test that the parameters of every query are bound in order");
+        assertEquals(730074600L, results.get(0).get(0).getPopulation(),
+                "Test that the first result set goes to the first report");
+        assertTrue(results.get(1).isEmpty(),
+                "Test that an invalid request gives an empty report without being sent");
+        assertEquals("Birmingham", results.get(2).get(1).getName(),
+                "Test that the second result set goes to the report it was sent for");
+        assertNull(results.get(3),
+                "Test that a report which doesn't exist gives null");
+    }
+
+    // Test that when a query in a batch fails the reports before it are kept and the rest are null
+    @Test
+    void DAO_executeBatch_failureKeepsEarlierReports()
+    {
+        // given
+        DAO batchDao = batchDao(batchConnection(new ArrayList<>(), new ArrayList<>(),
+                fakeResult(new Object[]{"Europe", 730074600L}), null, fakeResult()));
+        List<ReportRequest> requests = Arrays.asList(
+                new ReportRequest(8, App.CONTINENT, "Europe", 0),
+                new ReportRequest(8, App.REGION, "Western Europe", 0),
+                new ReportRequest(8, App.COUNTRY, "France", 0));
+
+        // when
+        List<List<Record>> results = batchDao.executeBatch(requests);
+
+        // then
+        assertEquals(1, results.get(0).size(),
+                "Test that the report read before the failure is kept");
+        assertNull(results.get(1),
+                "Test that the failed report is null");
+        assertNull(results.get(2),
+                "Test that the reports after the failure are null");
+    }
+
+    // Test that a batch line is parsed in the same vocabulary as the prompt, and bad lines are rejected
+    @Test
+    void BatchRunner_parseLine_validAndInvalidLines()
+    {
+        // given
+        String topCities = " 4 | Continent | Europe | 10 ";
+
+        // when
+        ReportRequest request = BatchRunner.parseLine(topCities);
+
+        // then
+        assertEquals(new ReportRequest(4, App.CONTINENT, "Europe", 10), request,
+                "Test that every field of a line is read");
+        assertEquals(new ReportRequest(1, App.WORLD, "", 0), BatchRunner.parseLine("1 | world"),
+                "Test that the world doesn't need an area name");
+        assertEquals(new ReportRequest(9, null, null, 0), BatchRunner.parseLine("9"),
+                "Test that the language report needs no other fields");
+        assertThrows(IllegalArgumentException.class, () -> BatchRunner.parseLine("10 | world"),
+                "Test that an unknown report is rejected");
+        assertThrows(IllegalArgumentException.class, () -> BatchRunner.parseLine("2 | continent | Asia"),
+                "Test that a top N report without n is rejected");
+        assertThrows(IllegalArgumentException.class, () -> BatchRunner.parseLine("7 | world"),
+                "Test that an area filter the report doesn't take is rejected");
+    }
+
+    // Test that a batch run writes each report to its own file and summarises the run
+    @Test
+    void BatchRunner_run_writesEachReportToItsOwnFile() throws IOException
+    {
+        // given
+        Path directory = Files.createTempDirectory("batch-test");
+        BatchRunner runner = new BatchRunner(new SnapshotReportSource(smallWorld()), directory, 2);
+        List<String> lines = Arrays.asList(
+                "# Reports for the test",
+                "4 | country | United Kingdom | 1",
+                "",
+                "8 | district | Île-de-France",
+                "1 | region | Atlantis",
+                "2 | nowhere | Europe | 3");
+
+        try
+        {
+            // when
+            BatchRunner.Summary summary = runner.run(lines);
+            List<String> topCity = Files.readAllLines(
+                    directory.resolve("0002-4-country-united-kingdom-1.txt"), StandardCharsets.UTF_8);
+            List<String> district = Files.readAllLines(
+                    directory.resolve("0004-8-district-ile-de-france.txt"), StandardCharsets.UTF_8);
+
+            // then
+            assertEquals(3, summary.getSucceeded(),
+                    "Test that every valid line is run");
+            assertEquals(1, summary.getSkipped(),
+                    "Test that an invalid line is skipped");
+            assertEquals(2, summary.getRecords(),
+                    "Test that the records in every report are counted");
+            assertEquals(3, summary.getLatency().getCount(),
+                    "Test that the latency of every report is recorded");
+            assertEquals(new SnapshotReportSource(smallWorld()).topNCitiesIn(App.COUNTRY, "United Kingdom", 1)
+                            .get(0).toString(), String.join("\n", topCity.subList(1, topCity.size())),
+                    "Test that a report is written as it's printed in the console");
+            assertTrue(String.join("\n", district).contains("Île-de-France |  Population: 2,125,246"),
+                    "Test that a name with accents is written to a file with an ASCII name");
+            assertTrue(Files.readAllLines(directory.resolve("0005-1-region-atlantis.txt"), StandardCharsets.UTF_8)
+                            .contains("Your query had no results"),
+                    "Test that an empty report says so in its file");
+        }
+        finally
+        {
+            try (Stream<Path> files = Files.list(directory))
+            {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    // Test that consecutive reports are read together in batches when asked to
+    @Test
+    void BatchRunner_run_readsConsecutiveReportsInBatches() throws IOException
+    {
+        // given
+        Path directory = Files.createTempDirectory("batch-test");
+        List<Integer> batchSizes = new ArrayList<>();
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        ReportSource source = new AbstractReportSource()
+        {
+            @Override
+            public List<Record> execute(ReportRequest request) { return snapshot.execute(request); }
+
+            @Override
+            public synchronized List<List<Record>> executeBatch(List<ReportRequest> requests)
+            {
+                batchSizes.add(requests.size());
+                return super.executeBatch(requests);
+            }
+        };
+        BatchRunner runner = new BatchRunner(source, directory, 1, 2);
+        List<String> lines = Arrays.asList(
+                "9",
+                "4 | country | United Kingdom | 1",
+                "1 | region | Atlantis");
+
+        try
+        {
+            // when
+            BatchRunner.Summary summary = runner.run(lines);
+            List<String> topCity = Files.readAllLines(
+                    directory.resolve("0002-4-country-united-kingdom-1.txt"), StandardCharsets.UTF_8);
+
+            // then
+            assertEquals(Collections.singletonList(2), batchSizes,
+                    "Test that a full group is read as a batch and the last report on its own is streamed");
+            assertEquals(3, summary.getSucceeded(),
+                    "Test that every report in a batch is run");
+            assertEquals(3, summary.getLatency().getCount(),
+                    "Test that the latency of every report in a batch is recorded");
+            assertEquals(snapshot.topNCitiesIn(App.COUNTRY, "United Kingdom", 1).get(0).toString(),
+                    String.join("\n", topCity.subList(1, topCity.size())),
+                    "Test that a report read in a batch is written as it's printed in the console");
+        }
+        finally
+        {
+            try (Stream<Path> files = Files.list(directory))
+            {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    // Test that a report whose source throws part way through is counted as failed with its latency
+    @Test
+    void BatchRunner_run_throwingReportCountedAsFailed() throws IOException
+    {
+        // given
+        Path directory = Files.createTempDirectory("batch-test");
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        ReportSource source = new AbstractReportSource()
+        {
+            @Override
+            public List<Record> execute(ReportRequest request) { return snapshot.execute(request); }
+
+            @Override
+            public long forEachRecord(ReportRequest request, Consumer<Record> consumer)
+            {
+                if (request.getQueryId() == 9) throw new IllegalStateException("Connection lost");
+                return super.forEachRecord(request, consumer);
+            }
+        };
+        BatchRunner runner = new BatchRunner(source, directory, 1);
+
+        try
+        {
+            // when
+            BatchRunner.Summary summary = runner.run(Arrays.asList("9", "1 | world"));
+
+            // then
+            assertEquals(1, summary.getFailed(),
+                    "Test that a report whose source throws is counted as failed");
+            assertEquals(1, summary.getSucceeded(),
+                    "Test that the other reports still run");
+            assertEquals(2, summary.getLatency().getCount(),
+                    "Test that the latency of a report whose source throws is still recorded");
+        }
+        finally
+        {
+            try (Stream<Path> files = Files.list(directory))
+            {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    // Test that options given as option=value are found in the app's arguments
+    @Test
+    void App_optionValue_findsValue()
+    {
+        // given
+        String[] args = {"localhost:33061", "--batch=reports.txt", "--batch-output="};
+
+        // when
+        String batchFile = App.optionValue(args, App.BATCH_OPTION);
+
+        // then
+        assertEquals("reports.txt", batchFile,
+                "Test that an option's value is found");
+        assertNull(App.optionValue(args, App.BATCH_OUTPUT_OPTION),
+                "Test that an option without a value is treated as missing");
+        assertNull(App.optionValue(args, App.SERVER_OPTION),
+                "Test that a missing option has no value");
+    }
+
+    // Test that a precomputed store answers every report the same as the snapshot it was built from
+    @Test
+    void ReportStore_lookUp_matchesSnapshot() throws IOException
+    {
+        // given
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        Path file = Files.createTempFile("catalogue", ".store");
+        List<ReportRequest> requests = new ArrayList<>();
+        String[][] areas = {
+                {App.WORLD, ""}, {App.CONTINENT, "europe"}, {App.CONTINENT, "Antarctica"},
+                {App.REGION, "Western Europe"}, {App.COUNTRY, "UNITED KINGDOM"}, {App.DISTRICT, "ile-de-france"},
+                {App.CITY, "Paris"}, {App.CONTINENT, "Atlantis"}, {App.COUNTRY, "France"}};
+        for (String[] area : areas)
+        {
+            for (int queryId = 1; queryId <= 8; queryId++)
+            {
+                requests.add(new ReportRequest(queryId, area[0], area[1], 1));
+                requests.add(new ReportRequest(queryId, area[0], area[1], 10));
+            }
+        }
+        requests.add(new ReportRequest(9, null, null, 0));
+
+        // when
+        ReportStore.write(ReportCatalogue.build(smallWorld()), file);
+        try (ReportStore store = ReportStore.open(file))
+        {
+            // then
+            for (ReportRequest request : requests)
+            {
+                List<String> expected = new ArrayList<>();
+                snapshot.execute(request).forEach(record -> expected.add(record.toString()));
+                List<String> actual = new ArrayList<>();
+                store.execute(request).forEach(record -> actual.add(record.toString()));
+                assertEquals(expected, actual, "Test that the store matches the snapshot for " + request);
+            }
+            assertTrue(store.allCountriesIn(App.WORLD, null).isEmpty(),
+                    "Test that an invalid request gives an empty list");
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    // Test that the precompute job reports what it wrote and how long each phase took
+    @Test
+    void CatalogueJob_run_timesEveryPhase() throws IOException
+    {
+        // given
+        Path file = Files.createTempFile("catalogue", ".store");
+        CatalogueJob job = new CatalogueJob(UnitTests::smallWorld, file);
+
+        try
+        {
+            // when
+            CatalogueJob.Summary summary = job.run();
+
+            // then
+            assertEquals(Arrays.asList("load", "build", "write"), new ArrayList<>(summary.getPhaseNanos().keySet()),
+                    "Test that every phase is timed in order");
+            assertEquals(Files.size(file), summary.getBytes(),
+                    "Test that the size of the store is reported");
+            // World, 2 continents, 3 regions, 3 countries, 3 districts and 5 cities
+            assertEquals(17, summary.getAreas(),
+                    "Test that every area in the country and city tables is counted");
+            try (ReportStore store = ReportStore.open(file))
+            {
+                assertEquals(summary.getReports(), store.getReportCount(),
+                        "Test that every report is in the store's index");
+            }
+            assertNull(new CatalogueJob(() -> { throw new SQLException("No database"); }, file).run(),
+                    "Test that a failed load gives no summary");
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    // Test that a file which isn't a report store is refused when it's opened
+    @Test
+    void ReportStore_open_rejectsOtherFiles() throws IOException
+    {
+        // given
+        Path file = Files.createTempFile("catalogue", ".store");
+        Files.write(file, "This isn't a report store at all".getBytes(StandardCharsets.UTF_8));
+
+        try
+        {
+            // when
+            IOException e = assertThrows(IOException.class, () -> ReportStore.open(file),
+                    "Test that the file is refused");
+
+            // then
+            assertTrue(e.getMessage().contains("isn't a report store"),
+                    "Test that the reason is given");
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    // Test that a snapshot read back from its file answers every report the same as the original
+    @Test
+    void WorldSnapshotFile_read_matchesSavedSnapshot() throws IOException
+    {
+        // given
+        Path file = Files.createTempFile("world", ".snapshot");
+        SnapshotReportSource original = new SnapshotReportSource(smallWorld());
+        List<ReportRequest> requests = Arrays.asList(
+                new ReportRequest(1, App.WORLD, "", 0),
+                new ReportRequest(2, App.CONTINENT, "Europe", 1),
+                new ReportRequest(3, App.DISTRICT, "Île-de-France", 0),
+                new ReportRequest(4, App.COUNTRY, "France", 5),
+                new ReportRequest(5, App.REGION, "British Islands", 0),
+                new ReportRequest(7, App.COUNTRY, "United Kingdom", 0),
+                new ReportRequest(8, App.CITY, "paris", 0),
+                new ReportRequest(9, null, null, 0));
+
+        try
+        {
+            // when
+            long bytes = WorldSnapshotFile.write(smallWorld(), file);
+            SnapshotReportSource read = new SnapshotReportSource(WorldSnapshotFile.read(file));
+
+            // then
+            assertEquals(Files.size(file), bytes, "Test that the size of the file is returned");
+            assertEquals(5, read.getSnapshot().getCityCount(), "Test that every city is read back");
+            for (ReportRequest request : requests)
+            {
+                List<String> expected = new ArrayList<>();
+                original.execute(request).forEach(record -> expected.add(record.toString()));
+                List<String> actual = new ArrayList<>();
+                read.execute(request).forEach(record -> actual.add(record.toString()));
+                assertEquals(expected, actual, "Test that the saved snapshot matches the original for " + request);
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    // Test that a damaged snapshot file, or one from another version, is refused
+    @Test
+    void WorldSnapshotFile_read_rejectsDamagedFiles() throws IOException
+    {
+        // given
+        Path file = Files.createTempFile("world", ".snapshot");
+        WorldSnapshotFile.write(smallWorld(), file);
+        byte[] saved = Files.readAllBytes(file);
+
+        try
+        {
+            // when
+            byte[] damaged = saved.clone();
+            damaged[damaged.length - 1] ^= 1;
+            Files.write(file, damaged);
+            IOException checksum = assertThrows(IOException.class, () -> WorldSnapshotFile.read(file),
+                    "Test that a damaged file is refused");
+
+            byte[] newer = saved.clone();
+            newer[4] = (byte) (WorldSnapshotFile.VERSION + 1);
+            Files.write(file, newer);
+            IOException version = assertThrows(IOException.class, () -> WorldSnapshotFile.read(file),
+                    "Test that a file from another version is refused");
+
+            Files.write(file, Arrays.copyOf(saved, saved.length - 4));
+            IOException truncated = assertThrows(IOException.class, () -> WorldSnapshotFile.read(file),
+                    "Test that a truncated file is refused");
+
+            // then
+            assertTrue(checksum.getMessage().contains("checksum"), "Test that the checksum is blamed");
+            assertTrue(version.getMessage().contains("version"), "Test that the version is blamed");
+            assertTrue(truncated.getMessage().contains("wrong size"), "Test that the size is blamed");
+            assertNull(App.readSnapshotFile(file.resolveSibling("missing.snapshot")),
+                    "Test that a missing file gives no snapshot");
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    // Test that the city store's population and residence figures match the snapshot's rollup
+    @Test
+    void CityStore_populationOf_matchesRollup()
+    {
+        // given
+        WorldSnapshot snapshot = smallWorld();
+        PopulationRollup rollup = snapshot.getPopulationRollup();
+        CityStore[] stores = {CityStore.from(snapshot), CityStore.from(snapshot, new CityScan.Scalar())};
+        String[][] areas = {
+                {App.WORLD, ""}, {App.CONTINENT, "EUROPE"}, {App.CONTINENT, "Antarctica"},
+                {App.REGION, "Western Europe"}, {App.COUNTRY, "united kingdom"}, {App.DISTRICT, "Ile-de-France"},
+                {App.CITY, "Paris"}, {App.CONTINENT, "Atlantis"}, {App.DISTRICT, "Atlantis"}};
+
+        // when
+        CityStore scalar = new CityStore.Builder().addCountry("GBR", "United Kingdom", "Europe", "British Islands", 59623400)
+                .addCity("London", "GBR", "England", 7285000)
+                .addCity("Lost", "XXX", "England", 1000)
+                .build(new CityScan.Scalar());
+
+        // then
+        for (CityStore store : stores)
+        {
+            for (String[] area : areas)
+            {
+                assertEquals(String.valueOf(rollup.populationOf(area[0], area[1])),
+                        String.valueOf(store.populationOf(area[0], area[1])),
+                        "Test that the population of " + area[1] + " matches using " + store.getScan().getName());
+                if (!DAO.RESIDENCE_AREA_FILTERS.contains(area[0])) continue;
+                assertEquals(String.valueOf(rollup.populationLivingInAndNotInCities(area[0], area[1])),
+                        String.valueOf(store.populationLivingInAndNotInCities(area[0], area[1])),
+                        "Test that the residence report for " + area[1] + " matches using " + store.getScan().getName());
+            }
+        }
+        assertEquals(1, scalar.getCityCount(), "Test that a city in an unknown country is left out");
+        assertEquals(7285000, scalar.populationOf(App.DISTRICT, "England").getPopulation(),
+                "Test that the scalar scan sums a district");
+    }
+
+    // Test that the snapshot source sums districts, cities and residence from the snapshot's city store
+    @Test
+    void SnapshotReportSource_populationOf_answeredFromCityStore()
+    {
+        // given
+        WorldSnapshot snapshot = smallWorld();
+        SnapshotReportSource source = new SnapshotReportSource(snapshot);
+        CityStore store = snapshot.getCityStore();
+
+        // when
+        List<Record> district = source.populationOf(App.DISTRICT, "ile-de-france");
+        List<Record> residence = source.populationLivingInAndNotInCities(App.CONTINENT, "Europe");
+
+        // then
+        assertEquals(CityScan.vector() != null, store.getScan() instanceof CityScan.VectorisedInSet,
+                "Test that the snapshot's store uses the vectorised scan when the JVM has the Vector API");
+        assertEquals(String.valueOf(store.populationOf(App.DISTRICT, "ile-de-france")), String.valueOf(district.get(0)),
+                "Test that a district's population comes from the city store");
+        assertEquals(String.valueOf(store.populationLivingInAndNotInCities(App.CONTINENT, "Europe")),
+                String.valueOf(residence.get(0)),
+                "Test that the residence report comes from the city store");
+    }
+
+    // Test that the vectorised scans, when the JVM has them, give the same answers as the scalar scans
+    @Test
+    void CityScan_best_matchesScalar()
+    {
+        // given
+        CityScan scalar = new CityScan.Scalar();
+        CityScan best = CityScan.best();
+        SplittableRandom random = new SplittableRandom(7);
+        // An odd size so the vector loop leaves cities for the scalar tail
+        int size = 1003;
+        int[] column = new int[size + 5];
+        long[] population = new long[size + 5];
+        for (int i = 0; i < column.length; i++)
+        {
+            column[i] = random.nextInt(10);
+            population[i] = random.nextInt(10_000_000);
+        }
+        int[] inSet = {1, 0, 0, 1, 0, 0, 0, 1, 0, 0};
+
+        // when
+        boolean vectorAvailable = CityScan.vector() != null;
+
+        // then
+        assertEquals(vectorAvailable, best instanceof CityScan.VectorisedInSet,
+                "Test that the vectorised in-set scan is used when the Vector API is available");
+        for (int code = 0; code < 11; code++)
+        {
+            assertArrayEquals(scalar.sumWhere(column, code, population, size),
+                    best.sumWhere(column, code, population, size),
+                    "Test that " + best.getName() + " matches the scalar scan for code " + code);
+        }
+        assertArrayEquals(scalar.sumWhereIn(column, inSet, population, size),
+                best.sumWhereIn(column, inSet, population, size),
+                "Test that " + best.getName() + " matches the scalar scan for a set of codes");
+        if (vectorAvailable)
+        {
+            assertArrayEquals(scalar.sumWhere(column, 3, population, size),
+                    CityScan.vector().sumWhere(column, 3, population, size),
+                    "Test that the fully vectorised scan matches the scalar scan for one code");
+        }
+        assertArrayEquals(new long[] {0, 0}, best.sumWhere(column, 3, population, 0),
+                "Test that an empty table sums to nothing");
+    }
+
+    // Test that the same scale and seed generate the same world, and another seed a different one
+    @Test
+    void WorldGenerator_snapshot_sameSeedSameWorld()
+    {
+        // given
+        WorldGenerator generator = new WorldGenerator(2, 7);
+
+        // when
+        WorldSnapshot first = generator.snapshot();
+        WorldSnapshot second = new WorldGenerator(2, 7).snapshot();
+        WorldSnapshot other = new WorldGenerator(2, 8).snapshot();
+
+        // then
+        assertEquals(2 * WorldGenerator.BASE_COUNTRIES, first.countryCount, "Test that countries are scaled");
+        assertEquals(2 * WorldGenerator.BASE_CITIES, first.cityCount, "Test that cities are scaled");
+        assertArrayEquals(first.strings, second.strings, "Test that the same seed gives the same names");
+        assertArrayEquals(first.cityPopulation, second.cityPopulation,
+                "Test that the same seed gives the same city populations");
+        assertArrayEquals(first.languagePercentage, second.languagePercentage,
+                "Test that the same seed gives the same languages");
+        assertFalse(Arrays.equals(first.cityPopulation, other.cityPopulation),
+                "Test that another seed gives different city populations");
+    }
+
+    // Test that every generated city and language is in a country and every capital is a city of its country
+    @Test
+    void WorldGenerator_snapshot_keysAndCapitalsValid()
+    {
+        // given
+        WorldGenerator generator = new WorldGenerator(1, 42);
+
+        // when
+        WorldSnapshot world = generator.snapshot();
+
+        // then
+        long[] inCities = new long[world.countryCount];
+        for (int city = 0; city < world.cityCount; city++)
+        {
+            assertTrue(world.cityCountry[city] >= 0, "Test that every city is in a country");
+            inCities[world.cityCountry[city]] += world.cityPopulation[city];
+        }
+        int withoutCapital = 0;
+        for (int country = 0; country < world.countryCount; country++)
+        {
+            int capital = world.countryCapital[country];
+            if (capital < 0) withoutCapital++;
+            else assertEquals(country, world.cityCountry[capital], "Test that every capital is in its own country");
+            assertTrue(inCities[country] <= world.countryPopulation[country],
+                    "Test that no more people live in a country's cities than in the country");
+        }
+        assertTrue(withoutCapital > 0 && withoutCapital < 20, "Test that a few countries have no capital");
+        int[] spoken = new int[world.countryCount];
+        for (int language = 0; language < world.languageCount; language++)
+        {
+            assertTrue(world.languageCountry[language] >= 0, "Test that every language is spoken in a country");
+            spoken[world.languageCountry[language]] += world.languagePercentage[language];
+        }
+        for (int total : spoken) assertTrue(total <= 1000, "Test that no country's languages add up to more than 100%");
+        assertThrows(IllegalArgumentException.class, () -> new WorldGenerator(0, 42),
+                "Test that a scale below 1 is rejected");
+    }
+
+    // Test that the SQL file inserts every generated row, the same world as the snapshot
+    @Test
+    void WorldGenerator_writeSql_insertsEveryRow() throws IOException
+    {
+        // given
+        WorldGenerator generator = new WorldGenerator(1, 42);
+        WorldSnapshot world = generator.snapshot();
+        Path file = Files.createTempFile("world", ".sql");
+
+        try
+        {
+            // when
+            long rows = generator.writeSql(file);
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+            // then
+            assertEquals(world.countryCount + world.cityCount + world.languageCount, rows,
+                    "Test that every row is written");
+            assertEquals(rows, lines.stream().filter(line -> line.startsWith("(")).count(),
+                    "Test that every row is a line of values");
+            String firstCity = "(" + world.cityId[0] + ",'" + world.string(world.cityName[0]) + "','"
+                    + world.string(world.countryCode[world.cityCountry[0]]) + "','"
+                    + world.string(world.cityDistrict[0]) + "'," + world.cityPopulation[0] + "),";
+            assertEquals(firstCity, lines.get(lines.indexOf(
+                    "INSERT INTO city (ID, Name, CountryCode, District, Population) VALUES") + 1),
+                    "Test that the cities are written as in the snapshot");
+            assertTrue(lines.contains("SET FOREIGN_KEY_CHECKS = 0;"), "Test that key checks are off while loading");
+            assertEquals("COMMIT;", lines.get(lines.size() - 3), "Test that the rows are committed together");
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Wraps the small world in a source which holds every report until it's released, so tests can
+     * line callers up behind it.
+     * @param executions Incremented each time a report is run
+     * @param started Counted down when a report reaches the source
+     * @param release Awaited before each report is answered
+     * @param failures Reports to fail with an exception before answering normally
+     * @return A report source answering from the small world
+     */
+    private static ReportSource blockingSource(AtomicInteger executions, CountDownLatch started,
+                                               CountDownLatch release, AtomicInteger failures)
+    {
+        SnapshotReportSource snapshot = new SnapshotReportSource(smallWorld());
+        return new AbstractReportSource()
+        {
+            @Override
+            public List<Record> execute(ReportRequest request)
+            {
+                executions.incrementAndGet();
+                started.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                if (failures.getAndDecrement() > 0) throw new IllegalStateException("Report failed");
+                return snapshot.execute(request);
+            }
+        };
+    }
+
+    /**
+     * Waits for a number of callers to be waiting on reports already in flight.
+     */
+    private static void awaitCoalesced(CoalescingReportSource source, long callers) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (source.getCoalescedCount() < callers && System.nanoTime() < deadline) Thread.sleep(1);
+    }
+
+    // Test that identical reports requested together are read once and the result shared
+    @Test
+    void CoalescingReportSource_execute_concurrentDuplicatesReadOnce() throws Exception
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingReportSource source = new CoalescingReportSource(
+                blockingSource(executions, started, release, new AtomicInteger()));
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+
+        try
+        {
+            // when
+            List<Future<List<Record>>> results = new ArrayList<>();
+            results.add(executor.submit(() -> source.topNCitiesIn(App.CONTINENT, "Europe", 2)));
+            assertTrue(started.await(10, TimeUnit.SECONDS), "Test that the first report reaches the source");
+            for (int i = 0; i < 4; i++)
+            {
+                results.add(executor.submit(() -> source.topNCitiesIn(App.CONTINENT, "EUROPE", 2)));
+            }
+            awaitCoalesced(source, 4);
+            release.countDown();
+
+            // then
+            List<Record> first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<List<Record>> result : results)
+            {
+                assertSame(first, result.get(10, TimeUnit.SECONDS), "Test that every caller gets the same result");
+            }
+            assertEquals(2, first.size(), "Test that the shared result is the report");
+            assertEquals(1, executions.get(), "Test that identical reports requested together are read once");
+            assertEquals(4L, source.getCoalescedCount(), "Test that the queries saved are counted");
+            assertEquals(0, source.getInFlightCount(), "Test that nothing is kept once the report is read");
+            assertThrows(UnsupportedOperationException.class, first::clear,
+                    "Test that shared results can't be modified");
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // Test that a failure reaches every caller waiting for the report, and the next request reads it again
+    @Test
+    void CoalescingReportSource_execute_failureReachesWaitersOnly() throws Exception
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingReportSource source = new CoalescingReportSource(
+                blockingSource(executions, started, release, new AtomicInteger(1)));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try
+        {
+            // when
+            List<Future<List<Record>>> results = new ArrayList<>();
+            results.add(executor.submit(() -> source.languageReport()));
+            assertTrue(started.await(10, TimeUnit.SECONDS), "Test that the first report reaches the source");
+            results.add(executor.submit(() -> source.languageReport()));
+            results.add(executor.submit(() -> source.languageReport()));
+            awaitCoalesced(source, 2);
+            release.countDown();
+
+            // then
+            for (Future<List<Record>> result : results)
+            {
+                ExecutionException failure = assertThrows(ExecutionException.class,
+                        () -> result.get(10, TimeUnit.SECONDS), "Test that the failure reaches every caller");
+                assertEquals("Report failed", failure.getCause().getMessage(),
+                        "Test that callers get the exception the source threw");
+            }
+            assertEquals(2, source.languageReport().size(), "Test that the next request reads the report again");
+            assertEquals(2, executions.get(), "Test that the failed report was read once before the retry");
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // Test that a leader whose consumer throws fails only itself, the callers waiting still get the report
+    @Test
+    void CoalescingReportSource_forEachRecord_throwingConsumerFailsOnlyItsCaller() throws Exception
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingReportSource source = new CoalescingReportSource(
+                blockingSource(executions, started, release, new AtomicInteger()));
+        ReportRequest request = new ReportRequest(9, null, null, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try
+        {
+            // when
+            Future<Long> leader = executor.submit(() -> source.forEachRecord(request, record -> {
+                throw new IllegalStateException("Client went away");
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS), "Test that the first report reaches the source");
+            List<Future<List<Record>>> waiting = new ArrayList<>();
+            waiting.add(executor.submit(() -> source.execute(request)));
+            waiting.add(executor.submit(() -> source.execute(request)));
+            awaitCoalesced(source, 2);
+            release.countDown();
+
+            // then
+            ExecutionException failure = assertThrows(ExecutionException.class,
+                    () -> leader.get(10, TimeUnit.SECONDS), "Test that the consumer's exception reaches its caller");
+            assertEquals("Client went away", failure.getCause().getMessage(),
+                    "Test that the leader gets its own consumer's exception");
+            for (Future<List<Record>> result : waiting)
+            {
+                assertEquals(2, result.get(10, TimeUnit.SECONDS).size(),
+                        "Test that the callers waiting get the report despite the leader's consumer");
+            }
+            assertEquals(1, executions.get(), "Test that the report was read once");
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    // Test that the caller reading a report gets each record as the delegate produces it
+    @Test
+    void CoalescingReportSource_forEachRecord_leaderStreams() throws Exception
+    {
+        // given
+        List<Record> report = new SnapshotReportSource(smallWorld()).languageReport();
+        CountDownLatch firstSeen = new CountDownLatch(1);
+        CoalescingReportSource source = new CoalescingReportSource(new AbstractReportSource()
+        {
+            @Override
+            public List<Record> execute(ReportRequest request) { return report; }
+
+            @Override
+            public long forEachRecord(ReportRequest request, Consumer<Record> consumer)
+            {
+                consumer.accept(report.get(0));
+                try
+                {
+                    // The rest of the report only arrives once the first record has reached the caller
+                    if (!firstSeen.await(10, TimeUnit.SECONDS)) return -1;
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+                for (int i = 1; i < report.size(); i++) consumer.accept(report.get(i));
+                return report.size();
+            }
+        });
+        List<Record> seen = new ArrayList<>();
+
+        // when
+        long count = source.forEachRecord(new ReportRequest(9, null, null, 0), record -> {
+            seen.add(record);
+            firstSeen.countDown();
+        });
+
+        // then
+        assertEquals(report.size(), count, "Test that the whole report is read");
+        assertEquals(report, seen, "Test that the caller gets each record as it's read, in order");
+    }
+
+    // Test that a batch reads each distinct report once
+    @Test
+    void CoalescingReportSource_executeBatch_duplicatesReadOnce()
+    {
+        // given
+        AtomicInteger executions = new AtomicInteger();
+        CoalescingReportSource source = new CoalescingReportSource(countingSource(executions));
+        List<ReportRequest> requests = Arrays.asList(
+                new ReportRequest(8, App.COUNTRY, "France", 0),
+                new ReportRequest(8, App.COUNTRY, "FRANCE", 0),
+                new ReportRequest(1, App.WORLD, "", 0));
+
+        // when
+        List<List<Record>> results = source.executeBatch(requests);
+
+        // then
+        assertEquals(3, results.size(), "Test that every report in the batch is answered");
+        assertSame(results.get(0), results.get(1), "Test that duplicates in a batch share a result");
+        assertEquals(2, results.get(2).size(), "Test that the other report is answered");
+        assertEquals(2, executions.get(), "Test that a batch reads each distinct report once");
+        assertEquals(1L, source.getCoalescedCount(), "Test that duplicates in a batch are counted as saved");
+    }
+
+    // Test that the DAO records each report's latency and rows against its use case and area filter
+    @Test
+    void DAO_execute_recordsQueryStats()
+    {
+        // given
+        DAO dao = new DAO(slowConnection(0, new AtomicInteger(), new AtomicInteger()));
+        QueryStats stats = DAO.getMetrics().get("populationLivingInAndNotInCities", App.CONTINENT);
+        long queries = stats.getCount();
+        long rows = stats.getRowCount();
+        QueryStats failing = DAO.getMetrics().get("languageReport", null);
+        long errors = failing.getErrorCount();
+
+        // when
+        dao.populationLivingInAndNotInCities(App.CONTINENT, "Europe");
+        new DAO(null).languageReport();
+
+        // then
+        assertEquals(queries + 1, stats.getCount(), "Test that a report's query is counted against its use case");
+        assertEquals(rows + 1, stats.getRowCount(), "Test that a report's rows are counted");
+        assertTrue(stats.getMaxMicros() >= stats.getP50Micros(), "Test that percentiles are read from the latencies");
+        assertEquals(errors + 1, failing.getErrorCount(), "Test that a failed report is counted as an error");
+        assertEquals(QueryMetrics.NO_AREA_FILTER, failing.getAreaFilter(),
+                "Test that a report without an area filter is recorded under none");
+    }
+
+    // Test that a streamed report is recorded in the query stats once its stream is closed
+    @Test
+    void DAO_streamRecords_recordsQueryStats() throws SQLException
+    {
+        // given
+        DAO dao = new DAO(slowConnection(0, new AtomicInteger(), new AtomicInteger()));
+        QueryStats stats = DAO.getMetrics().get("populationLivingInAndNotInCities", App.REGION);
+        long queries = stats.getCount();
+        long rows = stats.getRowCount();
+
+        // when
+        long streamed;
+        try (Stream<Record> records = dao.streamRecords(new ReportRequest(7, App.REGION, "Caribbean", 0)))
+        {
+            streamed = records.count();
+        }
+
+        // then
+        assertEquals(1L, streamed, "Test that the streamed report gives its row");
+        assertEquals(queries + 1, stats.getCount(), "Test that a streamed report's query is counted");
+        assertEquals(rows + 1, stats.getRowCount(), "Test that a streamed report's rows are counted");
+    }
+
+    // Test that query stats are registered as MBeans, both those already created and those created later
+    @Test
+    void QueryMetrics_publish_registersMBeans() throws Exception
+    {
+        // given
+        QueryMetrics metrics = new QueryMetrics();
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        metrics.get("topNCitiesIn", App.CONTINENT).record(3_000_000, 1_000_000, 1_500_000, 500_000, 10);
+
+        // when
+        metrics.publish(server);
+        metrics.get("allCountriesIn", App.WORLD);
+
+        // then
+        ObjectName topN = QueryMetrics.objectName("topNCitiesIn", App.CONTINENT);
+        assertTrue(server.isRegistered(topN), "Test that stats created before publishing are registered");
+        assertTrue(server.isRegistered(QueryMetrics.objectName("allCountriesIn", App.WORLD)),
+                "Test that stats created after publishing are registered");
+        assertEquals(1L, server.getAttribute(topN, "Count"), "Test that the MBean shows the query count");
+        assertEquals(10L, server.getAttribute(topN, "RowCount"), "Test that the MBean shows the row count");
+        assertEquals(3000L, server.getAttribute(topN, "MaxMicros"), "Test that the MBean shows the latency");
+        assertEquals(500L, server.getAttribute(topN, "MappingMeanMicros"),
+                "Test that the MBean shows mapping apart from fetching");
+    }
+
+    // Test that a report emits flight recorder events for executing, fetching, mapping and rendering
+    @Test
+    void DAO_forEachRecord_emitsFlightRecorderEvents() throws Exception
+    {
+        // given
+        DAO dao = new DAO(slowConnection(0, new AtomicInteger(), new AtomicInteger()));
+        ReportRequest request = new ReportRequest(7, App.CONTINENT, "Europe", 0);
+        Path file = Files.createTempFile("reports", ".jfr");
+        List<RecordedEvent> events;
+
+        try
+        {
+            // when
+            try (Recording recording = new Recording())
+            {
+                for (String event : new String[] {"QueryExecute", "ResultFetch", "RecordMapping", "ReportRender"})
+                {
+                    recording.enable("com.napier.sem." + event).withoutStackTrace();
+                }
+                recording.start();
+                ReportRenderer renderer = new ReportRenderer(new PrintStream(new ByteArrayOutputStream()), request);
+                dao.forEachRecord(request, renderer::render);
+                renderer.flush();
+                recording.stop();
+                recording.dump(file);
+            }
+            events = RecordingFile.readAllEvents(file);
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+
+        // then
+        Map<String, RecordedEvent> byName = new HashMap<>();
+        for (RecordedEvent event : events) byName.put(event.getEventType().getName(), event);
+        RecordedEvent execute = byName.get("com.napier.sem.QueryExecute");
+        assertNotNull(execute, "Test that executing the query is recorded");
+        assertEquals("populationLivingInAndNotInCities", execute.getString("useCase"),
+                "Test that events carry the use case");
+        assertEquals(App.CONTINENT, execute.getString("areaFilter"), "Test that events carry the area filter");
+        assertTrue(execute.getString("sql").contains("country.continent = ?"),
+                "Test that the query event carries the parameterised SQL");
+        assertEquals(1L, byName.get("com.napier.sem.ResultFetch").getLong("rowCount"),
+                "Test that fetching the rows is recorded with the row count");
+        assertNotNull(byName.get("com.napier.sem.RecordMapping"), "Test that mapping the first row is recorded");
+        assertEquals(1L, byName.get("com.napier.sem.ReportRender").getLong("rowCount"),
+                "Test that printing the rendered rows is recorded");
+    }
+
+    // Test that the metrics server serves query, pool and cache metrics in the Prometheus text format
+    @Test
+    void MetricsServer_scrape_servesPrometheusText() throws Exception
+    {
+        // given
+        QueryMetrics metrics = new QueryMetrics();
+        metrics.get("topNCitiesIn", App.CONTINENT).record(3_000_000, 1_000_000, 1_500_000, 500_000, 10);
+        metrics.get("topNCitiesIn", App.CONTINENT).recordError();
+        ConnectionPool pool = new ConnectionPool(() -> fakeConnection(true, new AtomicBoolean()),
+                0, 2, 60000, 1000, 60000);
+        Connection held = pool.borrow();
+        CachingReportSource cache = new CachingReportSource(new SnapshotReportSource(smallWorld()), 16, 60000);
+        cache.execute(new ReportRequest(1, App.WORLD, null, 0));
+        cache.execute(new ReportRequest(1, App.WORLD, null, 0));
+        MetricsServer server = new MetricsServer(0, metrics, pool, cache, null);
+        server.start();
+
+        try
+        {
+            // when
+            String[] scrape = httpGet("http://localhost:" + server.getPort() + MetricsServer.PATH);
+            String[] notFound = httpGet("http://localhost:" + server.getPort() + MetricsServer.PATH + "/else");
+            List<String> lines = Arrays.asList(scrape[1].split("\n"));
+
+            // then
+            assertEquals("200", scrape[0], "Test that a scrape is answered with 200");
+            assertEquals("404", notFound[0], "Test that other paths are answered with 404");
+            String labels = "{use_case=\"topNCitiesIn\",area_filter=\"continent\"";
+            assertTrue(lines.contains("world_report_query_duration_seconds_bucket" + labels + ",le=\"0.002048\"} 0"),
+                    "Test that a bucket below the query's latency is empty");
+            assertTrue(lines.contains("world_report_query_duration_seconds_bucket" + labels + ",le=\"0.004096\"} 1"),
+                    "Test that the buckets are cumulative from the query's latency");
+            assertTrue(lines.contains("world_report_query_duration_seconds_count" + labels + "} 1"),
+                    "Test that the histogram counts the query");
+            assertTrue(lines.contains("world_report_query_duration_seconds_sum" + labels + "} 0.003"),
+                    "Test that the histogram sums the latency in seconds");
+            assertTrue(lines.contains("world_report_query_errors_total" + labels + "} 1"),
+                    "Test that errors are counted");
+            assertTrue(lines.contains("world_report_rows_mapped_total" + labels + "} 10"),
+                    "Test that rows mapped into records are counted");
+            assertTrue(lines.contains("world_report_pool_connections{state=\"active\"} 1"),
+                    "Test that borrowed connections are shown");
+            assertTrue(lines.contains("world_report_cache_requests_total{result=\"hit\"} 1"),
+                    "Test that cache hits are counted");
+            assertTrue(lines.contains("# TYPE world_report_connect_retries_total counter"),
+                    "Test that connection retries are exported");
+            assertTrue(lines.stream().anyMatch(line -> line.startsWith("world_report_jvm_allocated_bytes_total ")),
+                    "Test that the JVM's allocations are exported");
+            assertFalse(lines.stream().anyMatch(line -> line.startsWith("world_report_coalesced")),
+                    "Test that sources the app isn't using are left out");
+        }
+        finally
+        {
+            server.close();
+            pool.release(held);
+            pool.close();
+        }
+    }
+
+    // Test that a scrape is the same size however many queries have been recorded
+    @Test
+    void MetricsServer_scrape_sizeIndependentOfQueryCount() throws IOException
+    {
+        // given
+        QueryMetrics metrics = new QueryMetrics();
+        MetricsServer server = new MetricsServer(0, metrics, null, null, null);
+        QueryStats stats = metrics.get("allCountriesIn", App.WORLD);
+        stats.record(1_000, 1_000, 0, 0, 1);
+        int before = server.scrape().split("\n").length;
+
+        // when
+        for (int i = 0; i < 100_000; i++) stats.record(1_000L * (i % 5_000), 1_000, 0, 0, 1);
+        int after = server.scrape().split("\n").length;
+
+        // then
+        assertEquals(before, after, "Test that the number of samples doesn't grow with the number of queries");
+        server.close();
+    }
+
+    /**
+     * Creates a stand-in connection which answers EXPLAIN with a plan and every other query with one
+     * residence row after a delay, recording the SQL it's asked to prepare.
+     * @param queryMillis How long each query other than EXPLAIN takes
+     * @param prepared The SQL of every statement prepared
+     * @return A connection object
+     */
+    private static Connection explainingConnection(long queryMillis, List<String> prepared)
+    {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (connection, connectionMethod, connectionArgs) -> {
+                    switch (connectionMethod.getName())
+                    {
+                        case "prepareStatement":
+                            String sql = (String) connectionArgs[0];
+                            prepared.add(sql);
+                            return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                    new Class<?>[]{PreparedStatement.class},
+                                    (statement, method, methodArgs) -> {
+                                        if (!method.getName().equals("executeQuery")) return null;
+                                        if (sql.startsWith("EXPLAIN")) return fakeResult(new Object[]{"{\"query_block\": {}}"});
+                                        Thread.sleep(queryMillis);
+                                        return fakeResult(new Object[]{"Europe", 730074600L, 241942813L, 488131787L});
+                                    });
+                        case "isValid":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(connection);
+                        case "equals":
+                            return connection == connectionArgs[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // Test that a report slower than the threshold is logged with its SQL, values, timings and plan
+    @Test
+    void DAO_forEachRecord_logsSlowQueryWithPlan() throws IOException
+    {
+        // given
+        List<String> prepared = new CopyOnWriteArrayList<>();
+        ConnectionPool pool = new ConnectionPool(() -> explainingConnection(20, prepared), 0, 2, 60000, 1000, 60000);
+        Path file = Files.createTempDirectory("slow").resolve("slow-queries.log");
+        SlowQueryLog log = new SlowQueryLog(10, file, 1024 * 1024, 2, pool);
+        DAO dao = DAO.pooled(pool);
+        DAO.setSlowQueryLog(log);
+
+        try
+        {
+            // when
+            dao.execute(new ReportRequest(7, App.CONTINENT, "Europe", 0));
+        }
+        finally
+        {
+            DAO.setSlowQueryLog(null);
+            log.close();
+            pool.close();
+        }
+
+        // then
+        String entry = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertEquals(1L, log.getLoggedCount(), "Test that the slow report is logged once");
+        assertTrue(entry.contains("# Use case: populationLivingInAndNotInCities | Area filter: continent | Rows: 1"),
+                "Test that the entry names the report and area filter");
+        assertTrue(entry.contains("# Parameters: 'Europe'"), "Test that the entry gives the bind values");
+        assertTrue(entry.contains("country.continent = 'Europe'"),
+                "Test that the SQL is logged with the values in place of the placeholders");
+        assertTrue(entry.contains("# Total: "), "Test that the entry gives the timings");
+        assertTrue(entry.contains("# Plan:\n{\"query_block\": {}}"), "Test that the entry gives the plan");
+        assertTrue(prepared.stream().anyMatch(sql -> sql.startsWith("EXPLAIN FORMAT=JSON SELECT")),
+                "Test that the plan is asked for with EXPLAIN FORMAT=JSON");
+    }
+
+    // Test that a slow query is logged without its plan, rather than waiting on the pool, when every
+    // connection is busy with reports
+    @Test
+    void SlowQueryLog_record_noFreeConnectionSkipsPlan() throws IOException, SQLException
+    {
+        // given
+        List<String> prepared = new CopyOnWriteArrayList<>();
+        ConnectionPool pool = new ConnectionPool(() -> explainingConnection(0, prepared), 0, 1, 60000, 30000, 60000);
+        Connection held = pool.borrow();
+        Path file = Files.createTempDirectory("slow").resolve("slow-queries.log");
+        SlowQueryLog log = new SlowQueryLog(1, file, 1024 * 1024, 2, pool);
+        ReportQuery query = new ReportQuery("allCountriesIn", App.WORLD, "SELECT country.name FROM country",
+                App.COUNTRY);
+
+        // when
+        long start = System.nanoTime();
+        log.record(query, 2_000_000, 1_000_000, 500_000, 500_000, 1);
+        log.close();
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pool.release(held);
+        pool.close();
+
+        // then
+        assertTrue(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)
+                        .contains("# Plan:\n(no connection free, plan not captured)"),
+                "Test that the entry says the plan wasn't captured");
+        assertTrue(waitedMillis < 5000, "Test that EXPLAIN doesn't wait the pool's borrow timeout");
+        assertTrue(prepared.isEmpty(), "Test that EXPLAIN isn't run");
+        assertEquals(0L, pool.getTimeoutCount(), "Test that giving up on a connection isn't counted as a timeout");
+    }
+
+    // Test that tryBorrow hands out a free connection and gives up on a saturated pool without throwing
+    @Test
+    void ConnectionPool_tryBorrow_givesUpWhenSaturated() throws SQLException
+    {
+        // given
+        ConnectionPool pool = new ConnectionPool(() -> fakeConnection(true, new AtomicBoolean()), 0, 1, 60000, 30000, 60000);
+
+        // when
+        Connection first = pool.tryBorrow(0);
+        Connection second = pool.tryBorrow(10);
+
+        // then
+        assertNotNull(first, "Test that a free connection is handed out");
+        assertNull(second, "Test that a saturated pool gives no connection once the wait is over");
+        pool.release(first);
+        pool.close();
+    }
+
+    // Test that the slow query log skips fast queries and rotates once it's full, keeping the newest files
+    @Test
+    void SlowQueryLog_record_rotatesFullLog() throws IOException
+    {
+        // given
+        Path file = Files.createTempDirectory("slow").resolve("slow-queries.log");
+        SlowQueryLog log = new SlowQueryLog(1, file, 100, 2, null);
+        ReportQuery query = new ReportQuery("topNCitiesIn", App.COUNTRY,
+                "SELECT city.name FROM city WHERE city.name = ? LIMIT ?", App.CITY, "O'Brien?", 5);
+
+        // when
+        log.record(query, 500_000, 0, 0, 0, 0);
+        for (int i = 0; i < 4; i++) log.record(query, 2_000_000 + i, 1_000_000, 500_000, 500_000, 5);
+        log.close();
+
+        // then
+        assertEquals(4L, log.getLoggedCount(), "Test that only queries over the threshold are logged");
+        assertTrue(Files.exists(file) && Files.exists(log.rotated(1)) && Files.exists(log.rotated(2)),
+                "Test that the log is rotated when full");
+        assertFalse(Files.exists(log.rotated(3)), "Test that only the newest rotated logs are kept");
+        assertTrue(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)
+                        .contains("city.name = 'O\\'Brien?' LIMIT 5;"),
+                "Test that values are quoted, and placeholders inside them left alone");
+    }
 }